@@ -0,0 +1,130 @@
+package io.kickflip.sdk.av;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times each {@link io.kickflip.sdk.av.AudioProcessor} stage, and the full chain, on one
+ * 1024-sample per channel frame: the AAC frame size MicrophoneEncoder captures. At 44.1 kHz
+ * such a frame lasts 23 ms, and each stage's budget is 1 ms.
+ * <p/>
+ * Every operation first restores the frame from a copy, so stateful stages see realistic
+ * input rather than their own decayed or amplified output. The copy is included in each time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AudioProcessorBenchmark {
+
+    public static final int SAMPLE_RATE = 44100;
+    public static final int FRAME_SAMPLES = 1024;               // Per channel
+
+    @Param({"1", "2"})
+    public int channelCount;
+
+    private float[] mSource;
+    private float[] mSamples;
+    private short[] mPcmSource;
+    private PcmRing.Frame mFrame;
+
+    private AutomaticGainControl mAgc;
+    private SoftLimiter mLimiter;
+    private NoiseGate mGate;
+    private HighPassFilter mHighPass;
+    private AudioProcessorChain mChain;
+
+    @Setup
+    public void setUp() {
+        int count = FRAME_SAMPLES * channelCount;
+        mSource = createSpeechLikeFrame(count, channelCount);
+        mSamples = new float[count];
+        mPcmSource = new short[count];
+        for (int i = 0; i < count; i++) {
+            mPcmSource[i] = (short) (mSource[i] * Short.MAX_VALUE);
+        }
+        mFrame = new PcmRing(1, count * 2).claim();
+        mFrame.size = count * 2;
+
+        mAgc = configure(new AutomaticGainControl(-18, 24));
+        mLimiter = configure(new SoftLimiter(-3));
+        mGate = configure(new NoiseGate(-50, -40));
+        mHighPass = configure(new HighPassFilter(80));
+        mChain = new AudioProcessorChain(Arrays.<AudioProcessor>asList(new HighPassFilter(80), new NoiseGate(-50, -40),
+                new AutomaticGainControl(-18, 24), new SoftLimiter(-3)), SAMPLE_RATE, channelCount, count);
+    }
+
+    @Benchmark
+    public float[] automaticGainControl() {
+        return process(mAgc);
+    }
+
+    @Benchmark
+    public float[] softLimiter() {
+        return process(mLimiter);
+    }
+
+    @Benchmark
+    public float[] noiseGate() {
+        return process(mGate);
+    }
+
+    @Benchmark
+    public float[] highPassFilter() {
+        return process(mHighPass);
+    }
+
+    /**
+     * Every stage, with the 16-bit conversions either side
+     */
+    @Benchmark
+    public PcmRing.Frame chain() {
+        mFrame.samples.clear();
+        mFrame.samples.put(mPcmSource);
+        mChain.process(mFrame);
+        return mFrame;
+    }
+
+    private float[] process(AudioProcessor processor) {
+        System.arraycopy(mSource, 0, mSamples, 0, mSamples.length);
+        processor.process(mSamples, mSamples.length);
+        return mSamples;
+    }
+
+    private <T extends AudioProcessor> T configure(T processor) {
+        processor.configure(SAMPLE_RATE, channelCount);
+        return processor;
+    }
+
+    /**
+     * @return interleaved samples of a 200 Hz tone with harmonics, noise and a loud
+     * transient, so every stage takes its gain, gating and limiting paths
+     */
+    static float[] createSpeechLikeFrame(int count, int channelCount) {
+        Random random = new Random(0);
+        float[] samples = new float[count];
+        for (int i = 0; i < count; i++) {
+            double t = (double) (i / channelCount) / SAMPLE_RATE;
+            double tone = 0.2 * Math.sin(2 * Math.PI * 200 * t) + 0.05 * Math.sin(2 * Math.PI * 600 * t);
+            double envelope = (i < count / 4) ? 0.01 : 1;
+            double click = (i / channelCount == FRAME_SAMPLES / 2) ? 1.5 : 0;
+            samples[i] = (float) (tone * envelope + 0.002 * random.nextGaussian() + click);
+        }
+        return samples;
+    }
+}
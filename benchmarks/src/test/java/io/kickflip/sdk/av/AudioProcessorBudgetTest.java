@@ -0,0 +1,46 @@
+package io.kickflip.sdk.av;
+
+import org.junit.Test;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link io.kickflip.sdk.av.AudioProcessorBenchmark} briefly and checks every stage,
+ * and the whole chain, processes a 1024-sample per channel frame in under 1 ms.
+ */
+public class AudioProcessorBudgetTest {
+
+    private static final double BUDGET_US = 1000;
+
+    @Test
+    public void everyStageMeetsFrameBudget() throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(AudioProcessorBenchmark.class.getName())
+                .timeUnit(TimeUnit.MICROSECONDS)
+                .warmupIterations(3)
+                .warmupTime(TimeValue.milliseconds(200))
+                .measurementIterations(3)
+                .measurementTime(TimeValue.milliseconds(200))
+                .forks(1)
+                .build();
+        Collection<RunResult> results = new Runner(options).run();
+
+        // 5 benchmarks, each with 1 and 2 channels
+        assertEquals(10, results.size());
+        for (RunResult result : results) {
+            String label = result.getParams().getBenchmark() + " " + result.getParams().getParam("channelCount") + "ch";
+            double microseconds = result.getPrimaryResult().getScore();
+            assertTrue(label + " took " + microseconds + " us per frame", microseconds < BUDGET_US);
+        }
+    }
+}
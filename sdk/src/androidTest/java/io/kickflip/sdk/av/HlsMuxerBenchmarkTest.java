@@ -0,0 +1,204 @@
+package io.kickflip.sdk.av;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.kickflip.sdk.event.MuxerFinishedEvent;
+
+/**
+ * Compares {@link io.kickflip.sdk.av.MpegTsHlsMuxer} and {@link io.kickflip.sdk.av.CmafHlsMuxer}
+ * with the native {@link io.kickflip.sdk.av.FFmpegMuxer} HLS path, muxing the same recorded
+ * elementary streams as fast as possible. Timing covers writing every packet through to the
+ * Muxer finishing, including any muxing thread. Output bytes cover every segment, including
+ * any initialization segment.
+ * <p/>
+ * Results are logged under the HlsMuxerBenchmark tag.
+ */
+public class HlsMuxerBenchmarkTest extends InstrumentationTestCase {
+    private static final String TAG = "HlsMuxerBenchmark";
+
+    private static final int WARMUP_LOOPS = 2;
+    private static final int LOOPS = 60;                     // Two minutes of media
+    private static final long LOOP_DURATION_US = 2100000;   // Beyond the longer recording
+    private static final int SEGMENT_DURATION_SEC = 2;
+    private static final long FINISH_TIMEOUT_SEC = 60;
+
+    private ElementaryStream mVideo;
+    private ElementaryStream mAudio;
+
+    private static class Result {
+        long elapsedNs;
+        int packets;
+        long outputBytes;
+
+        @Override
+        public String toString() {
+            return String.format("%d packets in %.1f ms, %d ns per packet. %d bytes output",
+                    packets, elapsedNs / 1e6, elapsedNs / Math.max(1, packets), outputBytes);
+        }
+    }
+
+    private static class FinishedListener {
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        @Subscribe
+        public void onMuxerFinished(MuxerFinishedEvent e) {
+            finished.countDown();
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mVideo = ElementaryStream.readH264();
+        mAudio = ElementaryStream.readAac();
+    }
+
+    public void testMpegTsHlsMuxerAgainstFFmpeg() throws Exception {
+        File root = new File(getInstrumentation().getTargetContext().getCacheDir(), TAG);
+        mux(MpegTsHlsMuxer.create(outputPath(root, "java_warmup")), WARMUP_LOOPS);
+        mux(FFmpegMuxer.create(outputPath(root, "ffmpeg_warmup"), Muxer.FORMAT.HLS), WARMUP_LOOPS);
+
+        Result java = mux(MpegTsHlsMuxer.create(outputPath(root, "java")), LOOPS);
+        Result ffmpeg = mux(FFmpegMuxer.create(outputPath(root, "ffmpeg"), Muxer.FORMAT.HLS), LOOPS);
+        Log.i(TAG, "MpegTsHlsMuxer: " + java);
+        Log.i(TAG, "FFmpegMuxer:    " + ffmpeg);
+        Log.i(TAG, String.format("MpegTsHlsMuxer takes %.2fx the time, and writes %.3fx the bytes of FFmpegMuxer",
+                java.elapsedNs / (double) ffmpeg.elapsedNs, java.outputBytes / (double) ffmpeg.outputBytes));
+
+        assertTrue(java.outputBytes > 0);
+        assertTrue(ffmpeg.outputBytes > 0);
+        deleteRecursively(root);
+    }
+
+    public void testCmafOverheadAgainstFFmpeg() throws Exception {
+        File root = new File(getInstrumentation().getTargetContext().getCacheDir(), TAG);
+        long payloadBytes = mVideo.getCodecConfig().length;
+        for (ElementaryStream.Sample sample : mVideo.getSamples()) payloadBytes += sample.data.length * LOOPS;
+        for (ElementaryStream.Sample sample : mAudio.getSamples()) payloadBytes += sample.data.length * LOOPS;
+
+        Result cmaf = mux(CmafHlsMuxer.create(outputPath(root, "cmaf")), LOOPS);
+        Result ffmpeg = mux(FFmpegMuxer.create(outputPath(root, "ffmpeg"), Muxer.FORMAT.HLS), LOOPS);
+        Log.i(TAG, "CmafHlsMuxer: " + cmaf);
+        Log.i(TAG, "FFmpegMuxer:  " + ffmpeg);
+        Log.i(TAG, String.format("%d bytes of elementary streams. CMAF adds %.1f%%, FFmpeg's MPEG-TS %.1f%%",
+                payloadBytes, 100.0 * (cmaf.outputBytes - payloadBytes) / payloadBytes,
+                100.0 * (ffmpeg.outputBytes - payloadBytes) / payloadBytes));
+
+        assertTrue("CMAF output is no smaller than MPEG-TS", cmaf.outputBytes < ffmpeg.outputBytes);
+        deleteRecursively(root);
+    }
+
+    private static String outputPath(File root, String name) {
+        File dir = new File(root, name);
+        deleteRecursively(dir);
+        assertTrue(dir.mkdirs());
+        return new File(dir, "index.m3u8").getAbsolutePath();
+    }
+
+    /**
+     * Write the recordings, looped, to muxer as an encoder would, and wait for it to finish.
+     */
+    private Result mux(Muxer muxer, int loops) throws Exception {
+        List<ByteBuffer> videoBuffers = toDirectBuffers(mVideo);
+        List<ByteBuffer> audioBuffers = toDirectBuffers(mAudio);
+        ByteBuffer codecConfig = ByteBuffer.allocateDirect(mVideo.getCodecConfig().length);
+        codecConfig.put(mVideo.getCodecConfig());
+
+        FinishedListener listener = new FinishedListener();
+        EventBus eventBus = new EventBus();
+        eventBus.register(listener);
+        muxer.setEventBus(eventBus);
+        muxer.setHlsSegmentDuration(SEGMENT_DURATION_SEC);
+
+        Result result = new Result();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        long startNs = System.nanoTime();
+        int videoTrack = muxer.addTrack(MediaFormat.createVideoFormat("video/avc",
+                ElementaryStream.H264_WIDTH, ElementaryStream.H264_HEIGHT));
+        int audioTrack = muxer.addTrack(MediaFormat.createAudioFormat("audio/mp4a-latm",
+                ElementaryStream.AAC_SAMPLE_RATE, ElementaryStream.AAC_CHANNELS));
+        codecConfig.clear();
+        info.set(0, codecConfig.capacity(), 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+        muxer.writeSampleData(null, videoTrack, -1, codecConfig, info);
+
+        List<ElementaryStream.Sample> videoSamples = mVideo.getSamples();
+        List<ElementaryStream.Sample> audioSamples = mAudio.getSamples();
+        for (int loop = 0; loop < loops; loop++) {
+            long offsetUs = loop * LOOP_DURATION_US;
+            int v = 0;
+            int a = 0;
+            while (v < videoSamples.size() || a < audioSamples.size()) {
+                boolean writeVideo = a == audioSamples.size()
+                        || (v < videoSamples.size() && videoSamples.get(v).ptsUs <= audioSamples.get(a).ptsUs);
+                if (writeVideo) {
+                    write(muxer, videoTrack, videoBuffers.get(v), videoSamples.get(v++), offsetUs, info);
+                } else {
+                    write(muxer, audioTrack, audioBuffers.get(a), audioSamples.get(a++), offsetUs, info);
+                }
+                result.packets++;
+            }
+        }
+        long endUs = loops * LOOP_DURATION_US;
+        ByteBuffer empty = ByteBuffer.allocateDirect(0);
+        info.set(0, 0, endUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        muxer.writeSampleData(null, videoTrack, -1, empty, info);
+        info.set(0, 0, endUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        muxer.writeSampleData(null, audioTrack, -1, empty, info);
+
+        assertTrue("Muxer didn't finish", listener.finished.await(FINISH_TIMEOUT_SEC, TimeUnit.SECONDS));
+        result.elapsedNs = System.nanoTime() - startNs;
+        result.outputBytes = segmentBytes(new File(muxer.getOutputPath()).getParentFile());
+        return result;
+    }
+
+    private static void write(Muxer muxer, int track, ByteBuffer data, ElementaryStream.Sample sample,
+                              long offsetUs, MediaCodec.BufferInfo info) {
+        data.clear();
+        info.set(0, data.capacity(), sample.ptsUs + offsetUs, sample.keyframe ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+        muxer.writeSampleData(null, track, -1, data, info);
+    }
+
+    private static List<ByteBuffer> toDirectBuffers(ElementaryStream stream) {
+        List<ByteBuffer> buffers = new ArrayList<>();
+        for (ElementaryStream.Sample sample : stream.getSamples()) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(sample.data.length);
+            buffer.put(sample.data);
+            buffers.add(buffer);
+        }
+        return buffers;
+    }
+
+    private static long segmentBytes(File dir) throws IOException {
+        long bytes = 0;
+        File[] files = dir.listFiles();
+        if (files == null) throw new IOException("Can't list " + dir);
+        for (File file : files) {
+            if (!file.getName().endsWith(".m3u8")) bytes += file.length();
+        }
+        return bytes;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,203 @@
+package io.kickflip.sdk.av;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A local stand-in for an HLS origin. Stores PUT bodies by path and serves them to GETs.
+ * <p/>
+ * A playlist GET with _HLS_msn, and optionally _HLS_part, blocks until the stored
+ * playlist lists that segment or partial segment, as a Low-Latency HLS origin
+ * supporting CAN-BLOCK-RELOAD would.
+ * <p/>
+ * Each connection is served by its own thread and closed after one request.
+ */
+class HttpStandIn {
+
+    private static final long BLOCKING_RELOAD_TIMEOUT_MS = 10000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ServerSocket mServerSocket;
+    private final Map<String, byte[]> mResources = new HashMap<>();
+    private volatile boolean mStopped;
+
+    HttpStandIn() throws IOException {
+        mServerSocket = new ServerSocket(0, 16, InetAddress.getByName("127.0.0.1"));
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, "HttpStandIn");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * @return the base URL resources are served under, without a trailing slash
+     */
+    String getBaseUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort();
+    }
+
+    void stop() throws IOException {
+        mStopped = true;
+        mServerSocket.close();
+    }
+
+    private void acceptConnections() {
+        while (!mStopped) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (SocketException e) {
+                return;     // Closed by stop()
+            } catch (IOException e) {
+                continue;
+            }
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch (IOException | InterruptedException ignored) {
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+            }).start();
+        }
+    }
+
+    private void serve(Socket socket) throws IOException, InterruptedException {
+        InputStream in = socket.getInputStream();
+        String[] request = readLine(in).split(" ");
+        int contentLength = 0;
+        String header;
+        while (!(header = readLine(in)).isEmpty()) {
+            if (header.toLowerCase(Locale.US).startsWith("content-length:")) {
+                contentLength = Integer.parseInt(header.substring(header.indexOf(':') + 1).trim());
+            }
+        }
+        String method = request[0];
+        String target = request[1];
+        int query = target.indexOf('?');
+        String path = query == -1 ? target : target.substring(0, query);
+        OutputStream out = socket.getOutputStream();
+
+        if (method.equals("PUT")) {
+            byte[] body = new byte[contentLength];
+            int read = 0;
+            while (read < contentLength) {
+                int n = in.read(body, read, contentLength - read);
+                if (n == -1) throw new IOException("Truncated body");
+                read += n;
+            }
+            synchronized (mResources) {
+                mResources.put(path, body);
+                mResources.notifyAll();
+            }
+            respond(out, "201 Created", new byte[0]);
+        } else if (method.equals("GET")) {
+            Map<String, String> params = parseQuery(query == -1 ? "" : target.substring(query + 1));
+            byte[] body;
+            if (params.containsKey("_HLS_msn")) {
+                int msn = Integer.parseInt(params.get("_HLS_msn"));
+                int part = params.containsKey("_HLS_part") ? Integer.parseInt(params.get("_HLS_part")) : -1;
+                body = awaitPlaylist(path, msn, part);
+            } else {
+                synchronized (mResources) {
+                    body = mResources.get(path);
+                }
+            }
+            if (body == null) {
+                respond(out, "404 Not Found", new byte[0]);
+            } else {
+                respond(out, "200 OK", body);
+            }
+        } else {
+            respond(out, "405 Method Not Allowed", new byte[0]);
+        }
+    }
+
+    /**
+     * @return the playlist at path once it lists segment msn, or part of the segment
+     * msn in progress. Null if it doesn't within the timeout
+     */
+    private byte[] awaitPlaylist(String path, int msn, int part) throws InterruptedException {
+        long deadlineMs = System.currentTimeMillis() + BLOCKING_RELOAD_TIMEOUT_MS;
+        synchronized (mResources) {
+            while (true) {
+                byte[] playlist = mResources.get(path);
+                if (playlist != null && lists(new String(playlist, UTF_8), msn, part)) {
+                    return playlist;
+                }
+                long remainingMs = deadlineMs - System.currentTimeMillis();
+                if (remainingMs <= 0) return null;
+                mResources.wait(remainingMs);
+            }
+        }
+    }
+
+    /**
+     * @return whether playlist lists segment msn, or part of the segment msn in progress
+     */
+    static boolean lists(String playlist, int msn, int part) {
+        int mediaSequence = 0;
+        int segments = 0;
+        int partsInProgress = 0;
+        boolean endList = false;
+        for (String line : playlist.split("\n")) {
+            if (line.startsWith("#EXT-X-MEDIA-SEQUENCE:")) {
+                mediaSequence = Integer.parseInt(line.substring(line.indexOf(':') + 1).trim());
+            } else if (line.startsWith("#EXT-X-PART:")) {
+                partsInProgress++;
+            } else if (line.startsWith("#EXT-X-ENDLIST")) {
+                endList = true;
+            } else if (!line.isEmpty() && !line.startsWith("#")) {
+                segments++;
+                partsInProgress = 0;
+            }
+        }
+        int inProgressMsn = mediaSequence + segments;
+        return endList || msn < inProgressMsn || (msn == inProgressMsn && part != -1 && part < partsInProgress);
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        for (String param : query.split("&")) {
+            int equals = param.indexOf('=');
+            if (equals > 0) params.put(param.substring(0, equals), param.substring(equals + 1));
+        }
+        return params;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') line.write(b);
+        }
+        return line.toString("US-ASCII");
+    }
+
+    private static void respond(OutputStream out, String status, byte[] body) throws IOException {
+        String headers = "HTTP/1.1 " + status + "\r\nContent-Length: " + body.length + "\r\nConnection: close\r\n\r\n";
+        out.write(headers.getBytes("US-ASCII"));
+        out.write(body);
+        out.flush();
+    }
+}
@@ -0,0 +1,389 @@
+package io.kickflip.sdk.av;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import io.kickflip.sdk.event.HlsManifestWrittenEvent;
+import io.kickflip.sdk.event.HlsPartWrittenEvent;
+import io.kickflip.sdk.event.HlsSegmentWrittenEvent;
+import io.kickflip.sdk.event.MuxerFinishedEvent;
+
+/**
+ * Streams the recorded elementary streams through {@link io.kickflip.sdk.av.MpegTsHlsMuxer}
+ * with Low-Latency HLS parts, uploading output to a local {@link io.kickflip.sdk.av.HttpStandIn}
+ * origin as {@link io.kickflip.sdk.av.Broadcaster} would, while a player follows the live edge
+ * with blocking playlist reload.
+ * <p/>
+ * Latencies are logged under the LowLatencyHls tag.
+ */
+public class LowLatencyHlsTest extends InstrumentationTestCase {
+    private static final String TAG = "LowLatencyHls";
+
+    private static final int SEGMENT_DURATION_SEC = 1;
+    private static final int PART_TARGET_MS = 300;
+    private static final int LOOPS = 2;                      // Within the playlist window, so no segment slides out
+    private static final long LOOP_DURATION_US = 2100000;    // Beyond the longer recording
+    private static final long LATENCY_SLACK_US = 200000;     // A frame, plus scheduling and loopback HTTP
+    private static final long FINISH_TIMEOUT_SEC = 30;
+    private static final String PLAYLIST = "index.m3u8";
+
+    private static final Pattern SEGMENT_INDEX = Pattern.compile("index(\\d+)\\.(?:(\\d+)\\.)?ts");
+    private static final Pattern PART_DURATION = Pattern.compile("#EXT-X-PART:DURATION=([0-9.]+)");
+
+    private ElementaryStream mVideo;
+    private ElementaryStream mAudio;
+    private HttpStandIn mOrigin;
+    private File mOutputDir;
+
+    /**
+     * Uploads output as it is posted, on the Muxer's thread.
+     */
+    private class Uploader {
+        final CountDownLatch finished = new CountDownLatch(1);
+        final List<String> playlists = new CopyOnWriteArrayList<>();
+
+        @Subscribe
+        public void onPartWritten(HlsPartWrittenEvent e) throws IOException {
+            HlsSegmentBuffer part = e.getPartBuffer();
+            put(e.getPart().getName(), part.getData(), part.getSize());
+            part.release();
+        }
+
+        @Subscribe
+        public void onSegmentWritten(HlsSegmentWrittenEvent e) throws IOException {
+            HlsSegmentBuffer segment = e.getSegmentBuffer();
+            put(e.getSegment().getName(), segment.getData(), segment.getSize());
+            segment.release();
+        }
+
+        @Subscribe
+        public void onManifestWritten(HlsManifestWrittenEvent e) throws IOException {
+            byte[] playlist = e.getManifestContents().getBytes("UTF-8");
+            playlists.add(e.getManifestContents());
+            put(PLAYLIST, playlist, playlist.length);
+        }
+
+        @Subscribe
+        public void onMuxerFinished(MuxerFinishedEvent e) {
+            finished.countDown();
+        }
+    }
+
+    /**
+     * Follows the live edge as a Low-Latency HLS player would: requesting the part
+     * hinted by EXT-X-PRELOAD-HINT with a blocking reload, then fetching it.
+     */
+    private class Player extends Thread {
+        final List<Long> packagingLatenciesUs = new ArrayList<>();
+        volatile long feedStartNs;
+        volatile Throwable error;
+
+        @Override
+        public void run() {
+            try {
+                String playlist;
+                while ((playlist = get(PLAYLIST)) == null) {
+                    Thread.sleep(10);
+                }
+                while (!playlist.contains("#EXT-X-ENDLIST")) {
+                    Matcher hint = SEGMENT_INDEX.matcher(playlist.substring(playlist.indexOf("#EXT-X-PRELOAD-HINT")));
+                    assertTrue("Preload hint names a part", hint.find() && hint.group(2) != null);
+                    playlist = get(PLAYLIST + "?_HLS_msn=" + hint.group(1) + "&_HLS_part=" + hint.group(2));
+                    assertNotNull("Blocking reload timed out", playlist);
+                    if (playlist.contains("#EXT-X-ENDLIST")) break;
+
+                    // Samples are written in real time from feedStartNs
+                    long writtenUs = (System.nanoTime() - feedStartNs) / 1000;
+                    packagingLatenciesUs.add(writtenUs - getNewestPartStartUs(playlist));
+                    String hinted = hint.group(0);
+                    assertTrue("Hinted part " + hinted + " listed", playlist.contains("URI=\"" + hinted + "\""));
+                    String part = get(hinted);
+                    assertNotNull("Hinted part " + hinted + " served", part);
+                }
+            } catch (Throwable t) {
+                error = t;
+            }
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mVideo = ElementaryStream.readH264();
+        mAudio = ElementaryStream.readAac();
+        mOrigin = new HttpStandIn();
+        mOutputDir = new File(getInstrumentation().getTargetContext().getCacheDir(), TAG);
+        mOutputDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mOrigin.stop();
+        super.tearDown();
+    }
+
+    public void testPartsArePublishedWithinAPartTarget() throws Exception {
+        Uploader uploader = new Uploader();
+        MpegTsHlsMuxer muxer = createMuxer(uploader);
+        Player player = new Player();
+        player.start();
+
+        int videoTrack = addVideoTrack(muxer, ElementaryStream.H264_WIDTH, ElementaryStream.H264_HEIGHT);
+        int audioTrack = addAudioTrack(muxer);
+        player.feedStartNs = System.nanoTime();
+        for (int loop = 0; loop < LOOPS; loop++) {
+            feedLoop(muxer, videoTrack, audioTrack, loop, player.feedStartNs);
+        }
+        endStreams(muxer, videoTrack, audioTrack);
+        assertTrue("Muxer didn't finish", uploader.finished.await(FINISH_TIMEOUT_SEC, TimeUnit.SECONDS));
+        player.join(TimeUnit.SECONDS.toMillis(FINISH_TIMEOUT_SEC));
+        if (player.error != null) throw new AssertionError(player.error);
+
+        for (String playlist : uploader.playlists) {
+            assertTrue(playlist.contains("#EXT-X-SERVER-CONTROL:CAN-BLOCK-RELOAD=YES,PART-HOLD-BACK="));
+            assertTrue(playlist.contains("#EXT-X-PART-INF:PART-TARGET="));
+            Matcher duration = PART_DURATION.matcher(playlist);
+            while (duration.find()) {
+                assertTrue("Part exceeds PART-TARGET", Double.parseDouble(duration.group(1)) * 1000 <= PART_TARGET_MS);
+            }
+        }
+
+        List<Long> latencies = player.packagingLatenciesUs;
+        assertFalse("Player saw no parts", latencies.isEmpty());
+        long maxUs = Collections.max(latencies);
+        long totalUs = 0;
+        for (long latencyUs : latencies) totalUs += latencyUs;
+        long holdBackUs = PART_TARGET_MS * 3 * 1000L;
+        Log.i(TAG, String.format(Locale.US, "%d blocking reloads. Parts are published %.0f ms mean, %.0f ms max after their first frame is captured. "
+                        + "Players holding back %.0f ms play about %.1f s behind capture, before encoding and upload",
+                latencies.size(), totalUs / 1000.0 / latencies.size(), maxUs / 1000.0, holdBackUs / 1000.0,
+                (maxUs + holdBackUs) / 1e6));
+        // Frames of whole segments alone would wait up to SEGMENT_DURATION_SEC
+        assertTrue("Part published " + maxUs + " us after capture", maxUs <= PART_TARGET_MS * 1000L + LATENCY_SLACK_US);
+    }
+
+    /**
+     * Every playlist snapshot must place EXT-X-DISCONTINUITY before the first reference to the
+     * segment of a new video format, whether that is its entry, its parts or its preload hint,
+     * and nowhere else.
+     */
+    public void testDiscontinuityMarksOnlyNewFormatSegment() throws Exception {
+        Uploader uploader = new Uploader();
+        MpegTsHlsMuxer muxer = createMuxer(uploader);
+        int videoTrack = addVideoTrack(muxer, ElementaryStream.H264_WIDTH, ElementaryStream.H264_HEIGHT);
+        int audioTrack = addAudioTrack(muxer);
+        feedLoop(muxer, videoTrack, audioTrack, 0, 0);
+
+        // The second loop begins with a keyframe of the new format, 2.1 s in. Segments cut at
+        // 1 s keyframes, so segment 0 is [0, 1), segment 1 [1, 2.1) and segment 2 is the new format
+        muxer.beginVideoFormatChange();
+        int newVideoTrack = addVideoTrack(muxer, ElementaryStream.H264_WIDTH * 2, ElementaryStream.H264_HEIGHT * 2);
+        feedLoop(muxer, newVideoTrack, audioTrack, 1, 0);
+        endStreams(muxer, newVideoTrack, audioTrack);
+        assertTrue("Muxer didn't finish", uploader.finished.await(FINISH_TIMEOUT_SEC, TimeUnit.SECONDS));
+
+        boolean sawInProgress = false;
+        for (String playlist : uploader.playlists) {
+            Map<Integer, Boolean> discontinuities = getDiscontinuities(playlist);
+            for (Map.Entry<Integer, Boolean> segment : discontinuities.entrySet()) {
+                assertEquals("Discontinuity before segment " + segment.getKey() + " in\n" + playlist,
+                        segment.getKey() == 2, (boolean) segment.getValue());
+            }
+            sawInProgress |= discontinuities.containsKey(2) && !playlist.contains("index2.ts");
+        }
+        assertTrue("No snapshot listed the new format's segment in progress", sawInProgress);
+    }
+
+    /**
+     * The retiring video encoder may signal end of stream after its replacement is added.
+     * It's counted finished once, so the muxer continues until the remaining tracks end.
+     */
+    public void testRetiringTrackEndOfStreamIsCountedOnce() throws Exception {
+        Uploader uploader = new Uploader();
+        MpegTsHlsMuxer muxer = createMuxer(uploader);
+        int videoTrack = addVideoTrack(muxer, ElementaryStream.H264_WIDTH, ElementaryStream.H264_HEIGHT);
+        int audioTrack = addAudioTrack(muxer);
+        feedLoop(muxer, videoTrack, audioTrack, 0, 0);
+
+        muxer.beginVideoFormatChange();
+        int newVideoTrack = addVideoTrack(muxer, ElementaryStream.H264_WIDTH * 2, ElementaryStream.H264_HEIGHT * 2);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.set(0, 0, LOOP_DURATION_US, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        muxer.writeSampleData(null, videoTrack, -1, ByteBuffer.allocate(0), info);
+        assertEquals("Muxer finished on the retiring track's end of stream", 1, uploader.finished.getCount());
+
+        feedLoop(muxer, newVideoTrack, audioTrack, 1, 0);
+        assertEquals("Muxer finished before its remaining tracks ended", 1, uploader.finished.getCount());
+        endStreams(muxer, newVideoTrack, audioTrack);
+        assertTrue("Muxer didn't finish", uploader.finished.await(FINISH_TIMEOUT_SEC, TimeUnit.SECONDS));
+        String playlist = uploader.playlists.get(uploader.playlists.size() - 1);
+        assertTrue("New format's segment missing from\n" + playlist, playlist.contains("index2.ts"));
+        assertTrue(playlist.contains("#EXT-X-ENDLIST"));
+    }
+
+    private MpegTsHlsMuxer createMuxer(Uploader uploader) {
+        MpegTsHlsMuxer muxer = MpegTsHlsMuxer.create(new File(mOutputDir, PLAYLIST).getAbsolutePath());
+        EventBus eventBus = new EventBus();
+        eventBus.register(uploader);
+        muxer.setEventBus(eventBus);
+        muxer.setHlsSegmentDuration(SEGMENT_DURATION_SEC);
+        muxer.setInMemoryOutput(true, false);
+        muxer.setLowLatencyParts(PART_TARGET_MS, true);
+        return muxer;
+    }
+
+    private int addVideoTrack(Muxer muxer, int width, int height) {
+        int track = muxer.addTrack(MediaFormat.createVideoFormat("video/avc", width, height));
+        ByteBuffer codecConfig = ByteBuffer.wrap(mVideo.getCodecConfig());
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.set(0, codecConfig.capacity(), 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+        muxer.writeSampleData(null, track, -1, codecConfig, info);
+        return track;
+    }
+
+    private static int addAudioTrack(Muxer muxer) {
+        return muxer.addTrack(MediaFormat.createAudioFormat("audio/mp4a-latm",
+                ElementaryStream.AAC_SAMPLE_RATE, ElementaryStream.AAC_CHANNELS));
+    }
+
+    /**
+     * Write the recordings, offset to the given loop, interleaved by presentation time.
+     *
+     * @param startNs if non-zero, pace samples in real time from this System.nanoTime()
+     */
+    private void feedLoop(Muxer muxer, int videoTrack, int audioTrack, int loop, long startNs) throws InterruptedException {
+        List<ElementaryStream.Sample> videoSamples = mVideo.getSamples();
+        List<ElementaryStream.Sample> audioSamples = mAudio.getSamples();
+        long offsetUs = loop * LOOP_DURATION_US;
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        int v = 0;
+        int a = 0;
+        while (v < videoSamples.size() || a < audioSamples.size()) {
+            boolean writeVideo = a == audioSamples.size()
+                    || (v < videoSamples.size() && videoSamples.get(v).ptsUs <= audioSamples.get(a).ptsUs);
+            ElementaryStream.Sample sample = writeVideo ? videoSamples.get(v++) : audioSamples.get(a++);
+            long ptsUs = sample.ptsUs + offsetUs;
+            if (startNs != 0) {
+                long waitMs = (startNs + ptsUs * 1000 - System.nanoTime()) / 1000000;
+                if (waitMs > 0) Thread.sleep(waitMs);
+            }
+            info.set(0, sample.data.length, ptsUs, sample.keyframe ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+            muxer.writeSampleData(null, writeVideo ? videoTrack : audioTrack, -1, ByteBuffer.wrap(sample.data), info);
+        }
+    }
+
+    private static void endStreams(Muxer muxer, int videoTrack, int audioTrack) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        long endUs = LOOPS * LOOP_DURATION_US;
+        info.set(0, 0, endUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        muxer.writeSampleData(null, videoTrack, -1, ByteBuffer.allocate(0), info);
+        info.set(0, 0, endUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        muxer.writeSampleData(null, audioTrack, -1, ByteBuffer.allocate(0), info);
+    }
+
+    /**
+     * @return the presentation time at which the newest part listed by playlist begins. Its
+     * first frame has waited longest for the part to be published
+     */
+    private static long getNewestPartStartUs(String playlist) {
+        assertTrue("Playlist window slid", playlist.contains("#EXT-X-MEDIA-SEQUENCE:0\n"));
+        double segmentsSec = 0;
+        double partsSec = 0;
+        double newestPartSec = 0;
+        for (String line : playlist.split("\n")) {
+            if (line.startsWith("#EXTINF:")) {
+                segmentsSec += Double.parseDouble(line.substring(8, line.indexOf(',')));
+                partsSec = 0;
+            } else {
+                Matcher part = PART_DURATION.matcher(line);
+                if (part.lookingAt()) {
+                    newestPartSec = Double.parseDouble(part.group(1));
+                    partsSec += newestPartSec;
+                }
+            }
+        }
+        return (long) ((segmentsSec + partsSec - newestPartSec) * 1e6);
+    }
+
+    /**
+     * @return for each segment index referenced by playlist, whether EXT-X-DISCONTINUITY
+     * precedes its first reference
+     */
+    private static Map<Integer, Boolean> getDiscontinuities(String playlist) {
+        Map<Integer, Boolean> discontinuities = new HashMap<>();
+        boolean pending = false;
+        for (String line : playlist.split("\n")) {
+            if (line.equals("#EXT-X-DISCONTINUITY")) {
+                pending = true;
+                continue;
+            }
+            Matcher uri = SEGMENT_INDEX.matcher(line);
+            if (!uri.find()) continue;
+            int segmentIndex = Integer.parseInt(uri.group(1));
+            if (!discontinuities.containsKey(segmentIndex)) discontinuities.put(segmentIndex, pending);
+            pending = false;
+        }
+        return discontinuities;
+    }
+
+    private void put(String name, byte[] data, int length) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(mOrigin.getBaseUrl() + "/" + name).openConnection();
+        try {
+            connection.setDoOutput(true);
+            connection.setRequestMethod("PUT");
+            connection.setFixedLengthStreamingMode(length);
+            OutputStream out = connection.getOutputStream();
+            out.write(data, 0, length);
+            out.close();
+            assertEquals(201, connection.getResponseCode());
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * @return the resource as a String, or null if the origin hasn't got it
+     */
+    private String get(String pathAndQuery) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(mOrigin.getBaseUrl() + "/" + pathAndQuery).openConnection();
+        try {
+            if (connection.getResponseCode() != 200) return null;
+            InputStream in = connection.getInputStream();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+            }
+            in.close();
+            return body.toString("ISO-8859-1");
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package io.kickflip.sdk.av;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.test.InstrumentationTestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes packets the {@link io.kickflip.sdk.av.TeeMuxer} doesn't own, as a wrapping
+ * {@link io.kickflip.sdk.av.PreRollMuxer} or {@link io.kickflip.sdk.av.PacketTraceReplayer}
+ * would, and checks every child receives them intact without any encoder being touched.
+ */
+public class TeeMuxerTest extends InstrumentationTestCase {
+
+    private static final int PACKETS = 16;
+    private static final int PACKET_BYTES = 1024;
+    private static final long FINISH_TIMEOUT_SEC = 10;
+
+    /**
+     * Records a copy of each packet as it's written, on the writing thread.
+     */
+    private static class RecordingMuxer extends Muxer {
+        final List<byte[]> packets = new CopyOnWriteArrayList<>();
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        RecordingMuxer() {
+            super("/dev/null", FORMAT.MPEG4);
+        }
+
+        @Override
+        public void writeSampleData(MediaCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+            super.writeSampleData(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+            if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                finished.countDown();
+            } else {
+                byte[] packet = new byte[bufferInfo.size];
+                ByteBuffer data = encodedData.duplicate();
+                data.position(bufferInfo.offset);
+                data.get(packet);
+                packets.add(packet);
+            }
+            releaseOutputBuffer(encoder, bufferIndex);
+        }
+
+        @Override
+        public void forceStop() {
+        }
+    }
+
+    public void testUnownedBuffersAreCopiedForSecondaries() throws Exception {
+        RecordingMuxer primary = new RecordingMuxer();
+        RecordingMuxer secondary = new RecordingMuxer();
+        TeeMuxer tee = TeeMuxer.create(primary, secondary);
+        // As a wrapping Muxer would. The caller reuses each buffer as soon as writeSampleData returns
+        tee.setReleasesOutputBuffers(false);
+        writeAndOverwrite(tee, 7);
+
+        assertTrue("Secondary didn't finish", secondary.finished.await(FINISH_TIMEOUT_SEC, TimeUnit.SECONDS));
+        assertPackets(primary);
+        assertPackets(secondary);
+        assertEquals(0, tee.getCopiedPacketCount(secondary));
+    }
+
+    public void testNegativeBufferIndexIsNeverReleased() throws Exception {
+        RecordingMuxer primary = new RecordingMuxer();
+        RecordingMuxer secondary = new RecordingMuxer();
+        TeeMuxer tee = TeeMuxer.create(primary, secondary);
+        // A null encoder, as PacketTraceReplayer passes, throws if a release is attempted
+        writeAndOverwrite(tee, -1);
+
+        assertTrue("Secondary didn't finish", secondary.finished.await(FINISH_TIMEOUT_SEC, TimeUnit.SECONDS));
+        assertPackets(primary);
+        assertPackets(secondary);
+    }
+
+    /**
+     * Write PACKETS numbered packets and end of stream from one reused buffer, with no encoder
+     */
+    private static void writeAndOverwrite(Muxer muxer, int bufferIndex) {
+        int track = muxer.addTrack(MediaFormat.createAudioFormat("audio/mp4a-latm", 44100, 1));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(PACKET_BYTES);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        for (int i = 0; i < PACKETS; i++) {
+            fill(buffer, (byte) i);
+            info.set(0, PACKET_BYTES, i * 23220L, 0);
+            muxer.writeSampleData(null, track, bufferIndex, buffer, info);
+            fill(buffer, (byte) -1);
+        }
+        info.set(0, 0, PACKETS * 23220L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        muxer.writeSampleData(null, track, bufferIndex, buffer, info);
+    }
+
+    private static void fill(ByteBuffer buffer, byte value) {
+        for (int i = 0; i < buffer.capacity(); i++) {
+            buffer.put(i, value);
+        }
+    }
+
+    private static void assertPackets(RecordingMuxer muxer) {
+        assertEquals(PACKETS, muxer.packets.size());
+        byte[] expected = new byte[PACKET_BYTES];
+        for (int i = 0; i < PACKETS; i++) {
+            Arrays.fill(expected, (byte) i);
+            assertTrue("Packet " + i + " was overwritten before it was written", Arrays.equals(expected, muxer.packets.get(i)));
+        }
+    }
+}
@@ -14,6 +14,7 @@ import com.google.common.eventbus.EventBus;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import io.kickflip.sdk.activity.BroadcastActivity;
 import io.kickflip.sdk.activity.GlassBroadcastActivity;
@@ -22,6 +23,7 @@ import io.kickflip.sdk.api.KickflipApiClient;
 import io.kickflip.sdk.api.KickflipCallback;
 import io.kickflip.sdk.api.json.Stream;
 import io.kickflip.sdk.av.BroadcastListener;
+import io.kickflip.sdk.av.EncoderProbe;
 import io.kickflip.sdk.av.SessionConfig;
 import io.kickflip.sdk.event.StreamLocationAddedEvent;
 import io.kickflip.sdk.location.DeviceLocation;
@@ -86,6 +88,7 @@ public class Kickflip {
     // Per-Stream settings
     private static SessionConfig sSessionConfig;          // Absolute path to root storage location
     private static BroadcastListener sBroadcastListener;
+    private static final AtomicBoolean sProbing = new AtomicBoolean();
 
     /**
      * Register with Kickflip, creating a new user identity per app installation.
@@ -116,6 +119,35 @@ public class Kickflip {
         return getApiClient(context, cb);
     }
 
+    /**
+     * Probe this device's video encoders in the background, so later broadcasts use the
+     * fastest encoder's best profile and a resolution it sustains. Takes a few seconds of
+     * trial encodes, so call it while your app is idle, e.g: after onboarding, and not
+     * while broadcasting. Until a probe completes, broadcasts use default encoder settings.
+     * See {@link io.kickflip.sdk.av.EncoderProbe}
+     *
+     * @return false if no probe was started: a previous probe's results are cached for
+     * this OS build, a probe is already running, or a recording session is open
+     */
+    public static boolean probeEncoder(Context context) {
+        final Context appContext = context.getApplicationContext();
+        if (EncoderProbe.getCachedProfile(appContext) != null || EncoderProbe.isSessionOpen()) return false;
+        if (!sProbing.compareAndSet(false, true)) return false;
+        Thread probeThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    EncoderProbe.probe(appContext);
+                } finally {
+                    sProbing.set(false);
+                }
+            }
+        }, "EncoderProbe");
+        probeThread.setPriority(Thread.MIN_PRIORITY);
+        probeThread.start();
+        return true;
+    }
+
     private static void setApiCredentials(String key, String secret) {
         sClientKey = key;
         sClientSecret = secret;
@@ -365,4 +397,27 @@ public class Kickflip {
         return Build.VERSION.SDK_INT >= 19;
     }
 
+    /**
+     * Returns whether the current device is running Android 5.0, Lollipop, or newer
+     */
+    public static boolean isLollipop() {
+        return Build.VERSION.SDK_INT >= 21;
+    }
+
+    /**
+     * Returns whether the current device is running Android 6.0, Marshmallow, or newer
+     *
+     * Marshmallow is required for asynchronous MediaCodec operation on a dedicated thread
+     */
+    public static boolean isMarshmallow() {
+        return Build.VERSION.SDK_INT >= 23;
+    }
+
+    /**
+     * Returns whether the current device is running Android 7.0, Nougat, or newer
+     */
+    public static boolean isNougat() {
+        return Build.VERSION.SDK_INT >= 24;
+    }
+
 }
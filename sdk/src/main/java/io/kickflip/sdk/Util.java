@@ -12,6 +12,8 @@ import java.util.HashMap;
 import java.util.Locale;
 import java.util.TimeZone;
 
+import io.kickflip.sdk.av.EncoderProbe;
+import io.kickflip.sdk.av.EncoderProfile;
 import io.kickflip.sdk.av.SessionConfig;
 
 /**
@@ -46,7 +48,25 @@ public class Util {
         return result;
     }
 
+    /**
+     * Create a {@link io.kickflip.sdk.av.SessionConfig} for a 720p HLS stream, or the largest
+     * resolution below it this device's encoder was found to sustain by a previous
+     * {@link io.kickflip.sdk.av.EncoderProbe}. The bitrate is scaled with the resolution.
+     *
+     * @param context the host application Context. Used to access Internal Storage
+     * @return the resulting SessionConfig
+     */
     public static SessionConfig create720pHLSSessionConfig(Context context) {
+        int width = 1280;
+        int height = 720;
+        int videoBitrate = 2 * 1000 * 1000;
+        EncoderProfile profile = EncoderProbe.getCachedProfile(context);
+        if (profile != null && profile.getMaxHeight() < height) {
+            videoBitrate = (int) ((long) videoBitrate * profile.getMaxWidth() * profile.getMaxHeight() / (width * height));
+            width = profile.getMaxWidth();
+            height = profile.getMaxHeight();
+        }
+
         HashMap<String, String> extraData = new HashMap<>();
         extraData.put("key", "value");
 
@@ -60,8 +80,9 @@ public class Util {
                 .withTitle(Util.getHumanDateString())
                 .withDescription("A live stream!")
                 .withAdaptiveStreaming(true)
-                .withVideoResolution(1280, 720)
-                .withVideoBitrate(2 * 1000 * 1000)
+                .withVideoResolution(width, height)
+                .withVideoBitrate(videoBitrate)
+                .withEncoderProfile(profile)
                 .withAudioBitrate(192 * 1000)
                 .withExtraInfo(extraData)
                 .withPrivateVisibility(false)
@@ -85,6 +106,7 @@ public class Util {
                 .withPrivateVisibility(false)
                 .withLocation(true)
                 .withVideoResolution(720, 480)
+                .withEncoderProfile(EncoderProbe.getCachedProfile(context))
                 .build();
         return config;
     }
@@ -1,7 +1,6 @@
 package io.kickflip.sdk.api.s3;
 
 import android.util.Log;
-import android.util.Pair;
 
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.event.ProgressEvent;
@@ -12,8 +11,10 @@ import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.HashSet;
@@ -33,7 +34,7 @@ public class S3BroadcastManager implements Runnable {
     private static final String TAG = "S3Manager";
     private static final boolean VERBOSE = true;
 
-    private LinkedBlockingQueue<Pair<PutObjectRequest, Boolean>> mQueue;
+    private LinkedBlockingQueue<QueuedUpload> mQueue;
     private TransferManager mTransferManager;
     private Broadcaster mBroadcaster;
     private Set<WeakReference<S3RequestInterceptor>> mInterceptors;
@@ -42,6 +43,18 @@ public class S3BroadcastManager implements Runnable {
         public void interceptRequest(PutObjectRequest request);
     }
 
+    private static class QueuedUpload {
+        final PutObjectRequest request;
+        final boolean lastUpload;
+        final Runnable onComplete;
+
+        QueuedUpload(PutObjectRequest request, boolean lastUpload, Runnable onComplete) {
+            this.request = request;
+            this.lastUpload = lastUpload;
+            this.onComplete = onComplete;
+        }
+    }
+
     public S3BroadcastManager(Broadcaster broadcaster, AWSCredentials creds) {
 
         // XXX - Need to determine what's going wrong with MD5 computation
@@ -76,6 +89,33 @@ public class S3BroadcastManager implements Runnable {
         if (VERBOSE) Log.i(TAG, "Queueing upload " + key);
 
         final PutObjectRequest por = new PutObjectRequest(bucket, key, file);
+        queueRequest(por, bucket, key, file, file.length(), lastUpload, null);
+    }
+
+    /**
+     * Queue an upload of in-memory data.
+     *
+     * @param data        the data to upload. Must not be modified until onComplete is run
+     * @param length      the number of bytes of data to upload
+     * @param contentType the MIME type of the data
+     * @param onComplete  run on the upload thread once the upload has succeeded or failed. May be null
+     */
+    public void queueUpload(final String bucket, final String key, byte[] data, int length,
+                            String contentType, boolean lastUpload, Runnable onComplete) {
+        if (VERBOSE) Log.i(TAG, "Queueing in-memory upload " + key);
+
+        ObjectMetadata meta = new ObjectMetadata();
+        meta.setContentLength(length);
+        meta.setContentType(contentType);
+        final PutObjectRequest por = new PutObjectRequest(bucket, key, new ByteArrayInputStream(data, 0, length), meta);
+        queueRequest(por, bucket, key, null, length, lastUpload, onComplete);
+    }
+
+    /**
+     * @param file the uploaded file, if any. Reported by {@link io.kickflip.sdk.event.S3UploadEvent#getFile()}
+     */
+    private void queueRequest(final PutObjectRequest por, final String bucket, final String key,
+                              final File file, final long length, boolean lastUpload, Runnable onComplete) {
         por.setGeneralProgressListener(new ProgressListener() {
             final String url = "https://" + bucket + ".s3.amazonaws.com/" + key;
             private long uploadStartTime;
@@ -87,9 +127,9 @@ public class S3BroadcastManager implements Runnable {
                         uploadStartTime = System.currentTimeMillis();
                     } else if (progressEvent.getEventCode() == com.amazonaws.event.ProgressEvent.COMPLETED_EVENT_CODE) {
                         long uploadDurationMillis = System.currentTimeMillis() - uploadStartTime;
-                        int bytesPerSecond = (int) (file.length() / (uploadDurationMillis / 1000.0));
+                        int bytesPerSecond = (int) (length / (uploadDurationMillis / 1000.0));
                         if (VERBOSE)
-                            Log.i(TAG, "Uploaded " + file.length() / 1000.0 + " KB in " + (uploadDurationMillis) + "ms (" + bytesPerSecond / 1000.0 + " KBps)");
+                            Log.i(TAG, "Uploaded " + length / 1000.0 + " KB in " + (uploadDurationMillis) + "ms (" + bytesPerSecond / 1000.0 + " KBps)");
                         mBroadcaster.onS3UploadComplete(new S3UploadEvent(file, url, bytesPerSecond));
                     } else if (progressEvent.getEventCode() == ProgressEvent.FAILED_EVENT_CODE) {
                         Log.w(TAG, "Upload failed for " + url);
@@ -107,7 +147,7 @@ public class S3BroadcastManager implements Runnable {
                 interceptor.interceptRequest(por);
             }
         }
-        mQueue.add(new Pair<>(por, lastUpload));
+        mQueue.add(new QueuedUpload(por, lastUpload, onComplete));
     }
 
     @Override
@@ -115,12 +155,15 @@ public class S3BroadcastManager implements Runnable {
         boolean lastUploadComplete = false;
         while (!lastUploadComplete) {
             try {
-                Pair<PutObjectRequest, Boolean> requestPair = mQueue.poll(mBroadcaster.getSessionConfig().getHlsSegmentDuration() * 2, TimeUnit.SECONDS);
-                if (requestPair != null) {
-                    final PutObjectRequest request = requestPair.first;
-                    Upload upload = mTransferManager.upload(request);
-                    upload.waitForCompletion();
-                    lastUploadComplete = requestPair.second;
+                QueuedUpload queuedUpload = mQueue.poll(mBroadcaster.getSessionConfig().getHlsSegmentDuration() * 2, TimeUnit.SECONDS);
+                if (queuedUpload != null) {
+                    try {
+                        Upload upload = mTransferManager.upload(queuedUpload.request);
+                        upload.waitForCompletion();
+                    } finally {
+                        if (queuedUpload.onComplete != null) queuedUpload.onComplete.run();
+                    }
+                    lastUploadComplete = queuedUpload.lastUpload;
                     if (!lastUploadComplete && VERBOSE)
                         Log.i(TAG, "Upload complete.");
                     else if (VERBOSE)
@@ -1,11 +1,18 @@
 package io.kickflip.sdk.av;
 
+import android.util.Log;
+
 import java.io.IOException;
 
 import io.kickflip.sdk.view.GLCameraView;
 
 /**
  * Records an Audio / Video stream to disk.
+ * <p/>
+ * If the SessionConfig is {@link io.kickflip.sdk.av.SessionConfig#isAudioOnly() audio-only},
+ * no camera, EGL context or video encoder is created, and the camera and video methods are ignored.
+ * If it has {@link io.kickflip.sdk.av.VideoRendition}s, an {@link io.kickflip.sdk.av.HlsMasterPlaylist}
+ * listing them is written when recording starts.
  *
  * Example usage:
  * <ul>
@@ -21,45 +28,85 @@ import io.kickflip.sdk.view.GLCameraView;
  * @hide
  */
 public class AVRecorder {
+    private static final String TAG = "AVRecorder";
 
     protected CameraEncoder mCamEncoder;
     protected MicrophoneEncoder mMicEncoder;
     private SessionConfig mConfig;
     private boolean mIsRecording;
+    private boolean mReleased;
 
     public AVRecorder(SessionConfig config) throws IOException {
         init(config);
+        // Keep EncoderProbe's trial encodes off the hardware encoders until release
+        EncoderProbe.onSessionOpened();
     }
 
     private void init(SessionConfig config) throws IOException {
-        mCamEncoder = new CameraEncoder(config);
+        mCamEncoder = config.isAudioOnly() ? null : new CameraEncoder(config);
         mMicEncoder = new MicrophoneEncoder(config);
         mConfig = config;
         mIsRecording = false;
     }
 
     public void setPreviewDisplay(GLCameraView display){
-        mCamEncoder.setPreviewDisplay(display);
+        if (mCamEncoder != null) mCamEncoder.setPreviewDisplay(display);
     }
 
     public void applyFilter(int filter){
-        mCamEncoder.applyFilter(filter);
+        if (mCamEncoder != null) mCamEncoder.applyFilter(filter);
     }
 
     public void requestOtherCamera(){
-        mCamEncoder.requestOtherCamera();
+        if (mCamEncoder != null) mCamEncoder.requestOtherCamera();
     }
 
     public void requestCamera(int camera){
-        mCamEncoder.requestCamera(camera);
+        if (mCamEncoder != null) mCamEncoder.requestCamera(camera);
     }
 
     public void toggleFlash(){
-        mCamEncoder.toggleFlashMode();
+        if (mCamEncoder != null) mCamEncoder.toggleFlashMode();
     }
 
     public void adjustVideoBitrate(int targetBitRate){
-        mCamEncoder.adjustBitrate(targetBitRate);
+        if (mCamEncoder != null) mCamEncoder.adjustBitrate(targetBitRate);
+    }
+
+    /**
+     * Switch video to the given resolution and bitrate at the next HLS segment boundary,
+     * without ending the recording.
+     * See {@link io.kickflip.sdk.av.CameraEncoder#switchVideoResolution(int, int, int)}
+     *
+     * @return false if this recording's video can't be switched
+     */
+    public boolean switchVideoResolution(int width, int height, int bitRate){
+        return mCamEncoder != null && mCamEncoder.switchVideoResolution(width, height, bitRate);
+    }
+
+    /**
+     * Encode at most the given video frames per second, e.g: to reduce load when
+     * the device is thermally throttled.
+     * See {@link io.kickflip.sdk.av.CameraEncoder#setVideoFrameRate(int)}
+     */
+    public void setVideoFrameRate(int fps){
+        if (mCamEncoder != null) mCamEncoder.setVideoFrameRate(fps);
+    }
+
+    /**
+     * Encode the next video frame as a keyframe, e.g: when a viewer joins,
+     * so playback needn't wait for the next scheduled keyframe.
+     */
+    public void requestKeyframe(){
+        if (mCamEncoder != null) mCamEncoder.requestKeyframe();
+    }
+
+    /**
+     * @return the sizes of the current recording's encoded video frames,
+     * or null if it's audio-only
+     */
+    public SizeDistribution getVideoFrameSizeDistribution(){
+        return mCamEncoder == null ? null : mCamEncoder.getFrameSizeDistribution();
     }
 
     /**
@@ -72,13 +119,31 @@ public class AVRecorder {
      *
      */
     public void signalVerticalVideo(FullFrameRect.SCREEN_ROTATION orientation) {
-        mCamEncoder.signalVerticalVideo(orientation);
+        if (mCamEncoder != null) mCamEncoder.signalVerticalVideo(orientation);
     }
 
     public void startRecording(){
         mIsRecording = true;
+        if (mConfig.hasRenditions()) {
+            try {
+                HlsMasterPlaylist.write(mConfig);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write master playlist", e);
+            }
+        }
+        if (mConfig.getMuxer() instanceof PreRollMuxer) {
+            // Encoders are already running. Begin output with what they've buffered
+            ((PreRollMuxer) mConfig.getMuxer()).startOutput();
+        }
         mMicEncoder.startRecording();
-        mCamEncoder.startRecording();
+        if (mCamEncoder != null) mCamEncoder.startRecording();
+    }
+
+    /**
+     * @return whether this recorder captures audio alone
+     */
+    public boolean isAudioOnly(){
+        return mCamEncoder == null;
     }
 
     public boolean isRecording(){
@@ -88,7 +153,7 @@ public class AVRecorder {
     public void stopRecording(){
         mIsRecording = false;
         mMicEncoder.stopRecording();
-        mCamEncoder.stopRecording();
+        if (mCamEncoder != null) mCamEncoder.stopRecording();
     }
 
     /**
@@ -97,7 +162,16 @@ public class AVRecorder {
      * @param config
      */
     public void reset(SessionConfig config) throws IOException {
-        mCamEncoder.reset(config);
+        if (config.isAudioOnly()) {
+            if (mCamEncoder != null) {
+                mCamEncoder.release();
+                mCamEncoder = null;
+            }
+        } else if (mCamEncoder == null) {
+            mCamEncoder = new CameraEncoder(config);
+        } else {
+            mCamEncoder.reset(config);
+        }
         mMicEncoder.reset(config);
         mConfig = config;
         mIsRecording = false;
@@ -108,7 +182,11 @@ public class AVRecorder {
      * this instance may no longer be used.
      */
     public void release() {
-        mCamEncoder.release();
+        if (mCamEncoder != null) mCamEncoder.release();
+        if (!mReleased) {
+            mReleased = true;
+            EncoderProbe.onSessionClosed();
+        }
         // MicrophoneEncoder releases all it's resources when stopRecording is called
         // because it doesn't have any meaningful state
         // between recordings. It might someday if we decide to present
@@ -117,10 +195,10 @@ public class AVRecorder {
     }
 
     public void onHostActivityPaused(){
-        mCamEncoder.onHostActivityPaused();
+        if (mCamEncoder != null) mCamEncoder.onHostActivityPaused();
     }
 
     public void onHostActivityResumed(){
-        mCamEncoder.onHostActivityResumed();
+        if (mCamEncoder != null) mCamEncoder.onHostActivityResumed();
     }
 }
@@ -0,0 +1,134 @@
+package io.kickflip.sdk.av;
+
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A re-usable 7 byte ADTS header for framing raw AAC output from MediaCodec,
+ * written as a prefix to each frame rather than copied in front of it.
+ * <p/>
+ * Profile, sampling frequency and channel configuration are set from an AudioSpecificConfig,
+ * or from the track's profile, sample rate and channel count. Muxers configure it from the
+ * audio track's MediaFormat with {@link io.kickflip.sdk.av.Muxer#configureAdtsHeader}. The sampling
+ * frequency table and channel configurations are shared with AudioSpecificConfig, which
+ * {@link #createAudioSpecificConfig} builds for containers that carry it instead.
+ * See: http://wiki.multimedia.cx/index.php?title=ADTS
+ *
+ * @hide
+ */
+public class AdtsHeader {
+
+    public static final int LENGTH = 7;
+
+    private static final int[] SAMPLE_RATES = {96000, 88200, 64000, 48000, 44100, 32000,
+            24000, 22050, 16000, 12000, 11025, 8000, 7350};
+    private static final int PROFILE_LC = 2;                // MPEG-4 Audio Object Type
+    private static final int MAX_CHANNEL_CONFIGURATION = 7; // 8 channels, 7.1
+
+    private final ByteBuffer mHeader = ByteBuffer.allocateDirect(LENGTH);
+    private int mProfile = PROFILE_LC;
+    private int mFreqIdx = 4;                               // 44.1 KHz
+    private int mChanCfg = 1;                               // 1 Channel front-center
+
+    /**
+     * Set the header fields from an AAC track's parameters. Fields given as 0 are left unchanged,
+     * as is the sampling frequency if sampleRate has no sampling frequency index.
+     *
+     * @param profile the MPEG-4 Audio Object Type e.g: 2 for AAC LC
+     * @throws IllegalArgumentException if the channel count has no channel configuration
+     */
+    public void configure(int profile, int sampleRate, int channelCount) {
+        if (profile > 0) {
+            mProfile = profile;
+        }
+        if (sampleRate > 0) {
+            int freqIdx = getSamplingFrequencyIndex(sampleRate);
+            if (freqIdx != -1) mFreqIdx = freqIdx;
+        }
+        if (channelCount > 0) {
+            mChanCfg = getChannelConfiguration(channelCount);
+        }
+    }
+
+    /**
+     * Set the header fields from an AudioSpecificConfig e.g: MediaFormat's csd-0.
+     *
+     * @return false, leaving the header unchanged, if audioSpecificConfig is too short
+     * or describes a sampling frequency or channel configuration ADTS can't carry
+     */
+    public boolean configure(ByteBuffer audioSpecificConfig) {
+        ByteBuffer csd = audioSpecificConfig.duplicate();
+        csd.rewind();
+        if (csd.remaining() < 2) return false;
+        // 5 bits audioObjectType, 4 bits samplingFrequencyIndex, 4 bits channelConfiguration
+        int asc = ((csd.get() & 0xFF) << 8) | (csd.get() & 0xFF);
+        int profile = asc >> 11;
+        int freqIdx = (asc >> 7) & 0x0F;
+        int chanCfg = (asc >> 3) & 0x0F;
+        if (profile == 0 || freqIdx >= SAMPLE_RATES.length || chanCfg > MAX_CHANNEL_CONFIGURATION) return false;
+        mProfile = profile;
+        mFreqIdx = freqIdx;
+        mChanCfg = chanCfg;
+        return true;
+    }
+
+    /**
+     * @return the index of sampleRate in the sampling frequency table shared by
+     * ADTS and AudioSpecificConfig, or -1 if it isn't listed
+     */
+    public static int getSamplingFrequencyIndex(int sampleRate) {
+        for (int i = 0; i < SAMPLE_RATES.length; i++) {
+            if (SAMPLE_RATES[i] == sampleRate) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the channelConfiguration describing channelCount channels. 1 - 6 channels map
+     * directly, while 8 channels (7.1) is configuration 7. ADTS has 3 bits for it
+     * @throws IllegalArgumentException for 7, or more than 8 channels, which need a program config element
+     */
+    public static int getChannelConfiguration(int channelCount) {
+        checkArgument((channelCount >= 1 && channelCount <= 6) || channelCount == 8,
+                "No AAC channel configuration for " + channelCount + " channels");
+        return channelCount == 8 ? MAX_CHANNEL_CONFIGURATION : channelCount;
+    }
+
+    /**
+     * Build a 2 byte AudioSpecificConfig, for encoders that
+     * don't report csd-0 in their output format.
+     *
+     * @throws IllegalArgumentException if the sample rate has no sampling frequency index,
+     *                                  or the channel count has no channel configuration
+     */
+    public static byte[] createAudioSpecificConfig(int profile, int sampleRate, int channelCount) {
+        int freqIdx = getSamplingFrequencyIndex(sampleRate);
+        checkArgument(freqIdx != -1, "No AAC sampling frequency index for " + sampleRate + " Hz");
+        int chanCfg = getChannelConfiguration(channelCount);
+        return new byte[]{
+                (byte) ((profile << 3) | (freqIdx >> 1)),
+                (byte) (((freqIdx & 1) << 7) | (chanCfg << 3))
+        };
+    }
+
+    /**
+     * Fill the header for a raw AAC frame of the given size.
+     *
+     * @param frameSize the size of the AAC frame, excluding this header
+     * @return the header, positioned for reading. Valid until the next call
+     */
+    public ByteBuffer prepare(int frameSize) {
+        int packetLen = frameSize + LENGTH;                 // Counts the header itself
+        mHeader.clear();
+        mHeader.put((byte) 0xFF);                           // 11111111          = syncword
+        mHeader.put((byte) 0xF1);                           // 1111 0 00 1       = syncword MPEG-4 Layer no CRC
+        mHeader.put((byte) (((mProfile - 1) << 6) + (mFreqIdx << 2) + (mChanCfg >> 2)));
+        mHeader.put((byte) (((mChanCfg & 3) << 6) + (packetLen >> 11)));
+        mHeader.put((byte) ((packetLen & 0x7FF) >> 3));
+        mHeader.put((byte) (((packetLen & 7) << 5) + 0x1F));
+        mHeader.put((byte) 0xFC);
+        mHeader.flip();
+        return mHeader;
+    }
+}
@@ -5,13 +5,32 @@ import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import static io.kickflip.sdk.Kickflip.isKitKat;
+import static io.kickflip.sdk.Kickflip.isMarshmallow;
 
 /**
+ * Base of the MediaCodec encoders, handing their output to a {@link io.kickflip.sdk.av.Muxer}.
+ * <p/>
+ * Output is collected in one of two ways. On API 23+, a subclass that calls
+ * {@link #setupCallbackMode(String, int)} before configuring its MediaCodec has output delivered
+ * by MediaCodec.Callback on a dedicated thread, which writes each buffer to the Muxer as it
+ * becomes available. {@link #drainEncoder(boolean)} then only awaits end of stream.
+ * Otherwise {@link #drainEncoder(boolean)} polls MediaCodec for output.
+ * <p/>
+ * Either way every write holds the Muxer's lock, which all of a session's encoders share,
+ * as Muxer's track bookkeeping and MediaMuxer aren't safe for concurrent writers. Callback
+ * mode only reduces contention: the lock is held for one buffer rather than across a polling
+ * loop, but audio and video writes still serialize, and a Muxer that blocks in
+ * writeSampleData e.g: FFmpegMuxer under BackpressurePolicy.BLOCK, stalls the other track.
+ *
  * @hide
  */
 public abstract class AndroidEncoder {
@@ -26,6 +45,56 @@ public abstract class AndroidEncoder {
     int mEosSpinCount = 0;
     final int MAX_EOS_SPINS = 10;
 
+    private static final int MAX_INPUT_BUFFERS = 64;
+    private static final long CALLBACK_EOS_TIMEOUT_MS = 250;
+    private static volatile boolean sCallbackModeEnabled = true;
+
+    // Callback mode
+    private boolean mCallbackMode;
+    private HandlerThread mCallbackThread;
+    private ArrayBlockingQueue<Integer> mInputBufferIndices;    // Input buffers made available by MediaCodec
+    private final Object mEosFence = new Object();
+    private volatile boolean mEosReached;
+    private volatile boolean mCodecError;
+    private boolean mReleased;                                  // Guarded by mMuxer
+
+    /**
+     * Enable or disable MediaCodec.Callback output delivery for encoders
+     * created hereafter. Enabled by default, but only used on API 23+.
+     * When disabled, encoder output is polled by {@link #drainEncoder(boolean)}.
+     */
+    public static void setCallbackModeEnabled(boolean enabled) {
+        sCallbackModeEnabled = enabled;
+    }
+
+    /**
+     * If enabled and supported, set MediaCodec to deliver its buffers to a
+     * callback running on a new thread. Must be called after mEncoder is created
+     * and before it is configured.
+     *
+     * @param threadName     name of the callback thread
+     * @param threadPriority priority of the callback thread e.g: Process.THREAD_PRIORITY_AUDIO
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    protected void setupCallbackMode(String threadName, int threadPriority) {
+        // setCallback(Callback, Handler) is API 23. API 21's setCallback(Callback) delivers
+        // on the Looper of the thread that created the codec, which isn't ours to dedicate
+        if (!sCallbackModeEnabled || !isMarshmallow()) return;
+        mCallbackThread = new HandlerThread(threadName, threadPriority);
+        mCallbackThread.start();
+        mInputBufferIndices = new ArrayBlockingQueue<>(MAX_INPUT_BUFFERS);
+        mEncoder.setCallback(new EncoderCallback(), new Handler(mCallbackThread.getLooper()));
+        mCallbackMode = true;
+        if (VERBOSE) Log.i(TAG, "Using MediaCodec callback mode on thread " + threadName);
+    }
+
+    /**
+     * @return whether this encoder's output is delivered by MediaCodec.Callback
+     */
+    public boolean isCallbackMode() {
+        return mCallbackMode;
+    }
+
     /**
      * This method should be called before the last input packet is queued
      * Some devices don't honor MediaCodec#signalEndOfInputStream
@@ -36,6 +105,12 @@ public abstract class AndroidEncoder {
     }
 
     public void release(){
+        if (mCallbackMode) {
+            // Ignore output delivered after this point
+            synchronized (mMuxer) {
+                mReleased = true;
+            }
+        }
         if(mMuxer != null)
             mMuxer.onEncoderReleased(mTrackIndex);
         if (mEncoder != null) {
@@ -44,6 +119,39 @@ public abstract class AndroidEncoder {
             mEncoder = null;
             if (VERBOSE) Log.i(TAG, "Released encoder");
         }
+        if (mCallbackThread != null) {
+            mCallbackThread.quitSafely();
+            mCallbackThread = null;
+        }
+    }
+
+    /**
+     * Obtain an input buffer from the encoder, as MediaCodec#dequeueInputBuffer.
+     * In callback mode, the buffer is one made available to the callback.
+     *
+     * @param timeoutUs the time to wait for a buffer. Negative waits indefinitely
+     * @return the index of the input buffer, or MediaCodec.INFO_TRY_AGAIN_LATER
+     */
+    public int dequeueInputBuffer(long timeoutUs) {
+        if (!mCallbackMode) {
+            return mEncoder.dequeueInputBuffer(timeoutUs);
+        }
+        if (mCodecError) return MediaCodec.INFO_TRY_AGAIN_LATER;
+        try {
+            Integer index = (timeoutUs < 0) ? mInputBufferIndices.take() :
+                    mInputBufferIndices.poll(timeoutUs, TimeUnit.MICROSECONDS);
+            return (index == null) ? MediaCodec.INFO_TRY_AGAIN_LATER : index;
+        } catch (InterruptedException e) {
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+    }
+
+    /**
+     * @return the input buffer of the given index, from {@link #dequeueInputBuffer(long)}
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public ByteBuffer getInputBuffer(int index) {
+        return mCallbackMode ? mEncoder.getInputBuffer(index) : mEncoder.getInputBuffers()[index];
     }
 
     @TargetApi(Build.VERSION_CODES.KITKAT)
@@ -57,7 +165,38 @@ public abstract class AndroidEncoder {
         }
     }
 
+    /**
+     * Ask the encoder to make its next frame a sync frame e.g: when the camera is switched,
+     * or a viewer joins. Only honored on API 19+.
+     */
+    public void requestKeyframe() {
+        requestKeyframe(mEncoder);
+    }
+
+    /**
+     * Ask encoder to make its next frame a sync frame, via
+     * MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME. Ignored if encoder is null
+     * e.g: when a Muxer is fed from a trace, or below API 19.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public static void requestKeyframe(MediaCodec encoder) {
+        if (encoder == null || !isKitKat()) return;
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        encoder.setParameters(params);
+    }
+
+    /**
+     * Write available encoder output to the Muxer. In callback mode output is
+     * written as it is produced, so this returns immediately unless endOfStream is set.
+     *
+     * @param endOfStream if true, wait for the encoder's end of stream
+     */
     public void drainEncoder(boolean endOfStream) {
+        if (mCallbackMode) {
+            if (endOfStream) awaitEndOfStream();
+            return;
+        }
         if (endOfStream && VERBOSE) {
             if (isSurfaceInputEncoder()) {
                 Log.i(TAG, "final video drain");
@@ -118,21 +257,7 @@ public abstract class AndroidEncoder {
                                 " was null");
                     }
 
-                    if (mBufferInfo.size >= 0) {    // Allow zero length buffer for purpose of sending 0 size video EOS Flag
-                        // adjust the ByteBuffer values to match BufferInfo (not needed?)
-                        encodedData.position(mBufferInfo.offset);
-                        encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
-                        if (mForceEos) {
-                            mBufferInfo.flags = mBufferInfo.flags | MediaCodec.BUFFER_FLAG_END_OF_STREAM;
-                            Log.i(TAG, "Forcing EOS");
-                        }
-                        // It is the muxer's responsibility to release encodedData
-                        mMuxer.writeSampleData(mEncoder, mTrackIndex, encoderStatus, encodedData, mBufferInfo);
-                        if (VERBOSE) {
-                            Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer, \t ts=" +
-                                    mBufferInfo.presentationTimeUs + "track " + mTrackIndex);
-                        }
-                    }
+                    writeEncodedData(mEncoder, encoderStatus, encodedData, mBufferInfo);
 
                     if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                         if (!endOfStream) {
@@ -154,5 +279,117 @@ public abstract class AndroidEncoder {
         }
     }
 
+    /**
+     * Pass an encoder output buffer to the Muxer. Called with the Muxer's lock held.
+     */
+    private void writeEncodedData(MediaCodec encoder, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        if (bufferInfo.size >= 0) {    // Allow zero length buffer for purpose of sending 0 size video EOS Flag
+            // adjust the ByteBuffer values to match BufferInfo (not needed?)
+            encodedData.position(bufferInfo.offset);
+            encodedData.limit(bufferInfo.offset + bufferInfo.size);
+            if (mForceEos) {
+                bufferInfo.flags = bufferInfo.flags | MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+                Log.i(TAG, "Forcing EOS");
+            }
+            if (bufferInfo.size > 0 && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                onEncodedFrame(bufferInfo);
+            }
+            // It is the muxer's responsibility to release encodedData
+            mMuxer.writeSampleData(encoder, mTrackIndex, bufferIndex, encodedData, bufferInfo);
+            if (VERBOSE) {
+                Log.d(TAG, "sent " + bufferInfo.size + " bytes to muxer, \t ts=" +
+                        bufferInfo.presentationTimeUs + "track " + mTrackIndex);
+            }
+        }
+    }
+
+    /**
+     * Called with each encoded frame, excluding codec config, before it's passed to the Muxer.
+     * Called with the Muxer's lock held.
+     */
+    protected void onEncodedFrame(MediaCodec.BufferInfo bufferInfo) {
+    }
+
+    /**
+     * Wait for the callback to deliver end of stream. As when polling,
+     * stop the Muxer if the encoder never produces it.
+     */
+    private void awaitEndOfStream() {
+        long deadlineMs = System.currentTimeMillis() + CALLBACK_EOS_TIMEOUT_MS;
+        synchronized (mEosFence) {
+            long remainingMs;
+            while (!mEosReached && (remainingMs = deadlineMs - System.currentTimeMillis()) > 0) {
+                try {
+                    mEosFence.wait(remainingMs);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        if (!mEosReached || mCodecError) {
+            if (VERBOSE) Log.i(TAG, "Force shutting down Muxer");
+            synchronized (mMuxer) {
+                mMuxer.forceStop();
+            }
+        }
+        if (VERBOSE) Log.i(TAG, "final " + (isSurfaceInputEncoder() ? "video" : "audio") + " drain complete");
+    }
+
+    private void onEndOfStream() {
+        synchronized (mEosFence) {
+            mEosReached = true;
+            mEosFence.notifyAll();
+        }
+    }
+
+    /**
+     * Receives MediaCodec buffers on the callback thread. Output is written
+     * to the Muxer under its session-wide lock, held only for the one buffer.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private class EncoderCallback extends MediaCodec.Callback {
+
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            if (!mInputBufferIndices.offer(index)) {
+                Log.w(TAG, "Dropping input buffer " + index + ". Too many available");
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            synchronized (mMuxer) {
+                if (mReleased) return;
+                if (mEosReached) {
+                    // Output following a forced end of stream is discarded, as when polling
+                    codec.releaseOutputBuffer(index, false);
+                    return;
+                }
+                writeEncodedData(codec, index, codec.getOutputBuffer(index), info);
+            }
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                if (VERBOSE) Log.d(TAG, "end of stream reached for track " + mTrackIndex);
+                onEndOfStream();
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            if (VERBOSE) Log.d(TAG, "encoder output format changed: " + format);
+            synchronized (mMuxer) {
+                mTrackIndex = mMuxer.addTrack(format);
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.e(TAG, "Encoder error on track " + mTrackIndex, e);
+            mCodecError = true;
+            // Wake any thread awaiting an input buffer or end of stream
+            mInputBufferIndices.offer(MediaCodec.INFO_TRY_AGAIN_LATER);
+            onEndOfStream();
+        }
+    }
+
     protected abstract boolean isSurfaceInputEncoder();
 }
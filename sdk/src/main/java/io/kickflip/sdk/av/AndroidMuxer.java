@@ -44,6 +44,9 @@ public class AndroidMuxer extends Muxer {
         if(mStarted)
             throw new RuntimeException("format changed twice");
         int track = mMuxer.addTrack(trackFormat);
+        if (trackFormat.getString(MediaFormat.KEY_MIME).startsWith("audio/")) {
+            mTimestamps.setReferenceTrack(track);
+        }
 
         if(allTracksAdded()){
            start();
@@ -78,19 +81,19 @@ public class AndroidMuxer extends Muxer {
         if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
             // MediaMuxer gets the codec config info via the addTrack command
             if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
-            encoder.releaseOutputBuffer(bufferIndex, false);
+            releaseOutputBuffer(encoder, bufferIndex);
             return;
         }
 
         if(bufferInfo.size == 0){
             if(VERBOSE) Log.d(TAG, "ignoring zero size buffer");
-            encoder.releaseOutputBuffer(bufferIndex, false);
+            releaseOutputBuffer(encoder, bufferIndex);
             return;
         }
 
         if (!mStarted) {
             Log.e(TAG, "writeSampleData called before muxer started. Ignoring packet. Track index: " + trackIndex + " tracks added: " + mNumTracks);
-            encoder.releaseOutputBuffer(bufferIndex, false);
+            releaseOutputBuffer(encoder, bufferIndex);
             return;
         }
 
@@ -98,7 +101,7 @@ public class AndroidMuxer extends Muxer {
 
         mMuxer.writeSampleData(trackIndex, encodedData, bufferInfo);
 
-        encoder.releaseOutputBuffer(bufferIndex, false);
+        releaseOutputBuffer(encoder, bufferIndex);
 
         if(allTracksFinished()){
             stop();
@@ -4,6 +4,7 @@ import android.media.AudioFormat;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
+import android.os.Process;
 
 import java.io.IOException;
 
@@ -52,6 +53,7 @@ public class AudioEncoderCore extends AndroidEncoder {
         // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
         // we can use for input and wrap it with a class that handles the EGL work.
         mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
+        setupCallbackMode("AudioEncoderCallback", Process.THREAD_PRIORITY_AUDIO);
         mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mEncoder.start();
 
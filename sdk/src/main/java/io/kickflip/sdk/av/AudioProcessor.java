@@ -0,0 +1,27 @@
+package io.kickflip.sdk.av;
+
+/**
+ * An in-place processing stage for captured audio, run by an
+ * {@link io.kickflip.sdk.av.AudioProcessorChain} between capture and the audio encoder.
+ * <p/>
+ * Samples are interleaved floats, nominally within [-1, 1]. Stages may exceed that range;
+ * the chain clips only when converting back to 16-bit PCM, so gain applied by one stage
+ * may be tamed by a later one. Implementations must not allocate in {@link #process(float[], int)}.
+ * Both methods are called on the audio encoding thread.
+ *
+ * @hide
+ */
+public interface AudioProcessor {
+
+    /**
+     * Prepare for a stream, resetting any state. Called before the first
+     * call to {@link #process(float[], int)} of each recording.
+     */
+    void configure(int sampleRate, int channelCount);
+
+    /**
+     * @param samples interleaved samples, processed in place
+     * @param count   the number of valid samples in samples, across all channels
+     */
+    void process(float[] samples, int count);
+}
@@ -0,0 +1,75 @@
+package io.kickflip.sdk.av;
+
+import java.nio.ShortBuffer;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Runs captured {@link io.kickflip.sdk.av.PcmRing.Frame}s through a series of
+ * {@link io.kickflip.sdk.av.AudioProcessor}s in place.
+ * <p/>
+ * Each frame's 16-bit samples are converted to floats once, passed through every
+ * processor, and converted back with clipping. Working storage is allocated on creation,
+ * so processing a frame allocates nothing.
+ *
+ * @hide
+ */
+public class AudioProcessorChain {
+    private static final float SHORT_TO_FLOAT = 1f / 32768f;
+
+    private final AudioProcessor[] mProcessors;
+    private final float[] mSamples;
+
+    /**
+     * @param processors      the stages, in processing order. May be empty
+     * @param sampleRate      the sample rate of the audio
+     * @param channelCount    the number of interleaved channels
+     * @param maxFrameSamples the most samples, across all channels, in one frame
+     */
+    public AudioProcessorChain(List<AudioProcessor> processors, int sampleRate, int channelCount, int maxFrameSamples) {
+        checkArgument(maxFrameSamples > 0, "maxFrameSamples must be positive");
+        mProcessors = processors.toArray(new AudioProcessor[processors.size()]);
+        mSamples = new float[mProcessors.length == 0 ? 0 : maxFrameSamples];
+        for (AudioProcessor processor : mProcessors) {
+            processor.configure(sampleRate, channelCount);
+        }
+    }
+
+    /**
+     * @return the linear gain of the given decibels
+     */
+    static float dbToGain(float db) {
+        return (float) Math.pow(10, db / 20);
+    }
+
+    public boolean isEmpty() {
+        return mProcessors.length == 0;
+    }
+
+    /**
+     * Process frame's samples in place.
+     */
+    public void process(PcmRing.Frame frame) {
+        if (mProcessors.length == 0) return;
+        int count = Math.min(frame.size / 2, mSamples.length);
+        ShortBuffer pcm = frame.samples;
+        float[] samples = mSamples;
+        for (int i = 0; i < count; i++) {
+            samples[i] = pcm.get(i) * SHORT_TO_FLOAT;
+        }
+        for (AudioProcessor processor : mProcessors) {
+            processor.process(samples, count);
+        }
+        for (int i = 0; i < count; i++) {
+            float value = samples[i] * 32768f;
+            if (value >= Short.MAX_VALUE) {
+                pcm.put(i, Short.MAX_VALUE);
+            } else if (value <= Short.MIN_VALUE) {
+                pcm.put(i, Short.MIN_VALUE);
+            } else {
+                pcm.put(i, (short) Math.round(value));
+            }
+        }
+    }
+}
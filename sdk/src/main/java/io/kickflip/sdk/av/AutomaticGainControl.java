@@ -0,0 +1,83 @@
+package io.kickflip.sdk.av;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Steers the average level of audio towards a target, so quiet and loud
+ * sources are broadcast at similar loudness.
+ * <p/>
+ * The RMS level of each frame sets the desired gain, limited to the maximum gain.
+ * Gain falls quickly when audio is too loud and rises slowly when it is too quiet.
+ * It is held through frames below the noise floor, so silence isn't amplified.
+ * Changes are ramped across each frame. Gain may push peaks past full scale,
+ * so follow with a {@link io.kickflip.sdk.av.SoftLimiter}.
+ *
+ * @hide
+ */
+public class AutomaticGainControl implements AudioProcessor {
+
+    private static final float NOISE_FLOOR_DB = -50;
+    private static final float ATTACK_MS = 50;
+    private static final float RELEASE_MS = 2000;
+
+    private final float mTargetRms;
+    private final float mMaxGain;
+    private final float mNoiseFloor;
+
+    private int mSampleRate;
+    private int mChannelCount;
+    private float mGain;
+
+    /**
+     * @param targetDb  the RMS level to steer towards, in dBFS e.g: -18
+     * @param maxGainDb the most gain applied, in dB e.g: 24
+     */
+    public AutomaticGainControl(float targetDb, float maxGainDb) {
+        checkArgument(targetDb < 0, "targetDb must be negative");
+        checkArgument(maxGainDb >= 0, "maxGainDb must be non-negative");
+        mTargetRms = AudioProcessorChain.dbToGain(targetDb);
+        mMaxGain = AudioProcessorChain.dbToGain(maxGainDb);
+        mNoiseFloor = AudioProcessorChain.dbToGain(NOISE_FLOOR_DB);
+    }
+
+    @Override
+    public void configure(int sampleRate, int channelCount) {
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mGain = 1f;
+    }
+
+    @Override
+    public void process(float[] samples, int count) {
+        if (count == 0) return;
+        double sumSquares = 0;
+        for (int i = 0; i < count; i++) {
+            sumSquares += samples[i] * samples[i];
+        }
+        float rms = (float) Math.sqrt(sumSquares / count);
+
+        float startGain = mGain;
+        float endGain = startGain;
+        if (rms > mNoiseFloor) {
+            float desired = Math.min(mTargetRms / rms, mMaxGain);
+            float frameMs = 1000f * count / mChannelCount / mSampleRate;
+            float timeMs = desired < startGain ? ATTACK_MS : RELEASE_MS;
+            endGain = startGain + (desired - startGain) * (float) (1 - Math.exp(-frameMs / timeMs));
+        }
+
+        float step = (endGain - startGain) / count;
+        float gain = startGain;
+        for (int i = 0; i < count; i++) {
+            gain += step;
+            samples[i] *= gain;
+        }
+        mGain = endGain;
+    }
+
+    /**
+     * @return the gain applied at the end of the last frame
+     */
+    public float getGain() {
+        return mGain;
+    }
+}
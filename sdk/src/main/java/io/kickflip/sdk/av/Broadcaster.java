@@ -2,7 +2,6 @@ package io.kickflip.sdk.av;
 
 import android.content.Context;
 import android.util.Log;
-import android.util.Pair;
 
 import com.amazonaws.auth.BasicSessionCredentials;
 import com.amazonaws.services.s3.model.ObjectMetadata;
@@ -13,7 +12,10 @@ import com.google.common.eventbus.Subscribe;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 import io.kickflip.sdk.FileUtils;
 import io.kickflip.sdk.Kickflip;
@@ -26,6 +28,7 @@ import io.kickflip.sdk.api.s3.S3BroadcastManager;
 import io.kickflip.sdk.event.BroadcastIsBufferingEvent;
 import io.kickflip.sdk.event.BroadcastIsLiveEvent;
 import io.kickflip.sdk.event.HlsManifestWrittenEvent;
+import io.kickflip.sdk.event.HlsPartWrittenEvent;
 import io.kickflip.sdk.event.HlsSegmentWrittenEvent;
 import io.kickflip.sdk.event.MuxerFinishedEvent;
 import io.kickflip.sdk.event.S3UploadEvent;
@@ -59,27 +62,66 @@ public class Broadcaster extends AVRecorder {
     private static final String TAG = "Broadcaster";
     private static final boolean VERBOSE = false;
     private static final int MIN_BITRATE = 3 * 100 * 1000;              // 300 kbps
+    private static final int[] RESOLUTION_LADDER = {480, 360};          // Video heights to step down to as bandwidth falls
+    private static final float MIN_BITS_PER_PIXEL = 0.04f;              // At 30 fps. Below this a lower resolution looks better
+    private static final float STEP_UP_MARGIN = 1.5f;                   // Bitrate headroom required to step back up
+    private static final int SEGMENT_HISTORY = 360;                     // Segments and uploads summarized by percentiles
     private final String VOD_FILENAME = "vod.m3u8";
+    private static final String TS_CONTENT_TYPE = "video/MP2T";
+    private static final String M4S_CONTENT_TYPE = "video/iso.segment";
+    private static final String MP4_CONTENT_TYPE = "video/mp4";
+    private static final String M3U8_CONTENT_TYPE = "application/vnd.apple.mpegurl";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Pattern PART_URL = Pattern.compile("\\d+\\.\\d+\\.(ts|m4s)$");     // e.g: index3.2.ts, index3.2.m4s
     private Context mContext;
     private KickflipApiClient mKickflip;
     private User mUser;
     private HlsStream mStream;
     private HlsFileObserver mFileObserver;
     private S3BroadcastManager mS3Manager;
-    private ArrayDeque<Pair<String, File>> mUploadQueue;
+    private ArrayDeque<PendingUpload> mUploadQueue;
     private SessionConfig mConfig;
     private BroadcastListener mBroadcastListener;
     private EventBus mEventBus;
     private boolean mReadyToBroadcast;                                  // Kickflip user registered and endpoint ready
     private boolean mSentBroadcastLiveEvent;
     private int mVideoBitrate;
+    private int mVideoHeight;                                           // Current, after any resolution switch
     private File mManifestSnapshotDir;                                  // Directory where manifest snapshots are stored
     private File mVodManifest;                                          // VOD HLS Manifest containing complete history
     private int mNumSegmentsWritten;
+    private final AtomicInteger mNumRenditionManifestsWritten = new AtomicInteger();   // Names rendition manifest snapshots
     private int mLastRealizedBandwidthBytesPerSec;                      // Bandwidth snapshot for adapting bitrate
     private boolean mDeleteAfterUploading;                              // Should recording files be deleted as they're uploaded?
     private ObjectMetadata mS3ManifestMeta;
+    private final SizeDistribution mSegmentSizes = new SizeDistribution("Segment bytes", SEGMENT_HISTORY);
+    private final SizeDistribution mUploadRates = new SizeDistribution("Upload bytes/s", SEGMENT_HISTORY);
 
+    /**
+     * An upload awaiting S3 credentials. Either a file,
+     * or in-memory data with a completion callback.
+     */
+    private static class PendingUpload {
+        final String key;
+        final File file;
+        final byte[] data;
+        final int length;
+        final String contentType;
+        final Runnable onComplete;
+
+        PendingUpload(String key, File file) {
+            this(key, file, null, 0, null, null);
+        }
+
+        PendingUpload(String key, File file, byte[] data, int length, String contentType, Runnable onComplete) {
+            this.key = key;
+            this.file = file;
+            this.data = data;
+            this.length = length;
+            this.contentType = contentType;
+            this.onComplete = onComplete;
+        }
+    }
 
     /**
      * Construct a Broadcaster with Session settings and Kickflip credentials
@@ -96,15 +138,20 @@ public class Broadcaster extends AVRecorder {
         mContext = context;
         mConfig = config;
         mConfig.getMuxer().setEventBus(mEventBus);
+        for (VideoRendition rendition : mConfig.getRenditions()) {
+            rendition.getMuxer().setEventBus(mEventBus);
+        }
         mVideoBitrate = mConfig.getVideoBitrate();
+        mVideoHeight = mConfig.getVideoHeight();
         if (VERBOSE) Log.i(TAG, "Initial video bitrate : " + mVideoBitrate);
         mManifestSnapshotDir = new File(mConfig.getOutputPath().substring(0, mConfig.getOutputPath().lastIndexOf("/") + 1), "m3u8");
         mManifestSnapshotDir.mkdir();
         mVodManifest = new File(mManifestSnapshotDir, VOD_FILENAME);
-        writeEventManifestHeader(mConfig.getHlsSegmentDuration());
+        writeEventManifestHeader(mConfig.getHlsSegmentDuration(), mConfig.getMuxer().getHlsInitSegmentName());
 
         String watchDir = config.getOutputDirectory().getAbsolutePath();
-        mFileObserver = new HlsFileObserver(watchDir, mEventBus);
+        // Thumbnails are always observed on disk. Segments and manifests may be delivered by the Muxer
+        mFileObserver = new HlsFileObserver(watchDir, mEventBus, !mConfig.getMuxer().isHlsOutputInMemory());
         mFileObserver.startWatching();
         if (VERBOSE) Log.i(TAG, "Watching " + watchDir);
 
@@ -185,7 +232,7 @@ public class Broadcaster extends AVRecorder {
         mKickflip.startStream(mConfig.getStream(), new KickflipCallback() {
             @Override
             public void onSuccess(Response response) {
-                mCamEncoder.requestThumbnailOnDeltaFrameWithScaling(10, 1);
+                if (!isAudioOnly()) mCamEncoder.requestThumbnailOnDeltaFrameWithScaling(10, 1);
                 Log.i(TAG, "got StartStreamResponse");
                 checkArgument(response instanceof HlsStream, "Got unexpected StartStream Response");
                 onGotStreamResponse((HlsStream) response);
@@ -214,6 +261,11 @@ public class Broadcaster extends AVRecorder {
         mS3Manager.addRequestInterceptor(mS3RequestInterceptor);
         mReadyToBroadcast = true;
         submitQueuedUploadsToS3();
+        if (mConfig.hasRenditions()) {
+            byte[] masterPlaylist = HlsMasterPlaylist.create(mConfig).getBytes(UTF_8);
+            queueOrSubmitUpload(new PendingUpload(keyForFilename(HlsMasterPlaylist.FILENAME), null,
+                    masterPlaylist, masterPlaylist.length, M3U8_CONTENT_TYPE, null));
+        }
         mEventBus.post(new BroadcastIsBufferingEvent());
         if (mBroadcastListener != null) {
             mBroadcastListener.onBroadcastStart();
@@ -229,6 +281,18 @@ public class Broadcaster extends AVRecorder {
         return mSentBroadcastLiveEvent;
     }
 
+    /**
+     * Snapshot encoded frame sizes, segment sizes and upload rates so far, e.g: to compare
+     * how bursty a broadcast with {@link io.kickflip.sdk.av.SessionConfig#setIntraRefresh(boolean)}
+     * is against one with periodic IDR frames, via
+     * {@link io.kickflip.sdk.av.OutputStatistics#compare(OutputStatistics, OutputStatistics)}.
+     * Logged when recording stops.
+     */
+    public OutputStatistics getOutputStatistics() {
+        return new OutputStatistics(mConfig.isIntraRefresh(), mConfig.getVideoBitrate(),
+                getVideoFrameSizeDistribution(), mSegmentSizes, mUploadRates);
+    }
+
     /**
      * Stop broadcasting and release resources.
      * After this call this Broadcaster can no longer be used.
@@ -237,6 +301,7 @@ public class Broadcaster extends AVRecorder {
     public void stopRecording() {
         super.stopRecording();
         mSentBroadcastLiveEvent = false;
+        Log.i(TAG, getOutputStatistics().toString());
         if (mStream != null) {
             if (VERBOSE) Log.i(TAG, "Stopping Stream");
             mKickflip.stopStream(mStream, new KickflipCallback() {
@@ -254,7 +319,8 @@ public class Broadcaster extends AVRecorder {
     }
 
     /**
-     * A .ts file was written in the recording directory.
+     * A .ts or .m4s segment, or a CMAF initialization segment, was written in the recording directory,
+     * or delivered in memory by the Muxer.
      * <p/>
      * Use this opportunity to verify the segment is of expected size
      * given the target bitrate
@@ -265,10 +331,32 @@ public class Broadcaster extends AVRecorder {
     public void onSegmentWritten(HlsSegmentWrittenEvent event) {
         try {
             File hlsSegment = event.getSegment();
-            queueOrSubmitUpload(keyForFilename(hlsSegment.getName()), hlsSegment);
-            if (isKitKat() && mConfig.isAdaptiveBitrate() && isRecording()) {
+            if (hlsSegment.getName().endsWith(".mp4") && !isInitSegment(hlsSegment.getName())) {
+                // e.g: A local recording written alongside the stream by a TeeMuxer
+                return;
+            }
+            final HlsSegmentBuffer segmentBuffer = event.getSegmentBuffer();
+            long actualSegmentSizeBytes;
+            if (segmentBuffer != null) {
+                actualSegmentSizeBytes = segmentBuffer.getSize();
+                queueOrSubmitUpload(new PendingUpload(keyForFilename(hlsSegment.getName()), null,
+                        segmentBuffer.getData(), segmentBuffer.getSize(), contentTypeForSegment(hlsSegment.getName()), new Runnable() {
+                    @Override
+                    public void run() {
+                        segmentBuffer.release();
+                    }
+                }));
+            } else {
+                actualSegmentSizeBytes = hlsSegment.length();
+                queueOrSubmitUpload(new PendingUpload(keyForFilename(hlsSegment.getName()), hlsSegment));
+            }
+            if (isInitSegment(hlsSegment.getName()) || mConfig.isRenditionFile(hlsSegment.getName())) {
+                // Codec configuration only, or a rendition's fixed bitrate. Not representative of the encoded bitrate
+                return;
+            }
+            mSegmentSizes.add(actualSegmentSizeBytes);
+            if (isKitKat() && mConfig.isAdaptiveBitrate() && !isAudioOnly() && isRecording()) {
                 // Adjust bitrate to match expected filesize
-                long actualSegmentSizeBytes = hlsSegment.length();
                 long expectedSizeBytes = ((mConfig.getAudioBitrate() / 8) + (mVideoBitrate / 8)) * mConfig.getHlsSegmentDuration();
                 float filesizeRatio = actualSegmentSizeBytes / (float) expectedSizeBytes;
                 if (VERBOSE)
@@ -285,6 +373,7 @@ public class Broadcaster extends AVRecorder {
                     }
                     if (VERBOSE) Log.i(TAG, "Scaling video bitrate to " + mVideoBitrate + " bps");
                     adjustVideoBitrate(mVideoBitrate);
+                    adaptVideoResolution();
                 }
             }
         } catch (Exception ex) {
@@ -293,7 +382,24 @@ public class Broadcaster extends AVRecorder {
     }
 
     /**
-     * An S3 .ts segment upload completed.
+     * A Low-Latency HLS partial segment was completed by the Muxer.
+     * <p/>
+     * Called on a background thread
+     */
+    @Subscribe
+    public void onPartWritten(HlsPartWrittenEvent event) {
+        final HlsSegmentBuffer partBuffer = event.getPartBuffer();
+        queueOrSubmitUpload(new PendingUpload(keyForFilename(event.getPart().getName()), null,
+                partBuffer.getData(), partBuffer.getSize(), contentTypeForSegment(event.getPart().getName()), new Runnable() {
+            @Override
+            public void run() {
+                partBuffer.release();
+            }
+        }));
+    }
+
+    /**
+     * An S3 .ts or .m4s segment upload completed.
      * <p/>
      * Use this opportunity to adjust bitrate based on the bandwidth
      * measured during this segment's transmission.
@@ -301,13 +407,19 @@ public class Broadcaster extends AVRecorder {
      * Called on a background thread
      */
     private void onSegmentUploaded(S3UploadEvent uploadEvent) {
-        if (mDeleteAfterUploading) {
+        if (mDeleteAfterUploading && uploadEvent.getFile() != null) {
             boolean deletedFile = uploadEvent.getFile().delete();
             if (VERBOSE)
                 Log.i(TAG, "Deleting uploaded segment. " + uploadEvent.getFile().getAbsolutePath() + " Succcess: " + deletedFile);
         }
+        String url = uploadEvent.getDestinationUrl();
+        if (mConfig.isRenditionFile(url.substring(url.lastIndexOf('/') + 1))) {
+            // A rendition's upload shares bandwidth with, but doesn't measure, the session's stream
+            return;
+        }
+        mUploadRates.add(uploadEvent.getUploadByteRate());
         try {
-            if (isKitKat() && mConfig.isAdaptiveBitrate() && isRecording()) {
+            if (isKitKat() && mConfig.isAdaptiveBitrate() && !isAudioOnly() && isRecording()) {
                 mLastRealizedBandwidthBytesPerSec = uploadEvent.getUploadByteRate();
                 // Adjust video encoder bitrate per bandwidth of just-completed upload
                 if (VERBOSE) {
@@ -321,6 +433,7 @@ public class Broadcaster extends AVRecorder {
                                 mVideoBitrate / (8 * 1000.0), mLastRealizedBandwidthBytesPerSec / 1000.0));
                     }
                     adjustVideoBitrate(mVideoBitrate);
+                    adaptVideoResolution();
                 }
             }
         } catch (Exception e) {
@@ -330,19 +443,81 @@ public class Broadcaster extends AVRecorder {
     }
 
     /**
-     * A .m3u8 file was written in the recording directory.
+     * Step video down {@link #RESOLUTION_LADDER} when the adapted bitrate is too low to encode
+     * the current resolution well, or back up when it recovers, so a bandwidth collapse
+     * needn't end the broadcast. Only if the session's Muxer can switch video mid-stream.
+     */
+    private void adaptVideoResolution() {
+        if (mConfig.hasRenditions() || !mConfig.getMuxer().supportsVideoFormatChange()) return;
+        int height = chooseVideoHeight();
+        if (height == mVideoHeight) return;
+        int width = getLadderWidth(height);
+        if (switchVideoResolution(width, height, mVideoBitrate)) {
+            Log.i(TAG, "Switching video to " + width + "x" + height + " at " + mVideoBitrate + " bps");
+            mVideoHeight = height;
+        }
+    }
+
+    /**
+     * @return the largest of the session's video height and the lower rungs of
+     * {@link #RESOLUTION_LADDER} whose minimum bitrate mVideoBitrate meets,
+     * requiring a margin to step up so resolution doesn't oscillate
+     */
+    private int chooseVideoHeight() {
+        int height = mConfig.getVideoHeight();
+        int rung = 0;
+        while (true) {
+            float minBitrate = getLadderWidth(height) * height * 30 * MIN_BITS_PER_PIXEL;
+            if (height > mVideoHeight) minBitrate *= STEP_UP_MARGIN;
+            if (mVideoBitrate >= minBitrate) return height;
+            // Next rung below the current height
+            while (rung < RESOLUTION_LADDER.length && RESOLUTION_LADDER[rung] >= height) rung++;
+            if (rung == RESOLUTION_LADDER.length) return height;
+            height = RESOLUTION_LADDER[rung];
+        }
+    }
+
+    /**
+     * @return the even width of video of the given height, at the session's aspect ratio
+     */
+    private int getLadderWidth(int height) {
+        return Math.round(mConfig.getVideoWidth() * height / (float) mConfig.getVideoHeight() / 2) * 2;
+    }
+
+    /**
+     * A .m3u8 file was written in the recording directory,
+     * or delivered in memory by the Muxer.
      * <p/>
      * Called on a background thread
      */
     @Subscribe
     public void onManifestUpdated(HlsManifestWrittenEvent e) {
-        if (!isRecording()) {
+        if (mConfig.isRenditionFile(e.getManifestFile().getName())) {
+            onRenditionManifestUpdated(e);
+            return;
+        }
+        String manifestContents = e.getManifestContents();
+        if (!isRecording() && (manifestContents == null || e.isEndList())) {
             if (Kickflip.getBroadcastListener() != null) {
                 if (VERBOSE) Log.i(TAG, "Sending onBroadcastStop");
                 Kickflip.getBroadcastListener().onBroadcastStop();
             }
         }
         if (VERBOSE) Log.i(TAG, "onManifestUpdated. Last segment? " + !isRecording());
+        if (manifestContents != null) {
+            // Manifest snapshot is already immutable. Upload it directly
+            byte[] manifest = manifestContents.getBytes(UTF_8);
+            queueOrSubmitUpload(new PendingUpload(keyForFilename("index.m3u8"), null,
+                    manifest, manifest.length, M3U8_CONTENT_TYPE, null));
+            // Low-Latency HLS re-posts the manifest for every part. Only completed segments belong in the VOD manifest
+            String segmentEntry = e.getSegmentEntry();
+            if (segmentEntry != null || e.isEndList()) {
+                appendLastManifestEntryToEventManifest((segmentEntry != null ? segmentEntry : "") +
+                        (e.isEndList() ? "#EXT-X-ENDLIST\n" : ""), e.isEndList());
+            }
+            if (segmentEntry != null) mNumSegmentsWritten++;
+            return;
+        }
         // Copy m3u8 at this moment and queue it to uploading
         // service
         final File copy = new File(mManifestSnapshotDir, e.getManifestFile().getName()
@@ -351,8 +526,8 @@ public class Broadcaster extends AVRecorder {
             if (VERBOSE)
                 Log.i(TAG, "Copying " + e.getManifestFile().getAbsolutePath() + " to " + copy.getAbsolutePath());
             FileUtils.copy(e.getManifestFile(), copy);
-            queueOrSubmitUpload(keyForFilename("index.m3u8"), copy);
-            appendLastManifestEntryToEventManifest(copy, !isRecording());
+            queueOrSubmitUpload(new PendingUpload(keyForFilename("index.m3u8"), copy));
+            appendLastManifestEntryToEventManifest(FileUtils.tail2(copy, !isRecording() ? 3 : 2), !isRecording());
         } catch (IOException e1) {
             Log.e(TAG, "Failed to copy manifest file. Upload of this manifest cannot proceed. Stream will have a discontinuity!");
             e1.printStackTrace();
@@ -361,6 +536,32 @@ public class Broadcaster extends AVRecorder {
         mNumSegmentsWritten++;
     }
 
+    /**
+     * A rendition's variant playlist was written. Uploaded under its own name,
+     * and excluded from the VOD manifest, which follows the session's own playlist.
+     * <p/>
+     * Called on a background thread
+     */
+    private void onRenditionManifestUpdated(HlsManifestWrittenEvent e) {
+        String manifestName = e.getManifestFile().getName();
+        String manifestContents = e.getManifestContents();
+        if (manifestContents != null) {
+            byte[] manifest = manifestContents.getBytes(UTF_8);
+            queueOrSubmitUpload(new PendingUpload(keyForFilename(manifestName), null,
+                    manifest, manifest.length, M3U8_CONTENT_TYPE, null));
+            return;
+        }
+        final File copy = new File(mManifestSnapshotDir, manifestName
+                .replace(".m3u8", "_" + mNumRenditionManifestsWritten.getAndIncrement() + ".m3u8"));
+        try {
+            FileUtils.copy(e.getManifestFile(), copy);
+            queueOrSubmitUpload(new PendingUpload(keyForFilename(manifestName), copy));
+        } catch (IOException e1) {
+            Log.e(TAG, "Failed to copy rendition manifest " + manifestName + ". Its variant will have a discontinuity!");
+            e1.printStackTrace();
+        }
+    }
+
     /**
      * An S3 .m3u8 upload completed.
      * <p/>
@@ -368,8 +569,10 @@ public class Broadcaster extends AVRecorder {
      */
     private void onManifestUploaded(S3UploadEvent uploadEvent) {
         if (mDeleteAfterUploading) {
-            if (VERBOSE) Log.i(TAG, "Deleting " + uploadEvent.getFile().getAbsolutePath());
-            uploadEvent.getFile().delete();
+            if (uploadEvent.getFile() != null) {
+                if (VERBOSE) Log.i(TAG, "Deleting " + uploadEvent.getFile().getAbsolutePath());
+                uploadEvent.getFile().delete();
+            }
             String uploadUrl = uploadEvent.getDestinationUrl();
             if (uploadUrl.substring(uploadUrl.lastIndexOf(File.separator) + 1).equals("vod.m3u8")) {
                 if (VERBOSE) Log.i(TAG, "Deleting " + mConfig.getOutputDirectory());
@@ -393,7 +596,7 @@ public class Broadcaster extends AVRecorder {
     @Subscribe
     public void onThumbnailWritten(ThumbnailWrittenEvent e) {
         try {
-            queueOrSubmitUpload(keyForFilename("thumb.jpg"), e.getThumbnailFile());
+            queueOrSubmitUpload(new PendingUpload(keyForFilename("thumb.jpg"), e.getThumbnailFile()));
         } catch (Exception ex) {
             Log.i(TAG, "Error writing thumbanil");
             ex.printStackTrace();
@@ -450,28 +653,26 @@ public class Broadcaster extends AVRecorder {
      * Handle an upload, either submitting to the S3 client
      * or queueing for submission once credentials are ready
      *
-     * @param key  destination key
-     * @param file local file
+     * @param upload destination key and local file or data
      */
-    private void queueOrSubmitUpload(String key, File file) {
+    private void queueOrSubmitUpload(PendingUpload upload) {
         if (mReadyToBroadcast) {
-            submitUpload(key, file);
+            submitUpload(upload);
         } else {
-            if (VERBOSE) Log.i(TAG, "queueing " + key + " until S3 Credentials available");
-            queueUpload(key, file);
+            if (VERBOSE) Log.i(TAG, "queueing " + upload.key + " until S3 Credentials available");
+            queueUpload(upload);
         }
     }
 
     /**
      * Queue an upload for later submission to S3
      *
-     * @param key  destination key
-     * @param file local file
+     * @param upload destination key and local file or data
      */
-    private void queueUpload(String key, File file) {
+    private void queueUpload(PendingUpload upload) {
         if (mUploadQueue == null)
             mUploadQueue = new ArrayDeque<>();
-        mUploadQueue.add(new Pair<>(key, file));
+        mUploadQueue.add(upload);
     }
 
     /**
@@ -479,13 +680,18 @@ public class Broadcaster extends AVRecorder {
      */
     private void submitQueuedUploadsToS3() {
         if (mUploadQueue == null) return;
-        for (Pair<String, File> pair : mUploadQueue) {
-            submitUpload(pair.first, pair.second);
+        for (PendingUpload upload : mUploadQueue) {
+            submitUpload(upload);
         }
     }
 
-    private void submitUpload(final String key, final File file) {
-        submitUpload(key, file, false);
+    private void submitUpload(PendingUpload upload) {
+        if (upload.data != null) {
+            mS3Manager.queueUpload(mStream.getAwsS3Bucket(), upload.key, upload.data, upload.length,
+                    upload.contentType, false, upload.onComplete);
+        } else {
+            submitUpload(upload.key, upload.file, false);
+        }
     }
 
     private void submitUpload(final String key, final File file, boolean lastUpload) {
@@ -501,8 +707,16 @@ public class Broadcaster extends AVRecorder {
         if (VERBOSE) Log.i(TAG, "Upload completed for " + uploadEvent.getDestinationUrl());
         if (uploadEvent.getDestinationUrl().contains(".m3u8")) {
             onManifestUploaded(uploadEvent);
-        } else if (uploadEvent.getDestinationUrl().contains(".ts")) {
+        } else if (PART_URL.matcher(uploadEvent.getDestinationUrl()).find()) {
+            // Partial segment uploads are too short to measure bandwidth
+            if (VERBOSE) Log.i(TAG, "Part upload completed");
+        } else if (uploadEvent.getDestinationUrl().contains(".ts") || uploadEvent.getDestinationUrl().contains(".m4s")) {
             onSegmentUploaded(uploadEvent);
+        } else if (uploadEvent.getDestinationUrl().endsWith(".mp4")) {
+            // CMAF initialization segment
+            if (mDeleteAfterUploading && uploadEvent.getFile() != null) {
+                uploadEvent.getFile().delete();
+            }
         } else if (uploadEvent.getDestinationUrl().contains(".jpg")) {
             onThumbnailUploaded(uploadEvent);
         }
@@ -512,20 +726,33 @@ public class Broadcaster extends AVRecorder {
         return mConfig;
     }
 
-    private void writeEventManifestHeader(int targetDuration) {
+    /**
+     * @param initSegmentName the initialization segment for EXT-X-MAP, or null
+     */
+    private void writeEventManifestHeader(int targetDuration, String initSegmentName) {
         FileUtils.writeStringToFile(
                 String.format("#EXTM3U\n" +
                         "#EXT-X-PLAYLIST-TYPE:VOD\n" +
-                        "#EXT-X-VERSION:3\n" +
+                        "#EXT-X-VERSION:%d\n" +
                         "#EXT-X-MEDIA-SEQUENCE:0\n" +
-                        "#EXT-X-TARGETDURATION:%d\n", targetDuration + 1),
+                        "#EXT-X-TARGETDURATION:%d\n", initSegmentName != null ? 7 : 3, targetDuration + 1) +
+                        (initSegmentName != null ? "#EXT-X-MAP:URI=\"" + initSegmentName + "\"\n" : ""),
                 mVodManifest, false
         );
     }
 
-    private void appendLastManifestEntryToEventManifest(File sourceManifest, boolean lastEntry) {
-        String result = FileUtils.tail2(sourceManifest, lastEntry ? 3 : 2);
-        FileUtils.writeStringToFile(result, mVodManifest, true);
+    private boolean isInitSegment(String fileName) {
+        return fileName.equals(mConfig.getMuxer().getHlsInitSegmentName());
+    }
+
+    private static String contentTypeForSegment(String fileName) {
+        if (fileName.endsWith(".m4s")) return M4S_CONTENT_TYPE;
+        if (fileName.endsWith(".mp4")) return MP4_CONTENT_TYPE;
+        return TS_CONTENT_TYPE;
+    }
+
+    private void appendLastManifestEntryToEventManifest(String lastManifestEntry, boolean lastEntry) {
+        FileUtils.writeStringToFile(lastManifestEntry, mVodManifest, true);
         if (lastEntry) {
             submitUpload(keyForFilename("vod.m3u8"), mVodManifest, true);
             if (VERBOSE) Log.i(TAG, "Queued master manifest " + mVodManifest.getAbsolutePath());
@@ -535,7 +762,14 @@ public class Broadcaster extends AVRecorder {
     S3BroadcastManager.S3RequestInterceptor mS3RequestInterceptor = new S3BroadcastManager.S3RequestInterceptor() {
         @Override
         public void interceptRequest(PutObjectRequest request) {
-            if (request.getKey().contains("index.m3u8")) {
+            String key = request.getKey();
+            if (key.contains("index.m3u8") || (key.endsWith(".m3u8")
+                    && mConfig.isRenditionFile(key.substring(key.lastIndexOf('/') + 1)))) {
+                if (request.getMetadata() != null) {
+                    // In-memory uploads carry their own length and content type
+                    request.getMetadata().setCacheControl("max-age=0");
+                    return;
+                }
                 if (mS3ManifestMeta == null) {
                     mS3ManifestMeta = new ObjectMetadata();
                     mS3ManifestMeta.setCacheControl("max-age=0");
@@ -4,6 +4,7 @@ import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.hardware.Camera.Parameters;
 import android.opengl.EGLContext;
+import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.os.Handler;
 import android.os.Looper;
@@ -17,12 +18,14 @@ import com.google.common.eventbus.EventBus;
 import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.List;
 
 import io.kickflip.sdk.event.CameraOpenedEvent;
 import io.kickflip.sdk.view.GLCameraEncoderView;
 import io.kickflip.sdk.view.GLCameraView;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -32,6 +35,7 @@ public class CameraEncoder implements SurfaceTexture.OnFrameAvailableListener, R
     private static final String TAG = "CameraEncoder";
     private static final boolean TRACE = false;         // Systrace
     private static final boolean VERBOSE = false;       // Lots of logging
+    private static final int FRAME_SIZE_HISTORY = 1800;   // Frames summarized by percentiles. A minute at 30 fps
 
     private enum STATE {
         /* Stopped or pre-construction */
@@ -52,6 +56,20 @@ public class CameraEncoder implements SurfaceTexture.OnFrameAvailableListener, R
 
     private volatile STATE mState = STATE.UNINITIALIZED;
 
+    /**
+     * The encoder of a {@link io.kickflip.sdk.av.VideoRendition}, and
+     * the EGL surface camera frames are drawn to for it.
+     */
+    private static class RenditionEncoder {
+        final VideoEncoderCore encoder;
+        final WindowSurface surface;
+
+        RenditionEncoder(VideoEncoderCore encoder, WindowSurface surface) {
+            this.encoder = encoder;
+            this.surface = surface;
+        }
+    }
+
     // EncoderHandler Message types (Message#what)
     private static final int MSG_FRAME_AVAILABLE = 2;
     private static final int MSG_SET_SURFACE_TEXTURE = 3;
@@ -67,6 +85,7 @@ public class CameraEncoder implements SurfaceTexture.OnFrameAvailableListener, R
     private int mTextureId;
     private int mFrameNum;
     private VideoEncoderCore mVideoEncoder;
+    private final List<RenditionEncoder> mRenditionEncoders = new ArrayList<>();
     private Camera mCamera;
     private SessionConfig mSessionConfig;
     private float[] mTransform = new float[16];
@@ -83,7 +102,13 @@ public class CameraEncoder implements SurfaceTexture.OnFrameAvailableListener, R
     private final Object mReadyForFrameFence = new Object();    // guards mReadyForFrames/mRecording
     private boolean mReadyForFrames;                            // Is the SurfaceTexture et all created
     private boolean mRecording;                                 // Are frames being recorded
+    private boolean mPreRolling;                                // Are frames being encoded before recording, for pre-roll
     private boolean mEosRequested;                              // Should an EOS be sent on next frame. Used to stop encoder
+    private volatile boolean mKeyframeRequested;                // Should the next frame be encoded as a keyframe
+    private volatile VideoEncoderConfig mPendingVideoConfig;    // Video to switch to at the next segment boundary
+    private volatile FrameRateGovernor mFrameGovernor;          // Paces frames to the encoders
+    private volatile long mFrameAvailableNs;                    // When the newest camera frame became available
+    private volatile SizeDistribution mFrameSizes;              // The current recording's encoded video frame bytes
     private final Object mReadyFence = new Object();            // guards ready/running
     private boolean mReady;                                     // mHandler created on Encoder thread
     private boolean mRunning;                                   // Encoder thread running
@@ -123,6 +148,7 @@ public class CameraEncoder implements SurfaceTexture.OnFrameAvailableListener, R
         mEncodedFirstFrame = false;
         mReadyForFrames = false;
         mRecording = false;
+        mPreRolling = config.getPreRollDuration() > 0;
         mEosRequested = false;
 
         mCurrentCamera = -1;
@@ -138,6 +164,9 @@ public class CameraEncoder implements SurfaceTexture.OnFrameAvailableListener, R
         mThumbnailRequestedOnFrame = -1;
 
         mSessionConfig = checkNotNull(config);
+        mFrameGovernor = new FrameRateGovernor(config.getVideoFrameRate());
+        mFrameSizes = new SizeDistribution(config.isIntraRefresh() ? "Frame bytes (intra refresh)" : "Frame bytes",
+                FRAME_SIZE_HISTORY);
     }
 
     /**
@@ -279,6 +308,64 @@ public class CameraEncoder implements SurfaceTexture.OnFrameAvailableListener, R
         mVideoEncoder.adjustBitrate(targetBitrate);
     }
 
+    /**
+     * Encode the next frame as a keyframe in the session's video and each rendition,
+     * e.g: when a viewer joins, so they needn't wait for the next scheduled keyframe.
+     * Keyframes are also requested when the camera or filter changes.
+     * <p/>
+     * Called from any thread
+     */
+    public void requestKeyframe() {
+        mKeyframeRequested = true;
+    }
+
+    /**
+     * Switch the session's video to the given resolution and bitrate at the next HLS segment
+     * boundary, without restarting the camera or the recording, e.g: to 854x480 when bandwidth
+     * collapses. The new video begins a segment marked with EXT-X-DISCONTINUITY.
+     * <p/>
+     * Requires a Muxer that supports video format changes, such as
+     * {@link io.kickflip.sdk.av.MpegTsHlsMuxer}, and a session without renditions,
+     * whose master playlist lists each variant's resolution.
+     * <p/>
+     * Called from any thread
+     *
+     * @return false if the session's video can't be switched
+     */
+    public boolean switchVideoResolution(int width, int height, int bitRate) {
+        checkArgument(width > 0 && height > 0 && bitRate > 0, "Invalid video " + width + "x" + height + " @" + bitRate);
+        if (mSessionConfig.hasRenditions() || !mSessionConfig.getMuxer().supportsVideoFormatChange()) {
+            Log.w(TAG, "Ignoring video resolution switch. Unsupported by this session");
+            return false;
+        }
+        mPendingVideoConfig = new VideoEncoderConfig(width, height, bitRate, mFrameGovernor.getTargetFps());
+        return true;
+    }
+
+    /**
+     * Change the rate camera frames are encoded at, e.g: to reduce load when the device
+     * is thermally throttled. Takes effect from the next frame.
+     * <p/>
+     * Called from any thread
+     */
+    public void setVideoFrameRate(int fps) {
+        mFrameGovernor.setTargetFps(fps);
+    }
+
+    /**
+     * @return counts of the current recording's encoded, decimated, coalesced and late frames
+     */
+    public FrameRateGovernor getFrameRateGovernor() {
+        return mFrameGovernor;
+    }
+
+    /**
+     * @return the sizes of the current recording's encoded video frames, excluding renditions
+     */
+    public SizeDistribution getFrameSizeDistribution() {
+        return mFrameSizes;
+    }
+
     public void signalVerticalVideo(FullFrameRect.SCREEN_ROTATION orientation) {
         if (mFullScreen != null) mFullScreen.adjustForVerticalVideo(orientation, true);
         mDisplayRenderer.signalVertialVideo(orientation);
@@ -467,6 +554,13 @@ public class CameraEncoder implements SurfaceTexture.OnFrameAvailableListener, R
     public void onFrameAvailable(SurfaceTexture surfaceTexture) {
         // Pass SurfaceTexture to Encoding thread via Handler
         // Then Encode and display frame
+        mFrameAvailableNs = System.nanoTime();
+        if (mHandler.hasMessages(MSG_FRAME_AVAILABLE)) {
+            // The encoder thread is behind. Only the newest frame is latched
+            // by the SurfaceTexture, so a single message suffices
+            mHandler.removeMessages(MSG_FRAME_AVAILABLE);
+            mFrameGovernor.onFrameCoalesced();
+        }
         mHandler.sendMessage(mHandler.obtainMessage(MSG_FRAME_AVAILABLE, surfaceTexture));
     }
 
@@ -487,12 +581,32 @@ public class CameraEncoder implements SurfaceTexture.OnFrameAvailableListener, R
             if (!surfaceTexture.equals(mSurfaceTexture))
                 Log.w(TAG, "SurfaceTexture from OnFrameAvailable does not match saved SurfaceTexture!");
 
-            if (mRecording) {
+            if ((mRecording || mPreRolling) && shouldEncodeFrame(surfaceTexture)) {
+                VideoEncoderConfig pendingVideoConfig = mPendingVideoConfig;
+                if (pendingVideoConfig != null && mRecording && !mEosRequested
+                        && mSessionConfig.getMuxer().isSegmentBoundaryDue()) {
+                    try {
+                        switchVideoEncoder(pendingVideoConfig);
+                    } catch (IOException e) {
+                        throw new RuntimeException("Failed to switch video encoder", e);
+                    } finally {
+                        // Unless a newer switch was requested meanwhile
+                        if (mPendingVideoConfig == pendingVideoConfig) mPendingVideoConfig = null;
+                    }
+                }
+                if (mKeyframeRequested) {
+                    mKeyframeRequested = false;
+                    requestEncoderKeyframes();
+                }
                 mInputWindowSurface.makeCurrent();
                 if (TRACE) Trace.beginSection("drainVEncoder");
                 mVideoEncoder.drainEncoder(false);
                 if (TRACE) Trace.endSection();
                 if (mCurrentFilter != mNewFilter) {
+                    if (mCurrentFilter != -1) {
+                        // Frames with the new filter would predict poorly from frames without it
+                        requestEncoderKeyframes();
+                    }
                     Filters.updateFilter(mFullScreen, mNewFilter);
                     mCurrentFilter = mNewFilter;
                     mIncomingSizeUpdated = true;
@@ -505,6 +619,8 @@ public class CameraEncoder implements SurfaceTexture.OnFrameAvailableListener, R
 
                 surfaceTexture.getTransformMatrix(mTransform);
                 if (TRACE) Trace.beginSection("drawVEncoderFrame");
+                // The viewport isn't reset by makeCurrent, and renditions set their own
+                GLES20.glViewport(0, 0, mInputWindowSurface.getWidth(), mInputWindowSurface.getHeight());
                 mFullScreen.drawFrame(mTextureId, mTransform);
                 if (TRACE) Trace.endSection();
                 if (!mEncodedFirstFrame) {
@@ -522,12 +638,24 @@ public class CameraEncoder implements SurfaceTexture.OnFrameAvailableListener, R
                 mInputWindowSurface.setPresentationTime(mSurfaceTexture.getTimestamp());
                 mInputWindowSurface.swapBuffers();
 
+                if (!mRenditionEncoders.isEmpty()) {
+                    if (TRACE) Trace.beginSection("drawRenditionFrames");
+                    drawRenditions(mSurfaceTexture.getTimestamp());
+                    if (TRACE) Trace.endSection();
+                }
+
                 if (mEosRequested) {
                     /*if (VERBOSE) */
-                    Log.i(TAG, "Sending last video frame. Draining encoder");
+                    Log.i(TAG, "Sending last video frame. Draining encoder. " + mFrameGovernor);
+                    Log.i(TAG, mFrameSizes.toString());
                     mVideoEncoder.signalEndOfStream();
                     mVideoEncoder.drainEncoder(true);
+                    for (RenditionEncoder rendition : mRenditionEncoders) {
+                        rendition.encoder.signalEndOfStream();
+                        rendition.encoder.drainEncoder(true);
+                    }
                     mRecording = false;
+                    mPreRolling = false;
                     mEosRequested = false;
                     releaseEncoder();
                     mState = STATE.UNINITIALIZED;
@@ -544,6 +672,78 @@ public class CameraEncoder implements SurfaceTexture.OnFrameAvailableListener, R
         if (TRACE) Trace.endSection();
     }
 
+    /**
+     * Replace the session's video encoder and its window surface with ones at config's
+     * resolution and bitrate, while the camera, EGL context and display keep running.
+     * The Muxer writes the current encoder's output until the new encoder's first frame,
+     * a keyframe, which begins a new segment.
+     * <p/>
+     * Frames still buffered in the current encoder are discarded, rather than awaiting
+     * an end of stream some devices never signal. The new segment begins with a discontinuity,
+     * so players tolerate the gap.
+     * <p/>
+     * Called on Encoder thread, before the frame is drawn
+     */
+    private void switchVideoEncoder(VideoEncoderConfig config) throws IOException {
+        Log.i(TAG, "Switching video to " + config);
+        Muxer muxer = mSessionConfig.getMuxer();
+        VideoEncoderCore previousEncoder = mVideoEncoder;
+        WindowSurface previousSurface = mInputWindowSurface;
+        previousSurface.makeCurrent();
+        previousEncoder.drainEncoder(false);
+        muxer.beginVideoFormatChange();
+
+        mVideoEncoder = new VideoEncoderCore(config.getWidth(), config.getHeight(), config.getBitRate(),
+                config.getFrameRate(), muxer, mSessionConfig.getEncoderProfile(), mSessionConfig.isIntraRefresh());
+        mVideoEncoder.setFrameSizeDistribution(mFrameSizes);
+        mInputWindowSurface = new WindowSurface(mEglCore, mVideoEncoder.getInputSurface());
+        mInputWindowSurface.makeCurrent();
+        previousSurface.release();
+        previousEncoder.release();
+    }
+
+    /**
+     * Decide whether the current frame is drawn to the encoders, or dropped to meet the
+     * target frame rate. The frame requested to carry end of stream is always encoded.
+     * The display is rendered regardless.
+     * <p/>
+     * Called on Encoder thread
+     */
+    private boolean shouldEncodeFrame(SurfaceTexture surfaceTexture) {
+        boolean encode = mFrameGovernor.onFrame(surfaceTexture.getTimestamp(), System.nanoTime() - mFrameAvailableNs);
+        return encode || mEosRequested;
+    }
+
+    /**
+     * Ask each encoder to make the frame about to be drawn a keyframe.
+     * Called on Encoder thread, before the frame is swapped to the encoders
+     */
+    private void requestEncoderKeyframes() {
+        mVideoEncoder.requestKeyframe();
+        for (RenditionEncoder rendition : mRenditionEncoders) {
+            rendition.encoder.requestKeyframe();
+        }
+    }
+
+    /**
+     * Draw the current camera frame to each rendition's encoder. Each draw
+     * is scaled to the rendition's resolution by its viewport.
+     * <p/>
+     * Called on Encoder thread, after the frame is drawn for the session's encoder
+     *
+     * @param timestampNs the frame's presentation time
+     */
+    private void drawRenditions(long timestampNs) {
+        for (RenditionEncoder rendition : mRenditionEncoders) {
+            rendition.surface.makeCurrent();
+            rendition.encoder.drainEncoder(false);
+            GLES20.glViewport(0, 0, rendition.surface.getWidth(), rendition.surface.getHeight());
+            mFullScreen.drawFrame(mTextureId, mTransform);
+            rendition.surface.setPresentationTime(timestampNs);
+            rendition.surface.swapBuffers();
+        }
+    }
+
     private void saveFrameAsImage() {
         try {
             File recordingDir = new File(mSessionConfig.getMuxer().getOutputPath()).getParentFile();
@@ -628,11 +828,17 @@ public class CameraEncoder implements SurfaceTexture.OnFrameAvailableListener, R
                 mSurfaceTexture.detachFromGLContext();
                 // Release the EGLSurface and EGLContext.
                 mInputWindowSurface.releaseEglSurface();
+                for (RenditionEncoder rendition : mRenditionEncoders) {
+                    rendition.surface.releaseEglSurface();
+                }
                 mFullScreen.release();
                 mEglCore.release();
 
-                // Create a new EGLContext and recreate the window surface.
+                // Create a new EGLContext and recreate the window surfaces.
                 mEglCore = new EglCore(mEglSaver.getSavedEGLContext(), EglCore.FLAG_RECORDABLE);
+                for (RenditionEncoder rendition : mRenditionEncoders) {
+                    rendition.surface.recreate(mEglCore);
+                }
                 mInputWindowSurface.recreate(mEglCore);
                 mInputWindowSurface.makeCurrent();
 
@@ -688,16 +894,28 @@ public class CameraEncoder implements SurfaceTexture.OnFrameAvailableListener, R
      * @param height        the desired height of the encoder's video output
      * @param bitRate       the desired bitrate of the video encoder
      * @param muxer         the desired output muxer
+     *                      <p/>
+     *                      An encoder and window surface are also prepared for each of the
+     *                      session's {@link io.kickflip.sdk.av.VideoRendition}s
      */
     private void prepareEncoder(EGLContext sharedContext, int width, int height, int bitRate,
                                 Muxer muxer) throws IOException {
-        mVideoEncoder = new VideoEncoderCore(width, height, bitRate, muxer);
+        mVideoEncoder = new VideoEncoderCore(width, height, bitRate, mSessionConfig.getVideoFrameRate(),
+                muxer, mSessionConfig.getEncoderProfile(), mSessionConfig.isIntraRefresh());
+        mVideoEncoder.setFrameSizeDistribution(mFrameSizes);
         if (mEglCore == null) {
             // This is the first prepare called for this CameraEncoder instance
             mEglCore = new EglCore(sharedContext, EglCore.FLAG_RECORDABLE);
         }
         if (mInputWindowSurface != null) mInputWindowSurface.release();
         mInputWindowSurface = new WindowSurface(mEglCore, mVideoEncoder.getInputSurface());
+        releaseRenditionSurfaces();
+        for (VideoRendition rendition : mSessionConfig.getRenditions()) {
+            VideoEncoderCore encoder = new VideoEncoderCore(rendition.getWidth(), rendition.getHeight(),
+                    rendition.getBitRate(), mSessionConfig.getVideoFrameRate(), rendition.getMuxer(),
+                    mSessionConfig.getEncoderProfile(), mSessionConfig.isIntraRefresh());
+            mRenditionEncoders.add(new RenditionEncoder(encoder, new WindowSurface(mEglCore, encoder.getInputSurface())));
+        }
         mInputWindowSurface.makeCurrent();
 
         if (mFullScreen != null) mFullScreen.release();
@@ -709,6 +927,20 @@ public class CameraEncoder implements SurfaceTexture.OnFrameAvailableListener, R
 
     private void releaseEncoder() {
         mVideoEncoder.release();
+        for (RenditionEncoder rendition : mRenditionEncoders) {
+            rendition.encoder.release();
+        }
+    }
+
+    /**
+     * Release the window surfaces of the last recording's renditions.
+     * Their encoders are released by {@link #releaseEncoder()}
+     */
+    private void releaseRenditionSurfaces() {
+        for (RenditionEncoder rendition : mRenditionEncoders) {
+            rendition.surface.release();
+        }
+        mRenditionEncoders.clear();
     }
 
     /**
@@ -722,6 +954,7 @@ public class CameraEncoder implements SurfaceTexture.OnFrameAvailableListener, R
             mInputWindowSurface.release();
             mInputWindowSurface = null;
         }
+        releaseRenditionSurfaces();
         if (mFullScreen != null) {
             mFullScreen.release();
             mFullScreen = null;
@@ -739,6 +972,8 @@ public class CameraEncoder implements SurfaceTexture.OnFrameAvailableListener, R
         try {
             mCamera.setPreviewTexture(mSurfaceTexture);
             mCamera.startPreview();
+            // The new camera's frames would predict poorly from the last camera's
+            mKeyframeRequested = true;
             if (VERBOSE)
                 Log.i("CameraRelease", "Opened / Started Camera preview. mDisplayView ready? " + (mDisplayView == null ? " no" : " yes"));
             if (mDisplayView != null) configureDisplayView();
@@ -0,0 +1,158 @@
+package io.kickflip.sdk.av;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * An HLS Muxer that writes H.264 video and AAC audio as fragmented MP4 (CMAF) segments
+ * without FFmpeg.
+ * <p/>
+ * A single initialization segment, referenced by the playlist's EXT-X-MAP tag,
+ * carries the codec configuration. Each segment and partial segment is one moof + mdat
+ * fragment written by {@link io.kickflip.sdk.av.Fmp4Writer}, which has no Android dependencies.
+ *
+ * @hide
+ */
+public class CmafHlsMuxer extends HlsSegmentingMuxer {
+    private static final String TAG = "CmafHlsMuxer";
+
+    private static final int AAC_OBJECT_TYPE_LC = 2;
+
+    private final Fmp4Writer mWriter;
+    private final MediaFormat[] mTrackFormats = new MediaFormat[2];
+    private int[] mTrackStreams = {-1, -1};                 // Muxer track index -> Fmp4Writer track index
+    private byte[] mVideoConfig;                            // Annex-B SPS + PPS from BUFFER_FLAG_CODEC_CONFIG
+    private WritableByteChannel mFragmentChannel;
+
+    private CmafHlsMuxer(String outputFile) {
+        super(outputFile, FORMAT.CMAF);
+        mWriter = new Fmp4Writer();
+    }
+
+    /**
+     * @param outputFile the absolute path of the HLS playlist e.g: /sdcard/app/uuid/index.m3u8.
+     *                   The initialization segment and media segments are written alongside it.
+     */
+    public static CmafHlsMuxer create(String outputFile) {
+        return new CmafHlsMuxer(outputFile);
+    }
+
+    @Override
+    protected String getSegmentExtension() {
+        return "m4s";
+    }
+
+    @Override
+    protected String getInitSegmentName() {
+        return getSegmentBaseName() + "_init.mp4";
+    }
+
+    @Override
+    protected void onTrackAdded(int trackIndex, MediaFormat trackFormat, boolean isVideo) {
+        mTrackFormats[trackIndex] = trackFormat;
+    }
+
+    @Override
+    protected void onCodecConfig(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        if (trackIndex == mVideoTrackIndex) {
+            mVideoConfig = new byte[bufferInfo.size];
+            encodedData.position(bufferInfo.offset);
+            encodedData.limit(bufferInfo.offset + bufferInfo.size);
+            encodedData.get(mVideoConfig);
+        }
+    }
+
+    /**
+     * Add the tracks to the Fmp4Writer and write the moov. Called before the first
+     * segment, by which point the encoders have reported their codec configuration.
+     */
+    @Override
+    protected void writeInitSegment(WritableByteChannel channel) throws IOException {
+        for (int i = 0; i < mTrackFormats.length; i++) {
+            MediaFormat format = mTrackFormats[i];
+            if (format == null) continue;
+            if (i == mVideoTrackIndex) {
+                byte[] sps = getCsd(format, "csd-0");
+                byte[] pps = getCsd(format, "csd-1");
+                if ((sps == null || pps == null) && mVideoConfig != null) {
+                    byte[][] nals = splitAnnexB(mVideoConfig);
+                    if (nals.length >= 2) {
+                        sps = nals[0];
+                        pps = nals[1];
+                    }
+                }
+                checkState(sps != null && pps != null, "No SPS / PPS for CMAF initialization segment");
+                mTrackStreams[i] = mWriter.addVideoTrack(format.getInteger(MediaFormat.KEY_WIDTH),
+                        format.getInteger(MediaFormat.KEY_HEIGHT), sps, pps);
+            } else {
+                int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                int channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                byte[] asc = getCsd(format, "csd-0");
+                if (asc == null) {
+                    asc = AdtsHeader.createAudioSpecificConfig(AAC_OBJECT_TYPE_LC, sampleRate, channelCount);
+                }
+                mTrackStreams[i] = mWriter.addAudioTrack(sampleRate, channelCount, asc);
+            }
+        }
+        mWriter.writeInitSegment(channel);
+    }
+
+    @Override
+    protected void startFragment(WritableByteChannel channel) throws IOException {
+        mFragmentChannel = channel;
+    }
+
+    @Override
+    protected void writeSample(int trackIndex, long ptsUs, boolean isKeyframe, ByteBuffer encodedData) throws IOException {
+        mWriter.addSample(mTrackStreams[trackIndex], ptsUs, isKeyframe, encodedData);
+    }
+
+    @Override
+    protected void finishFragment() throws IOException {
+        mWriter.writeFragment(mFragmentChannel);
+        mFragmentChannel = null;
+    }
+
+    /**
+     * @return the codec specific data stored in format under key, with any
+     * Annex-B start code removed, or null if absent
+     */
+    private static byte[] getCsd(MediaFormat format, String key) {
+        if (!format.containsKey(key)) return null;
+        ByteBuffer csd = format.getByteBuffer(key).duplicate();
+        csd.rewind();
+        byte[] data = new byte[csd.remaining()];
+        csd.get(data);
+        byte[][] nals = splitAnnexB(data);
+        return nals.length > 0 ? nals[0] : data;
+    }
+
+    /**
+     * @return the NAL units in an Annex-B byte stream, without start codes.
+     * Empty if data contains no start code
+     */
+    private static byte[][] splitAnnexB(byte[] data) {
+        int[] starts = new int[data.length / 3 + 1];
+        int count = 0;
+        for (int i = 0; i + 2 < data.length; i++) {
+            if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                starts[count++] = i + 3;
+                i += 2;
+            }
+        }
+        byte[][] nals = new byte[count][];
+        for (int n = 0; n < count; n++) {
+            int end = (n + 1 < count) ? starts[n + 1] - 3 : data.length;
+            while (n + 1 < count && end > starts[n] && data[end - 1] == 0) end--;
+            nals[n] = new byte[end - starts[n]];
+            System.arraycopy(data, starts[n], nals[n], 0, nals[n].length);
+        }
+        return nals;
+    }
+}
@@ -0,0 +1,227 @@
+package io.kickflip.sdk.av;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A bounded pool of direct ByteBuffers organized in power-of-two size classes.
+ * <p/>
+ * Used by Muxers that must copy MediaCodec output buffers before handing them
+ * to a muxing thread. Each request is rounded up to the nearest size class, so a buffer
+ * released by one track can be re-used by any packet of similar size on either track.
+ * <p/>
+ * The pool never retains more than {@link #getMaxPooledBytes()} of idle buffers, and
+ * periodically trims idle buffers down to the recent high-water mark of in-use bytes. This
+ * prevents a burst of large packets (e.g: a keyframe spike) from permanently pinning direct memory.
+ * <p/>
+ * This class is thread-safe.
+ *
+ * @hide
+ */
+public class DirectBufferPool {
+    private static final String TAG = "DirectBufferPool";
+    private static final boolean VERBOSE = false;
+
+    private static final int MIN_CLASS_SHIFT = 10;          // Smallest size class: 1 KB
+    private static final int MAX_CLASS_SHIFT = 23;          // Largest size class: 8 MB. Larger requests are never pooled
+    private static final int NUM_CLASSES = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+    private static final int TRIM_INTERVAL = 256;           // Releases between high-water mark trims
+
+    private final ArrayDeque<ByteBuffer>[] mFreeBuffers;
+    private int mMaxPooledBytes;
+    private long mPooledBytes;                              // Bytes held by idle buffers
+    private long mInUseBytes;                               // Bytes held by acquired buffers
+    private long mPeakInUseBytes;                           // High-water mark of mInUseBytes since last trim
+    private int mInUseCount;
+    private long mHitCount;
+    private long mMissCount;
+    private long mTrimmedBytes;
+    private int mReleasesSinceTrim;
+
+    /**
+     * @param maxPooledBytes the maximum number of bytes retained by idle buffers.
+     *                       Buffers released while the pool is full are left to the garbage collector.
+     */
+    @SuppressWarnings("unchecked")
+    public DirectBufferPool(int maxPooledBytes) {
+        checkArgument(maxPooledBytes >= 0, "maxPooledBytes must be non-negative");
+        mMaxPooledBytes = maxPooledBytes;
+        mFreeBuffers = new ArrayDeque[NUM_CLASSES];
+        for (int i = 0; i < NUM_CLASSES; i++) {
+            mFreeBuffers[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Returns a cleared direct ByteBuffer with capacity of at least minCapacity.
+     * The buffer should be returned with {@link #release(java.nio.ByteBuffer)} when no longer needed.
+     */
+    public synchronized ByteBuffer acquire(int minCapacity) {
+        checkArgument(minCapacity >= 0, "minCapacity must be non-negative");
+        int sizeClass = sizeClassFor(minCapacity);
+        ByteBuffer buffer = null;
+        if (sizeClass < NUM_CLASSES) {
+            buffer = mFreeBuffers[sizeClass].pollFirst();
+        }
+        if (buffer != null) {
+            mHitCount++;
+            mPooledBytes -= buffer.capacity();
+            buffer.clear();
+        } else {
+            mMissCount++;
+            int capacity = (sizeClass < NUM_CLASSES) ? classCapacity(sizeClass) : minCapacity;
+            if (VERBOSE) Log.i(TAG, "Allocating " + capacity + " byte buffer for request of " + minCapacity);
+            buffer = ByteBuffer.allocateDirect(capacity);
+        }
+        mInUseCount++;
+        mInUseBytes += buffer.capacity();
+        if (mInUseBytes > mPeakInUseBytes) {
+            mPeakInUseBytes = mInUseBytes;
+        }
+        return buffer;
+    }
+
+    /**
+     * Return a buffer obtained from {@link #acquire(int)} to the pool.
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer == null) return;
+        int capacity = buffer.capacity();
+        mInUseCount--;
+        mInUseBytes -= capacity;
+
+        int sizeClass = sizeClassFor(capacity);
+        if (sizeClass < NUM_CLASSES && classCapacity(sizeClass) == capacity
+                && mPooledBytes + capacity <= mMaxPooledBytes) {
+            buffer.clear();
+            mFreeBuffers[sizeClass].addFirst(buffer);
+            mPooledBytes += capacity;
+        } else {
+            mTrimmedBytes += capacity;
+        }
+
+        if (++mReleasesSinceTrim >= TRIM_INTERVAL) {
+            trimToHighWaterMark();
+        }
+    }
+
+    /**
+     * Drop all idle buffers. Buffers currently in use
+     * may still be released to the pool afterwards.
+     */
+    public synchronized void clear() {
+        for (ArrayDeque<ByteBuffer> freeBuffers : mFreeBuffers) {
+            freeBuffers.clear();
+        }
+        mTrimmedBytes += mPooledBytes;
+        mPooledBytes = 0;
+    }
+
+    /**
+     * Set the maximum number of bytes retained by idle buffers,
+     * immediately trimming the pool if necessary.
+     */
+    public synchronized void setMaxPooledBytes(int maxPooledBytes) {
+        checkArgument(maxPooledBytes >= 0, "maxPooledBytes must be non-negative");
+        mMaxPooledBytes = maxPooledBytes;
+        trimTo(mMaxPooledBytes);
+    }
+
+    public synchronized int getMaxPooledBytes() {
+        return mMaxPooledBytes;
+    }
+
+    /**
+     * @return the number of acquisitions satisfied by an idle buffer
+     */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return the number of acquisitions that required a new direct allocation
+     */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return the number of buffers acquired and not yet released
+     */
+    public synchronized int getInUseCount() {
+        return mInUseCount;
+    }
+
+    /**
+     * @return the total capacity of buffers acquired and not yet released
+     */
+    public synchronized long getInUseBytes() {
+        return mInUseBytes;
+    }
+
+    /**
+     * @return the total capacity of idle buffers held by the pool
+     */
+    public synchronized long getPooledBytes() {
+        return mPooledBytes;
+    }
+
+    /**
+     * @return the total capacity of buffers dropped from the pool, either because
+     * the pool was full or because they were trimmed
+     */
+    public synchronized long getTrimmedBytes() {
+        return mTrimmedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DirectBufferPool: hits " + mHitCount + " misses " + mMissCount +
+                " in use " + mInUseCount + " (" + mInUseBytes / 1000 + " kB) pooled " +
+                mPooledBytes / 1000 + " kB of " + mMaxPooledBytes / 1000 + " kB max";
+    }
+
+    /**
+     * Trim idle buffers to the peak in-use bytes observed since the last trim,
+     * then begin a new observation window. Must be called with the lock held.
+     */
+    private void trimToHighWaterMark() {
+        trimTo(Math.min(mMaxPooledBytes, mPeakInUseBytes));
+        mPeakInUseBytes = mInUseBytes;
+        mReleasesSinceTrim = 0;
+    }
+
+    /**
+     * Drop idle buffers, largest first, until no more than targetBytes
+     * are pooled. Must be called with the lock held.
+     */
+    private void trimTo(long targetBytes) {
+        for (int sizeClass = NUM_CLASSES - 1; sizeClass >= 0 && mPooledBytes > targetBytes; sizeClass--) {
+            ArrayDeque<ByteBuffer> freeBuffers = mFreeBuffers[sizeClass];
+            while (!freeBuffers.isEmpty() && mPooledBytes > targetBytes) {
+                int capacity = freeBuffers.pollLast().capacity();
+                mPooledBytes -= capacity;
+                mTrimmedBytes += capacity;
+            }
+        }
+        if (VERBOSE) Log.i(TAG, "Trimmed to " + targetBytes + ". " + toString());
+    }
+
+    /**
+     * @return the index of the smallest size class able to hold capacity bytes.
+     * Returns a value >= NUM_CLASSES if capacity exceeds the largest size class.
+     */
+    private static int sizeClassFor(int capacity) {
+        if (capacity <= (1 << MIN_CLASS_SHIFT)) return 0;
+        int shift = 32 - Integer.numberOfLeadingZeros(capacity - 1);
+        return shift - MIN_CLASS_SHIFT;
+    }
+
+    private static int classCapacity(int sizeClass) {
+        return 1 << (sizeClass + MIN_CLASS_SHIFT);
+    }
+}
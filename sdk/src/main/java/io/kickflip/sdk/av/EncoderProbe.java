@@ -0,0 +1,367 @@
+package io.kickflip.sdk.av;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.opengl.GLES20;
+import android.os.Build;
+import android.util.Log;
+
+import com.google.gson.Gson;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static io.kickflip.sdk.Kickflip.isLollipop;
+import static io.kickflip.sdk.Kickflip.isNougat;
+
+/**
+ * Chooses an H.264 encoder configuration for this device: the fastest hardware
+ * encoder with surface input, its best supported profile and level, whether it offers
+ * constant bitrate, and the largest resolution it encodes in real time with headroom.
+ * <p/>
+ * Encoders are enumerated from MediaCodecList, and timed with short trial encodes of
+ * synthetic frames drawn with GL, so {@link #probe(android.content.Context)} takes a few seconds
+ * and must not be called on the main thread. The result is cached per build fingerprint,
+ * so it's measured once per device and OS update. Later sessions read it with
+ * {@link #getCachedProfile(android.content.Context)}, which doesn't probe.
+ * <p/>
+ * Many devices allow only one or two hardware encoder instances, and trial encodes skew
+ * a session's timing, so probing never overlaps a recording session. A probe doesn't start
+ * while an {@link io.kickflip.sdk.av.AVRecorder} is open, and is abandoned, uncached, once
+ * its current trial ends if one opens. Apps start a probe when idle with
+ * {@link io.kickflip.sdk.Kickflip#probeEncoder(android.content.Context)}.
+ *
+ * @hide
+ */
+public class EncoderProbe {
+    private static final String TAG = "EncoderProbe";
+    private static final boolean VERBOSE = false;
+
+    private static final int PROBE_VERSION = 1;                 // Increment to invalidate cached profiles
+    private static final String PREFS = "kickflip_encoder";
+    private static final String PREF_PROFILE = "profile";
+
+    private static final String MIME_TYPE = "video/avc";
+    private static final int FRAME_RATE = 30;
+    private static final float HEADROOM = 1.25f;                // The camera, preview and audio share the device
+    private static final int TRIAL_FRAMES = 45;
+    private static final long TRIAL_TIMEOUT_MS = 5000;
+    private static final float TRIAL_BITS_PER_PIXEL = 0.07f;    // ~2 Mbps at 720p30
+
+    // Trial resolutions, largest first
+    private static final int[][] SIZES = {{1920, 1080}, {1280, 720}, {854, 480}, {640, 360}};
+    // AVC profiles, most preferred first
+    private static final int[] PROFILES = {
+            MediaCodecInfo.CodecProfileLevel.AVCProfileHigh,
+            MediaCodecInfo.CodecProfileLevel.AVCProfileMain,
+            MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline};
+
+    private static final AtomicInteger sOpenSessions = new AtomicInteger();   // AVRecorders holding encoders
+
+    /**
+     * @return the profile cached by a previous {@link #probe(android.content.Context)} on this
+     * device and build, or null if there's none
+     */
+    public static EncoderProfile getCachedProfile(Context context) {
+        String json = getPreferences(context).getString(PREF_PROFILE, null);
+        if (json == null) return null;
+        try {
+            EncoderProfile profile = new Gson().fromJson(json, EncoderProfile.class);
+            if (profile != null && Build.FINGERPRINT.equals(profile.getFingerprint())
+                    && profile.getProbeVersion() == PROBE_VERSION) {
+                return profile;
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Discarding unreadable encoder profile", e);
+        }
+        return null;
+    }
+
+    /**
+     * Called when an {@link io.kickflip.sdk.av.AVRecorder} creates its encoders
+     */
+    static void onSessionOpened() {
+        sOpenSessions.incrementAndGet();
+    }
+
+    /**
+     * Called when an {@link io.kickflip.sdk.av.AVRecorder} releases its encoders
+     */
+    static void onSessionClosed() {
+        sOpenSessions.decrementAndGet();
+    }
+
+    /**
+     * @return whether a recording session holds encoders, so probing would compete with it
+     */
+    public static boolean isSessionOpen() {
+        return sOpenSessions.get() > 0;
+    }
+
+    /**
+     * Forget the cached profile, so the next {@link #getOrProbe(android.content.Context)} probes again.
+     */
+    public static void clearCachedProfile(Context context) {
+        getPreferences(context).edit().remove(PREF_PROFILE).apply();
+    }
+
+    /**
+     * Return the cached profile, probing and caching one if there's none.
+     * Blocks for the duration of any probe, so must not be called on the main thread.
+     *
+     * @return the profile, or null if no suitable encoder was found
+     */
+    public static EncoderProfile getOrProbe(Context context) {
+        EncoderProfile profile = getCachedProfile(context);
+        return profile != null ? profile : probe(context);
+    }
+
+    /**
+     * Probe this device's H.264 encoders and cache the result.
+     * Blocks for a few seconds, so must not be called on the main thread.
+     *
+     * @return the profile, or null if no suitable encoder was found,
+     * or a recording session was open or opened during the probe
+     */
+    public static EncoderProfile probe(Context context) {
+        checkNotNull(context);
+        long startMs = System.currentTimeMillis();
+        EncoderProfile best = null;
+        float bestFps = 0;
+        // Time each candidate at 720p, and keep the fastest. Hardware encoders are
+        // listed first, so a software encoder is only chosen if none of them work.
+        for (MediaCodecInfo info : getCandidates()) {
+            if (abandonIfSessionOpen()) return null;
+            boolean hardware = isHardware(info.getName());
+            if (best != null && best.isHardware() && !hardware) break;
+            float fps = timeEncode(info.getName(), 1280, 720);
+            if (VERBOSE) Log.i(TAG, info.getName() + " encodes 720p at " + fps + " fps");
+            if (fps > bestFps) {
+                bestFps = fps;
+                best = createProfile(info, hardware);
+            }
+        }
+        if (best == null) {
+            Log.w(TAG, "No working " + MIME_TYPE + " encoder found");
+            return null;
+        }
+        chooseSize(best);
+        // A session opening during the last trial may have slowed it
+        if (abandonIfSessionOpen()) return null;
+        getPreferences(context).edit().putString(PREF_PROFILE, new Gson().toJson(best)).apply();
+        Log.i(TAG, best + " probed in " + (System.currentTimeMillis() - startMs) + " ms");
+        return best;
+    }
+
+    /**
+     * @return true, logging why, if a recording session is open so the probe must stop
+     */
+    private static boolean abandonIfSessionOpen() {
+        if (!isSessionOpen()) return false;
+        Log.i(TAG, "Recording session open. Abandoning probe");
+        return true;
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return encoders of MIME_TYPE accepting surface input, hardware encoders first
+     */
+    @SuppressWarnings("deprecation")
+    private static List<MediaCodecInfo> getCandidates() {
+        List<MediaCodecInfo> hardware = new ArrayList<>();
+        List<MediaCodecInfo> software = new ArrayList<>();
+        for (int i = 0; i < MediaCodecList.getCodecCount(); i++) {
+            MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+            if (!info.isEncoder() || !supportsType(info) || !supportsSurfaceInput(info)) continue;
+            (isHardware(info.getName()) ? hardware : software).add(info);
+        }
+        hardware.addAll(software);
+        return hardware;
+    }
+
+    private static boolean supportsType(MediaCodecInfo info) {
+        for (String type : info.getSupportedTypes()) {
+            if (type.equalsIgnoreCase(MIME_TYPE)) return true;
+        }
+        return false;
+    }
+
+    private static boolean supportsSurfaceInput(MediaCodecInfo info) {
+        try {
+            for (int colorFormat : info.getCapabilitiesForType(MIME_TYPE).colorFormats) {
+                if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface) return true;
+            }
+        } catch (IllegalArgumentException e) {
+            // Some encoders list types they can't describe
+        }
+        return false;
+    }
+
+    private static boolean isHardware(String codecName) {
+        String name = codecName.toLowerCase();
+        return !name.startsWith("omx.google.") && !name.startsWith("c2.android.") && !name.contains(".sw.");
+    }
+
+    @TargetApi(Build.VERSION_CODES.N)
+    private static EncoderProfile createProfile(MediaCodecInfo info, boolean hardware) {
+        MediaCodecInfo.CodecCapabilities caps = info.getCapabilitiesForType(MIME_TYPE);
+        EncoderProfile profile = new EncoderProfile(Build.FINGERPRINT, PROBE_VERSION, info.getName(), hardware);
+        chooseProfileLevel(profile, caps.profileLevels);
+        if (isLollipop()) {
+            MediaCodecInfo.EncoderCapabilities encoderCaps = caps.getEncoderCapabilities();
+            profile.setCbrSupported(encoderCaps != null &&
+                    encoderCaps.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR));
+            // Encoders only report intra refresh from Nougat, when the format key was added
+            profile.setIntraRefreshSupported(isNougat() &&
+                    caps.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_IntraRefresh));
+        }
+        return profile;
+    }
+
+    private static void chooseProfileLevel(EncoderProfile profile, MediaCodecInfo.CodecProfileLevel[] profileLevels) {
+        if (profileLevels == null) return;
+        for (int preferred : PROFILES) {
+            int level = 0;
+            for (MediaCodecInfo.CodecProfileLevel profileLevel : profileLevels) {
+                if (profileLevel.profile == preferred) level = Math.max(level, profileLevel.level);
+            }
+            if (level > 0) {
+                profile.setProfileLevel(preferred, level);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Record the largest trial resolution profile's encoder sustains at FRAME_RATE with headroom,
+     * or the smallest if none does. Stops early, recording none, if a recording session opens.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void chooseSize(EncoderProfile profile) {
+        MediaCodecInfo.VideoCapabilities videoCaps = null;
+        if (isLollipop()) {
+            MediaCodecInfo info = findCodec(profile.getCodecName());
+            if (info != null) videoCaps = info.getCapabilitiesForType(MIME_TYPE).getVideoCapabilities();
+        }
+        for (int i = 0; i < SIZES.length; i++) {
+            int width = SIZES[i][0];
+            int height = SIZES[i][1];
+            boolean last = i == SIZES.length - 1;
+            if (isSessionOpen()) return;
+            if (!last && videoCaps != null && !videoCaps.areSizeAndRateSupported(width, height, FRAME_RATE)) {
+                continue;
+            }
+            float fps = timeEncode(profile.getCodecName(), width, height);
+            if (VERBOSE) Log.i(TAG, profile.getCodecName() + " encodes " + width + "x" + height + " at " + fps + " fps");
+            if (fps >= FRAME_RATE * HEADROOM || last) {
+                profile.setSustainedSize(width, height, FRAME_RATE, fps);
+                return;
+            }
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static MediaCodecInfo findCodec(String codecName) {
+        for (int i = 0; i < MediaCodecList.getCodecCount(); i++) {
+            MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+            if (info.getName().equals(codecName)) return info;
+        }
+        return null;
+    }
+
+    /**
+     * Encode TRIAL_FRAMES synthetic frames as fast as the encoder accepts them.
+     *
+     * @return the encoder's output frame rate, or 0 if it failed
+     */
+    private static float timeEncode(String codecName, int width, int height) {
+        MediaCodec encoder = null;
+        EglCore eglCore = null;
+        WindowSurface surface = null;
+        try {
+            MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, (int) (width * height * FRAME_RATE * TRIAL_BITS_PER_PIXEL));
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+            encoder = MediaCodec.createByCodecName(codecName);
+            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            eglCore = new EglCore(null, EglCore.FLAG_RECORDABLE);
+            surface = new WindowSurface(eglCore, encoder.createInputSurface());
+            surface.makeCurrent();
+            encoder.start();
+
+            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+            long frameIntervalNs = 1000000000L / FRAME_RATE;
+            long startMs = System.currentTimeMillis();
+            long deadlineMs = startMs + TRIAL_TIMEOUT_MS;
+            int submitted = 0;
+            int output = 0;
+            while (output < TRIAL_FRAMES && System.currentTimeMillis() < deadlineMs) {
+                if (submitted < TRIAL_FRAMES) {
+                    drawFrame(submitted, width, height);
+                    surface.setPresentationTime(submitted * frameIntervalNs);
+                    surface.swapBuffers();
+                    submitted++;
+                }
+                output += drainOutput(encoder, bufferInfo, submitted < TRIAL_FRAMES ? 0 : 10000);
+            }
+            long elapsedMs = Math.max(1, System.currentTimeMillis() - startMs);
+            return output < TRIAL_FRAMES ? 0 : output * 1000f / elapsedMs;
+        } catch (Exception e) {
+            Log.w(TAG, "Trial encode with " + codecName + " at " + width + "x" + height + " failed", e);
+            return 0;
+        } finally {
+            if (encoder != null) {
+                try {
+                    encoder.stop();
+                } catch (IllegalStateException e) {
+                    // Wasn't started
+                }
+                encoder.release();
+            }
+            if (surface != null) surface.release();
+            if (eglCore != null) eglCore.release();
+        }
+    }
+
+    /**
+     * Draw a frame that differs from its predecessor, so the encoder can't skip it.
+     */
+    private static void drawFrame(int frameNumber, int width, int height) {
+        GLES20.glClearColor((frameNumber % 8) / 8f, 0.5f, 1f - (frameNumber % 5) / 5f, 1f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
+        GLES20.glScissor((frameNumber * 16) % (width / 2), height / 4, width / 4, height / 2);
+        GLES20.glClearColor(1f, 1f - (frameNumber % 3) / 3f, 0f, 1f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+    }
+
+    /**
+     * Discard the encoder's available output.
+     *
+     * @return the number of frames discarded
+     */
+    private static int drainOutput(MediaCodec encoder, MediaCodec.BufferInfo bufferInfo, long timeoutUs) {
+        int frames = 0;
+        while (true) {
+            int index = encoder.dequeueOutputBuffer(bufferInfo, timeoutUs);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) return frames;
+            if (index < 0) continue;        // Format or buffers changed
+            if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && bufferInfo.size > 0) frames++;
+            encoder.releaseOutputBuffer(index, false);
+            timeoutUs = 0;
+        }
+    }
+}
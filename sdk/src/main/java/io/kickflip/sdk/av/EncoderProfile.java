@@ -0,0 +1,112 @@
+package io.kickflip.sdk.av;
+
+/**
+ * The H.264 encoder configuration chosen for this device by {@link io.kickflip.sdk.av.EncoderProbe},
+ * and the largest resolution it sustained in a timed trial encode.
+ * <p/>
+ * Persisted as JSON, keyed to the device's build fingerprint.
+ *
+ * @hide
+ */
+public class EncoderProfile {
+
+    private String mFingerprint;                // Build.FINGERPRINT the probe ran on
+    private int mProbeVersion;
+    private String mCodecName;                  // e.g: OMX.qcom.video.encoder.avc
+    private boolean mHardware;
+    private int mProfile;                       // MediaCodecInfo.CodecProfileLevel.AVCProfile*, or 0 for the encoder's default
+    private int mLevel;
+    private boolean mCbrSupported;
+    private boolean mIntraRefreshSupported;
+    private int mMaxWidth;                      // Largest trial resolution encoded at mFrameRate in real time
+    private int mMaxHeight;
+    private int mFrameRate;
+    private float mMeasuredFps;                 // Trial throughput at mMaxWidth x mMaxHeight
+
+    EncoderProfile(String fingerprint, int probeVersion, String codecName, boolean hardware) {
+        mFingerprint = fingerprint;
+        mProbeVersion = probeVersion;
+        mCodecName = codecName;
+        mHardware = hardware;
+    }
+
+    void setProfileLevel(int profile, int level) {
+        mProfile = profile;
+        mLevel = level;
+    }
+
+    void setCbrSupported(boolean cbrSupported) {
+        mCbrSupported = cbrSupported;
+    }
+
+    void setIntraRefreshSupported(boolean intraRefreshSupported) {
+        mIntraRefreshSupported = intraRefreshSupported;
+    }
+
+    void setSustainedSize(int width, int height, int frameRate, float measuredFps) {
+        mMaxWidth = width;
+        mMaxHeight = height;
+        mFrameRate = frameRate;
+        mMeasuredFps = measuredFps;
+    }
+
+    public String getFingerprint() {
+        return mFingerprint;
+    }
+
+    public int getProbeVersion() {
+        return mProbeVersion;
+    }
+
+    /**
+     * @return the name to pass to MediaCodec.createByCodecName
+     */
+    public String getCodecName() {
+        return mCodecName;
+    }
+
+    public boolean isHardware() {
+        return mHardware;
+    }
+
+    public int getProfile() {
+        return mProfile;
+    }
+
+    public int getLevel() {
+        return mLevel;
+    }
+
+    public boolean isCbrSupported() {
+        return mCbrSupported;
+    }
+
+    public boolean isIntraRefreshSupported() {
+        return mIntraRefreshSupported;
+    }
+
+    public int getMaxWidth() {
+        return mMaxWidth;
+    }
+
+    public int getMaxHeight() {
+        return mMaxHeight;
+    }
+
+    public int getFrameRate() {
+        return mFrameRate;
+    }
+
+    public float getMeasuredFps() {
+        return mMeasuredFps;
+    }
+
+    @Override
+    public String toString() {
+        return "EncoderProfile: " + mCodecName + (mHardware ? " (hardware)" : " (software)")
+                + " profile " + mProfile + " level " + mLevel + (mCbrSupported ? " CBR" : "")
+                + (mIntraRefreshSupported ? " intra-refresh" : "")
+                + " sustains " + mMaxWidth + "x" + mMaxHeight + "@" + mFrameRate
+                + " (" + mMeasuredFps + " fps measured)";
+    }
+}
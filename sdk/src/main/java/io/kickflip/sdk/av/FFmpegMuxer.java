@@ -2,24 +2,21 @@ package io.kickflip.sdk.av;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
-import android.os.Handler;
-import android.os.Looper;
-import android.os.Message;
 import android.os.Trace;
 import android.util.Log;
 
-import com.google.common.io.Files;
-
 import java.io.File;
 import java.io.IOException;
-import java.lang.ref.WeakReference;
-import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-import java.util.ArrayDeque;
-import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
 
+import io.kickflip.sdk.event.MuxerBackpressureEvent;
 import net.openwatch.ffmpegwrapper.FFmpegWrapper;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
 /**
  * Created by davidbrodsky on 1/23/14.
  *
@@ -28,43 +25,81 @@ import net.openwatch.ffmpegwrapper.FFmpegWrapper;
 //TODO: Remove hard-coded track indexes
 //      Remove 2 track assumption
 public class FFmpegMuxer extends Muxer implements Runnable {
+
+    /**
+     * How the video encoder thread responds when the muxing thread falls behind
+     * and the video packet queue is full. Audio always waits, and is never dropped.
+     */
+    public static enum BackpressurePolicy {
+        /** Wait for the muxing thread, stalling the video encoder drain */
+        BLOCK,
+        /**
+         * Drop non-reference frames individually. If a reference frame must be dropped,
+         * drop every frame until the next keyframe, and request one from the encoder
+         */
+        DROP_UNTIL_KEYFRAME,
+        /**
+         * Drop the remainder of the current GOP, and skip whole GOPs
+         * while the queue remains at least half full when they begin
+         */
+        DROP_GOP
+    }
+
     private static final String TAG = "FFmpegMuxer";
     private static final boolean VERBOSE = false;        // Lots of logging
     private static final boolean TRACE = false;           // Systrace logs
-    private static final boolean DEBUG_PKTS = false;     // Write each raw packet to file
+    private static final boolean DEBUG_PKTS = false;     // Record encoder output to a PacketTraceWriter trace beside the output
+
+    private static final int MAX_POOLED_BYTES = 4 * 1024 * 1024;   // Idle packet copies retained across both tracks
+    private static final int RING_CAPACITY = 32;                    // Packets buffered per track
+    private static final long DEFAULT_MAX_INTERLEAVE_DELAY_US = 200 * 1000;
 
-    // MuxerHandler message types
-    private static final int MSG_WRITE_FRAME = 1;
-    private static final int MSG_ADD_TRACK = 2;
-    private static final int MSG_FORCE_SHUTDOWN = 3;
+    // Muxing thread wait strategy when all rings are empty
+    private static final int IDLE_SPIN_TRIES = 100;
+    private static final int IDLE_YIELD_TRIES = 10;
+    private static final long IDLE_PARK_NS = 1000 * 1000;
 
     private final Object mReadyFence = new Object();    // Synchronize muxing thread readiness
-    private boolean mReady;                             // Is muxing thread ready
-    private boolean mRunning;                           // Is muxer thread running
-    private FFmpegHandler mHandler;
+    private volatile boolean mReady;                    // Is muxing thread ready
+    private volatile boolean mRunning;                  // Is muxer thread running
+    private Thread mMuxingThread;
+    private volatile boolean mMuxingThreadParked;       // Should producers unpark mMuxingThread
+    private volatile boolean mForceStopRequested;
+    private PacketRing[] mRings;                        // Encoder -> muxing thread packet queue, indexed by track
+    private PacketInterleaver mInterleaver;             // Orders ring packets by decode time
+    private ConcurrentLinkedQueue<MediaFormat> mPendingTrackFormats;
     private final Object mEncoderReleasedSync = new Object();
     private boolean mEncoderReleased;                   // TODO: Account for both encoders
 
+    // Video backpressure. Written on the video encoder thread
+    private volatile BackpressurePolicy mBackpressurePolicy = BackpressurePolicy.BLOCK;
+    private boolean mDroppingVideo;                     // Dropping every video frame until the next keyframe
+    private volatile long mDroppedVideoFrames;
+
     private final int mVideoTrackIndex = 0;
     private final int mAudioTrackIndex = 1;
 
     // Related to crafting ADTS headers
-    private final int ADTS_LENGTH = 7;          // ADTS Header length (bytes)
-    private final int profile = 2;              // AAC LC
-    private int freqIdx = 4;                    // 44.1KHz
-    private int chanCfg = 1;                    // MPEG-4 Audio Channel Configuration. 1 Channel front-center
-    private int mInPacketSize;                  // Pre ADTS Header
-    private int mOutPacketSize;                 // Post ADTS Header
-    private byte[] mCachedAudioPacket;
+    private AdtsHeader mAdtsHeader;             // Written on the audio encoder thread when buffering
+    private ByteBuffer mAdtsPacket;             // ADTS header + AAC frame, when writing encoder output directly
 
     // Related to extracting H264 SPS + PPS from MediaCodec
-    private ByteBuffer mH264Keyframe;
-    private int mH264MetaSize = 0;                   // Size of SPS + PPS data
+    private ByteBuffer mH264Meta;                    // SPS + PPS. Written on the video encoder thread when buffering
+    private ByteBuffer mH264Keyframe;                // SPS + PPS + keyframe, when writing encoder output directly
     private FFmpegWrapper mFFmpeg;
     private boolean mStarted;
+    // Native write timing. Written on the thread calling FFmpegWrapper
+    private volatile long mNativeWriteNs;
+    private volatile long mNativeWriteCalls;
+
+    private final KeyframeScheduler mKeyframeScheduler = new KeyframeScheduler();  // HLS only
+    private long mSegmentOriginUs = -1;              // Guarded by mKeyframeScheduler
+
+    private PacketTraceWriter mTrace;                // DEBUG_PKTS only. Guarded by mTraceLock
+    private final Object mTraceLock = new Object();
 
-        // Queue encoded buffers when muxing to stream
-        ArrayList<ArrayDeque<ByteBuffer>> mMuxerInputQueue;
+        // Recycles copies of encoded buffers when muxing on a separate thread
+        private DirectBufferPool mBufferPool;
 
         private FFmpegMuxer(String outputFile, FORMAT format) {
             super(outputFile, format);
@@ -84,14 +119,28 @@ public class FFmpegMuxer extends Muxer implements Runnable {
         }
 
         mFFmpeg.setAVOptions(opts);
+        mTimestamps.setReferenceTrack(mAudioTrackIndex);
         mStarted = false;
         mEncoderReleased = false;
 
         if (formatRequiresADTS())
-            mCachedAudioPacket = new byte[1024];
+            mAdtsHeader = new AdtsHeader();
+
+        if (DEBUG_PKTS) {
+            try {
+                mTrace = new PacketTraceWriter(new File(new File(outputFile).getParentFile(), "packets.kftrace"));
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to create packet trace", e);
+            }
+        }
 
         if (formatRequiresBuffering()) {
-            mMuxerInputQueue = new ArrayList<>();
+            mBufferPool = new DirectBufferPool(MAX_POOLED_BYTES);
+            mRings = new PacketRing[2];
+            mRings[mVideoTrackIndex] = new PacketRing(RING_CAPACITY, mBufferPool, 0);
+            mRings[mAudioTrackIndex] = new PacketRing(RING_CAPACITY, mBufferPool, 0);
+            mInterleaver = new PacketInterleaver(mRings, DEFAULT_MAX_INTERLEAVE_DELAY_US);
+            mPendingTrackFormats = new ConcurrentLinkedQueue<>();
             startMuxingThread();
         } else
             mReady = true;
@@ -101,6 +150,18 @@ public class FFmpegMuxer extends Muxer implements Runnable {
         return new FFmpegMuxer(outputFile, format);
     }
 
+    /**
+     * FFmpegWrapper always prepares a video and an audio stream.
+     * Use {@link io.kickflip.sdk.av.MpegTsHlsMuxer} for audio-only HLS.
+     */
+    @Override
+    public void setAudioOnly(boolean audioOnly) {
+        if (audioOnly) {
+            throw new UnsupportedOperationException("FFmpegMuxer requires a video track");
+        }
+        super.setAudioOnly(false);
+    }
+
     @Override
     public int addTrack(MediaFormat trackFormat) {
         // With FFmpeg, we want to write the encoder's
@@ -111,15 +172,16 @@ public class FFmpegMuxer extends Muxer implements Runnable {
         int trackIndex;
         if (trackFormat.getString(MediaFormat.KEY_MIME).compareTo("video/avc") == 0)
             trackIndex = mVideoTrackIndex;
-        else
+        else {
             trackIndex = mAudioTrackIndex;
+            // Precedes the track's first packet on the audio encoder thread
+            if (formatRequiresADTS()) configureAdtsHeader(mAdtsHeader, trackFormat);
+        }
+        if (DEBUG_PKTS) tracePacket(trackIndex, trackFormat, null, null);
 
         if (formatRequiresBuffering()) {
-            mHandler.sendMessage(mHandler.obtainMessage(MSG_ADD_TRACK, trackFormat));
-            synchronized (mMuxerInputQueue) {
-                while (mMuxerInputQueue.size() < trackIndex + 1)
-                    mMuxerInputQueue.add(new ArrayDeque<ByteBuffer>());
-            }
+            mPendingTrackFormats.add(trackFormat);
+            signalMuxingThread();
         } else {
             handleAddTrack(trackFormat);
         }
@@ -149,10 +211,13 @@ public class FFmpegMuxer extends Muxer implements Runnable {
      * Must be called from Muxer thread
      */
     private void shutdown() {
+        if (DEBUG_PKTS) closeTrace();
         mStarted = false;
         release();
-        if (formatRequiresBuffering())
-            Looper.myLooper().quit();
+        if (formatRequiresBuffering()) {
+            mReady = false;
+            mRunning = false;
+        }
     }
 
     @Override
@@ -160,36 +225,235 @@ public class FFmpegMuxer extends Muxer implements Runnable {
         return mStarted;
     }
 
+    /**
+     * Returns the pool of direct buffers backing the packet rings
+     * of the muxing thread. Useful for monitoring direct memory pressure.
+     *
+     * @return the buffer pool, or null if this Muxer writes encoder output directly
+     */
+    public DirectBufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
+    /**
+     * Set how video is handled when the muxing thread falls behind.
+     * Only applies when encoder output is buffered (API 21+).
+     * Defaults to {@link BackpressurePolicy#BLOCK}.
+     */
+    public void setBackpressurePolicy(BackpressurePolicy policy) {
+        mBackpressurePolicy = checkNotNull(policy);
+    }
+
+    public BackpressurePolicy getBackpressurePolicy() {
+        return mBackpressurePolicy;
+    }
+
+    /**
+     * @return the number of video frames dropped under the backpressure policy
+     */
+    public long getDroppedVideoFrameCount() {
+        return mDroppedVideoFrames;
+    }
+
+    /**
+     * @return the number of packets queued for the muxing thread on the given track,
+     * or 0 if this Muxer writes encoder output directly
+     */
+    public int getQueueDepth(int trackIndex) {
+        return formatRequiresBuffering() ? mRings[trackIndex].size() : 0;
+    }
+
+    /**
+     * Set the longest the muxing thread holds a packet awaiting packets of the other track,
+     * so the two are written interleaved by decode time. Only applies when encoder output is
+     * buffered (API 21+). 0 writes packets as they arrive. Defaults to 200 ms.
+     */
+    public void setMaxInterleaveDelayMs(int delayMs) {
+        checkArgument(delayMs >= 0, "delayMs must be non-negative");
+        if (mInterleaver != null) mInterleaver.setMaxDelayUs(delayMs * 1000L);
+    }
+
+    /**
+     * @return the interleaving stage's depth and wait statistics,
+     * or null if this Muxer writes encoder output directly.
+     * Only safe to read once the muxer has stopped
+     */
+    public PacketInterleaver getInterleaver() {
+        return mInterleaver;
+    }
+
+    /**
+     * @return the mean duration of native packet writes per packet in nanoseconds,
+     * including JNI transitions and FFmpeg's muxing work
+     */
+    public long getNativeWriteNsPerPacket() {
+        long calls = mNativeWriteCalls;
+        return calls == 0 ? 0 : mNativeWriteNs / calls;
+    }
+
+    /**
+     * @return the number of native packet write calls made
+     */
+    public long getNativeWriteCallCount() {
+        return mNativeWriteCalls;
+    }
+
     @Override
     public void writeSampleData(MediaCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
-        synchronized (mReadyFence) {
-            if (mReady) {
-                ByteBuffer muxerInput;
-                if (formatRequiresBuffering()) {
-                    // Copy encodedData into another ByteBuffer, recycling if possible
-                    synchronized (mMuxerInputQueue) {
-                        muxerInput = mMuxerInputQueue.get(trackIndex).isEmpty() ?
-                                ByteBuffer.allocateDirect(encodedData.capacity()) : mMuxerInputQueue.get(trackIndex).remove();
-                    }
-                    muxerInput.put(encodedData);
-                    muxerInput.position(0);
-                    encoder.releaseOutputBuffer(bufferIndex, false);
-                    mHandler.sendMessage(mHandler.obtainMessage(MSG_WRITE_FRAME,
-                            new WritePacketData(encoder, trackIndex, bufferIndex, muxerInput, bufferInfo)));
-                } else {
-                    handleWriteSampleData(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+        if (DEBUG_PKTS) tracePacket(trackIndex, null, encodedData, bufferInfo);
+        if (!mReady) {
+            Log.w(TAG, "Dropping frame because Muxer not ready!");
+            releaseOutputBuffer(encoder, bufferIndex);
+            return;
+        }
+        if (mFormat == FORMAT.HLS) scheduleKeyframe(encoder, trackIndex, bufferInfo);
+        if (formatRequiresBuffering()) {
+            boolean isVideo = trackIndex == mVideoTrackIndex;
+            if (isVideo && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                // Capture SPS + PPS on the encoder thread, so each keyframe
+                // can be gathered behind them as it's copied into the ring
+                if (VERBOSE) Log.i(TAG, "Capture SPS + PPS");
+                captureH264MetaData(encodedData, bufferInfo);
+                releaseOutputBuffer(encoder, bufferIndex);
+                return;
+            }
+            // Copy encodedData into the track's ring, waiting if the muxing thread has fallen behind
+            PacketRing ring = mRings[trackIndex];
+            if (isVideo && shouldDropVideo(encoder, ring, encodedData, bufferInfo)) {
+                mDroppedVideoFrames++;
+                releaseOutputBuffer(encoder, bufferIndex);
+                return;
+            }
+            PacketRing.Packet packet = ring.claim();
+            if (packet != null) {
+                ByteBuffer prefix = null;
+                if (isVideo && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                    prefix = mH264Meta;
+                } else if (!isVideo && formatRequiresADTS() && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                    prefix = mAdtsHeader.prepare(encodedData.remaining());
                 }
-
+                packet.set(prefix, encodedData, bufferInfo);
+                ring.publish();
+                signalMuxingThread();
             } else {
-                Log.w(TAG, "Dropping frame because Muxer not ready!");
-                releaseOutputBufer(encoder, encodedData, bufferIndex, trackIndex);
-                if (formatRequiresBuffering())
-                    encoder.releaseOutputBuffer(bufferIndex, false);
+                Log.w(TAG, "Dropping frame because Muxer shut down");
             }
+            releaseOutputBuffer(encoder, bufferIndex);
+        } else {
+            handleWriteSampleData(encoder, trackIndex, bufferIndex, encodedData, bufferInfo, System.nanoTime() / 1000);
         }
     }
 
-    private void handleWriteSampleData(MediaCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+    /**
+     * Apply the backpressure policy to a video packet.
+     * Called on the video encoder thread.
+     *
+     * @return true if the packet should be dropped
+     */
+    private boolean shouldDropVideo(MediaCodec encoder, PacketRing ring, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        BackpressurePolicy policy = mBackpressurePolicy;
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            if (mDroppingVideo) endVideoDrop();
+            return false;
+        }
+        if (policy == BackpressurePolicy.BLOCK && !mDroppingVideo) return false;
+        boolean isKeyframe = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+        boolean queueFull = ring.tryClaim() == null;
+        if (mDroppingVideo) {
+            // Frames before the next keyframe may reference dropped frames
+            if (!isKeyframe) return true;
+            if (policy != BackpressurePolicy.BLOCK
+                    && (queueFull || (policy == BackpressurePolicy.DROP_GOP && isQueueCongested(ring)))) {
+                // Still behind. Skip this GOP too
+                if (policy == BackpressurePolicy.DROP_UNTIL_KEYFRAME) AndroidEncoder.requestKeyframe(encoder);
+                return true;
+            }
+            endVideoDrop();
+            return false;
+        }
+        if (policy == BackpressurePolicy.DROP_GOP && isKeyframe && isQueueCongested(ring)) {
+            beginVideoDrop();
+            return true;
+        }
+        if (!queueFull) return false;
+        if (policy == BackpressurePolicy.DROP_UNTIL_KEYFRAME) {
+            if (!isKeyframe && !isH264ReferenceFrame(encodedData)) {
+                // No other frame depends on this one
+                return true;
+            }
+            AndroidEncoder.requestKeyframe(encoder);
+        }
+        beginVideoDrop();
+        return true;
+    }
+
+    private static boolean isQueueCongested(PacketRing ring) {
+        return ring.size() >= ring.capacity() / 2;
+    }
+
+    private void beginVideoDrop() {
+        mDroppingVideo = true;
+        Log.w(TAG, "Muxer falling behind. Dropping video per " + mBackpressurePolicy);
+        postBackpressureEvent();
+    }
+
+    private void endVideoDrop() {
+        mDroppingVideo = false;
+        Log.i(TAG, "Muxer caught up. Dropped " + mDroppedVideoFrames + " video frames in total");
+        postBackpressureEvent();
+    }
+
+    private void postBackpressureEvent() {
+        if (getEventBus() != null) {
+            getEventBus().post(new MuxerBackpressureEvent(mDroppingVideo, mDroppedVideoFrames,
+                    mRings[mVideoTrackIndex].size(), mRings[mAudioTrackIndex].size(), RING_CAPACITY));
+        }
+    }
+
+    /**
+     * Request sync frames on segment boundaries. FFmpeg's HLS muxer cuts a segment at the first
+     * keyframe at or beyond each multiple of the segment duration from its first packet, so
+     * boundaries are measured from the first packet of either track.
+     * Called on the encoder threads.
+     */
+    private void scheduleKeyframe(MediaCodec encoder, int trackIndex, MediaCodec.BufferInfo bufferInfo) {
+        if ((bufferInfo.flags & (MediaCodec.BUFFER_FLAG_CODEC_CONFIG | MediaCodec.BUFFER_FLAG_END_OF_STREAM)) != 0) return;
+        synchronized (mKeyframeScheduler) {
+            if (mSegmentOriginUs < 0) mSegmentOriginUs = bufferInfo.presentationTimeUs;
+            if (trackIndex != mVideoTrackIndex) return;
+            long ptsUs = bufferInfo.presentationTimeUs;
+            boolean isKeyframe = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+            long targetUs = mKeyframeScheduler.getTarget();
+            if (targetUs < 0 || (isKeyframe && ptsUs >= targetUs)) {
+                mKeyframeScheduler.setTarget(KeyframeScheduler.nextBoundary(mSegmentOriginUs,
+                        mHlsSegmentDurationSec * 1000000L, ptsUs));
+            }
+            if (mKeyframeScheduler.onVideoFrame(ptsUs, isKeyframe)) {
+                AndroidEncoder.requestKeyframe(encoder);
+            }
+        }
+    }
+
+    /**
+     * @return false if the first slice NAL unit in the Annex-B packet has
+     * nal_ref_idc 0, meaning no other frame references it
+     */
+    private static boolean isH264ReferenceFrame(ByteBuffer encodedData) {
+        int end = encodedData.limit();
+        for (int i = encodedData.position(); i + 3 < end; i++) {
+            if (encodedData.get(i) == 0 && encodedData.get(i + 1) == 0 && encodedData.get(i + 2) == 1) {
+                int header = encodedData.get(i + 3);
+                int nalType = header & 0x1F;
+                if (nalType == 1 || nalType == 5) {
+                    return (header & 0x60) != 0;
+                }
+                i += 3;
+            }
+        }
+        return true;
+    }
+
+    private void handleWriteSampleData(MediaCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo, long arrivalUs) {
         super.writeSampleData(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
         mPacketCount++;
 
@@ -210,26 +474,28 @@ public class FFmpegMuxer extends Muxer implements Runnable {
             }
         }
 
-        if (trackIndex == mAudioTrackIndex && formatRequiresADTS()) {
-            addAdtsToByteBuffer(encodedData, bufferInfo);
+        if (trackIndex == mAudioTrackIndex && formatRequiresADTS() && !formatRequiresBuffering()) {
+            // Buffered audio packets were gathered behind their ADTS header when queued
+            encodedData = packageAdtsFrame(encodedData, bufferInfo);
         }
 
         // adjust the ByteBuffer values to match BufferInfo (not needed?)
         encodedData.position(bufferInfo.offset);
         encodedData.limit(bufferInfo.offset + bufferInfo.size);
 
-        bufferInfo.presentationTimeUs = getNextRelativePts(bufferInfo.presentationTimeUs, trackIndex);
+        bufferInfo.presentationTimeUs = getNextRelativePts(bufferInfo.presentationTimeUs, trackIndex, arrivalUs);
 
         if (VERBOSE)
             Log.i(TAG, mPacketCount + " PTS " + bufferInfo.presentationTimeUs + " size: " + bufferInfo.size + " " + (trackIndex == mVideoTrackIndex ? "video " : "audio ") + (((bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) ? "keyframe" : "") + (((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) ? " EOS" : ""));
-        if (DEBUG_PKTS) writePacketToFile(encodedData, bufferInfo);
 
         if (!allTracksFinished()) {
-            if (trackIndex == mVideoTrackIndex && ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0)) {
-                packageH264Keyframe(encodedData, bufferInfo);
-                mFFmpeg.writeAVPacketFromEncodedData(mH264Keyframe, 1, bufferInfo.offset, bufferInfo.size + mH264MetaSize, bufferInfo.flags, bufferInfo.presentationTimeUs);
+            if (trackIndex == mVideoTrackIndex && ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0)
+                    && !formatRequiresBuffering() && mH264Meta != null) {
+                // Buffered keyframes were gathered behind SPS + PPS when queued
+                packageH264Keyframe(encodedData);
+                writePacket(mH264Keyframe, 1, 0, mH264Keyframe.limit(), bufferInfo.flags, bufferInfo.presentationTimeUs);
             } else
-                mFFmpeg.writeAVPacketFromEncodedData(encodedData, (trackIndex == mVideoTrackIndex ? 1 : 0), bufferInfo.offset, bufferInfo.size, bufferInfo.flags, bufferInfo.presentationTimeUs);
+                writePacket(encodedData, (trackIndex == mVideoTrackIndex ? 1 : 0), bufferInfo.offset, bufferInfo.size, bufferInfo.flags, bufferInfo.presentationTimeUs);
         }
         releaseOutputBufer(encoder, encodedData, bufferIndex, trackIndex);
 
@@ -239,30 +505,44 @@ public class FFmpegMuxer extends Muxer implements Runnable {
         }
     }
 
+    /**
+     * Write a packet to FFmpeg, recording the duration of the native call
+     */
+    private void writePacket(ByteBuffer data, int isVideo, int offset, int size, int flags, long pts) {
+        long startNs = System.nanoTime();
+        mFFmpeg.writeAVPacketFromEncodedData(data, isVideo, offset, size, flags, pts);
+        mNativeWriteNs += System.nanoTime() - startNs;
+        mNativeWriteCalls++;
+    }
+
     public void forceStop() {
-        if (formatRequiresBuffering())
-            mHandler.sendMessage(mHandler.obtainMessage(MSG_FORCE_SHUTDOWN));
-        else
+        if (formatRequiresBuffering()) {
+            // Handled by the muxing thread once all queued packets are written
+            mForceStopRequested = true;
+            signalMuxingThread();
+        } else
             handleForceStop();
     }
 
     private void handleForceStop() {
         Log.i(TAG, "Forcing Shutdown");
+        if (mNativeWriteCalls > 0) {
+            Log.i(TAG, "Wrote " + mNativeWriteCalls + " packets, " + getNativeWriteNsPerPacket() + " ns per packet");
+        }
+        if (mInterleaver != null) Log.i(TAG, mInterleaver.toString());
         mFFmpeg.finalizeAVFormatContext();
         shutdown();
     }
 
     private void releaseOutputBufer(MediaCodec encoder, ByteBuffer encodedData, int bufferIndex, int trackIndex) {
+        if (formatRequiresBuffering()) {
+            // encodedData belongs to a PacketRing slot, which the muxing thread recycles.
+            // The encoder's buffer was released in writeSampleData
+            return;
+        }
         synchronized (mEncoderReleasedSync) {
             if (!mEncoderReleased) {
-                if (formatRequiresBuffering()) {
-                    encodedData.clear();
-                    synchronized (mMuxerInputQueue) {
-                        mMuxerInputQueue.get(trackIndex).add(encodedData);
-                    }
-                } else {
-                    encoder.releaseOutputBuffer(bufferIndex, false);
-                }
+                releaseOutputBuffer(encoder, bufferIndex);
             }
         }
     }
@@ -270,14 +550,34 @@ public class FFmpegMuxer extends Muxer implements Runnable {
     //DEBUGGING USE ONLY
     private int mPacketCount = 0;
 
-    private void writePacketToFile(ByteBuffer buffer, MediaCodec.BufferInfo bufferInfo) {
-        byte[] samples = new byte[bufferInfo.size];
-        buffer.get(samples, bufferInfo.offset, bufferInfo.size);
-        buffer.position(bufferInfo.offset);
-        try {
-            Files.write(samples, new File("/sdcard/Kickflip/packet_" + mPacketCount));
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Record a track format or encoder output buffer, as given to this Muxer by the encoder.
+     * Called on the encoder threads.
+     */
+    private void tracePacket(int trackIndex, MediaFormat format, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        synchronized (mTraceLock) {
+            if (mTrace == null) return;
+            try {
+                if (format != null) {
+                    mTrace.writeFormat(trackIndex, format);
+                } else {
+                    mTrace.writePacket(trackIndex, encodedData, bufferInfo);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write packet trace", e);
+            }
+        }
+    }
+
+    private void closeTrace() {
+        synchronized (mTraceLock) {
+            if (mTrace == null) return;
+            try {
+                mTrace.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to close packet trace", e);
+            }
+            mTrace = null;
         }
     }
     // END DEBUGGING USE ONLY
@@ -294,61 +594,54 @@ public class FFmpegMuxer extends Muxer implements Runnable {
      * @param bufferInfo
      */
     private void captureH264MetaData(ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
-        mH264MetaSize = bufferInfo.size;
-        mH264Keyframe = ByteBuffer.allocateDirect(encodedData.capacity());
-        byte[] videoConfig = new byte[bufferInfo.size];
-        encodedData.get(videoConfig, bufferInfo.offset, bufferInfo.size);
+        mH264Meta = ByteBuffer.allocateDirect(bufferInfo.size);
         encodedData.position(bufferInfo.offset);
-        encodedData.put(videoConfig, 0, bufferInfo.size);
+        encodedData.limit(bufferInfo.offset + bufferInfo.size);
+        mH264Meta.put(encodedData);
+        mH264Meta.flip();
         encodedData.position(bufferInfo.offset);
-        mH264Keyframe.put(videoConfig, 0, bufferInfo.size);
     }
 
     /**
-     * Adds the SPS + PPS data to the ByteBuffer containing a h264 keyframe
+     * Copies the SPS + PPS data and a h264 keyframe into mH264Keyframe.
+     * Only needed when writing encoder output directly. Buffered keyframes
+     * are gathered behind the SPS + PPS by {@link PacketRing.Packet#set(ByteBuffer, ByteBuffer, MediaCodec.BufferInfo)}
      *
      * @param encodedData
-     * @param bufferInfo
      */
-    private void packageH264Keyframe(ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
-        mH264Keyframe.position(mH264MetaSize);
-        mH264Keyframe.put(encodedData); // BufferOverflow
-    }
-
-    private void addAdtsToByteBuffer(ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
-        mInPacketSize = bufferInfo.size;
-        mOutPacketSize = mInPacketSize + ADTS_LENGTH;
-        addAdtsToPacket(mCachedAudioPacket, mOutPacketSize);
-        encodedData.get(mCachedAudioPacket, ADTS_LENGTH, mInPacketSize);
-        encodedData.position(bufferInfo.offset);
-        encodedData.limit(bufferInfo.offset + mOutPacketSize);
-        try {
-            encodedData.put(mCachedAudioPacket, 0, mOutPacketSize);
-            encodedData.position(bufferInfo.offset);
-            bufferInfo.size = mOutPacketSize;
-        } catch (BufferOverflowException e) {
-            Log.w(TAG, "BufferOverFlow adding ADTS header");
-            encodedData.put(mCachedAudioPacket, 0, mOutPacketSize);        // drop last 7 bytes...
+    private void packageH264Keyframe(ByteBuffer encodedData) {
+        int size = mH264Meta.remaining() + encodedData.remaining();
+        if (mH264Keyframe == null || size > mH264Keyframe.capacity()) {
+            // Sized to the largest keyframe seen, so an oversized IDR can't overflow it
+            mH264Keyframe = ByteBuffer.allocateDirect(size);
         }
+        mH264Keyframe.clear();
+        mH264Keyframe.put(mH264Meta.duplicate());
+        mH264Keyframe.put(encodedData);
+        mH264Keyframe.flip();
     }
 
     /**
-     * Add ADTS header at the beginning of each and every AAC packet.
-     * This is needed as MediaCodec encoder generates a packet of raw
-     * AAC data.
-     * <p/>
-     * Note the packetLen must count in the ADTS header itself.
-     * See: http://wiki.multimedia.cx/index.php?title=ADTS
-     * Also: http://wiki.multimedia.cx/index.php?title=MPEG-4_Audio#Channel_Configurations
+     * Copies an ADTS header and a raw AAC frame into mAdtsPacket,
+     * adjusting bufferInfo to describe it. Only needed when writing encoder output
+     * directly, which leaves no room to write the header in place.
+     *
+     * @return mAdtsPacket
      */
-    private void addAdtsToPacket(byte[] packet, int packetLen) {
-        packet[0] = (byte) 0xFF;        // 11111111          = syncword
-        packet[1] = (byte) 0xF9;        // 1111 1 00 1       = syncword MPEG-2 Layer CRC
-        packet[2] = (byte) (((profile - 1) << 6) + (freqIdx << 2) + (chanCfg >> 2));
-        packet[3] = (byte) (((chanCfg & 3) << 6) + (packetLen >> 11));
-        packet[4] = (byte) ((packetLen & 0x7FF) >> 3);
-        packet[5] = (byte) (((packetLen & 7) << 5) + 0x1F);
-        packet[6] = (byte) 0xFC;
+    private ByteBuffer packageAdtsFrame(ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        int size = AdtsHeader.LENGTH + bufferInfo.size;
+        if (mAdtsPacket == null || size > mAdtsPacket.capacity()) {
+            mAdtsPacket = ByteBuffer.allocateDirect(size);
+        }
+        encodedData.position(bufferInfo.offset);
+        encodedData.limit(bufferInfo.offset + bufferInfo.size);
+        mAdtsPacket.clear();
+        mAdtsPacket.put(mAdtsHeader.prepare(bufferInfo.size));
+        mAdtsPacket.put(encodedData);
+        mAdtsPacket.flip();
+        bufferInfo.offset = 0;
+        bufferInfo.size = size;
+        return mAdtsPacket;
     }
 
     private void startMuxingThread() {
@@ -371,100 +664,95 @@ public class FFmpegMuxer extends Muxer implements Runnable {
 
     @Override
     public void run() {
-        Looper.prepare();
         synchronized (mReadyFence) {
-            mHandler = new FFmpegHandler(this);
+            mMuxingThread = Thread.currentThread();
             mReady = true;
             mReadyFence.notify();
         }
 
-        Looper.loop();
+        int idleCount = 0;
+        while (mRunning) {
+            // An encoder may publish its first packet before its format is applied here.
+            // mInterleaver withholds packets of tracks not yet added
+            handlePendingTracks();
+            int trackIndex = nextTrackIndex();
+            if (trackIndex == -1) {
+                if (mForceStopRequested) {
+                    handleForceStop();
+                    break;
+                }
+                idle(idleCount++);
+                continue;
+            }
+            idleCount = 0;
+
+            PacketRing ring = mRings[trackIndex];
+            PacketRing.Packet packet = ring.peek();
+            if (TRACE) Trace.beginSection("writeSampleData");
+            handleWriteSampleData(null, trackIndex, -1, packet.data, packet.info, packet.arrivalUs);
+            if (TRACE) Trace.endSection();
+            if ((packet.info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                mInterleaver.setTrackActive(trackIndex, false);
+            }
+            ring.consume();
+        }
 
         synchronized (mReadyFence) {
             mReady = false;
-            mHandler = null;
+            mRunning = false;
         }
-    }
-
-    public static class FFmpegHandler extends Handler {
-        private WeakReference<FFmpegMuxer> mWeakMuxer;
-
-        public FFmpegHandler(FFmpegMuxer muxer) {
-            mWeakMuxer = new WeakReference<FFmpegMuxer>(muxer);
+        for (PacketRing ring : mRings) {
+            ring.close();
         }
+        Log.i(TAG, "Muxing thread exiting. " + mBufferPool);
+        mBufferPool.clear();
+    }
 
-        @Override
-        public void handleMessage(Message inputMessage) {
-            int what = inputMessage.what;
-            Object obj = inputMessage.obj;
-
-            FFmpegMuxer muxer = mWeakMuxer.get();
-            if (muxer == null) {
-                Log.w(TAG, "FFmpegHandler.handleMessage: muxer is null");
-                return;
-            }
-
-            switch (what) {
-                case MSG_ADD_TRACK:
-                    if (TRACE) Trace.beginSection("addTrack");
-                    muxer.handleAddTrack((MediaFormat) obj);
-                    if (TRACE) Trace.endSection();
-                    break;
-                case MSG_WRITE_FRAME:
-                    if (TRACE) Trace.beginSection("writeSampleData");
-                    WritePacketData data = (WritePacketData) obj;
-                    muxer.handleWriteSampleData(data.mEncoder,
-                            data.mTrackIndex,
-                            data.mBufferIndex,
-                            data.mData,
-                            data.getBufferInfo());
-                    if (TRACE) Trace.endSection();
-                    break;
-                case MSG_FORCE_SHUTDOWN:
-                    muxer.handleForceStop();
-                    break;
+    /**
+     * Called on the muxing thread
+     *
+     * @return the index of the track whose packet should be written next, per
+     * mInterleaver, or -1 if none is ready. Once stopping, packets are not held
+     */
+    private int nextTrackIndex() {
+        return mInterleaver.next(System.nanoTime() / 1000, mForceStopRequested);
+    }
 
-                default:
-                    throw new RuntimeException("Unexpected msg what=" + what);
-            }
+    /**
+     * Called on the muxing thread
+     */
+    private void handlePendingTracks() {
+        MediaFormat trackFormat;
+        while ((trackFormat = mPendingTrackFormats.poll()) != null) {
+            if (TRACE) Trace.beginSection("addTrack");
+            handleAddTrack(trackFormat);
+            boolean isVideo = trackFormat.getString(MediaFormat.KEY_MIME).compareTo("video/avc") == 0;
+            mInterleaver.setTrackActive(isVideo ? mVideoTrackIndex : mAudioTrackIndex, true);
+            if (TRACE) Trace.endSection();
         }
-
     }
 
     /**
-     * An object to encapsulate all the data
-     * needed for writing a packet, for
-     * posting to the Handler
+     * Wait for work on the muxing thread. Spins briefly, then yields,
+     * then parks until a producer calls {@link #signalMuxingThread()}.
+     *
+     * @param idleCount the number of consecutive calls without work
      */
-    public static class WritePacketData {
-
-        private static MediaCodec.BufferInfo mBufferInfo;        // Used as singleton since muxer writes only one packet at a time
-
-        public MediaCodec mEncoder;
-        public int mTrackIndex;
-        public int mBufferIndex;
-        public ByteBuffer mData;
-        public int offset;
-        public int size;
-        public long presentationTimeUs;
-        public int flags;
-
-        public WritePacketData(MediaCodec encoder, int trackIndex, int bufferIndex, ByteBuffer data, MediaCodec.BufferInfo bufferInfo) {
-            mEncoder = encoder;
-            mTrackIndex = trackIndex;
-            mBufferIndex = bufferIndex;
-            mData = data;
-            offset = bufferInfo.offset;
-            size = bufferInfo.size;
-            presentationTimeUs = bufferInfo.presentationTimeUs;
-            flags = bufferInfo.flags;
-        }
-
-        public MediaCodec.BufferInfo getBufferInfo() {
-            if (mBufferInfo == null)
-                mBufferInfo = new MediaCodec.BufferInfo();
-            mBufferInfo.set(offset, size, presentationTimeUs, flags);
-            return mBufferInfo;
+    private void idle(int idleCount) {
+        if (idleCount < IDLE_SPIN_TRIES) return;
+        if (idleCount < IDLE_SPIN_TRIES + IDLE_YIELD_TRIES) {
+            Thread.yield();
+            return;
+        }
+        mMuxingThreadParked = true;
+        // Re-check after publishing mMuxingThreadParked so a concurrent signal isn't missed
+        if (!mInterleaver.hasNext(System.nanoTime() / 1000, false) && mPendingTrackFormats.isEmpty() && !mForceStopRequested) {
+            LockSupport.parkNanos(this, IDLE_PARK_NS);
         }
+        mMuxingThreadParked = false;
+    }
+
+    private void signalMuxingThread() {
+        if (mMuxingThreadParked) LockSupport.unpark(mMuxingThread);
     }
 }
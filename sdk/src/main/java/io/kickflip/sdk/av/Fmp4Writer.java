@@ -0,0 +1,508 @@
+package io.kickflip.sdk.av;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Writes fragmented MP4 conforming to the CMAF track constraints: an initialization
+ * segment (ftyp + moov), then fragments of one moof + mdat each.
+ * <p/>
+ * Supports one H.264 track and one AAC track. Samples added with {@link #addSample}
+ * are buffered until {@link #writeFragment}, since the moof describing them precedes the mdat.
+ * H.264 samples are converted from Annex-B to 4 byte length-prefixed NAL units as they're buffered.
+ * This class has no Android dependencies, and is not thread-safe.
+ * <p/>
+ * See ISO/IEC 14496-12 and ISO/IEC 23000-19
+ *
+ * @hide
+ */
+public class Fmp4Writer {
+
+    public static final int MAX_TRACKS = 2;
+
+    private static final int VIDEO_TIMESCALE = 90000;
+    private static final int MOVIE_TIMESCALE = 1000;
+
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;        // sample_depends_on: 2 (independent)
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;    // sample_depends_on: 1, sample_is_non_sync_sample
+
+    private static final int NAL_TYPE_AUD = 9;
+
+    private static class Track {
+        final int id;
+        final boolean isVideo;
+        final int timescale;
+        final int width;
+        final int height;
+        final int sampleRate;
+        final int channelCount;
+        final byte[] sps;
+        final byte[] pps;
+        final byte[] audioSpecificConfig;
+
+        // Samples buffered for the fragment in progress
+        byte[] data = new byte[64 * 1024];
+        int dataSize;
+        int sampleCount;
+        long[] sampleTimes = new long[64];                  // In track timescale
+        int[] sampleSizes = new int[64];
+        boolean[] sampleSync = new boolean[64];
+        long lastSampleDuration;                            // Duration of the previous fragment's last sample
+
+        Track(int id, boolean isVideo, int timescale, int width, int height, int sampleRate, int channelCount,
+              byte[] sps, byte[] pps, byte[] audioSpecificConfig) {
+            this.id = id;
+            this.isVideo = isVideo;
+            this.timescale = timescale;
+            this.width = width;
+            this.height = height;
+            this.sampleRate = sampleRate;
+            this.channelCount = channelCount;
+            this.sps = sps;
+            this.pps = pps;
+            this.audioSpecificConfig = audioSpecificConfig;
+        }
+
+        void ensureSampleCapacity() {
+            if (sampleCount < sampleTimes.length) return;
+            int capacity = sampleTimes.length * 2;
+            long[] times = new long[capacity];
+            int[] sizes = new int[capacity];
+            boolean[] sync = new boolean[capacity];
+            System.arraycopy(sampleTimes, 0, times, 0, sampleCount);
+            System.arraycopy(sampleSizes, 0, sizes, 0, sampleCount);
+            System.arraycopy(sampleSync, 0, sync, 0, sampleCount);
+            sampleTimes = times;
+            sampleSizes = sizes;
+            sampleSync = sync;
+        }
+
+        void ensureDataCapacity(int additional) {
+            if (dataSize + additional <= data.length) return;
+            byte[] grown = new byte[Math.max(dataSize + additional, data.length * 2)];
+            System.arraycopy(data, 0, grown, 0, dataSize);
+            data = grown;
+        }
+
+        long sampleDuration(int i) {
+            if (i + 1 < sampleCount) return sampleTimes[i + 1] - sampleTimes[i];
+            if (lastSampleDuration > 0) return lastSampleDuration;
+            return isVideo ? timescale / 30 : 1024;             // Assume 30 fps, or 1024 sample AAC frames
+        }
+    }
+
+    private final Track[] mTracks = new Track[MAX_TRACKS];
+    private int mNumTracks;
+    private int mSequenceNumber = 1;
+    private ByteBuffer mBoxes = ByteBuffer.allocate(16 * 1024);
+
+    /**
+     * @param sps the Sequence Parameter Set NAL unit, without start code
+     * @param pps the Picture Parameter Set NAL unit, without start code
+     * @return the track index, for use with {@link #addSample}
+     */
+    public int addVideoTrack(int width, int height, byte[] sps, byte[] pps) {
+        checkState(mNumTracks < MAX_TRACKS, "Too many tracks");
+        checkArgument(sps != null && sps.length >= 4 && pps != null, "Invalid SPS or PPS");
+        mTracks[mNumTracks] = new Track(mNumTracks + 1, true, VIDEO_TIMESCALE, width, height, 0, 0, sps, pps, null);
+        return mNumTracks++;
+    }
+
+    /**
+     * @param audioSpecificConfig the MPEG-4 AudioSpecificConfig e.g: MediaFormat's csd-0
+     * @return the track index, for use with {@link #addSample}
+     */
+    public int addAudioTrack(int sampleRate, int channelCount, byte[] audioSpecificConfig) {
+        checkState(mNumTracks < MAX_TRACKS, "Too many tracks");
+        mTracks[mNumTracks] = new Track(mNumTracks + 1, false, sampleRate, 0, 0, sampleRate, channelCount,
+                null, null, audioSpecificConfig);
+        return mNumTracks++;
+    }
+
+    public int getNumTracks() {
+        return mNumTracks;
+    }
+
+    /**
+     * Buffer a sample for the fragment in progress.
+     *
+     * @param ptsUs presentation time in microseconds
+     * @param data  the sample between position and limit. Position is advanced to limit
+     */
+    public void addSample(int trackIndex, long ptsUs, boolean isSync, ByteBuffer data) {
+        Track track = mTracks[trackIndex];
+        track.ensureSampleCapacity();
+        int start = track.dataSize;
+        if (track.isVideo) {
+            appendLengthPrefixedNals(track, data);
+        } else {
+            int size = data.remaining();
+            track.ensureDataCapacity(size);
+            data.get(track.data, track.dataSize, size);
+            track.dataSize += size;
+        }
+        int i = track.sampleCount++;
+        track.sampleTimes[i] = ptsUs * track.timescale / 1000000L;
+        track.sampleSizes[i] = track.dataSize - start;
+        track.sampleSync[i] = isSync || !track.isVideo;
+    }
+
+    public boolean hasPendingSamples() {
+        for (int i = 0; i < mNumTracks; i++) {
+            if (mTracks[i].sampleCount > 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Write the initialization segment: ftyp and moov.
+     */
+    public void writeInitSegment(WritableByteChannel channel) throws IOException {
+        ByteBuffer b = resetBoxes(4096);
+        int ftyp = startBox(b, "ftyp");
+        putFourCC(b, "iso6");                               // major_brand
+        b.putInt(0);                                        // minor_version
+        putFourCC(b, "iso6");
+        putFourCC(b, "cmfc");
+        putFourCC(b, "mp41");
+        endBox(b, ftyp);
+
+        int moov = startBox(b, "moov");
+        int mvhd = startFullBox(b, "mvhd", 0, 0);
+        b.putInt(0);                                        // creation_time
+        b.putInt(0);                                        // modification_time
+        b.putInt(MOVIE_TIMESCALE);
+        b.putInt(0);                                        // duration: unknown, see mvex
+        b.putInt(0x00010000);                               // rate: 1.0
+        b.putShort((short) 0x0100);                         // volume: 1.0
+        putZeros(b, 10);
+        putMatrix(b);
+        putZeros(b, 24);                                    // pre_defined
+        b.putInt(mNumTracks + 1);                           // next_track_ID
+        endBox(b, mvhd);
+        for (int i = 0; i < mNumTracks; i++) {
+            writeTrak(b, mTracks[i]);
+        }
+        int mvex = startBox(b, "mvex");
+        for (int i = 0; i < mNumTracks; i++) {
+            int trex = startFullBox(b, "trex", 0, 0);
+            b.putInt(mTracks[i].id);
+            b.putInt(1);                                    // default_sample_description_index
+            b.putInt(0);                                    // default_sample_duration
+            b.putInt(0);                                    // default_sample_size
+            b.putInt(0);                                    // default_sample_flags
+            endBox(b, trex);
+        }
+        endBox(b, mvex);
+        endBox(b, moov);
+        writeBoxes(channel);
+    }
+
+    /**
+     * Write a moof and mdat describing all samples added since the last fragment.
+     * Does nothing if no samples are pending.
+     */
+    public void writeFragment(WritableByteChannel channel) throws IOException {
+        if (!hasPendingSamples()) return;
+        int moofSize = 8 + 16;                              // moof header, mfhd
+        for (int i = 0; i < mNumTracks; i++) {
+            if (mTracks[i].sampleCount == 0) continue;
+            moofSize += 8 + 16 + 20 + 20 + mTracks[i].sampleCount * 12;     // traf, tfhd, tfdt, trun
+        }
+        ByteBuffer b = resetBoxes(moofSize + 8);
+        int moof = startBox(b, "moof");
+        int mfhd = startFullBox(b, "mfhd", 0, 0);
+        b.putInt(mSequenceNumber++);
+        endBox(b, mfhd);
+
+        int dataOffset = moofSize + 8;                      // First sample follows the mdat header
+        for (int i = 0; i < mNumTracks; i++) {
+            Track track = mTracks[i];
+            if (track.sampleCount == 0) continue;
+            int traf = startBox(b, "traf");
+            int tfhd = startFullBox(b, "tfhd", 0, 0x020000);   // default-base-is-moof
+            b.putInt(track.id);
+            endBox(b, tfhd);
+            int tfdt = startFullBox(b, "tfdt", 1, 0);
+            b.putLong(track.sampleTimes[0]);                // baseMediaDecodeTime
+            endBox(b, tfdt);
+            int trun = startFullBox(b, "trun", 0, 0x000701);  // data-offset, sample duration, size and flags
+            b.putInt(track.sampleCount);
+            b.putInt(dataOffset);
+            for (int s = 0; s < track.sampleCount; s++) {
+                b.putInt((int) track.sampleDuration(s));
+                b.putInt(track.sampleSizes[s]);
+                b.putInt(track.sampleSync[s] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+            }
+            endBox(b, trun);
+            endBox(b, traf);
+            dataOffset += track.dataSize;
+        }
+        endBox(b, moof);
+
+        int mdatSize = 8;
+        for (int i = 0; i < mNumTracks; i++) {
+            mdatSize += mTracks[i].dataSize;
+        }
+        b.putInt(mdatSize);
+        putFourCC(b, "mdat");
+        writeBoxes(channel);
+
+        for (int i = 0; i < mNumTracks; i++) {
+            Track track = mTracks[i];
+            if (track.sampleCount == 0) continue;
+            write(channel, ByteBuffer.wrap(track.data, 0, track.dataSize));
+            track.lastSampleDuration = track.sampleDuration(track.sampleCount - 1);
+            track.sampleCount = 0;
+            track.dataSize = 0;
+        }
+    }
+
+    private void writeTrak(ByteBuffer b, Track track) {
+        int trak = startBox(b, "trak");
+        int tkhd = startFullBox(b, "tkhd", 0, 0x000003);    // enabled, in movie
+        b.putInt(0);                                        // creation_time
+        b.putInt(0);                                        // modification_time
+        b.putInt(track.id);
+        b.putInt(0);                                        // reserved
+        b.putInt(0);                                        // duration
+        putZeros(b, 8);
+        b.putShort((short) 0);                              // layer
+        b.putShort((short) 0);                              // alternate_group
+        b.putShort((short) (track.isVideo ? 0 : 0x0100));   // volume
+        b.putShort((short) 0);
+        putMatrix(b);
+        b.putInt(track.width << 16);
+        b.putInt(track.height << 16);
+        endBox(b, tkhd);
+
+        int mdia = startBox(b, "mdia");
+        int mdhd = startFullBox(b, "mdhd", 0, 0);
+        b.putInt(0);                                        // creation_time
+        b.putInt(0);                                        // modification_time
+        b.putInt(track.timescale);
+        b.putInt(0);                                        // duration
+        b.putShort((short) 0x55C4);                         // language: und
+        b.putShort((short) 0);
+        endBox(b, mdhd);
+        int hdlr = startFullBox(b, "hdlr", 0, 0);
+        b.putInt(0);                                        // pre_defined
+        putFourCC(b, track.isVideo ? "vide" : "soun");
+        putZeros(b, 12);
+        b.put((track.isVideo ? "VideoHandler" : "SoundHandler").getBytes());
+        b.put((byte) 0);
+        endBox(b, hdlr);
+
+        int minf = startBox(b, "minf");
+        if (track.isVideo) {
+            int vmhd = startFullBox(b, "vmhd", 0, 1);
+            putZeros(b, 8);                                 // graphicsmode, opcolor
+            endBox(b, vmhd);
+        } else {
+            int smhd = startFullBox(b, "smhd", 0, 0);
+            putZeros(b, 4);                                 // balance, reserved
+            endBox(b, smhd);
+        }
+        int dinf = startBox(b, "dinf");
+        int dref = startFullBox(b, "dref", 0, 0);
+        b.putInt(1);                                        // entry_count
+        int url = startFullBox(b, "url ", 0, 1);            // media is in this file
+        endBox(b, url);
+        endBox(b, dref);
+        endBox(b, dinf);
+
+        int stbl = startBox(b, "stbl");
+        int stsd = startFullBox(b, "stsd", 0, 0);
+        b.putInt(1);                                        // entry_count
+        if (track.isVideo) {
+            writeAvc1(b, track);
+        } else {
+            writeMp4a(b, track);
+        }
+        endBox(b, stsd);
+        // Sample tables are empty. Samples are described by each fragment's trun
+        for (String type : new String[]{"stts", "stsc", "stco"}) {
+            int box = startFullBox(b, type, 0, 0);
+            b.putInt(0);
+            endBox(b, box);
+        }
+        int stsz = startFullBox(b, "stsz", 0, 0);
+        b.putInt(0);                                        // sample_size
+        b.putInt(0);                                        // sample_count
+        endBox(b, stsz);
+        endBox(b, stbl);
+        endBox(b, minf);
+        endBox(b, mdia);
+        endBox(b, trak);
+    }
+
+    private void writeAvc1(ByteBuffer b, Track track) {
+        int avc1 = startBox(b, "avc1");
+        putZeros(b, 6);
+        b.putShort((short) 1);                              // data_reference_index
+        putZeros(b, 16);                                    // pre_defined, reserved
+        b.putShort((short) track.width);
+        b.putShort((short) track.height);
+        b.putInt(0x00480000);                               // horizresolution: 72 dpi
+        b.putInt(0x00480000);                               // vertresolution: 72 dpi
+        b.putInt(0);
+        b.putShort((short) 1);                              // frame_count
+        putZeros(b, 32);                                    // compressorname
+        b.putShort((short) 0x0018);                         // depth
+        b.putShort((short) -1);                             // pre_defined
+        int avcC = startBox(b, "avcC");
+        b.put((byte) 1);                                    // configurationVersion
+        b.put(track.sps[1]);                                // AVCProfileIndication
+        b.put(track.sps[2]);                                // profile_compatibility
+        b.put(track.sps[3]);                                // AVCLevelIndication
+        b.put((byte) 0xFF);                                 // lengthSizeMinusOne: 3
+        b.put((byte) 0xE1);                                 // numOfSequenceParameterSets: 1
+        b.putShort((short) track.sps.length);
+        b.put(track.sps);
+        b.put((byte) 1);                                    // numOfPictureParameterSets
+        b.putShort((short) track.pps.length);
+        b.put(track.pps);
+        endBox(b, avcC);
+        endBox(b, avc1);
+    }
+
+    private void writeMp4a(ByteBuffer b, Track track) {
+        int mp4a = startBox(b, "mp4a");
+        putZeros(b, 6);
+        b.putShort((short) 1);                              // data_reference_index
+        putZeros(b, 8);
+        b.putShort((short) track.channelCount);
+        b.putShort((short) 16);                             // samplesize
+        putZeros(b, 4);
+        b.putInt(track.sampleRate << 16);
+        int esds = startFullBox(b, "esds", 0, 0);
+        int asc = track.audioSpecificConfig.length;
+        b.put((byte) 0x03);                                 // ES_DescrTag
+        b.put((byte) (3 + 2 + 13 + 2 + asc + 3));
+        b.putShort((short) 0);                              // ES_ID
+        b.put((byte) 0);                                    // flags
+        b.put((byte) 0x04);                                 // DecoderConfigDescrTag
+        b.put((byte) (13 + 2 + asc));
+        b.put((byte) 0x40);                                 // objectTypeIndication: MPEG-4 Audio
+        b.put((byte) 0x15);                                 // streamType: audio
+        putZeros(b, 3);                                     // bufferSizeDB
+        b.putInt(0);                                        // maxBitrate
+        b.putInt(0);                                        // avgBitrate
+        b.put((byte) 0x05);                                 // DecSpecificInfoTag
+        b.put((byte) asc);
+        b.put(track.audioSpecificConfig);
+        b.put((byte) 0x06);                                 // SLConfigDescrTag
+        b.put((byte) 1);
+        b.put((byte) 0x02);                                 // predefined: MP4
+        endBox(b, esds);
+        endBox(b, mp4a);
+    }
+
+    /**
+     * Copy the Annex-B NAL units in data to the track's buffer, replacing
+     * each start code with a 4 byte length. Access unit delimiters are dropped.
+     */
+    private static void appendLengthPrefixedNals(Track track, ByteBuffer data) {
+        int end = data.limit();
+        int nalStart = findNalStart(data, data.position(), end);
+        if (nalStart < 0) {
+            // Not Annex-B. Treat the whole sample as one NAL unit
+            nalStart = data.position();
+        }
+        track.ensureDataCapacity(data.remaining() + 4);
+        while (nalStart >= 0 && nalStart < end) {
+            int next = findNalStart(data, nalStart, end);
+            int nalEnd = (next < 0) ? end : next - 3;
+            // Trim trailing zero of a 4 byte start code
+            while (next >= 0 && nalEnd > nalStart && data.get(nalEnd - 1) == 0) nalEnd--;
+            int nalSize = nalEnd - nalStart;
+            if (nalSize > 0 && (data.get(nalStart) & 0x1F) != NAL_TYPE_AUD) {
+                track.ensureDataCapacity(nalSize + 4);
+                byte[] dst = track.data;
+                int p = track.dataSize;
+                dst[p] = (byte) (nalSize >> 24);
+                dst[p + 1] = (byte) (nalSize >> 16);
+                dst[p + 2] = (byte) (nalSize >> 8);
+                dst[p + 3] = (byte) nalSize;
+                for (int i = 0; i < nalSize; i++) {
+                    dst[p + 4 + i] = data.get(nalStart + i);
+                }
+                track.dataSize += 4 + nalSize;
+            }
+            nalStart = next;
+        }
+        data.position(end);
+    }
+
+    /**
+     * @return the index of the first byte after the next 00 00 01 start code
+     * at or after from, or -1 if there is none
+     */
+    private static int findNalStart(ByteBuffer data, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    private ByteBuffer resetBoxes(int minCapacity) {
+        if (mBoxes.capacity() < minCapacity) {
+            mBoxes = ByteBuffer.allocate(minCapacity);
+        }
+        mBoxes.clear();
+        return mBoxes;
+    }
+
+    private void writeBoxes(WritableByteChannel channel) throws IOException {
+        mBoxes.flip();
+        write(channel, mBoxes);
+    }
+
+    private static void write(WritableByteChannel channel, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+
+    private static int startBox(ByteBuffer b, String type) {
+        int start = b.position();
+        b.putInt(0);                                        // size, set by endBox
+        putFourCC(b, type);
+        return start;
+    }
+
+    private static int startFullBox(ByteBuffer b, String type, int version, int flags) {
+        int start = startBox(b, type);
+        b.putInt((version << 24) | (flags & 0xFFFFFF));
+        return start;
+    }
+
+    private static void endBox(ByteBuffer b, int start) {
+        b.putInt(start, b.position() - start);
+    }
+
+    private static void putFourCC(ByteBuffer b, String fourCC) {
+        for (int i = 0; i < 4; i++) {
+            b.put((byte) fourCC.charAt(i));
+        }
+    }
+
+    private static void putZeros(ByteBuffer b, int count) {
+        for (int i = 0; i < count; i++) {
+            b.put((byte) 0);
+        }
+    }
+
+    private static void putMatrix(ByteBuffer b) {
+        int[] matrix = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+        for (int value : matrix) {
+            b.putInt(value);
+        }
+    }
+}
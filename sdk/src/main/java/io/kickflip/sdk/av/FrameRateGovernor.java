@@ -0,0 +1,125 @@
+package io.kickflip.sdk.av;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Paces camera frames to a target encoding frame rate, deciding per frame whether it
+ * should be drawn to the encoders, and counts the frames that weren't.
+ * <p/>
+ * Frames are chosen by their SurfaceTexture timestamps, so decimation is even regardless
+ * of when frames are handled. A frame is encoded if it arrives no more than half an interval
+ * before the next one is due, so camera jitter at the target rate doesn't cause drops. After
+ * a gap of more than an interval, pacing restarts from the next frame rather than bursting to catch up.
+ * <p/>
+ * Frames are also counted as coalesced when a newer frame arrived before they were handled,
+ * and late when handled more than an interval after they arrived.
+ * <p/>
+ * Not thread-safe, except for {@link #setTargetFps(int)} and {@link #onFrameCoalesced()}.
+ *
+ * @hide
+ */
+public class FrameRateGovernor {
+
+    private volatile long mIntervalNs;
+    private long mNextDueNs = -1;
+
+    private long mEncodedFrames;
+    private long mDecimatedFrames;
+    private volatile long mCoalescedFrames;
+    private long mLateFrames;
+    private long mMaxLatencyNs;
+
+    public FrameRateGovernor(int targetFps) {
+        setTargetFps(targetFps);
+    }
+
+    /**
+     * Change the target frame rate, e.g: to reduce load on a thermally throttled device.
+     * Takes effect from the next frame. Called from any thread
+     */
+    public void setTargetFps(int targetFps) {
+        checkArgument(targetFps > 0, "Invalid frame rate " + targetFps);
+        mIntervalNs = 1000000000L / targetFps;
+    }
+
+    public int getTargetFps() {
+        return (int) (1000000000L / mIntervalNs);
+    }
+
+    /**
+     * Decide whether a frame should be encoded.
+     *
+     * @param timestampNs the frame's SurfaceTexture timestamp
+     * @param latencyNs   the time since the frame became available
+     * @return true if the frame should be encoded, false if it should be dropped
+     */
+    public boolean onFrame(long timestampNs, long latencyNs) {
+        long intervalNs = mIntervalNs;
+        if (latencyNs > intervalNs) mLateFrames++;
+        mMaxLatencyNs = Math.max(mMaxLatencyNs, latencyNs);
+        if (mNextDueNs >= 0 && timestampNs + intervalNs / 2 < mNextDueNs) {
+            mDecimatedFrames++;
+            return false;
+        }
+        if (mNextDueNs < 0 || timestampNs - mNextDueNs > intervalNs) {
+            // First frame, or after a gap e.g: the camera was switched
+            mNextDueNs = timestampNs + intervalNs;
+        } else {
+            mNextDueNs += intervalNs;
+        }
+        mEncodedFrames++;
+        return true;
+    }
+
+    /**
+     * Count a frame superseded by a newer one before it was handled.
+     * Called from any thread, but only one
+     */
+    public void onFrameCoalesced() {
+        mCoalescedFrames++;
+    }
+
+    /**
+     * Restart pacing from the next frame, e.g: for a new recording.
+     * Counts are retained.
+     */
+    public void reset() {
+        mNextDueNs = -1;
+    }
+
+    public long getEncodedFrames() {
+        return mEncodedFrames;
+    }
+
+    /**
+     * @return frames dropped to meet the target frame rate
+     */
+    public long getDecimatedFrames() {
+        return mDecimatedFrames;
+    }
+
+    /**
+     * @return frames superseded before they were handled
+     */
+    public long getCoalescedFrames() {
+        return mCoalescedFrames;
+    }
+
+    /**
+     * @return frames handled more than a frame interval after they arrived
+     */
+    public long getLateFrames() {
+        return mLateFrames;
+    }
+
+    public long getMaxLatencyNs() {
+        return mMaxLatencyNs;
+    }
+
+    @Override
+    public String toString() {
+        return "FrameRateGovernor: target " + getTargetFps() + " fps. Encoded " + mEncodedFrames
+                + ", decimated " + mDecimatedFrames + ", coalesced " + mCoalescedFrames
+                + ", late " + mLateFrames + " (max latency " + mMaxLatencyNs / 1000000 + " ms)";
+    }
+}
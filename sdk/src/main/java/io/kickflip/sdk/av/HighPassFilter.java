@@ -0,0 +1,68 @@
+package io.kickflip.sdk.av;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Attenuates content below a cutoff frequency e.g: wind and handling rumble.
+ * A second-order Butterworth high-pass filter, applied to each channel.
+ *
+ * @hide
+ */
+public class HighPassFilter implements AudioProcessor {
+
+    private final float mCutoffHz;
+    private int mChannelCount;
+
+    // Normalized biquad coefficients
+    private float mB0, mB1, mB2, mA1, mA2;
+    // Per channel state: previous two inputs and outputs
+    private float[] mX1, mX2, mY1, mY2;
+
+    /**
+     * @param cutoffHz the -3 dB frequency e.g: 80
+     */
+    public HighPassFilter(float cutoffHz) {
+        checkArgument(cutoffHz > 0, "cutoffHz must be positive");
+        mCutoffHz = cutoffHz;
+    }
+
+    @Override
+    public void configure(int sampleRate, int channelCount) {
+        checkArgument(mCutoffHz < sampleRate / 2f, "cutoffHz must be below the Nyquist frequency");
+        mChannelCount = channelCount;
+        mX1 = new float[channelCount];
+        mX2 = new float[channelCount];
+        mY1 = new float[channelCount];
+        mY2 = new float[channelCount];
+
+        double w0 = 2 * Math.PI * mCutoffHz / sampleRate;
+        double alpha = Math.sin(w0) / (2 * Math.sqrt(0.5));     // Q = 1 / sqrt(2)
+        double cos = Math.cos(w0);
+        double a0 = 1 + alpha;
+        mB0 = (float) ((1 + cos) / 2 / a0);
+        mB1 = (float) (-(1 + cos) / a0);
+        mB2 = mB0;
+        mA1 = (float) (-2 * cos / a0);
+        mA2 = (float) ((1 - alpha) / a0);
+    }
+
+    @Override
+    public void process(float[] samples, int count) {
+        for (int channel = 0; channel < mChannelCount; channel++) {
+            float x1 = mX1[channel], x2 = mX2[channel], y1 = mY1[channel], y2 = mY2[channel];
+            for (int i = channel; i < count; i += mChannelCount) {
+                float x = samples[i];
+                float y = mB0 * x + mB1 * x1 + mB2 * x2 - mA1 * y1 - mA2 * y2;
+                x2 = x1;
+                x1 = x;
+                y2 = y1;
+                y1 = y;
+                samples[i] = y;
+            }
+            mX1[channel] = x1;
+            mX2[channel] = x2;
+            mY1[channel] = y1;
+            mY2[channel] = y2;
+        }
+    }
+}
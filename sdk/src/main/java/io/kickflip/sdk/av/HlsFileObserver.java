@@ -43,21 +43,38 @@ public class HlsFileObserver extends FileObserver {
 
     private static final String M3U8_EXT = "m3u8";
     private static final String TS_EXT = "ts";
+    private static final String M4S_EXT = "m4s";           // CMAF media segment
+    private static final String MP4_EXT = "mp4";           // CMAF initialization segment
     private static final String JPG_EXT = "jpg";
     private String mObservedPath;
     private EventBus mEventBus;
+    private boolean mObserveHlsFiles;
 
     /**
      * Begin observing the given path for changes
-     * to .ts, .m3u8 and .jpg files
+     * to .ts, .m4s, .mp4, .m3u8 and .jpg files
      *
      * @param path     the absolute path to observe.
      * @param eventBus an EventBus to post events to
      */
     public HlsFileObserver(String path, EventBus eventBus) {
+        this(path, eventBus, true);
+    }
+
+    /**
+     * Begin observing the given path for changes
+     * to .jpg files, and optionally HLS segment and .m3u8 files
+     *
+     * @param path            the absolute path to observe.
+     * @param eventBus        an EventBus to post events to
+     * @param observeHlsFiles whether to post events for HLS segment and .m3u8 files.
+     *                        Should be false if the Muxer delivers HLS output in memory.
+     */
+    public HlsFileObserver(String path, EventBus eventBus, boolean observeHlsFiles) {
         super(path, CLOSE_WRITE | MOVED_TO);
         mEventBus = eventBus;
         mObservedPath = path;
+        mObserveHlsFiles = observeHlsFiles;
     }
 
     @Override
@@ -67,11 +84,11 @@ public class HlsFileObserver extends FileObserver {
         String absolutePath = mObservedPath + File.separator + path;
         Log.d(TAG, String.format("Event %d at %s ext %s", event, path, ext));
 
-        if (event == MOVED_TO && ext.equals(M3U8_EXT)) {
+        if (event == MOVED_TO && ext.equals(M3U8_EXT) && mObserveHlsFiles) {
             if (VERBOSE) Log.i(TAG, "posting manifest written " + absolutePath);
             mEventBus.post(new HlsManifestWrittenEvent(absolutePath));
 
-        } else if (event == CLOSE_WRITE && ext.equals(TS_EXT)) {
+        } else if (event == CLOSE_WRITE && isSegmentExtension(ext) && mObserveHlsFiles) {
             if (VERBOSE) Log.i(TAG, "posting hls segment written " + absolutePath);
             mEventBus.post(new HlsSegmentWrittenEvent(absolutePath));
 
@@ -81,4 +98,7 @@ public class HlsFileObserver extends FileObserver {
         }
     }
 
-}
+    private static boolean isSegmentExtension(String ext) {
+        return ext.equals(TS_EXT) || ext.equals(M4S_EXT) || ext.equals(MP4_EXT);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,63 @@
+package io.kickflip.sdk.av;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Builds the HLS master playlist of a session with {@link io.kickflip.sdk.av.VideoRendition}s,
+ * listing the session's own playlist and each rendition's as variant streams.
+ * Players choose among them by bandwidth, so adaptive playback needs no server-side transcoding.
+ * <p/>
+ * Variants are referenced by filename, and so must be written alongside the master playlist.
+ *
+ * @hide
+ */
+public class HlsMasterPlaylist {
+
+    public static final String FILENAME = "master.m3u8";
+
+    /**
+     * @return the master playlist for config. The session's own variant is listed first,
+     * and so is the one most players begin with
+     */
+    public static String create(SessionConfig config) {
+        int audioBitrate = config.getAudioBitrate();
+        StringBuilder playlist = new StringBuilder();
+        playlist.append("#EXTM3U\n");
+        // Every segment of every variant begins with a keyframe
+        playlist.append("#EXT-X-INDEPENDENT-SEGMENTS\n");
+        appendVariant(playlist, config.getVideoWidth(), config.getVideoHeight(),
+                config.getVideoBitrate() + audioBitrate, config.getOutputPath());
+        for (VideoRendition rendition : config.getRenditions()) {
+            appendVariant(playlist, rendition.getWidth(), rendition.getHeight(),
+                    rendition.getBitRate() + audioBitrate, rendition.getMuxer().getOutputPath());
+        }
+        return playlist.toString();
+    }
+
+    private static void appendVariant(StringBuilder playlist, int width, int height, int bandwidth, String playlistPath) {
+        playlist.append("#EXT-X-STREAM-INF:BANDWIDTH=").append(bandwidth)
+                .append(",RESOLUTION=").append(width).append('x').append(height).append('\n');
+        playlist.append(new File(playlistPath).getName()).append('\n');
+    }
+
+    /**
+     * Write the master playlist for config to {@link #FILENAME} in the
+     * directory of the session's playlist.
+     *
+     * @return the master playlist file
+     */
+    public static File write(SessionConfig config) throws IOException {
+        File file = new File(new File(config.getOutputPath()).getParentFile(), FILENAME);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(create(config));
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,122 @@
+package io.kickflip.sdk.av;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A growable in-memory HLS segment.
+ * <p/>
+ * A Muxer writes the segment through the {@link java.nio.channels.WritableByteChannel}
+ * interface, then hands it to a consumer (e.g: an uploader) via
+ * {@link io.kickflip.sdk.event.HlsSegmentWrittenEvent}. The consumer must call
+ * {@link #release()} once finished, returning the backing array to the Muxer for re-use.
+ *
+ * @hide
+ */
+public class HlsSegmentBuffer implements WritableByteChannel {
+
+    /**
+     * Notified when a consumer releases an HlsSegmentBuffer.
+     */
+    public interface Recycler {
+        void recycle(HlsSegmentBuffer buffer);
+    }
+
+    private final Recycler mRecycler;
+    private byte[] mData;
+    private int mSize;
+    private String mName;
+    private boolean mOpen;
+
+    /**
+     * @param initialCapacity initial size of the backing array in bytes
+     * @param recycler        notified on {@link #release()}. May be null
+     */
+    public HlsSegmentBuffer(int initialCapacity, Recycler recycler) {
+        mData = new byte[initialCapacity];
+        mRecycler = recycler;
+    }
+
+    /**
+     * Discard any contents and re-open for writing a new segment.
+     *
+     * @param name the segment's filename e.g: index0.ts
+     */
+    public void reset(String name) {
+        mName = name;
+        mSize = 0;
+        mOpen = true;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!mOpen) throw new ClosedChannelException();
+        int length = src.remaining();
+        if (mSize + length > mData.length) {
+            byte[] data = new byte[Math.max(mSize + length, mData.length * 2)];
+            System.arraycopy(mData, 0, data, 0, mSize);
+            mData = data;
+        }
+        src.get(mData, mSize, length);
+        mSize += length;
+        return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mOpen;
+    }
+
+    @Override
+    public void close() {
+        mOpen = false;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return the backing array. Only the first {@link #getSize()} bytes are valid
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    public InputStream newInputStream() {
+        return new ByteArrayInputStream(mData, 0, mSize);
+    }
+
+    /**
+     * Write the segment contents to file.
+     */
+    public void writeTo(File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(mData, 0, mSize);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Signal the consumer is finished with this segment.
+     * The contents must not be accessed afterwards.
+     */
+    public void release() {
+        mOpen = false;
+        if (mRecycler != null) {
+            mRecycler.recycle(this);
+        }
+    }
+}
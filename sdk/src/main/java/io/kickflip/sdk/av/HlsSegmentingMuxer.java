@@ -0,0 +1,683 @@
+package io.kickflip.sdk.av;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.google.common.eventbus.EventBus;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import io.kickflip.sdk.event.HlsManifestWrittenEvent;
+import io.kickflip.sdk.event.HlsPartWrittenEvent;
+import io.kickflip.sdk.event.HlsSegmentWrittenEvent;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Base class for HLS Muxers that cut their own segments and write their own playlist.
+ * Subclasses provide the segment container.
+ * <p/>
+ * Segments are cut on the first video keyframe at or beyond the duration set with
+ * {@link #setHlsSegmentDuration(int)}. If {@link #setAudioOnly(boolean) audio-only},
+ * every audio frame is independently decodable, so segments are cut on the first audio frame instead.
+ * With video, a {@link io.kickflip.sdk.av.KeyframeScheduler} requests a keyframe from the video
+ * encoder for each segment boundary, so segments are of uniform duration. The video encoder may be
+ * replaced mid-stream, e.g: at a lower resolution, per {@link #beginVideoFormatChange()}. Output mirrors FFmpeg's HLS muxer so
+ * {@link io.kickflip.sdk.av.HlsFileObserver} works unchanged: each segment is closed
+ * before the playlist is re-written, and the playlist is replaced by rename.
+ * <p/>
+ * Alternatively, with {@link #setInMemoryOutput(boolean, boolean)}, segments and playlist
+ * snapshots are posted directly to the EventBus set with {@link #setEventBus}, and are only
+ * written to disk if requested.
+ * <p/>
+ * Writes on the calling encoder thread.
+ *
+ * @hide
+ */
+public abstract class HlsSegmentingMuxer extends Muxer {
+    private static final String TAG = "HlsSegmentingMuxer";
+    private static final boolean VERBOSE = false;
+
+    private static final int PLAYLIST_WINDOW = 5;           // Segments listed in the live playlist
+    private static final int SEGMENT_BUFFER_SIZE = 1024 * 1024;
+    private static final int MAX_FREE_SEGMENT_BUFFERS = 2;
+    private static final int PART_BUFFER_SIZE = 128 * 1024;
+    private static final int MAX_FREE_PART_BUFFERS = 4;
+    private static final int PART_SEGMENTS_LISTED = 2;      // Completed segments whose parts remain in the playlist
+    private static final int PART_HOLD_BACK_TARGETS = 3;    // PART-HOLD-BACK as a multiple of PART-TARGET
+
+    private static class Segment {
+        final int index;
+        final String name;
+        final double durationSec;
+        final boolean discontinuity;                        // Begins with a new video format
+
+        Segment(int index, String name, double durationSec, boolean discontinuity) {
+            this.index = index;
+            this.name = name;
+            this.durationSec = durationSec;
+            this.discontinuity = discontinuity;
+        }
+    }
+
+    private static class Part {
+        final int segmentIndex;
+        final String name;
+        final double durationSec;
+        final boolean independent;                          // Begins with a keyframe
+
+        Part(int segmentIndex, String name, double durationSec, boolean independent) {
+            this.segmentIndex = segmentIndex;
+            this.name = name;
+            this.durationSec = durationSec;
+            this.independent = independent;
+        }
+    }
+
+    private final File mOutputDir;
+    private final File mPlaylistFile;
+    private final File mPlaylistTempFile;
+    private final String mSegmentBaseName;
+
+    protected int mVideoTrackIndex = -1;
+    protected int mAudioTrackIndex = -1;
+    private int mRetiringVideoTrackIndex = -1;              // Written until its replacement's first keyframe
+    private boolean mRetiringTrackFinished;                 // Has the retiring track been counted finished
+    private boolean mStarted;
+    private boolean mFinished;
+
+    private boolean mInMemory;                              // Post output to EventBus rather than disk
+    private boolean mSpillToDisk;                           // Also write in-memory output to disk
+    private final ConcurrentLinkedQueue<HlsSegmentBuffer> mFreeSegmentBuffers = new ConcurrentLinkedQueue<>();
+
+    // Low-Latency HLS partial segments
+    private long mPartTargetUs;                             // 0 if partial segments are disabled
+    private boolean mCanBlockReload;
+    private int mPartIndex;                                 // Index of the part in progress within its segment
+    private long mPartStartPts;
+    private int mPartStartOffset;                           // Offset of the part in progress within mSegmentBuffer
+    private boolean mPartIndependent;
+    private long mLastSyncTrackPts;                         // Of the track segments are cut on
+    private long mSyncFrameIntervalUs;
+    private final KeyframeScheduler mKeyframeScheduler = new KeyframeScheduler();
+    private final ArrayDeque<Part> mParts = new ArrayDeque<>();
+    private final ConcurrentLinkedQueue<HlsSegmentBuffer> mFreePartBuffers = new ConcurrentLinkedQueue<>();
+
+    private WritableByteChannel mSegmentChannel;            // Non-null while a segment is open
+    private FileOutputStream mSegmentStream;
+    private HlsSegmentBuffer mSegmentBuffer;
+    private int mSegmentIndex;
+    private long mSegmentStartPts;
+    private long mLastWrittenPts;
+    private final ArrayDeque<Segment> mSegments = new ArrayDeque<>();
+    private boolean mSegmentDiscontinuity;                  // The segment in progress, or next to start, begins with a new video format
+    private int mMediaSequence;
+    private int mDiscontinuitySequence;
+    private int mTargetDurationSec;
+
+    /**
+     * @param outputFile the absolute path of the HLS playlist e.g: /sdcard/app/uuid/index.m3u8.
+     *                   Segments are written alongside it.
+     */
+    protected HlsSegmentingMuxer(String outputFile, FORMAT format) {
+        super(outputFile, format);
+        File playlist = new File(outputFile);
+        mOutputDir = playlist.getParentFile();
+        mPlaylistFile = playlist;
+        mPlaylistTempFile = new File(mOutputDir, playlist.getName() + ".tmp");
+        String name = playlist.getName();
+        mSegmentBaseName = name.endsWith(".m3u8") ? name.substring(0, name.length() - 5) : name;
+    }
+
+    /**
+     * @return the segment filename extension, without a leading period e.g: ts
+     */
+    protected abstract String getSegmentExtension();
+
+    /**
+     * Called once per track, before any samples are written.
+     */
+    protected abstract void onTrackAdded(int trackIndex, MediaFormat trackFormat, boolean isVideo);
+
+    /**
+     * Called with each BUFFER_FLAG_CODEC_CONFIG buffer.
+     */
+    protected void onCodecConfig(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+    }
+
+    /**
+     * @return the filename of the initialization segment referenced by EXT-X-MAP,
+     * or null if the container has none
+     */
+    protected String getInitSegmentName() {
+        return null;
+    }
+
+    /**
+     * Write the initialization segment. Only called if {@link #getInitSegmentName()}
+     * is non-null, immediately before the first segment begins.
+     */
+    protected void writeInitSegment(WritableByteChannel channel) throws IOException {
+    }
+
+    /**
+     * Begin an independently fetchable unit of output: a segment, or a partial segment.
+     * Subsequent samples are written to channel.
+     */
+    protected abstract void startFragment(WritableByteChannel channel) throws IOException;
+
+    /**
+     * Write a sample to the fragment in progress.
+     *
+     * @param ptsUs       presentation time relative to the start of the session
+     * @param encodedData the sample, between position and limit
+     */
+    protected abstract void writeSample(int trackIndex, long ptsUs, boolean isKeyframe, ByteBuffer encodedData) throws IOException;
+
+    /**
+     * End the fragment in progress. All of its output must reach the channel
+     * given to {@link #startFragment} before this returns.
+     */
+    protected abstract void finishFragment() throws IOException;
+
+    protected String getSegmentBaseName() {
+        return mSegmentBaseName;
+    }
+
+    /**
+     * Deliver segments and playlist snapshots in memory via
+     * {@link io.kickflip.sdk.event.HlsSegmentWrittenEvent} and
+     * {@link io.kickflip.sdk.event.HlsManifestWrittenEvent}.
+     * Must be called before tracks are added.
+     *
+     * @param inMemory    whether to deliver output in memory
+     * @param spillToDisk whether in-memory output should also be written to disk e.g: for a local recording
+     */
+    public synchronized void setInMemoryOutput(boolean inMemory, boolean spillToDisk) {
+        checkState(mNumTracks == 0, "setInMemoryOutput must be called before tracks are added");
+        mInMemory = inMemory;
+        mSpillToDisk = spillToDisk;
+    }
+
+    /**
+     * Produce Low-Latency HLS: each segment is also delivered as partial segments via
+     * {@link io.kickflip.sdk.event.HlsPartWrittenEvent}, and the playlist is re-posted as
+     * each part completes with EXT-X-PART, EXT-X-PRELOAD-HINT and EXT-X-SERVER-CONTROL tags.
+     * Requires in-memory output. Must be called before tracks are added.
+     *
+     * @param partTargetMs   the maximum partial segment duration, typically 200 - 500 ms. 0 disables
+     * @param canBlockReload whether the origin serving the playlist supports blocking
+     *                       playlist reload via the _HLS_msn and _HLS_part query parameters
+     */
+    public synchronized void setLowLatencyParts(int partTargetMs, boolean canBlockReload) {
+        checkState(mNumTracks == 0, "setLowLatencyParts must be called before tracks are added");
+        checkState(partTargetMs == 0 || mInMemory, "Partial segments require in-memory output");
+        mPartTargetUs = partTargetMs * 1000L;
+        mCanBlockReload = canBlockReload;
+    }
+
+    @Override
+    public synchronized boolean isHlsOutputInMemory() {
+        return mInMemory;
+    }
+
+    @Override
+    public String getHlsInitSegmentName() {
+        return getInitSegmentName();
+    }
+
+    @Override
+    public synchronized int addTrack(MediaFormat trackFormat) {
+        int trackIndex = super.addTrack(trackFormat);
+        boolean isVideo = trackFormat.getString(MediaFormat.KEY_MIME).compareTo("video/avc") == 0;
+        if (mStarted) {
+            if (!isVideo || mRetiringVideoTrackIndex == -1 || mVideoTrackIndex != mRetiringVideoTrackIndex)
+                throw new RuntimeException("format changed twice");
+            // The replacement of a video track retiring per beginVideoFormatChange
+            mVideoTrackIndex = trackIndex;
+            finishRetiringTrack();      // The retired track's encoder may not signal end of stream
+            onTrackAdded(trackIndex, trackFormat, true);
+            return trackIndex;
+        }
+        checkState(!(isVideo && isAudioOnly()), "Video track added to audio-only Muxer");
+        if (isVideo) {
+            mVideoTrackIndex = trackIndex;
+        } else {
+            mAudioTrackIndex = trackIndex;
+            mTimestamps.setReferenceTrack(trackIndex);
+        }
+        onTrackAdded(trackIndex, trackFormat, isVideo);
+        if (allTracksAdded()) {
+            mStarted = true;
+        }
+        return trackIndex;
+    }
+
+    @Override
+    public synchronized boolean isStarted() {
+        return mStarted;
+    }
+
+    /**
+     * Segments of a new video format would need their own initialization
+     * segment, so only containers without one support format changes.
+     */
+    @Override
+    public synchronized boolean supportsVideoFormatChange() {
+        return getInitSegmentName() == null && !isAudioOnly();
+    }
+
+    /**
+     * The replacement video track's first keyframe ends the segment in progress, and begins
+     * one marked with EXT-X-DISCONTINUITY. Call when {@link #isSegmentBoundaryDue()} so that
+     * segment ends about on time.
+     */
+    @Override
+    public synchronized void beginVideoFormatChange() {
+        if (!supportsVideoFormatChange()) super.beginVideoFormatChange();
+        checkState(mStarted && mVideoTrackIndex != -1, "No video track to replace");
+        checkState(mRetiringVideoTrackIndex == -1, "A video format change is already in progress");
+        mRetiringVideoTrackIndex = mVideoTrackIndex;
+        mRetiringTrackFinished = false;
+    }
+
+    /**
+     * Count the retiring video track finished, once. Called when its replacement
+     * is added, and on its end of stream, whichever comes first.
+     */
+    private void finishRetiringTrack() {
+        if (mRetiringTrackFinished) return;
+        mRetiringTrackFinished = true;
+        mNumTracksFinished++;
+    }
+
+    /**
+     * @return true when the keyframe requested for the next segment boundary is due, and
+     * no video format change is in progress
+     */
+    @Override
+    public synchronized boolean isSegmentBoundaryDue() {
+        return mStarted && !mFinished && mSegmentChannel != null && mRetiringVideoTrackIndex == -1
+                && mKeyframeScheduler.isDue(mLastSyncTrackPts);
+    }
+
+    @Override
+    public synchronized void writeSampleData(MediaCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        if (trackIndex != mVideoTrackIndex && trackIndex != mAudioTrackIndex && trackIndex != mRetiringVideoTrackIndex) {
+            // Output of a retired video track's encoder after its replacement began
+            releaseOutputBuffer(encoder, bufferIndex);
+            return;
+        }
+        if (trackIndex == mRetiringVideoTrackIndex && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            finishRetiringTrack();
+        } else {
+            super.writeSampleData(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+        }
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            onCodecConfig(trackIndex, encodedData, bufferInfo);
+            releaseOutputBuffer(encoder, bufferIndex);
+            return;
+        }
+
+        if (bufferInfo.size > 0 && mStarted && !mFinished) {
+            muxSample(encoder, trackIndex, encodedData, bufferInfo);
+        } else if (VERBOSE) {
+            Log.d(TAG, "ignoring packet. size: " + bufferInfo.size + " started: " + mStarted);
+        }
+        releaseOutputBuffer(encoder, bufferIndex);
+
+        if (allTracksFinished()) {
+            stop();
+        }
+    }
+
+    @Override
+    public synchronized void forceStop() {
+        stop();
+    }
+
+    private void muxSample(MediaCodec encoder, int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        // Segments and parts are cut on video, or on audio if there is no video
+        boolean isVideo = trackIndex == mVideoTrackIndex || trackIndex == mRetiringVideoTrackIndex;
+        boolean isSyncTrack = isVideo || (isAudioOnly() && trackIndex == mAudioTrackIndex);
+        boolean isKeyframe = isSyncTrack &&
+                (isAudioOnly() || (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+        boolean isReplacement = trackIndex == mVideoTrackIndex && mRetiringVideoTrackIndex != -1
+                && mRetiringVideoTrackIndex != mVideoTrackIndex;
+        if ((mSegmentChannel == null || isReplacement) && !isKeyframe) {
+            // Each segment, including the first, and each new video format must begin with a keyframe
+            return;
+        }
+        long pts = getNextRelativePts(bufferInfo.presentationTimeUs, trackIndex);
+        try {
+            if (isReplacement) {
+                // The new format begins a new segment, with a discontinuity
+                mRetiringVideoTrackIndex = -1;
+                if (mSegmentChannel != null) {
+                    Segment segment = finishSegment(pts, true);
+                    writePlaylist(segment, false);
+                }
+                startSegment(pts, true);
+            } else if (mSegmentChannel == null) {
+                startSegment(pts, false);
+            } else if (isKeyframe && pts - mSegmentStartPts + mSyncFrameIntervalUs / 2 >= mHlsSegmentDurationSec * 1000000L) {
+                // Allow half a frame of slack so timestamp rounding doesn't push the cut a whole GOP later
+                Segment segment = finishSegment(pts, false);
+                writePlaylist(segment, false);
+                startSegment(pts, false);
+            } else if (isSyncTrack && mPartTargetUs > 0
+                    && (pts - mPartStartPts + mSyncFrameIntervalUs > mPartTargetUs
+                    || (isKeyframe && !isAudioOnly() && pts > mPartStartPts))) {
+                // Cut before this frame would carry the part past its target duration,
+                // or so a requested keyframe begins an independent part players can join at
+                finishPart(pts);
+                writePlaylist(null, false);
+                startPart(pts, isKeyframe);
+            }
+            if (isSyncTrack) {
+                if (pts > mLastSyncTrackPts) mSyncFrameIntervalUs = pts - mLastSyncTrackPts;
+                mLastSyncTrackPts = pts;
+            }
+
+            encodedData.position(bufferInfo.offset);
+            encodedData.limit(bufferInfo.offset + bufferInfo.size);
+            writeSample(trackIndex, pts, isKeyframe, encodedData);
+            mLastWrittenPts = Math.max(mLastWrittenPts, pts);
+            if (isVideo && mKeyframeScheduler.onVideoFrame(pts, isKeyframe)) {
+                AndroidEncoder.requestKeyframe(encoder);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write HLS segment", e);
+        }
+    }
+
+    private void stop() {
+        if (mFinished) return;
+        mFinished = true;
+        try {
+            Segment segment = null;
+            if (mSegmentChannel != null) {
+                segment = finishSegment(mLastWrittenPts, false);
+            }
+            writePlaylist(segment, true);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to finish HLS output", e);
+        }
+        release();
+    }
+
+    /**
+     * @param discontinuity whether the segment begins with a new video format
+     */
+    private void startSegment(long pts, boolean discontinuity) throws IOException {
+        if (mSegmentIndex == 0 && getInitSegmentName() != null) {
+            writeInitSegment();
+        }
+        String name = getSegmentName(mSegmentIndex);
+        if (VERBOSE) Log.i(TAG, "Starting segment " + name + (mInMemory ? " in memory" : ""));
+        if (mInMemory) {
+            mSegmentBuffer = mFreeSegmentBuffers.poll();
+            if (mSegmentBuffer == null) {
+                mSegmentBuffer = new HlsSegmentBuffer(SEGMENT_BUFFER_SIZE, mSegmentRecycler);
+            }
+            mSegmentBuffer.reset(name);
+            mSegmentChannel = mSegmentBuffer;
+        } else {
+            mSegmentStream = new FileOutputStream(new File(mOutputDir, name));
+            mSegmentChannel = mSegmentStream.getChannel();
+        }
+        mSegmentStartPts = pts;
+        mSegmentDiscontinuity = discontinuity;
+        if (mVideoTrackIndex != -1) {
+            // The boundary at which muxSample will cut, allowing its half frame of slack
+            mKeyframeScheduler.setTarget(pts + mHlsSegmentDurationSec * 1000000L - mSyncFrameIntervalUs / 2);
+        }
+        if (mPartTargetUs > 0) {
+            startPart(pts, true);
+        } else {
+            startFragment(mSegmentChannel);
+        }
+    }
+
+    /**
+     * Write the initialization segment to disk, triggering CLOSE_WRITE,
+     * or post it to the EventBus.
+     */
+    private void writeInitSegment() throws IOException {
+        String name = getInitSegmentName();
+        if (mInMemory) {
+            HlsSegmentBuffer init = new HlsSegmentBuffer(PART_BUFFER_SIZE, null);
+            init.reset(name);
+            writeInitSegment(init);
+            init.close();
+            postSegment(init);
+        } else {
+            FileOutputStream stream = new FileOutputStream(new File(mOutputDir, name));
+            try {
+                writeInitSegment(stream.getChannel());
+            } finally {
+                stream.close();
+            }
+        }
+    }
+
+    /**
+     * Close the current segment, triggering CLOSE_WRITE or posting it
+     * to the EventBus, and add it to the playlist.
+     *
+     * @param endPts            the presentation time at which the next segment begins
+     * @param nextDiscontinuity whether the next segment begins with a new video format. The playlist
+     *                          written before it starts lists its preload hint, so this must be known now
+     * @return the completed Segment
+     */
+    private Segment finishSegment(long endPts, boolean nextDiscontinuity) throws IOException {
+        if (mPartTargetUs > 0) {
+            finishPart(endPts);
+        } else {
+            finishFragment();
+        }
+        mSegmentChannel.close();
+        mSegmentChannel = null;
+        if (mInMemory) {
+            postSegment(mSegmentBuffer);
+            mSegmentBuffer = null;
+        } else {
+            mSegmentStream = null;
+        }
+
+        double durationSec = (endPts - mSegmentStartPts) / 1000000.0;
+        Segment segment = new Segment(mSegmentIndex, getSegmentName(mSegmentIndex), durationSec, mSegmentDiscontinuity);
+        mSegments.addLast(segment);
+        if (mSegments.size() > PLAYLIST_WINDOW) {
+            if (mSegments.removeFirst().discontinuity) mDiscontinuitySequence++;
+            mMediaSequence++;
+        }
+        mTargetDurationSec = Math.max(mTargetDurationSec, (int) Math.ceil(durationSec));
+        mSegmentIndex++;
+        mPartIndex = 0;
+        mSegmentDiscontinuity = nextDiscontinuity;
+        return segment;
+    }
+
+    /**
+     * Begin a partial segment as a new fragment, so
+     * it can be fetched and decoded on its own.
+     */
+    private void startPart(long pts, boolean independent) throws IOException {
+        mPartStartOffset = mSegmentBuffer.getSize();
+        mPartStartPts = pts;
+        mPartIndependent = independent;
+        startFragment(mSegmentChannel);
+    }
+
+    /**
+     * Copy the bytes written since {@link #startPart} out of the segment
+     * and post them to the EventBus.
+     *
+     * @param endPts the presentation time at which the next part begins
+     */
+    private void finishPart(long endPts) throws IOException {
+        finishFragment();
+        String name = getPartName(mSegmentIndex, mPartIndex);
+        HlsSegmentBuffer part = mFreePartBuffers.poll();
+        if (part == null) {
+            part = new HlsSegmentBuffer(PART_BUFFER_SIZE, mPartRecycler);
+        }
+        part.reset(name);
+        part.write(ByteBuffer.wrap(mSegmentBuffer.getData(), mPartStartOffset, mSegmentBuffer.getSize() - mPartStartOffset));
+        part.close();
+
+        mParts.addLast(new Part(mSegmentIndex, name, (endPts - mPartStartPts) / 1000000.0, mPartIndependent));
+        while (mParts.peekFirst().segmentIndex < mSegmentIndex - PART_SEGMENTS_LISTED) {
+            mParts.removeFirst();
+        }
+        mPartIndex++;
+
+        EventBus eventBus = getEventBus();
+        if (eventBus != null) {
+            eventBus.post(new HlsPartWrittenEvent(new File(mOutputDir, name).getAbsolutePath(), part));
+        } else {
+            part.release();
+        }
+    }
+
+    /**
+     * Write the playlist to a temporary file and rename it over the
+     * previous playlist, triggering MOVED_TO, or post it to the EventBus.
+     *
+     * @param completedSegment the segment completed since the last playlist, or null
+     */
+    private void writePlaylist(Segment completedSegment, boolean endList) throws IOException {
+        boolean lowLatency = mPartTargetUs > 0;
+        String initSegmentName = getInitSegmentName();
+        StringBuilder playlist = new StringBuilder();
+        playlist.append("#EXTM3U\n");
+        // EXT-X-MAP outside an I-frame playlist requires version 6, fMP4 segments version 7
+        playlist.append(initSegmentName != null ? "#EXT-X-VERSION:7\n" : lowLatency ? "#EXT-X-VERSION:6\n" : "#EXT-X-VERSION:3\n");
+        playlist.append("#EXT-X-TARGETDURATION:").append(Math.max(mTargetDurationSec, mHlsSegmentDurationSec)).append('\n');
+        if (lowLatency) {
+            double partTargetSec = mPartTargetUs / 1000000.0;
+            playlist.append("#EXT-X-SERVER-CONTROL:");
+            if (mCanBlockReload) playlist.append("CAN-BLOCK-RELOAD=YES,");
+            playlist.append(String.format(Locale.US, "PART-HOLD-BACK=%.3f\n", partTargetSec * PART_HOLD_BACK_TARGETS));
+            playlist.append(String.format(Locale.US, "#EXT-X-PART-INF:PART-TARGET=%.3f\n", partTargetSec));
+        }
+        playlist.append("#EXT-X-MEDIA-SEQUENCE:").append(mMediaSequence).append('\n');
+        if (mDiscontinuitySequence > 0) {
+            playlist.append("#EXT-X-DISCONTINUITY-SEQUENCE:").append(mDiscontinuitySequence).append('\n');
+        }
+        if (initSegmentName != null) {
+            playlist.append("#EXT-X-MAP:URI=\"").append(initSegmentName).append("\"\n");
+        }
+        for (Segment segment : mSegments) {
+            // A discontinuity precedes the segment's parts too
+            if (segment.discontinuity) playlist.append("#EXT-X-DISCONTINUITY\n");
+            if (lowLatency) appendParts(playlist, segment.index);
+            appendSegmentEntry(playlist, segment);
+        }
+        if (lowLatency && !endList) {
+            // Parts of the segment in progress, and a hint for the part being written
+            if (mSegmentDiscontinuity) playlist.append("#EXT-X-DISCONTINUITY\n");
+            appendParts(playlist, mSegmentIndex);
+            playlist.append("#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"")
+                    .append(getPartName(mSegmentIndex, mPartIndex)).append("\"\n");
+        }
+        if (endList) {
+            playlist.append("#EXT-X-ENDLIST\n");
+        }
+
+        if (mInMemory) {
+            EventBus eventBus = getEventBus();
+            if (eventBus != null) {
+                String segmentEntry = null;
+                if (completedSegment != null) {
+                    StringBuilder entry = new StringBuilder();
+                    if (completedSegment.discontinuity) entry.append("#EXT-X-DISCONTINUITY\n");
+                    appendSegmentEntry(entry, completedSegment);
+                    segmentEntry = entry.toString();
+                }
+                eventBus.post(new HlsManifestWrittenEvent(mPlaylistFile.getAbsolutePath(),
+                        playlist.toString(), segmentEntry, endList));
+            }
+            if (!mSpillToDisk) return;
+        }
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(mPlaylistTempFile), "UTF-8");
+        try {
+            writer.write(playlist.toString());
+        } finally {
+            writer.close();
+        }
+        if (!mPlaylistTempFile.renameTo(mPlaylistFile)) {
+            throw new IOException("Failed to rename " + mPlaylistTempFile + " to " + mPlaylistFile);
+        }
+    }
+
+    private static void appendSegmentEntry(StringBuilder playlist, Segment segment) {
+        playlist.append(String.format(Locale.US, "#EXTINF:%f,\n", segment.durationSec));
+        playlist.append(segment.name).append('\n');
+    }
+
+    private void appendParts(StringBuilder playlist, int segmentIndex) {
+        for (Part part : mParts) {
+            if (part.segmentIndex != segmentIndex) continue;
+            playlist.append(String.format(Locale.US, "#EXT-X-PART:DURATION=%.5f,URI=\"%s\"", part.durationSec, part.name));
+            if (part.independent) playlist.append(",INDEPENDENT=YES");
+            playlist.append('\n');
+        }
+    }
+
+    /**
+     * Hand a finished in-memory segment to EventBus subscribers,
+     * who are responsible for releasing it.
+     */
+    private void postSegment(HlsSegmentBuffer segment) throws IOException {
+        File file = new File(mOutputDir, segment.getName());
+        if (mSpillToDisk) {
+            segment.writeTo(file);
+        }
+        EventBus eventBus = getEventBus();
+        if (eventBus != null) {
+            eventBus.post(new HlsSegmentWrittenEvent(file.getAbsolutePath(), segment));
+        } else {
+            segment.release();
+        }
+    }
+
+    private final HlsSegmentBuffer.Recycler mSegmentRecycler = new HlsSegmentBuffer.Recycler() {
+        @Override
+        public void recycle(HlsSegmentBuffer buffer) {
+            // Called on the consumer's thread
+            if (mFreeSegmentBuffers.size() < MAX_FREE_SEGMENT_BUFFERS) {
+                mFreeSegmentBuffers.add(buffer);
+            }
+        }
+    };
+
+    private final HlsSegmentBuffer.Recycler mPartRecycler = new HlsSegmentBuffer.Recycler() {
+        @Override
+        public void recycle(HlsSegmentBuffer buffer) {
+            if (mFreePartBuffers.size() < MAX_FREE_PART_BUFFERS) {
+                mFreePartBuffers.add(buffer);
+            }
+        }
+    };
+
+    private String getSegmentName(int index) {
+        return mSegmentBaseName + index + "." + getSegmentExtension();
+    }
+
+    private String getPartName(int segmentIndex, int partIndex) {
+        return mSegmentBaseName + segmentIndex + "." + partIndex + "." + getSegmentExtension();
+    }
+}
@@ -0,0 +1,98 @@
+package io.kickflip.sdk.av;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Decides when to request a sync frame from a video encoder so that one lands on
+ * each HLS segment boundary, rather than wherever the encoder's I-frame interval puts it.
+ * <p/>
+ * An encoder honors a request some frames after it's made, as frames already submitted are
+ * encoded first. That latency is measured from each request to the next sync frame output,
+ * and subsequent requests are made that far ahead of the boundary. A sync frame that arrives
+ * early leaves the boundary due, and so is followed by another request.
+ * <p/>
+ * Timestamps may be relative or absolute, but must be consistent.
+ * Called only on the thread writing video to the Muxer.
+ *
+ * @hide
+ */
+public class KeyframeScheduler {
+
+    private static final long MAX_LEAD_US = 500 * 1000;
+    private static final long REQUEST_TIMEOUT_US = 1000 * 1000;     // Re-request if not honored within
+
+    private long mTargetUs = -1;                        // The earliest pts the next boundary's sync frame may have
+    private long mRequestedAtUs = -1;                   // Pts of the frame output when last requested, or -1
+    private long mLeadUs;                               // Measured latency beyond the next frame
+    private long mFrameIntervalUs;
+    private long mLastPtsUs = -1;
+    private long mRequests;
+
+    /**
+     * Set the earliest presentation time the next boundary's sync frame may have,
+     * e.g: when a segment begins. Negative disables requests until set again.
+     */
+    public void setTarget(long targetUs) {
+        mTargetUs = targetUs;
+    }
+
+    public long getTarget() {
+        return mTargetUs;
+    }
+
+    /**
+     * Observe a frame of encoder output.
+     *
+     * @param ptsUs      the frame's presentation time
+     * @param isKeyframe whether the frame is a sync frame
+     * @return true if a sync frame should be requested from the encoder now
+     */
+    public boolean onVideoFrame(long ptsUs, boolean isKeyframe) {
+        if (mLastPtsUs >= 0 && ptsUs > mLastPtsUs) mFrameIntervalUs = ptsUs - mLastPtsUs;
+        mLastPtsUs = ptsUs;
+        if (isKeyframe) {
+            if (mRequestedAtUs >= 0) {
+                long latencyUs = Math.max(0, ptsUs - mRequestedAtUs - mFrameIntervalUs);
+                mLeadUs = Math.min(MAX_LEAD_US, (mLeadUs + latencyUs) / 2);
+                mRequestedAtUs = -1;
+            }
+            return false;
+        }
+        if (!isDue(ptsUs)) return false;
+        if (mRequestedAtUs >= 0 && ptsUs - mRequestedAtUs < REQUEST_TIMEOUT_US) return false;
+        mRequestedAtUs = ptsUs;
+        mRequests++;
+        return true;
+    }
+
+    /**
+     * @return whether the frame following one at ptsUs should be a sync frame to begin the
+     * next boundary on time, per the measured encoder latency
+     */
+    public boolean isDue(long ptsUs) {
+        return mTargetUs >= 0 && ptsUs + mFrameIntervalUs + mLeadUs >= mTargetUs;
+    }
+
+    /**
+     * @return how far ahead of a boundary requests are made, beyond the frame preceding it
+     */
+    public long getLeadUs() {
+        return mLeadUs;
+    }
+
+    /**
+     * @return the number of sync frames requested
+     */
+    public long getRequestCount() {
+        return mRequests;
+    }
+
+    /**
+     * @return the smallest multiple of intervalUs after originUs that exceeds ptsUs
+     */
+    public static long nextBoundary(long originUs, long intervalUs, long ptsUs) {
+        checkArgument(intervalUs > 0, "intervalUs must be positive");
+        if (ptsUs < originUs) return originUs;
+        return originUs + ((ptsUs - originUs) / intervalUs + 1) * intervalUs;
+    }
+}
@@ -1,15 +1,21 @@
 package io.kickflip.sdk.av;
 
+import android.annotation.TargetApi;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
+import android.media.AudioTimestamp;
 import android.media.MediaCodec;
 import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.Process;
 import android.os.Trace;
 import android.util.Log;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
+import static io.kickflip.sdk.Kickflip.isNougat;
+
 /**
  * Created by davidbrodsky on 1/23/14.
  *
@@ -22,6 +28,12 @@ public class MicrophoneEncoder implements Runnable {
 
     protected static final int SAMPLES_PER_FRAME = 1024;                            // AAC frame size. Audio encoder input size is a multiple of this
     protected static final int AUDIO_FORMAT = AudioFormat.ENCODING_PCM_16BIT;
+    private static final int PCM_RING_FRAMES = 32;                                  // ~0.75 s of mono 44.1 kHz audio
+    private static final long FRAME_WAIT_NS = 50 * 1000 * 1000;                   // About two frames. Longer waits count as underruns
+    private static final long INPUT_BUFFER_TIMEOUT_US = 10 * 1000;                 // Then drain encoder output before retrying
+    private static final int MAX_EOS_INPUT_TRIES = 100;                             // Input buffer waits for the final frames
+    private static final long MIN_READ_BACKOFF_MS = 5;                             // After a failed read, doubling while reads fail
+    private static final long MAX_READ_BACKOFF_MS = 160;
 
     private final Object mReadyFence = new Object();    // Synchronize audio thread readiness
     private boolean mThreadReady;                       // Is audio thread ready
@@ -30,8 +42,17 @@ public class MicrophoneEncoder implements Runnable {
 
     private AudioRecord mAudioRecord;
     private AudioEncoderCore mEncoderCore;
+    private int mChannelCount;
+
+    // Capture
+    private PcmRing mPcmRing;                           // Captured audio awaiting the encoder
+    private AudioProcessorChain mProcessorChain;        // Applied to captured audio before encoding
+    private Thread mCaptureThread;
+    private volatile boolean mCapturing;
+    private AudioTimestamp mAudioTimestamp;             // API 24+. Created on the capture thread
 
     private boolean mRecordingRequested;
+    private volatile boolean mPreRolling;               // Encode before recording is requested, for pre-roll
 
     public MicrophoneEncoder(SessionConfig config) throws IOException {
         init(config);
@@ -41,11 +62,16 @@ public class MicrophoneEncoder implements Runnable {
         mEncoderCore = new AudioEncoderCore(config.getNumAudioChannels(),
                 config.getAudioBitrate(),
                 config.getAudioSamplerate(),
-                config.getMuxer());
+                config.getAudioMuxer());
+        mChannelCount = config.getNumAudioChannels();
+        mPcmRing = new PcmRing(PCM_RING_FRAMES, SAMPLES_PER_FRAME * 2);
+        mProcessorChain = new AudioProcessorChain(config.getAudioProcessors(),
+                config.getAudioSamplerate(), mChannelCount, SAMPLES_PER_FRAME);
         mMediaCodec = null;
         mThreadReady = false;
         mThreadRunning = false;
         mRecordingRequested = false;
+        mPreRolling = config.getPreRollDuration() > 0;
         startThread();
         if (VERBOSE) Log.i(TAG, "Finished init. encoder : " + mEncoderCore.mEncoder);
     }
@@ -66,8 +92,11 @@ public class MicrophoneEncoder implements Runnable {
     public void startRecording() {
         if (VERBOSE) Log.i(TAG, "startRecording");
         synchronized (mRecordingFence) {
-            totalSamplesNum = 0;
-            startPTS = 0;
+            if (!mPreRolling) {
+                // Pre-roll audio is already timestamped continuously
+                totalSamplesNum = 0;
+                startPTS = 0;
+            }
             mRecordingRequested = true;
             mRecordingFence.notify();
         }
@@ -77,6 +106,7 @@ public class MicrophoneEncoder implements Runnable {
         Log.i(TAG, "stopRecording");
         synchronized (mRecordingFence) {
             mRecordingRequested = false;
+            mPreRolling = false;
         }
     }
 
@@ -113,14 +143,13 @@ public class MicrophoneEncoder implements Runnable {
     @Override
     public void run() {
         setupAudioRecord();
-        mAudioRecord.startRecording();
         synchronized (mReadyFence){
             mThreadReady = true;
             mReadyFence.notify();
         }
 
         synchronized (mRecordingFence) {
-            while (!mRecordingRequested) {
+            while (!mRecordingRequested && !mPreRolling) {
                 try {
                     mRecordingFence.wait();
                 } catch (InterruptedException e) {
@@ -129,8 +158,9 @@ public class MicrophoneEncoder implements Runnable {
             }
         }
         if (VERBOSE) Log.i(TAG, "Begin Audio transmission to encoder. encoder : " + mEncoderCore.mEncoder);
+        startCapture();
 
-        while (mRecordingRequested) {
+        while (mRecordingRequested || mPreRolling) {
 
             if (TRACE) Trace.beginSection("drainAudio");
             mEncoderCore.drainEncoder(false);
@@ -143,71 +173,211 @@ public class MicrophoneEncoder implements Runnable {
         }
         mThreadReady = false;
         /*if (VERBOSE) */ Log.i(TAG, "Exiting audio encode loop. Draining Audio Encoder");
+        stopCapture();
         if (TRACE) Trace.beginSection("sendAudio");
         sendAudioToEncoder(true);
         if (TRACE) Trace.endSection();
-        mAudioRecord.stop();
         if (TRACE) Trace.beginSection("drainAudioFinal");
         mEncoderCore.drainEncoder(true);
         if (TRACE) Trace.endSection();
         mEncoderCore.release();
+        Log.i(TAG, "PCM ring overruns: " + mPcmRing.getOverrunCount() + " underruns: " + mPcmRing.getUnderrunCount());
         mThreadRunning = false;
     }
 
+    /**
+     * Start reading AudioRecord into mPcmRing on a dedicated thread,
+     * so a stalled encoder can't delay capture.
+     */
+    private void startCapture() {
+        mAudioRecord.startRecording();
+        mCapturing = true;
+        mCaptureThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                captureAudio();
+            }
+        }, "MicrophoneCapture");
+        mCaptureThread.setPriority(Thread.MAX_PRIORITY);
+        mCaptureThread.start();
+    }
+
+    /**
+     * Stop capture and wait for the capture thread to exit.
+     * Frames captured remain in mPcmRing.
+     */
+    private void stopCapture() {
+        mCapturing = false;
+        try {
+            mCaptureThread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Capture thread body. Each frame is stamped with the capture time of its first
+     * sample: per AudioRecord#getTimestamp where available, else estimated from when
+     * the read returned.
+     * <p/>
+     * Capture ends early on read errors that won't clear. After other failed reads,
+     * it backs off rather than spin at audio priority.
+     */
+    private void captureAudio() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        long capturedSamples = 0;
+        long backoffMs = 0;
+        while (mCapturing) {
+            PcmRing.Frame frame = mPcmRing.claim();
+            int length = mAudioRecord.read(frame.data, SAMPLES_PER_FRAME * 2);
+            long readNs = System.nanoTime();
+            if (length == AudioRecord.ERROR_INVALID_OPERATION || length == AudioRecord.ERROR_BAD_VALUE
+                    || length == AudioRecord.ERROR_DEAD_OBJECT) {
+                Log.e(TAG, "Audio read error " + length + ". Ending capture");
+                break;
+            }
+            if (length <= 0) {
+                if (backoffMs == 0) Log.w(TAG, "Audio read failed: " + length + ". Retrying");
+                backoffMs = Math.min(Math.max(backoffMs * 2, MIN_READ_BACKOFF_MS), MAX_READ_BACKOFF_MS);
+                try {
+                    Thread.sleep(backoffMs);
+                } catch (InterruptedException e) {
+                    // Recheck mCapturing
+                }
+                continue;
+            }
+            backoffMs = 0;
+
+            int samples = length / (2 * mChannelCount);
+            long captureNs = getCaptureTimeNs(capturedSamples, samples, readNs);
+            capturedSamples += samples;
+            frame.size = length;
+            frame.ptsUs = captureNs / 1000L;
+            mPcmRing.publish();
+        }
+        if (mAudioRecord.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
+            mAudioRecord.stop();
+        }
+        mAudioRecord.release();
+    }
+
+    /**
+     * @param position the number of samples per channel read before this frame
+     * @param samples  the number of samples per channel in this frame
+     * @param readNs   when the read of this frame returned, per System.nanoTime()
+     * @return the capture time of the frame's first sample, per System.nanoTime()
+     */
+    @TargetApi(Build.VERSION_CODES.N)
+    private long getCaptureTimeNs(long position, int samples, long readNs) {
+        if (isNougat()) {
+            // Created lazily, as AudioTimestamp doesn't exist on API 18
+            if (mAudioTimestamp == null) mAudioTimestamp = new AudioTimestamp();
+            if (mAudioRecord.getTimestamp(mAudioTimestamp, AudioTimestamp.TIMEBASE_MONOTONIC) == AudioRecord.SUCCESS) {
+                return mAudioTimestamp.nanoTime +
+                        (position - mAudioTimestamp.framePosition) * 1000000000L / mEncoderCore.mSampleRate;
+            }
+        }
+        // The last sample read was captured about when the read returned
+        return readNs - samples * 1000000000L / mEncoderCore.mSampleRate;
+    }
+
     // Variables recycled between calls to sendAudioToEncoder
     MediaCodec mMediaCodec;
     int audioInputBufferIndex;
-    int audioInputLength;
     long audioAbsolutePtsUs;
 
+    /**
+     * Process captured audio from mPcmRing with mProcessorChain, and copy it to the encoder.
+     * Waits briefly for a frame to be captured, then for an encoder input buffer. If none
+     * is free, the frame stays in mPcmRing, to be sent after the caller drains encoder output.
+     *
+     * @param endOfStream if true, send all remaining frames, marking the last as end of stream
+     */
     private void sendAudioToEncoder(boolean endOfStream) {
         if (mMediaCodec == null)
             mMediaCodec = mEncoderCore.getMediaCodec();
         // send current frame data to encoder
         try {
-            ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
-            audioInputBufferIndex = mMediaCodec.dequeueInputBuffer(-1);
-            if (audioInputBufferIndex >= 0) {
-                ByteBuffer inputBuffer = inputBuffers[audioInputBufferIndex];
+            do {
+                PcmRing.Frame frame = endOfStream ? mPcmRing.peek() : mPcmRing.await(FRAME_WAIT_NS);
+                if (frame == null && !endOfStream) return;
+                audioInputBufferIndex = dequeueInputBuffer(endOfStream);
+                if (audioInputBufferIndex < 0) {
+                    if (endOfStream) Log.w(TAG, "No encoder input buffer for final audio");
+                    return;
+                }
+                ByteBuffer inputBuffer = mEncoderCore.getInputBuffer(audioInputBufferIndex);
                 inputBuffer.clear();
-                audioInputLength = mAudioRecord.read(inputBuffer, SAMPLES_PER_FRAME * 2);
-                audioAbsolutePtsUs = (System.nanoTime()) / 1000L;
-                // We divide audioInputLength by 2 because audio samples are
-                // 16bit.
-                audioAbsolutePtsUs = getJitterFreePTS(audioAbsolutePtsUs, audioInputLength / 2);
-
-                if(audioInputLength == AudioRecord.ERROR_INVALID_OPERATION)
-                    Log.e(TAG, "Audio read error: invalid operation");
-                if (audioInputLength == AudioRecord.ERROR_BAD_VALUE)
-                    Log.e(TAG, "Audio read error: bad value");
-//                if (VERBOSE)
-//                    Log.i(TAG, "queueing " + audioInputLength + " audio bytes with pts " + audioAbsolutePtsUs);
-                if (endOfStream) {
+                int flags = 0;
+                int length = 0;
+                if (frame != null) {
+                    if (TRACE) Trace.beginSection("processAudio");
+                    mProcessorChain.process(frame);
+                    if (TRACE) Trace.endSection();
+                    length = frame.size;
+                    frame.data.limit(length);
+                    frame.data.position(0);
+                    inputBuffer.put(frame.data);
+                    // We divide length by 2 because audio samples are
+                    // 16bit.
+                    audioAbsolutePtsUs = getJitterFreePTS(frame.ptsUs, length / 2);
+                    mPcmRing.consume();
+                }
+                if (endOfStream && mPcmRing.peek() == null) {
                     if (VERBOSE) Log.i(TAG, "EOS received in sendAudioToEncoder");
-                    mMediaCodec.queueInputBuffer(audioInputBufferIndex, 0, audioInputLength, audioAbsolutePtsUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                } else {
-                    mMediaCodec.queueInputBuffer(audioInputBufferIndex, 0, audioInputLength, audioAbsolutePtsUs, 0);
+                    flags = MediaCodec.BUFFER_FLAG_END_OF_STREAM;
                 }
-            }
+//                if (VERBOSE)
+//                    Log.i(TAG, "queueing " + length + " audio bytes with pts " + audioAbsolutePtsUs);
+                mMediaCodec.queueInputBuffer(audioInputBufferIndex, 0, length, audioAbsolutePtsUs, flags);
+            } while (endOfStream && mPcmRing.peek() != null);
         } catch (Throwable t) {
             Log.e(TAG, "_offerAudioEncoder exception");
             t.printStackTrace();
         }
     }
 
+    /**
+     * Wait a bounded time for an encoder input buffer. At end of stream, encoder output
+     * is drained between waits, as nothing else will free an input buffer.
+     *
+     * @return the index of the input buffer, or MediaCodec.INFO_TRY_AGAIN_LATER
+     */
+    private int dequeueInputBuffer(boolean endOfStream) {
+        int index = mEncoderCore.dequeueInputBuffer(INPUT_BUFFER_TIMEOUT_US);
+        for (int tries = 1; index < 0 && endOfStream && tries < MAX_EOS_INPUT_TRIES; tries++) {
+            mEncoderCore.drainEncoder(false);
+            index = mEncoderCore.dequeueInputBuffer(INPUT_BUFFER_TIMEOUT_US);
+        }
+        return index;
+    }
+
+    /**
+     * @return the number of captured frames dropped because the encoder fell behind
+     */
+    public long getOverrunCount() {
+        return mPcmRing.getOverrunCount();
+    }
+
+    /**
+     * @return the number of times the encoder waited over two frames' duration for audio to be captured
+     */
+    public long getUnderrunCount() {
+        return mPcmRing.getUnderrunCount();
+    }
+
     long startPTS = 0;
     long totalSamplesNum = 0;
 
     /**
      * Ensures that each audio pts differs by a constant amount from the previous one.
-     * @param bufferPts presentation timestamp in us
+     * @param bufferPts presentation timestamp of the buffer's first sample in us
      * @param bufferSamplesNum the number of samples of the buffer's frame
      * @return
      */
     private long getJitterFreePTS(long bufferPts, long bufferSamplesNum) {
         long correctedPts = 0;
         long bufferDuration = (1000000 * bufferSamplesNum) / (mEncoderCore.mSampleRate);
-        bufferPts -= bufferDuration; // accounts for the delay of acquiring the audio buffer
         if (totalSamplesNum == 0) {
             // reset
             startPTS = bufferPts;
@@ -0,0 +1,112 @@
+package io.kickflip.sdk.av;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * An HLS Muxer that packetizes H.264 Annex-B video and AAC audio into
+ * MPEG-TS segments without FFmpeg.
+ * <p/>
+ * Packetization is performed by {@link io.kickflip.sdk.av.MpegTsWriter},
+ * which has no Android dependencies. Each segment and partial segment begins with
+ * a PAT and PMT so it can be fetched and decoded on its own.
+ *
+ * @hide
+ */
+public class MpegTsHlsMuxer extends HlsSegmentingMuxer {
+    private static final String TAG = "MpegTsHlsMuxer";
+
+    private static final int BUFFER_PACKETS = 348;          // ~64 KB of TS packets staged per write
+
+    private static final byte[] H264_AUD = {0x00, 0x00, 0x00, 0x01, 0x09, (byte) 0xF0};
+
+    private final MpegTsWriter mWriter;
+    private int[] mTrackStreams = {-1, -1};                 // Muxer track index -> MpegTsWriter stream index
+    private int mVideoStream = -1;
+
+    private ByteBuffer mVideoPrefix;                        // AUD
+    private ByteBuffer mKeyframePrefix;                     // AUD + SPS + PPS
+    private final AdtsHeader mAdtsHeader = new AdtsHeader();
+
+    private MpegTsHlsMuxer(String outputFile) {
+        super(outputFile, FORMAT.HLS);
+        mWriter = new MpegTsWriter(BUFFER_PACKETS);
+        mVideoPrefix = ByteBuffer.wrap(H264_AUD);
+    }
+
+    /**
+     * @param outputFile the absolute path of the HLS playlist e.g: /sdcard/app/uuid/index.m3u8.
+     *                   Segments are written alongside it.
+     */
+    public static MpegTsHlsMuxer create(String outputFile) {
+        return new MpegTsHlsMuxer(outputFile);
+    }
+
+    @Override
+    protected String getSegmentExtension() {
+        return "ts";
+    }
+
+    @Override
+    protected void onTrackAdded(int trackIndex, MediaFormat trackFormat, boolean isVideo) {
+        if (trackIndex >= mTrackStreams.length) {
+            mTrackStreams = Arrays.copyOf(mTrackStreams, trackIndex + 1);
+        }
+        if (isVideo) {
+            // A replacement video track continues the existing elementary stream,
+            // its new SPS and PPS following with its first keyframe
+            if (mVideoStream == -1) mVideoStream = mWriter.addStream(MpegTsWriter.STREAM_TYPE_H264);
+            mTrackStreams[trackIndex] = mVideoStream;
+        } else {
+            mTrackStreams[trackIndex] = mWriter.addStream(MpegTsWriter.STREAM_TYPE_AAC_ADTS);
+            configureAdtsHeader(mAdtsHeader, trackFormat);
+        }
+    }
+
+    @Override
+    protected void onCodecConfig(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        if (trackIndex == mVideoTrackIndex) {
+            captureH264MetaData(encodedData, bufferInfo);
+        }
+    }
+
+    @Override
+    protected void startFragment(WritableByteChannel channel) throws IOException {
+        mWriter.setChannel(channel);
+        mWriter.writeTables();
+    }
+
+    @Override
+    protected void writeSample(int trackIndex, long ptsUs, boolean isKeyframe, ByteBuffer encodedData) throws IOException {
+        ByteBuffer prefix;
+        if (trackIndex == mVideoTrackIndex) {
+            prefix = (isKeyframe && mKeyframePrefix != null) ? mKeyframePrefix : mVideoPrefix;
+        } else {
+            prefix = mAdtsHeader.prepare(encodedData.remaining());
+        }
+        mWriter.writeSample(mTrackStreams[trackIndex], ptsUs, ptsUs, isKeyframe, prefix, encodedData);
+    }
+
+    @Override
+    protected void finishFragment() throws IOException {
+        mWriter.flush();
+    }
+
+    /**
+     * Store the SPS and PPS from the encoder's BUFFER_FLAG_CODEC_CONFIG
+     * output, to be written before every keyframe.
+     */
+    private void captureH264MetaData(ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        mKeyframePrefix = ByteBuffer.allocate(H264_AUD.length + bufferInfo.size);
+        mKeyframePrefix.put(H264_AUD);
+        encodedData.position(bufferInfo.offset);
+        encodedData.limit(bufferInfo.offset + bufferInfo.size);
+        mKeyframePrefix.put(encodedData);
+        mKeyframePrefix.flip();
+    }
+}
@@ -0,0 +1,372 @@
+package io.kickflip.sdk.av;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Packetizes elementary stream samples into 188 byte MPEG-2 Transport Stream packets.
+ * <p/>
+ * Writes a single program with up to {@link #MAX_STREAMS} elementary streams.
+ * Each sample becomes one PES packet. The Program Clock Reference is carried in the
+ * adaptation field of the first TS packet of each PES packet on the PCR stream.
+ * <p/>
+ * Output is staged in a re-used direct ByteBuffer and written to the current
+ * {@link java.nio.channels.WritableByteChannel} when full, or on {@link #flush()}.
+ * This class has no Android dependencies, and is not thread-safe.
+ * <p/>
+ * See ISO/IEC 13818-1
+ *
+ * @hide
+ */
+public class MpegTsWriter {
+
+    public static final int TS_PACKET_SIZE = 188;
+    public static final int MAX_STREAMS = 8;
+
+    public static final int STREAM_TYPE_AAC_ADTS = 0x0F;
+    public static final int STREAM_TYPE_H264 = 0x1B;
+
+    private static final int TS_HEADER_SIZE = 4;
+    private static final int TS_PAYLOAD_SIZE = TS_PACKET_SIZE - TS_HEADER_SIZE;
+    private static final int PCR_ADAPTATION_SIZE = 8;           // length + flags + 6 byte PCR
+    private static final int FLAGS_ADAPTATION_SIZE = 2;         // length + flags
+
+    private static final int PAT_PID = 0x0000;
+    private static final int PMT_PID = 0x1000;
+    private static final int FIRST_ES_PID = 0x0100;
+    private static final int PROGRAM_NUMBER = 1;
+
+    private static final int STREAM_ID_VIDEO = 0xE0;
+    private static final int STREAM_ID_AUDIO = 0xC0;
+
+    // Timestamps are offset so PCR may lead PTS / DTS without going negative
+    private static final long TIMESTAMP_OFFSET_90KHZ = 126000;  // 1.4 s
+    private static final long PCR_DELAY_90KHZ = 63000;          // 0.7 s
+
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int j = 0; j < 8; j++) {
+                crc = ((crc & 0x80000000) != 0) ? (crc << 1) ^ 0x04C11DB7 : crc << 1;
+            }
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    private final ByteBuffer mBuffer;
+    private final byte[] mPesHeader = new byte[19];
+    private final byte[] mSection = new byte[TS_PAYLOAD_SIZE];
+    private final int[] mStreamTypes = new int[MAX_STREAMS];
+    private final int[] mContinuity = new int[MAX_STREAMS];
+    private int mNumStreams;
+    private int mPcrStream = -1;
+    private int mPatContinuity;
+    private int mPmtContinuity;
+    private WritableByteChannel mChannel;
+    private long mBytesWritten;
+
+    /**
+     * @param bufferPackets the number of TS packets staged before writing to the channel
+     */
+    public MpegTsWriter(int bufferPackets) {
+        checkArgument(bufferPackets > 0, "bufferPackets must be positive");
+        mBuffer = ByteBuffer.allocateDirect(bufferPackets * TS_PACKET_SIZE);
+    }
+
+    /**
+     * Add an elementary stream to the program. Must be called before {@link #writeTables()}
+     *
+     * @param streamType e.g: {@link #STREAM_TYPE_H264}
+     * @return the stream index, for use with {@link #writeSample}
+     */
+    public int addStream(int streamType) {
+        checkState(mNumStreams < MAX_STREAMS, "Too many streams");
+        mStreamTypes[mNumStreams] = streamType;
+        if (mPcrStream == -1 || (streamType == STREAM_TYPE_H264 && mStreamTypes[mPcrStream] != STREAM_TYPE_H264)) {
+            // Prefer a video stream to carry the PCR
+            mPcrStream = mNumStreams;
+        }
+        return mNumStreams++;
+    }
+
+    public int getNumStreams() {
+        return mNumStreams;
+    }
+
+    /**
+     * Direct subsequent output to channel. Any output staged for a previous
+     * channel should be written with {@link #flush()} first.
+     */
+    public void setChannel(WritableByteChannel channel) {
+        checkState(mBuffer.position() == 0, "Unflushed output for previous channel");
+        mChannel = channel;
+    }
+
+    /**
+     * @return the total number of bytes written to all channels
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Write the Program Association Table and Program Map Table.
+     * Should be called at the start of each independently decodable segment.
+     */
+    public void writeTables() throws IOException {
+        writePat();
+        writePmt();
+    }
+
+    /**
+     * Write a single sample as a PES packet. The PES payload is prefix followed by payload,
+     * so a sample and its header (e.g: ADTS header, or SPS and PPS) need not be contiguous.
+     *
+     * @param streamIndex  a value returned by {@link #addStream(int)}
+     * @param ptsUs        the presentation timestamp in microseconds
+     * @param dtsUs        the decode timestamp in microseconds. Only written if different from ptsUs
+     * @param randomAccess whether decoding may begin at this sample
+     * @param prefix       bytes between position and limit are written before payload. May be null
+     * @param payload      bytes between position and limit are written. Position is advanced to limit
+     */
+    public void writeSample(int streamIndex, long ptsUs, long dtsUs, boolean randomAccess,
+                            ByteBuffer prefix, ByteBuffer payload) throws IOException {
+        checkArgument(streamIndex >= 0 && streamIndex < mNumStreams, "Invalid stream index");
+        long pts = toTimestamp(ptsUs);
+        long dts = toTimestamp(dtsUs);
+        int prefixSize = (prefix == null) ? 0 : prefix.remaining();
+        int headerSize = writePesHeader(streamIndex, pts, dts, prefixSize + payload.remaining());
+        int prefixPosition = (prefix == null) ? 0 : prefix.position();
+
+        int pid = FIRST_ES_PID + streamIndex;
+        int remaining = headerSize + prefixSize + payload.remaining();
+        int headerOffset = 0;
+        boolean first = true;
+        while (remaining > 0) {
+            boolean writePcr = first && streamIndex == mPcrStream;
+            boolean writeRandomAccess = first && randomAccess;
+            int adaptationSize = writePcr ? PCR_ADAPTATION_SIZE : (writeRandomAccess ? FLAGS_ADAPTATION_SIZE : 0);
+            int payloadSize = Math.min(remaining, TS_PAYLOAD_SIZE - adaptationSize);
+            if (payloadSize < TS_PAYLOAD_SIZE - adaptationSize) {
+                // Last packet of this PES. Pad with adaptation field stuffing
+                adaptationSize = TS_PAYLOAD_SIZE - payloadSize;
+            }
+
+            ensureCapacity();
+            writeTsHeader(pid, first, adaptationSize > 0, mContinuity[streamIndex]);
+            mContinuity[streamIndex] = (mContinuity[streamIndex] + 1) & 0x0F;
+            if (adaptationSize > 0) {
+                writeAdaptationField(adaptationSize, writeRandomAccess, writePcr ? dts - PCR_DELAY_90KHZ : -1);
+            }
+
+            int toWrite = payloadSize;
+            if (headerOffset < headerSize) {
+                int n = Math.min(toWrite, headerSize - headerOffset);
+                mBuffer.put(mPesHeader, headerOffset, n);
+                headerOffset += n;
+                toWrite -= n;
+            }
+            if (toWrite > 0 && prefix != null && prefix.hasRemaining()) {
+                toWrite -= putBytes(prefix, toWrite);
+            }
+            if (toWrite > 0) {
+                putBytes(payload, toWrite);
+            }
+            remaining -= payloadSize;
+            first = false;
+        }
+        if (prefix != null) prefix.position(prefixPosition);
+    }
+
+    /**
+     * Write all staged output to the current channel.
+     */
+    public void flush() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mBytesWritten += mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+
+    private void ensureCapacity() throws IOException {
+        if (mBuffer.remaining() < TS_PACKET_SIZE) {
+            flush();
+        }
+    }
+
+    /**
+     * Copy up to maxBytes from src to mBuffer without allocating a view buffer.
+     *
+     * @return the number of bytes copied
+     */
+    private int putBytes(ByteBuffer src, int maxBytes) {
+        int n = Math.min(maxBytes, src.remaining());
+        int limit = src.limit();
+        src.limit(src.position() + n);
+        mBuffer.put(src);
+        src.limit(limit);
+        return n;
+    }
+
+    private void writeTsHeader(int pid, boolean payloadUnitStart, boolean hasAdaptation, int continuity) {
+        mBuffer.put((byte) 0x47);
+        mBuffer.put((byte) ((payloadUnitStart ? 0x40 : 0x00) | ((pid >> 8) & 0x1F)));
+        mBuffer.put((byte) (pid & 0xFF));
+        mBuffer.put((byte) ((hasAdaptation ? 0x30 : 0x10) | (continuity & 0x0F)));
+    }
+
+    /**
+     * @param size total adaptation field size, including the length byte
+     * @param pcr  the 90 kHz PCR base to write, or -1 to omit the PCR
+     */
+    private void writeAdaptationField(int size, boolean randomAccess, long pcr) {
+        mBuffer.put((byte) (size - 1));
+        if (size == 1) return;
+        mBuffer.put((byte) ((randomAccess ? 0x40 : 0x00) | (pcr >= 0 ? 0x10 : 0x00)));
+        int written = 2;
+        if (pcr >= 0) {
+            mBuffer.put((byte) (pcr >> 25));
+            mBuffer.put((byte) (pcr >> 17));
+            mBuffer.put((byte) (pcr >> 9));
+            mBuffer.put((byte) (pcr >> 1));
+            mBuffer.put((byte) (((pcr & 1) << 7) | 0x7E));
+            mBuffer.put((byte) 0x00);
+            written += 6;
+        }
+        for (; written < size; written++) {
+            mBuffer.put((byte) 0xFF);
+        }
+    }
+
+    /**
+     * Write the PES header for a sample into mPesHeader.
+     *
+     * @return the PES header size in bytes
+     */
+    private int writePesHeader(int streamIndex, long pts, long dts, int payloadSize) {
+        boolean writeDts = dts != pts;
+        int headerDataSize = writeDts ? 10 : 5;
+        int pesPacketLength = 3 + headerDataSize + payloadSize;
+        if (pesPacketLength > 0xFFFF) {
+            // Unbounded length is permitted for video streams
+            pesPacketLength = 0;
+        }
+        byte[] h = mPesHeader;
+        h[0] = 0x00;
+        h[1] = 0x00;
+        h[2] = 0x01;
+        h[3] = (byte) (mStreamTypes[streamIndex] == STREAM_TYPE_H264 ? STREAM_ID_VIDEO : STREAM_ID_AUDIO);
+        h[4] = (byte) (pesPacketLength >> 8);
+        h[5] = (byte) pesPacketLength;
+        h[6] = (byte) 0x80;                                 // '10' marker, no scrambling
+        h[7] = (byte) (writeDts ? 0xC0 : 0x80);             // PTS / DTS flags
+        h[8] = (byte) headerDataSize;
+        writeTimestamp(h, 9, writeDts ? 0x3 : 0x2, pts);
+        if (writeDts) {
+            writeTimestamp(h, 14, 0x1, dts);
+        }
+        return 9 + headerDataSize;
+    }
+
+    private static void writeTimestamp(byte[] dst, int offset, int prefix, long ts) {
+        dst[offset] = (byte) ((prefix << 4) | ((ts >> 29) & 0x0E) | 0x01);
+        dst[offset + 1] = (byte) (ts >> 22);
+        dst[offset + 2] = (byte) (((ts >> 14) & 0xFE) | 0x01);
+        dst[offset + 3] = (byte) (ts >> 7);
+        dst[offset + 4] = (byte) (((ts << 1) & 0xFE) | 0x01);
+    }
+
+    private void writePat() throws IOException {
+        int i = 0;
+        byte[] s = mSection;
+        s[i++] = 0x00;                                      // table_id: program_association_section
+        int lengthOffset = i;
+        i += 2;
+        s[i++] = 0x00;                                      // transport_stream_id
+        s[i++] = 0x01;
+        s[i++] = (byte) 0xC1;                               // version 0, current_next_indicator
+        s[i++] = 0x00;                                      // section_number
+        s[i++] = 0x00;                                      // last_section_number
+        s[i++] = (byte) (PROGRAM_NUMBER >> 8);
+        s[i++] = (byte) PROGRAM_NUMBER;
+        s[i++] = (byte) (0xE0 | (PMT_PID >> 8));
+        s[i++] = (byte) PMT_PID;
+        writeSection(PAT_PID, mPatContinuity, lengthOffset, i);
+        mPatContinuity = (mPatContinuity + 1) & 0x0F;
+    }
+
+    private void writePmt() throws IOException {
+        checkState(mPcrStream != -1, "No streams added");
+        int i = 0;
+        byte[] s = mSection;
+        s[i++] = 0x02;                                      // table_id: TS_program_map_section
+        int lengthOffset = i;
+        i += 2;
+        s[i++] = (byte) (PROGRAM_NUMBER >> 8);
+        s[i++] = (byte) PROGRAM_NUMBER;
+        s[i++] = (byte) 0xC1;                               // version 0, current_next_indicator
+        s[i++] = 0x00;                                      // section_number
+        s[i++] = 0x00;                                      // last_section_number
+        int pcrPid = FIRST_ES_PID + mPcrStream;
+        s[i++] = (byte) (0xE0 | (pcrPid >> 8));
+        s[i++] = (byte) pcrPid;
+        s[i++] = (byte) 0xF0;                               // program_info_length: 0
+        s[i++] = 0x00;
+        for (int stream = 0; stream < mNumStreams; stream++) {
+            int pid = FIRST_ES_PID + stream;
+            s[i++] = (byte) mStreamTypes[stream];
+            s[i++] = (byte) (0xE0 | (pid >> 8));
+            s[i++] = (byte) pid;
+            s[i++] = (byte) 0xF0;                           // ES_info_length: 0
+            s[i++] = 0x00;
+        }
+        writeSection(PMT_PID, mPmtContinuity, lengthOffset, i);
+        mPmtContinuity = (mPmtContinuity + 1) & 0x0F;
+    }
+
+    /**
+     * Complete the PSI section in mSection and write it as a single TS packet.
+     *
+     * @param lengthOffset offset of the section_length field
+     * @param size         size of the section, excluding CRC
+     */
+    private void writeSection(int pid, int continuity, int lengthOffset, int size) throws IOException {
+        byte[] s = mSection;
+        int sectionLength = size - lengthOffset - 2 + 4;    // Bytes following section_length, including CRC
+        s[lengthOffset] = (byte) (0xB0 | (sectionLength >> 8));
+        s[lengthOffset + 1] = (byte) sectionLength;
+        int crc = crc32(s, 0, size);
+        s[size] = (byte) (crc >> 24);
+        s[size + 1] = (byte) (crc >> 16);
+        s[size + 2] = (byte) (crc >> 8);
+        s[size + 3] = (byte) crc;
+        size += 4;
+
+        ensureCapacity();
+        writeTsHeader(pid, true, false, continuity);
+        mBuffer.put((byte) 0x00);                           // pointer_field
+        mBuffer.put(s, 0, size);
+        for (int i = size + 1; i < TS_PAYLOAD_SIZE; i++) {
+            mBuffer.put((byte) 0xFF);
+        }
+    }
+
+    private static int crc32(byte[] data, int offset, int length) {
+        int crc = 0xFFFFFFFF;
+        for (int i = offset; i < offset + length; i++) {
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ data[i]) & 0xFF];
+        }
+        return crc;
+    }
+
+    private static long toTimestamp(long us) {
+        return ((us * 90) / 1000 + TIMESTAMP_OFFSET_90KHZ) & 0x1FFFFFFFFL;
+    }
+}
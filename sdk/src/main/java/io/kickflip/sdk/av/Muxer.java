@@ -12,6 +12,7 @@ import java.nio.ByteBuffer;
 import io.kickflip.sdk.event.MuxerFinishedEvent;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 /**
  * Base Muxer class for interaction with MediaCodec based
@@ -21,18 +22,20 @@ import static com.google.common.base.Preconditions.checkNotNull;
 public abstract class Muxer {
     private static final String TAG = "Muxer";
 
-    public static enum FORMAT { MPEG4, HLS }
+    public static enum FORMAT { MPEG4, HLS, CMAF }
 
-    private final int mExpectedNumTracks = 2;           // TODO: Make this configurable?
+    private int mExpectedNumTracks = 2;
+    private boolean mAudioOnly;
 
     protected FORMAT mFormat;
     protected String mOutputPath;
     protected int mNumTracks;
     protected int mNumTracksFinished;
-    protected long mFirstPts;
-    protected long mLastPts[];
+    protected final TimestampNormalizer mTimestamps;
+    protected int mHlsSegmentDurationSec;
 
     private EventBus mEventBus;
+    private boolean mReleasesOutputBuffers = true;      // False when a TeeMuxer shares encoder output
 
     protected Muxer(String outputPath, FORMAT format){
         Log.i(TAG, "Created muxer for output: " + outputPath);
@@ -40,17 +43,62 @@ public abstract class Muxer {
         mFormat = format;
         mNumTracks = 0;
         mNumTracksFinished = 0;
-        mFirstPts = 0;
-        mLastPts = new long[mExpectedNumTracks];
-        for(int i=0; i< mLastPts.length; i++) {
-            mLastPts[i] = 0;
-        }
+        mHlsSegmentDurationSec = 10;
+        mTimestamps = new TimestampNormalizer();
     }
 
     public void setEventBus(EventBus eventBus){
         mEventBus = eventBus;
     }
 
+    protected EventBus getEventBus(){
+        return mEventBus;
+    }
+
+    /**
+     * Does this Muxer deliver finished HLS segments and manifests in memory
+     * via {@link io.kickflip.sdk.event.HlsSegmentWrittenEvent} and
+     * {@link io.kickflip.sdk.event.HlsManifestWrittenEvent}, rather than
+     * leaving them on disk for an {@link io.kickflip.sdk.av.HlsFileObserver}?
+     */
+    public boolean isHlsOutputInMemory(){
+        return false;
+    }
+
+    /**
+     * @return the filename of the HLS initialization segment referenced by
+     * EXT-X-MAP e.g: index_init.mp4, or null if segments need none
+     */
+    public String getHlsInitSegmentName(){
+        return null;
+    }
+
+    /**
+     * Set the target HLS segment duration. Only honored by Muxers
+     * that cut their own segments.
+     *
+     * @param seconds the target segment duration in seconds
+     */
+    public void setHlsSegmentDuration(int seconds){
+        mHlsSegmentDurationSec = seconds;
+    }
+
+    /**
+     * Expect a single audio track, rather than video and audio.
+     * Must be called before tracks are added.
+     *
+     * @throws java.lang.UnsupportedOperationException if this Muxer can't produce audio-only output
+     */
+    public void setAudioOnly(boolean audioOnly){
+        checkState(mNumTracks == 0, "setAudioOnly must be called before tracks are added");
+        mAudioOnly = audioOnly;
+        mExpectedNumTracks = audioOnly ? 1 : 2;
+    }
+
+    public boolean isAudioOnly(){
+        return mAudioOnly;
+    }
+
     /**
      * Returns the absolute output path.
      *
@@ -73,6 +121,33 @@ public abstract class Muxer {
         return mNumTracks - 1;
     }
 
+    /**
+     * Can the video encoder be replaced mid-stream, e.g: by one at a lower resolution?
+     * See {@link #beginVideoFormatChange()}
+     */
+    public boolean supportsVideoFormatChange(){
+        return false;
+    }
+
+    /**
+     * Prepare to replace the video encoder. The current video track may be written until the
+     * replacement encoder adds its track via {@link #addTrack(android.media.MediaFormat)}, and
+     * is then retired. Its encoder may be released without signaling end of stream.
+     *
+     * @throws java.lang.UnsupportedOperationException if {@link #supportsVideoFormatChange()} is false
+     */
+    public void beginVideoFormatChange(){
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support video format changes");
+    }
+
+    /**
+     * Is an HLS segment boundary imminent, so that a keyframe written now would begin the next
+     * segment about on time? Muxers that don't cut their own segments are always at a boundary.
+     */
+    public boolean isSegmentBoundaryDue(){
+        return true;
+    }
+
     /**
      * Called by the hosting Encoder
      * to notify the Muxer that it should no
@@ -91,10 +166,34 @@ public abstract class Muxer {
         return false;
     }
 
+    /**
+     * Whether this Muxer returns encoder output buffers itself. A {@link io.kickflip.sdk.av.TeeMuxer}
+     * disables this for its children, and releases each buffer once the last child is finished with it.
+     */
+    void setReleasesOutputBuffers(boolean releasesOutputBuffers){
+        mReleasesOutputBuffers = releasesOutputBuffers;
+    }
+
+    boolean releasesOutputBuffers(){
+        return mReleasesOutputBuffers;
+    }
+
+    /**
+     * Return an encoder output buffer, unless it's shared with
+     * other Muxers by a {@link io.kickflip.sdk.av.TeeMuxer}, or the packet
+     * isn't an encoder output buffer, as indicated by a negative bufferIndex.
+     */
+    protected void releaseOutputBuffer(MediaCodec encoder, int bufferIndex){
+        if (mReleasesOutputBuffers && bufferIndex >= 0) {
+            encoder.releaseOutputBuffer(bufferIndex, false);
+        }
+    }
+
     /**
      * Write the MediaCodec output buffer. This method <b>must</b>
      * be overridden by subclasses to release encodedData, transferring
-     * ownership back to encoder, by calling encoder.releaseOutputBuffer(bufferIndex, false);
+     * ownership back to encoder, by calling {@link #releaseOutputBuffer(android.media.MediaCodec, int)}
+     * before returning.
      *
      * @param trackIndex
      * @param encodedData
@@ -124,6 +223,29 @@ public abstract class Muxer {
         mNumTracksFinished++;
     }
 
+    /**
+     * Set an ADTS header's fields from an AAC track's MediaFormat, as reported by
+     * MediaCodec's INFO_OUTPUT_FORMAT_CHANGED. Prefers its AudioSpecificConfig (csd-0),
+     * falling back to the AAC profile, sample rate and channel count keys.
+     *
+     * @throws IllegalArgumentException if the channel count has no channel configuration
+     */
+    protected static void configureAdtsHeader(AdtsHeader header, MediaFormat format){
+        if (format.containsKey("csd-0") && header.configure(format.getByteBuffer("csd-0"))) {
+            return;
+        }
+        header.configure(getInteger(format, MediaFormat.KEY_AAC_PROFILE),
+                getInteger(format, MediaFormat.KEY_SAMPLE_RATE),
+                getInteger(format, MediaFormat.KEY_CHANNEL_COUNT));
+    }
+
+    /**
+     * @return the integer value of key in format, or 0 if absent
+     */
+    private static int getInteger(MediaFormat format, String key){
+        return format.containsKey(key) ? format.getInteger(key) : 0;
+    }
+
     /**
      * Does this Muxer's format require AAC ADTS headers?
      * see http://wiki.multimedia.cx/index.php?title=ADTS
@@ -157,30 +279,28 @@ public abstract class Muxer {
 
     /**
      * Return a relative pts given an absolute pts and trackIndex.
+     * Timestamps are normalized per track by {@link io.kickflip.sdk.av.TimestampNormalizer},
+     * which guarantees they increase monotonically.
      *
      * This method advances the state of the Muxer, and must only
      * be called once per call to {@link #writeSampleData(android.media.MediaCodec, int, int, java.nio.ByteBuffer, android.media.MediaCodec.BufferInfo)}.
     */
     protected long getNextRelativePts(long absPts, int trackIndex) {
-        if (mFirstPts == 0) {
-            mFirstPts = absPts;
-            return 0;
-        }
-        return getSafePts(absPts - mFirstPts, trackIndex);
+        return getNextRelativePts(absPts, trackIndex, System.nanoTime() / 1000);
     }
-    
+
     /**
-     * Sometimes packets with non-increasing pts are dequeued from the MediaCodec output buffer.
-     * This method ensures that a crash won't occur due to non monotonically increasing packet timestamp.
+     * @param arrivalUs when the encoder produced the packet, per System.nanoTime() / 1000.
+     *                  Used to measure drift between tracks
      */
-    private long getSafePts(long pts, int trackIndex) {
-        if (mLastPts[trackIndex] >= pts) {
-            // Enforce a non-zero minimum spacing
-            // between pts
-            mLastPts[trackIndex] += 9643;
-            return mLastPts[trackIndex];
-        }
-        mLastPts[trackIndex] = pts;
-        return pts;
+    protected long getNextRelativePts(long absPts, int trackIndex, long arrivalUs) {
+        return mTimestamps.normalize(trackIndex, absPts, absPts, arrivalUs);
+    }
+
+    /**
+     * @return jitter, drift and correction statistics for each track's timestamps
+     */
+    public TimestampNormalizer getTimestampNormalizer() {
+        return mTimestamps;
     }
 }
@@ -0,0 +1,110 @@
+package io.kickflip.sdk.av;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Attenuates audio while its level is below a threshold, silencing
+ * background noise between speech.
+ * <p/>
+ * The gate opens over the attack time once the peak level of any channel reaches the
+ * threshold, stays open for the hold time after it falls below, then closes over the release time.
+ *
+ * @hide
+ */
+public class NoiseGate implements AudioProcessor {
+
+    private final float mThreshold;
+    private final float mFloorGain;
+    private final float mAttackMs;
+    private final float mHoldMs;
+    private final float mReleaseMs;
+
+    private int mChannelCount;
+    private float mEnvelopeDecay;                       // Per sample frame
+    private float mAttackCoefficient;
+    private float mReleaseCoefficient;
+    private int mHoldFrames;
+
+    private float mEnvelope;
+    private float mGain;
+    private int mHoldRemaining;
+
+    /**
+     * @param thresholdDb the level below which the gate closes, in dBFS e.g: -50
+     * @param rangeDb     the attenuation when closed, in dB e.g: -40
+     */
+    public NoiseGate(float thresholdDb, float rangeDb) {
+        this(thresholdDb, rangeDb, 5, 150, 100);
+    }
+
+    /**
+     * @param thresholdDb the level below which the gate closes, in dBFS
+     * @param rangeDb     the attenuation when closed, in dB. Non-positive
+     * @param attackMs    the time taken to open
+     * @param holdMs      the time the gate stays open after the level falls below the threshold
+     * @param releaseMs   the time taken to close
+     */
+    public NoiseGate(float thresholdDb, float rangeDb, float attackMs, float holdMs, float releaseMs) {
+        checkArgument(thresholdDb <= 0, "thresholdDb must be non-positive");
+        checkArgument(rangeDb <= 0, "rangeDb must be non-positive");
+        checkArgument(attackMs > 0 && holdMs >= 0 && releaseMs > 0, "Invalid gate timing");
+        mThreshold = AudioProcessorChain.dbToGain(thresholdDb);
+        mFloorGain = AudioProcessorChain.dbToGain(rangeDb);
+        mAttackMs = attackMs;
+        mHoldMs = holdMs;
+        mReleaseMs = releaseMs;
+    }
+
+    @Override
+    public void configure(int sampleRate, int channelCount) {
+        mChannelCount = channelCount;
+        mEnvelopeDecay = (float) Math.exp(-1000.0 / (10 * sampleRate));        // 10 ms peak decay
+        mAttackCoefficient = smoothingCoefficient(mAttackMs, sampleRate);
+        mReleaseCoefficient = smoothingCoefficient(mReleaseMs, sampleRate);
+        mHoldFrames = (int) (mHoldMs * sampleRate / 1000);
+        mEnvelope = 0;
+        mGain = mFloorGain;
+        mHoldRemaining = 0;
+    }
+
+    @Override
+    public void process(float[] samples, int count) {
+        float envelope = mEnvelope;
+        float gain = mGain;
+        int holdRemaining = mHoldRemaining;
+        for (int frame = 0; frame + mChannelCount <= count; frame += mChannelCount) {
+            float peak = 0;
+            for (int channel = 0; channel < mChannelCount; channel++) {
+                peak = Math.max(peak, Math.abs(samples[frame + channel]));
+            }
+            envelope = Math.max(peak, envelope * mEnvelopeDecay);
+
+            float target;
+            if (envelope >= mThreshold) {
+                holdRemaining = mHoldFrames;
+                target = 1f;
+            } else if (holdRemaining > 0) {
+                holdRemaining--;
+                target = 1f;
+            } else {
+                target = mFloorGain;
+            }
+            gain += (target - gain) * (target > gain ? mAttackCoefficient : mReleaseCoefficient);
+
+            for (int channel = 0; channel < mChannelCount; channel++) {
+                samples[frame + channel] *= gain;
+            }
+        }
+        mEnvelope = envelope;
+        mGain = gain;
+        mHoldRemaining = holdRemaining;
+    }
+
+    /**
+     * @return the per-sample coefficient of a one-pole smoother
+     * reaching ~63% of a step within timeMs
+     */
+    private static float smoothingCoefficient(float timeMs, int sampleRate) {
+        return (float) (1 - Math.exp(-1000.0 / (timeMs * sampleRate)));
+    }
+}
@@ -0,0 +1,154 @@
+package io.kickflip.sdk.av;
+
+import java.util.Locale;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A snapshot of a broadcast's encoded frame sizes, segment sizes and upload rates,
+ * labelled with its keyframe mode.
+ * <p/>
+ * To compare intra refresh against periodic IDR frames, keep the statistics of a broadcast
+ * in each mode, e.g: from {@link io.kickflip.sdk.av.Broadcaster#getOutputStatistics()}, and
+ * pass them to {@link #compare(OutputStatistics, OutputStatistics)}.
+ *
+ * @hide
+ */
+public class OutputStatistics {
+
+    /**
+     * The distributions recorded for a broadcast
+     */
+    public enum Output {
+        FRAME_SIZES, SEGMENT_SIZES, UPLOAD_RATES
+    }
+
+    private final boolean mIntraRefresh;
+    private final int mVideoBitrate;
+    private final SizeDistribution[] mOutputs;          // Indexed by Output ordinal. Frame sizes null if audio-only
+
+    /**
+     * @param frameSizes   encoded video frame bytes, or null if the broadcast is audio-only
+     * @param segmentSizes segment bytes
+     * @param uploadRates  segment upload bytes per second
+     */
+    public OutputStatistics(boolean intraRefresh, int videoBitrate, SizeDistribution frameSizes,
+                            SizeDistribution segmentSizes, SizeDistribution uploadRates) {
+        mIntraRefresh = intraRefresh;
+        mVideoBitrate = videoBitrate;
+        mOutputs = new SizeDistribution[]{
+                frameSizes == null ? null : frameSizes.copy(),
+                checkNotNull(segmentSizes).copy(),
+                checkNotNull(uploadRates).copy()};
+    }
+
+    public boolean isIntraRefresh() {
+        return mIntraRefresh;
+    }
+
+    public int getVideoBitrate() {
+        return mVideoBitrate;
+    }
+
+    /**
+     * @return the distribution of output, or null if it wasn't recorded
+     */
+    public SizeDistribution getDistribution(Output output) {
+        return mOutputs[output.ordinal()];
+    }
+
+    /**
+     * @param periodicIdr  statistics of a broadcast with periodic IDR frames
+     * @param intraRefresh statistics of a broadcast with intra refresh
+     */
+    public static Comparison compare(OutputStatistics periodicIdr, OutputStatistics intraRefresh) {
+        checkArgument(!periodicIdr.isIntraRefresh(), "periodicIdr was recorded with intra refresh");
+        checkArgument(intraRefresh.isIntraRefresh(), "intraRefresh was recorded with periodic IDR frames");
+        return new Comparison(periodicIdr, intraRefresh);
+    }
+
+    /**
+     * Intra refresh's statistics relative to periodic IDR frames'. Ratios below 1 mean
+     * intra refresh's output was steadier. A ratio is NaN if either broadcast lacks the
+     * distribution, or periodic IDR's value is 0.
+     */
+    public static class Comparison {
+        private final OutputStatistics mPeriodicIdr;
+        private final OutputStatistics mIntraRefresh;
+
+        private Comparison(OutputStatistics periodicIdr, OutputStatistics intraRefresh) {
+            mPeriodicIdr = periodicIdr;
+            mIntraRefresh = intraRefresh;
+        }
+
+        public double getMeanRatio(Output output) {
+            SizeDistribution periodic = mPeriodicIdr.getDistribution(output);
+            SizeDistribution intra = mIntraRefresh.getDistribution(output);
+            return (periodic == null || intra == null) ? Double.NaN : ratio(intra.getMean(), periodic.getMean());
+        }
+
+        public double getP95Ratio(Output output) {
+            SizeDistribution periodic = mPeriodicIdr.getDistribution(output);
+            SizeDistribution intra = mIntraRefresh.getDistribution(output);
+            return (periodic == null || intra == null) ? Double.NaN
+                    : ratio(intra.getPercentile(95), periodic.getPercentile(95));
+        }
+
+        public double getMaxRatio(Output output) {
+            SizeDistribution periodic = mPeriodicIdr.getDistribution(output);
+            SizeDistribution intra = mIntraRefresh.getDistribution(output);
+            return (periodic == null || intra == null) ? Double.NaN : ratio(intra.getMax(), periodic.getMax());
+        }
+
+        public double getPeakToMeanRatio(Output output) {
+            SizeDistribution periodic = mPeriodicIdr.getDistribution(output);
+            SizeDistribution intra = mIntraRefresh.getDistribution(output);
+            return (periodic == null || intra == null) ? Double.NaN
+                    : ratio(intra.getPeakToMean(), periodic.getPeakToMean());
+        }
+
+        public double getCoefficientOfVariationRatio(Output output) {
+            SizeDistribution periodic = mPeriodicIdr.getDistribution(output);
+            SizeDistribution intra = mIntraRefresh.getDistribution(output);
+            return (periodic == null || intra == null) ? Double.NaN
+                    : ratio(intra.getCoefficientOfVariation(), periodic.getCoefficientOfVariation());
+        }
+
+        private static double ratio(double value, double reference) {
+            return reference == 0 ? Double.NaN : value / reference;
+        }
+
+        /**
+         * @return a line per distribution both broadcasts recorded
+         */
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder(String.format(Locale.US,
+                    "Intra refresh (%d kbps target) relative to periodic IDR frames (%d kbps target)",
+                    mIntraRefresh.getVideoBitrate() / 1000, mPeriodicIdr.getVideoBitrate() / 1000));
+            for (Output output : Output.values()) {
+                SizeDistribution periodic = mPeriodicIdr.getDistribution(output);
+                if (periodic == null || mIntraRefresh.getDistribution(output) == null) continue;
+                report.append(String.format(Locale.US, "\n%s: mean %.2fx, p95 %.2fx, max %.2fx, peak-to-mean %.2fx, cv %.2fx",
+                        periodic.getName(), getMeanRatio(output), getP95Ratio(output), getMaxRatio(output),
+                        getPeakToMeanRatio(output), getCoefficientOfVariationRatio(output)));
+            }
+            return report.toString();
+        }
+    }
+
+    /**
+     * @return a multi-line summary, labelled with the keyframe mode
+     */
+    @Override
+    public String toString() {
+        StringBuilder stats = new StringBuilder("Output statistics. ")
+                .append(mIntraRefresh ? "Intra refresh" : "Periodic IDR frames")
+                .append(", ").append(mVideoBitrate / 1000).append(" kbps target");
+        for (SizeDistribution distribution : mOutputs) {
+            if (distribution != null) stats.append("\n").append(distribution);
+        }
+        return stats.toString();
+    }
+}
@@ -0,0 +1,164 @@
+package io.kickflip.sdk.av;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Chooses the order in which packets queued in per-track {@link io.kickflip.sdk.av.PacketRing}s
+ * are written, so that the container receives audio and video interleaved by decode time
+ * rather than in the order the encoder threads happened to produce them.
+ * <p/>
+ * The packet with the lowest decode time among the rings' heads is released once every other
+ * active track has a packet queued, as nothing earlier can then arrive. Until then it is held,
+ * for no longer than the maximum delay after its arrival, so a stalled or silent track cannot
+ * hold up the others indefinitely. A track is active from when it's added until its end of
+ * stream is written. Packets of a track that hasn't been added are withheld, as an encoder may
+ * queue its first packet before the consumer has applied its format.
+ * <p/>
+ * Packets remain in their rings while held, so interleaving allocates nothing. MediaCodec
+ * encoder output carries no separate decode time. Without B-frames, presentation time is
+ * decode time, and is used as such.
+ * <p/>
+ * Called only on the consumer thread of the rings.
+ *
+ * @hide
+ */
+public class PacketInterleaver {
+
+    private final PacketRing[] mRings;
+    private final boolean[] mActive;
+    private final boolean[] mAdded;                     // Has the track ever been made active
+    private long mMaxDelayUs;
+
+    private long mReleasedPackets;
+    private long mTotalWaitUs;
+    private long mMaxWaitUs;
+    private long mTimeouts;
+    private int mMaxDepth;
+
+    /**
+     * @param rings      the per-track rings to interleave, indexed by track
+     * @param maxDelayUs the longest a packet is held awaiting packets of other tracks
+     */
+    public PacketInterleaver(PacketRing[] rings, long maxDelayUs) {
+        mRings = rings;
+        mActive = new boolean[rings.length];
+        mAdded = new boolean[rings.length];
+        setMaxDelayUs(maxDelayUs);
+    }
+
+    public void setMaxDelayUs(long maxDelayUs) {
+        checkArgument(maxDelayUs >= 0, "maxDelayUs must be non-negative");
+        mMaxDelayUs = maxDelayUs;
+    }
+
+    public long getMaxDelayUs() {
+        return mMaxDelayUs;
+    }
+
+    /**
+     * Mark whether a track's packets should be waited for. Tracks are inactive
+     * until added, and should be made inactive when their end of stream is written.
+     * A track's packets are only released once it has been made active.
+     */
+    public void setTrackActive(int trackIndex, boolean active) {
+        mActive[trackIndex] = active;
+        if (active) mAdded[trackIndex] = true;
+    }
+
+    /**
+     * Take the next packet to write, recording its wait.
+     *
+     * @param nowUs the current time, per System.nanoTime() / 1000
+     * @param flush if true, release the lowest packet without waiting
+     *              e.g: when the muxer is stopping
+     * @return the index of the track whose head packet should be written next,
+     * or -1 if no packet is queued or the lowest must wait for other tracks
+     */
+    public int next(long nowUs, boolean flush) {
+        return select(nowUs, flush, true);
+    }
+
+    /**
+     * @return true if {@link #next(long, boolean)} would release a packet
+     */
+    public boolean hasNext(long nowUs, boolean flush) {
+        return select(nowUs, flush, false) != -1;
+    }
+
+    private int select(long nowUs, boolean flush, boolean take) {
+        int nextTrackIndex = -1;
+        long nextDts = 0;
+        boolean othersQueued = true;
+        for (int i = 0; i < mRings.length; i++) {
+            if (!mAdded[i]) continue;
+            PacketRing.Packet packet = mRings[i].peek();
+            if (packet == null) {
+                if (mActive[i]) othersQueued = false;
+            } else if (nextTrackIndex == -1 || packet.info.presentationTimeUs < nextDts) {
+                nextTrackIndex = i;
+                nextDts = packet.info.presentationTimeUs;
+            }
+        }
+        if (nextTrackIndex == -1) return -1;
+
+        long waitUs = nowUs - mRings[nextTrackIndex].peek().arrivalUs;
+        boolean timedOut = false;
+        if (!othersQueued && !flush) {
+            if (waitUs < mMaxDelayUs) {
+                if (take) mMaxDepth = Math.max(mMaxDepth, getDepth());
+                return -1;
+            }
+            timedOut = true;
+        }
+        if (take) {
+            if (timedOut) mTimeouts++;
+            mReleasedPackets++;
+            mTotalWaitUs += Math.max(0, waitUs);
+            mMaxWaitUs = Math.max(mMaxWaitUs, waitUs);
+        }
+        return nextTrackIndex;
+    }
+
+    /**
+     * @return the number of queued packets not yet released
+     */
+    public int getDepth() {
+        int depth = 0;
+        for (int i = 0; i < mRings.length; i++) {
+            depth += mRings[i].size();
+        }
+        return depth;
+    }
+
+    /**
+     * @return the most packets held at once while awaiting other tracks
+     */
+    public int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    /**
+     * @return the mean time between a packet's arrival and its release in microseconds
+     */
+    public long getMeanWaitUs() {
+        return mReleasedPackets == 0 ? 0 : mTotalWaitUs / mReleasedPackets;
+    }
+
+    public long getMaxWaitUs() {
+        return mMaxWaitUs;
+    }
+
+    /**
+     * @return the number of packets released because they reached the maximum
+     * delay before every active track had a packet queued
+     */
+    public long getTimeoutCount() {
+        return mTimeouts;
+    }
+
+    @Override
+    public String toString() {
+        return "PacketInterleaver{released " + mReleasedPackets + " mean wait " + getMeanWaitUs()
+                + "us max wait " + mMaxWaitUs + "us max depth " + mMaxDepth + " timeouts " + mTimeouts + "}";
+    }
+}
@@ -0,0 +1,220 @@
+package io.kickflip.sdk.av;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A bounded single-producer / single-consumer ring of pre-allocated
+ * encoded packet descriptors.
+ * <p/>
+ * The producer (an encoder thread) claims a slot with {@link #claim()}, copies
+ * an encoder output buffer into it with {@link Packet#set(java.nio.ByteBuffer, android.media.MediaCodec.BufferInfo)}
+ * and makes it visible with {@link #publish()}. The consumer (a muxing thread) reads the oldest
+ * slot with {@link #peek()} and returns it with {@link #consume()}.
+ * <p/>
+ * Slots and their backing buffers are re-used, so steady-state operation creates no garbage.
+ * Only one thread may produce and only one thread may consume.
+ *
+ * @hide
+ */
+public class PacketRing {
+
+    // Producer wait strategy when the ring is full
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 100;
+    private static final long PARK_NS = 50 * 1000;
+
+    // Slot buffers larger than this are returned to the pool after consumption
+    // so a keyframe spike doesn't pin its buffer for the rest of the session
+    private static final int MAX_RETAINED_SLOT_BYTES = 256 * 1024;
+
+    /**
+     * An encoded packet descriptor. The data and info fields
+     * are owned by the ring and are only valid between claim and publish
+     * (producer) or between peek and consume (consumer).
+     */
+    public static class Packet {
+        public final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        public ByteBuffer data;
+        public long arrivalUs;                              // When the packet was set, per System.nanoTime() / 1000
+
+        private final DirectBufferPool mPool;
+        private final int mHeadroom;
+
+        private Packet(DirectBufferPool pool, int headroom) {
+            mPool = pool;
+            mHeadroom = headroom;
+        }
+
+        /**
+         * Copy encodedData and bufferInfo into this packet. The copied data begins
+         * at position 0, and info.offset is adjusted to match.
+         *
+         * @param encodedData encoder output with position and limit set to the packet bounds
+         * @param bufferInfo  the encoder's description of encodedData
+         */
+        public void set(ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+            set(null, encodedData, bufferInfo);
+        }
+
+        /**
+         * Gather prefix and encodedData into this packet with a single copy
+         * e.g: to place SPS and PPS before an H.264 keyframe. The copied data begins
+         * at position 0, and info.offset and info.size describe prefix and encodedData together.
+         *
+         * @param prefix      bytes to precede encodedData, between position and limit. May be null.
+         *                    Position is restored after copying
+         * @param encodedData encoder output with position and limit set to the packet bounds
+         * @param bufferInfo  the encoder's description of encodedData
+         */
+        public void set(ByteBuffer prefix, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+            int prefixSize = (prefix == null) ? 0 : prefix.remaining();
+            int required = prefixSize + encodedData.remaining() + mHeadroom;
+            if (data == null || data.capacity() < required) {
+                mPool.release(data);
+                data = mPool.acquire(required);
+            }
+            data.clear();
+            if (prefixSize > 0) {
+                int prefixPosition = prefix.position();
+                data.put(prefix);
+                prefix.position(prefixPosition);
+            }
+            data.put(encodedData);
+            data.flip();
+            info.set(0, data.limit(), bufferInfo.presentationTimeUs, bufferInfo.flags);
+            arrivalUs = System.nanoTime() / 1000;
+        }
+
+        private void recycle() {
+            if (data != null && data.capacity() > MAX_RETAINED_SLOT_BYTES) {
+                mPool.release(data);
+                data = null;
+            }
+        }
+    }
+
+    private final Packet[] mSlots;
+    private final int mMask;
+    private final AtomicLong mHead = new AtomicLong(0);    // Next slot to consume. Written by consumer
+    private final AtomicLong mTail = new AtomicLong(0);    // Next slot to produce. Written by producer
+    private long mCachedHead;                               // Producer's view of mHead
+    private long mCachedTail;                               // Consumer's view of mTail
+    private volatile boolean mClosed;
+
+    /**
+     * @param capacity the number of packet slots. Must be a power of two
+     * @param pool     the pool backing each slot's buffer
+     * @param headroom bytes reserved beyond each packet's size e.g: for an in-place header
+     */
+    public PacketRing(int capacity, DirectBufferPool pool, int headroom) {
+        checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1, "capacity must be a power of two");
+        mSlots = new Packet[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mSlots[i] = new Packet(pool, headroom);
+        }
+        mMask = capacity - 1;
+    }
+
+    /**
+     * Claim the next free slot without blocking.
+     * Called on the producer thread.
+     *
+     * @return the claimed Packet, or null if the ring is full
+     */
+    public Packet tryClaim() {
+        long tail = mTail.get();
+        if (tail - mCachedHead > mMask) {
+            mCachedHead = mHead.get();
+            if (tail - mCachedHead > mMask) return null;
+        }
+        return mSlots[(int) (tail & mMask)];
+    }
+
+    /**
+     * Claim the next free slot, waiting for the consumer if the ring is full.
+     * Spins briefly, then yields, then parks in short intervals.
+     * Called on the producer thread.
+     *
+     * @return the claimed Packet, or null if the ring was closed while waiting
+     */
+    public Packet claim() {
+        int tries = 0;
+        while (!mClosed) {
+            Packet packet = tryClaim();
+            if (packet != null) return packet;
+            if (tries < SPIN_TRIES) {
+                tries++;
+            } else if (tries < SPIN_TRIES + YIELD_TRIES) {
+                tries++;
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(this, PARK_NS);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Make the most recently claimed Packet visible to the consumer.
+     * Called on the producer thread.
+     */
+    public void publish() {
+        mTail.set(mTail.get() + 1);
+    }
+
+    /**
+     * Called on the consumer thread.
+     *
+     * @return the oldest published Packet, or null if the ring is empty
+     */
+    public Packet peek() {
+        long head = mHead.get();
+        if (head >= mCachedTail) {
+            mCachedTail = mTail.get();
+            if (head >= mCachedTail) return null;
+        }
+        return mSlots[(int) (head & mMask)];
+    }
+
+    /**
+     * Return the Packet obtained from {@link #peek()} to the producer.
+     * Called on the consumer thread.
+     */
+    public void consume() {
+        long head = mHead.get();
+        mSlots[(int) (head & mMask)].recycle();
+        mHead.set(head + 1);
+    }
+
+    public boolean isEmpty() {
+        return mHead.get() >= mTail.get();
+    }
+
+    /**
+     * @return the number of published packets not yet consumed
+     */
+    public int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    public int capacity() {
+        return mSlots.length;
+    }
+
+    /**
+     * Refuse further claims, releasing any producer waiting in {@link #claim()}.
+     */
+    public void close() {
+        mClosed = true;
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+}
@@ -0,0 +1,106 @@
+package io.kickflip.sdk.av;
+
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A track format as recorded in a packet trace: the subset of a MediaFormat's keys
+ * listed in {@link #KEYS}, with Integer, Long, String or byte[] values.
+ * <p/>
+ * Unlike MediaFormat this has no Android dependencies, so traces may be written and
+ * replayed on a JVM. Convert at the Muxer with {@link #fromMediaFormat} and {@link #toMediaFormat}.
+ *
+ * @hide
+ */
+public class PacketTraceFormat {
+
+    /** MediaFormat keys recorded, and their value types */
+    static final String[] KEYS = {
+            MediaFormat.KEY_MIME, MediaFormat.KEY_WIDTH, MediaFormat.KEY_HEIGHT,
+            MediaFormat.KEY_SAMPLE_RATE, MediaFormat.KEY_CHANNEL_COUNT, MediaFormat.KEY_BIT_RATE,
+            MediaFormat.KEY_FRAME_RATE, MediaFormat.KEY_AAC_PROFILE, MediaFormat.KEY_MAX_INPUT_SIZE,
+            "durationUs", "csd-0", "csd-1"};
+    static final Class<?>[] KEY_TYPES = {
+            String.class, Integer.class, Integer.class,
+            Integer.class, Integer.class, Integer.class,
+            Integer.class, Integer.class, Integer.class,
+            Long.class, byte[].class, byte[].class};
+
+    private final Map<String, Object> mValues = new LinkedHashMap<>();
+
+    /**
+     * @return the recorded keys of format
+     */
+    public static PacketTraceFormat fromMediaFormat(MediaFormat format) {
+        PacketTraceFormat traceFormat = new PacketTraceFormat();
+        for (int i = 0; i < KEYS.length; i++) {
+            String key = KEYS[i];
+            if (!format.containsKey(key)) continue;
+            if (KEY_TYPES[i] == String.class) {
+                traceFormat.set(key, format.getString(key));
+            } else if (KEY_TYPES[i] == Integer.class) {
+                traceFormat.set(key, format.getInteger(key));
+            } else if (KEY_TYPES[i] == Long.class) {
+                traceFormat.set(key, format.getLong(key));
+            } else {
+                ByteBuffer buffer = format.getByteBuffer(key).duplicate();
+                buffer.position(0);
+                byte[] value = new byte[buffer.limit()];
+                buffer.get(value);
+                traceFormat.set(key, value);
+            }
+        }
+        return traceFormat;
+    }
+
+    public MediaFormat toMediaFormat() {
+        MediaFormat format = new MediaFormat();
+        for (Map.Entry<String, Object> entry : mValues.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof String) {
+                format.setString(entry.getKey(), (String) value);
+            } else if (value instanceof Integer) {
+                format.setInteger(entry.getKey(), (Integer) value);
+            } else if (value instanceof Long) {
+                format.setLong(entry.getKey(), (Long) value);
+            } else {
+                format.setByteBuffer(entry.getKey(), ByteBuffer.wrap((byte[]) value));
+            }
+        }
+        return format;
+    }
+
+    /**
+     * @param value an Integer, Long, String or byte[]
+     */
+    public void set(String key, Object value) {
+        checkArgument(value instanceof Integer || value instanceof Long || value instanceof String
+                || value instanceof byte[], "Unsupported value type for " + key);
+        mValues.put(key, value);
+    }
+
+    /**
+     * @return the value of key, or null if absent
+     */
+    public Object get(String key) {
+        return mValues.get(key);
+    }
+
+    public boolean containsKey(String key) {
+        return mValues.containsKey(key);
+    }
+
+    /**
+     * @return the keys, in the order they were set
+     */
+    public Set<String> keySet() {
+        return Collections.unmodifiableSet(mValues.keySet());
+    }
+}
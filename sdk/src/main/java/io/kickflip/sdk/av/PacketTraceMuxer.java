@@ -0,0 +1,98 @@
+package io.kickflip.sdk.av;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A Muxer that records encoder output to a {@link io.kickflip.sdk.av.PacketTraceWriter}
+ * trace, for later replay by {@link io.kickflip.sdk.av.PacketTraceReplayer}.
+ * <p/>
+ * Use alone, or as a secondary of a {@link io.kickflip.sdk.av.TeeMuxer} to capture
+ * the input of a live session's Muxer. The trace is closed when every track has ended.
+ *
+ * @hide
+ */
+public class PacketTraceMuxer extends Muxer {
+    private static final String TAG = "PacketTraceMuxer";
+
+    private final PacketTraceWriter mWriter;
+    private boolean mStarted;
+    private boolean mClosed;
+
+    private PacketTraceMuxer(String outputFile) {
+        super(outputFile, FORMAT.MPEG4);
+        try {
+            mWriter = new PacketTraceWriter(new File(outputFile));
+        } catch (IOException e) {
+            throw new RuntimeException("PacketTraceWriter creation failed", e);
+        }
+    }
+
+    /**
+     * @param outputFile the trace file to create or overwrite e.g: /sdcard/Kickflip/session.kftrace
+     */
+    public static PacketTraceMuxer create(String outputFile) {
+        return new PacketTraceMuxer(outputFile);
+    }
+
+    @Override
+    public int addTrack(MediaFormat trackFormat) {
+        int trackIndex = super.addTrack(trackFormat);
+        try {
+            mWriter.writeFormat(trackIndex, trackFormat);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to record track format", e);
+        }
+        if (allTracksAdded()) {
+            mStarted = true;
+        }
+        return trackIndex;
+    }
+
+    @Override
+    public boolean isStarted() {
+        return mStarted;
+    }
+
+    @Override
+    public void writeSampleData(MediaCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        super.writeSampleData(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+        if (!mClosed) {
+            try {
+                mWriter.writePacket(trackIndex, encodedData, bufferInfo);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to record packet", e);
+            }
+        }
+        releaseOutputBuffer(encoder, bufferIndex);
+        if (allTracksFinished()) {
+            forceStop();
+        }
+    }
+
+    /**
+     * @return the number of packets recorded
+     */
+    public long getPacketCount() {
+        return mWriter.getPacketCount();
+    }
+
+    @Override
+    public void forceStop() {
+        if (mClosed) return;
+        mClosed = true;
+        Log.i(TAG, "Recorded " + mWriter.getPacketCount() + " packets to " + getOutputPath());
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close packet trace", e);
+        }
+        mStarted = false;
+        release();
+    }
+}
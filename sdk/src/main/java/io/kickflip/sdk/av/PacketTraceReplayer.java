@@ -0,0 +1,232 @@
+package io.kickflip.sdk.av;
+
+import android.media.MediaCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static io.kickflip.sdk.av.PacketTraceWriter.HEADER_LENGTH;
+import static io.kickflip.sdk.av.PacketTraceWriter.MAGIC;
+import static io.kickflip.sdk.av.PacketTraceWriter.RECORD_END;
+import static io.kickflip.sdk.av.PacketTraceWriter.RECORD_FORMAT;
+import static io.kickflip.sdk.av.PacketTraceWriter.RECORD_HEADER_LENGTH;
+import static io.kickflip.sdk.av.PacketTraceWriter.RECORD_PACKET;
+import static io.kickflip.sdk.av.PacketTraceWriter.UTF_8;
+import static io.kickflip.sdk.av.PacketTraceWriter.VALUE_BUFFER;
+import static io.kickflip.sdk.av.PacketTraceWriter.VALUE_INT;
+import static io.kickflip.sdk.av.PacketTraceWriter.VALUE_LONG;
+import static io.kickflip.sdk.av.PacketTraceWriter.VALUE_STRING;
+import static io.kickflip.sdk.av.PacketTraceWriter.VERSION;
+
+/**
+ * Replays a trace written by {@link io.kickflip.sdk.av.PacketTraceWriter} into any Muxer,
+ * through the same addTrack and writeSampleData calls an encoder makes. No camera, microphone
+ * or MediaCodec is involved, so Muxers, segmenters and uploaders may be benchmarked and
+ * regression tested against identical input.
+ * <p/>
+ * Packets are delivered either as fast as the Muxer accepts them, or paced to their recorded
+ * arrival times. The Muxer is passed a null encoder, and is told not to release output
+ * buffers. Payloads are read from a memory-mapped view of the trace.
+ * <p/>
+ * Records may instead be replayed to a {@link io.kickflip.sdk.av.PacketTraceReplayer.Listener}
+ * as plain {@link io.kickflip.sdk.av.PacketTraceFormat}s and buffers. Only the Muxer adapter
+ * depends on Android, so traces may be replayed on a JVM.
+ *
+ * @hide
+ */
+public class PacketTraceReplayer {
+
+    /**
+     * Receives a trace's records, in order, on the replaying thread.
+     */
+    public interface Listener {
+        void onFormat(int trackIndex, PacketTraceFormat format);
+
+        /**
+         * @param payload the packet between position and limit, valid until this returns
+         * @param flags   MediaCodec buffer flags
+         */
+        void onPacket(int trackIndex, ByteBuffer payload, long ptsUs, int flags);
+    }
+
+    /**
+     * Adds each traced track to a Muxer, and writes its packets as an encoder would.
+     * The only Android dependency of replay.
+     */
+    private static class MuxerListener implements Listener {
+        private final Muxer mMuxer;
+        private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+        private int[] mTracks = new int[0];         // Trace track index -> Muxer track index
+
+        MuxerListener(Muxer muxer) {
+            mMuxer = muxer;
+        }
+
+        @Override
+        public void onFormat(int trackIndex, PacketTraceFormat format) {
+            if (trackIndex >= mTracks.length) mTracks = Arrays.copyOf(mTracks, trackIndex + 1);
+            mTracks[trackIndex] = mMuxer.addTrack(format.toMediaFormat());
+        }
+
+        @Override
+        public void onPacket(int trackIndex, ByteBuffer payload, long ptsUs, int flags) {
+            mBufferInfo.set(payload.position(), payload.remaining(), ptsUs, flags);
+            mMuxer.writeSampleData(null, mTracks[trackIndex], -1, payload, mBufferInfo);
+        }
+    }
+
+    private final MappedByteBuffer mTrace;
+    private long mPacketCount;
+    private long mByteCount;
+    private long mElapsedNs;
+
+    public PacketTraceReplayer(File trace) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(trace, "r");
+        try {
+            checkArgument(file.length() <= Integer.MAX_VALUE, "Trace too large to map");
+            mTrace = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } finally {
+            file.close();
+        }
+        if (mTrace.limit() < HEADER_LENGTH || mTrace.getInt(0) != MAGIC) {
+            throw new IOException("Not a packet trace: " + trace);
+        }
+        if (mTrace.getInt(4) != VERSION) {
+            throw new IOException("Unsupported packet trace version " + mTrace.getInt(4));
+        }
+    }
+
+    /**
+     * Replay the trace into muxer, returning once every packet has been written.
+     *
+     * @param realtime if true, pace packets to their recorded arrival times.
+     *                 Otherwise write them as fast as muxer accepts them
+     * @return the number of packets written
+     */
+    public long replay(Muxer muxer, boolean realtime) throws IOException {
+        muxer.setReleasesOutputBuffers(false);
+        return replay(new MuxerListener(muxer), realtime);
+    }
+
+    /**
+     * Replay the trace's records to listener, returning once every packet has been delivered.
+     *
+     * @param realtime if true, pace records to their recorded arrival times.
+     *                 Otherwise deliver them as fast as listener accepts them
+     * @return the number of packets delivered
+     */
+    public long replay(Listener listener, boolean realtime) throws IOException {
+        boolean[] formats = new boolean[0];             // Whether each track's format was replayed
+        ByteBuffer trace = mTrace.duplicate();
+        trace.position(HEADER_LENGTH);
+        long firstArrivalUs = Long.MIN_VALUE;
+        mPacketCount = mByteCount = 0;
+        long startNs = System.nanoTime();
+
+        while (trace.remaining() >= RECORD_HEADER_LENGTH) {
+            byte type = trace.get();
+            if (type == RECORD_END) break;
+            int track = trace.get();
+            int flags = trace.getInt();
+            long ptsUs = trace.getLong();
+            long arrivalUs = trace.getLong();
+            int length = trace.getInt();
+            if (length < 0 || length > trace.remaining()) {
+                throw new IOException("Truncated packet trace record at " + (trace.position() - RECORD_HEADER_LENGTH));
+            }
+            int payloadStart = trace.position();
+
+            if (realtime) {
+                if (firstArrivalUs == Long.MIN_VALUE) firstArrivalUs = arrivalUs;
+                waitUntil(startNs + (arrivalUs - firstArrivalUs) * 1000);
+            }
+            if (type == RECORD_FORMAT) {
+                if (track >= formats.length) formats = Arrays.copyOf(formats, track + 1);
+                formats[track] = true;
+                listener.onFormat(track, readFormat(trace));
+            } else if (type == RECORD_PACKET) {
+                checkArgument(track < formats.length && formats[track], "Packet precedes its track's format");
+                trace.limit(payloadStart + length);
+                listener.onPacket(track, trace, ptsUs, flags);
+                trace.limit(trace.capacity());
+                mPacketCount++;
+                mByteCount += length;
+            }
+            trace.position(payloadStart + length);
+        }
+        mElapsedNs = System.nanoTime() - startNs;
+        return mPacketCount;
+    }
+
+    private static void waitUntil(long deadlineNs) {
+        long remainingNs;
+        while ((remainingNs = deadlineNs - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(remainingNs / 1000000, (int) (remainingNs % 1000000));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static PacketTraceFormat readFormat(ByteBuffer trace) {
+        PacketTraceFormat format = new PacketTraceFormat();
+        int count = trace.getInt();
+        for (int i = 0; i < count; i++) {
+            String key = readString(trace);
+            byte valueType = trace.get();
+            switch (valueType) {
+                case VALUE_INT:
+                    format.set(key, trace.getInt());
+                    break;
+                case VALUE_LONG:
+                    format.set(key, trace.getLong());
+                    break;
+                case VALUE_STRING:
+                    format.set(key, readString(trace));
+                    break;
+                case VALUE_BUFFER:
+                    byte[] value = new byte[trace.getInt()];
+                    trace.get(value);
+                    format.set(key, value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown format value type " + valueType);
+            }
+        }
+        return format;
+    }
+
+    private static String readString(ByteBuffer trace) {
+        byte[] bytes = new byte[trace.getInt()];
+        trace.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * @return the packets written by the last replay
+     */
+    public long getPacketCount() {
+        return mPacketCount;
+    }
+
+    /**
+     * @return the payload bytes written by the last replay
+     */
+    public long getByteCount() {
+        return mByteCount;
+    }
+
+    /**
+     * @return the duration of the last replay in nanoseconds
+     */
+    public long getElapsedNs() {
+        return mElapsedNs;
+    }
+}
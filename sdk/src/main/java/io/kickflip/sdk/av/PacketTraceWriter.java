@@ -0,0 +1,210 @@
+package io.kickflip.sdk.av;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Appends encoder output to a compact binary trace, for deterministic replay into any
+ * Muxer by {@link io.kickflip.sdk.av.PacketTraceReplayer}.
+ * <p/>
+ * The file is written through a memory-mapped FileChannel, a window at a time, so
+ * recording a packet costs a copy rather than a system call. The trace is truncated to
+ * its written length on {@link #close()}. Should the process die first, the zeroed
+ * remainder of the last window reads as the end of the trace.
+ * <p/>
+ * Format, big-endian:
+ * <pre>
+ * header: int MAGIC, int VERSION
+ * record: byte type, byte track, int flags, long ptsUs, long arrivalUs, int length, byte[length] payload
+ * </pre>
+ * A {@link #RECORD_FORMAT} record precedes the packets of its track. Its payload is a count
+ * followed by that many entries of: UTF-8 key, byte value type, value, as held by a
+ * {@link io.kickflip.sdk.av.PacketTraceFormat}. A {@link #RECORD_PACKET}
+ * record's payload is the encoder output buffer, and its flags are MediaCodec buffer flags.
+ * <p/>
+ * Only the MediaFormat and BufferInfo overloads depend on Android, so traces may also be
+ * written on a JVM. This class is not thread-safe.
+ *
+ * @hide
+ */
+public class PacketTraceWriter implements Closeable {
+
+    public static final int MAGIC = 0x4B465054;         // "KFPT"
+    public static final int VERSION = 1;
+    public static final int HEADER_LENGTH = 8;
+    public static final int RECORD_HEADER_LENGTH = 26;
+
+    public static final byte RECORD_END = 0;
+    public static final byte RECORD_FORMAT = 1;
+    public static final byte RECORD_PACKET = 2;
+
+    static final byte VALUE_INT = 1;
+    static final byte VALUE_LONG = 2;
+    static final byte VALUE_STRING = 3;
+    static final byte VALUE_BUFFER = 4;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int WINDOW_SIZE = 4 * 1024 * 1024;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private MappedByteBuffer mWindow;
+    private long mWindowStart;                          // File offset of mWindow
+    private long mPacketCount;
+    private boolean mClosed;
+
+    /**
+     * Create or overwrite a trace file.
+     */
+    public PacketTraceWriter(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+        mWindowStart = 0;
+        mWindow = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, WINDOW_SIZE);
+        mWindow.putInt(MAGIC);
+        mWindow.putInt(VERSION);
+    }
+
+    /**
+     * Record a track's format. Must precede the track's first packet.
+     */
+    public void writeFormat(int trackIndex, MediaFormat format) throws IOException {
+        writeFormat(trackIndex, PacketTraceFormat.fromMediaFormat(format));
+    }
+
+    /**
+     * Record a track's format. Must precede the track's first packet.
+     */
+    public void writeFormat(int trackIndex, PacketTraceFormat format) throws IOException {
+        int length = 4;
+        byte[][] keys = new byte[format.keySet().size()][];
+        int k = 0;
+        for (String key : format.keySet()) {
+            keys[k] = key.getBytes(UTF_8);
+            length += 4 + keys[k].length + 1 + valueLength(format.get(key));
+            k++;
+        }
+        ByteBuffer out = reserve(length);
+        putRecordHeader(out, RECORD_FORMAT, trackIndex, 0, 0, System.nanoTime() / 1000, length);
+        out.putInt(keys.length);
+        k = 0;
+        for (String key : format.keySet()) {
+            out.putInt(keys[k].length);
+            out.put(keys[k++]);
+            Object value = format.get(key);
+            if (value instanceof Integer) {
+                out.put(VALUE_INT);
+                out.putInt((Integer) value);
+            } else if (value instanceof Long) {
+                out.put(VALUE_LONG);
+                out.putLong((Long) value);
+            } else if (value instanceof String) {
+                byte[] bytes = ((String) value).getBytes(UTF_8);
+                out.put(VALUE_STRING);
+                out.putInt(bytes.length);
+                out.put(bytes);
+            } else {
+                byte[] bytes = (byte[]) value;
+                out.put(VALUE_BUFFER);
+                out.putInt(bytes.length);
+                out.put(bytes);
+            }
+        }
+    }
+
+    private static int valueLength(Object value) {
+        if (value instanceof Integer) return 4;
+        if (value instanceof Long) return 8;
+        if (value instanceof String) return 4 + ((String) value).getBytes(UTF_8).length;
+        return 4 + ((byte[]) value).length;
+    }
+
+    /**
+     * Record an encoder output buffer. encodedData's position and limit are unchanged.
+     */
+    public void writePacket(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) throws IOException {
+        writePacket(trackIndex, encodedData, bufferInfo.offset, bufferInfo.size,
+                bufferInfo.presentationTimeUs, bufferInfo.flags);
+    }
+
+    /**
+     * Record an encoder output buffer. encodedData's position and limit are unchanged.
+     *
+     * @param flags MediaCodec buffer flags
+     */
+    public void writePacket(int trackIndex, ByteBuffer encodedData, int offset, int size, long ptsUs, int flags) throws IOException {
+        ByteBuffer src = encodedData.duplicate();
+        src.limit(offset + size);
+        src.position(offset);
+        ByteBuffer out = reserve(size);
+        putRecordHeader(out, RECORD_PACKET, trackIndex, flags, ptsUs, System.nanoTime() / 1000, size);
+        out.put(src);
+        mPacketCount++;
+    }
+
+    public long getPacketCount() {
+        return mPacketCount;
+    }
+
+    /**
+     * @return the bytes written, including headers
+     */
+    public long getLength() {
+        return mWindowStart + (mWindow == null ? 0 : mWindow.position());
+    }
+
+    private static void putRecordHeader(ByteBuffer out, byte type, int trackIndex, int flags,
+                                        long ptsUs, long arrivalUs, int length) {
+        checkArgument(trackIndex >= 0 && trackIndex <= Byte.MAX_VALUE, "Invalid track index");
+        out.put(type);
+        out.put((byte) trackIndex);
+        out.putInt(flags);
+        out.putLong(ptsUs);
+        out.putLong(arrivalUs);
+        out.putInt(length);
+    }
+
+    /**
+     * @return the mapped window, positioned where a record of the given
+     * payload length may be written contiguously
+     */
+    private ByteBuffer reserve(int payloadLength) throws IOException {
+        checkState(!mClosed, "PacketTraceWriter is closed");
+        int required = RECORD_HEADER_LENGTH + payloadLength;
+        if (mWindow.remaining() < required) {
+            // Records never span windows. The next begins where this one's data ends
+            mWindowStart += mWindow.position();
+            mWindow = mChannel.map(FileChannel.MapMode.READ_WRITE, mWindowStart, Math.max(WINDOW_SIZE, required));
+        }
+        return mWindow;
+    }
+
+    /**
+     * Flush the trace and truncate it to its written length.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) return;
+        mClosed = true;
+        long length = getLength();
+        mWindow.force();
+        mWindow = null;
+        mWindowStart = length;
+        mChannel.truncate(length);
+        mFile.close();
+    }
+}
@@ -0,0 +1,202 @@
+package io.kickflip.sdk.av;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A bounded single-producer / single-consumer ring of fixed-size PCM frames,
+ * backed by a single direct buffer.
+ * <p/>
+ * The producer (a capture thread) reads audio into the Frame returned by {@link #claim()}
+ * and makes it visible with {@link #publish()}. The consumer (an encoder feeding thread)
+ * waits for the oldest Frame with {@link #await(long)} and returns it with {@link #consume()}.
+ * <p/>
+ * The producer never waits. When the ring is full, {@link #claim()} returns a scratch Frame
+ * which {@link #publish()} discards, so capture keeps pace with the audio hardware and the
+ * newest audio is dropped instead. Such overruns, and waits by the consumer that time out
+ * with the ring still empty, are counted.
+ * <p/>
+ * Frames are re-used, so steady-state operation creates no garbage.
+ * Only one thread may produce and only one thread may consume.
+ *
+ * @hide
+ */
+public class PcmRing {
+
+    /**
+     * A PCM frame. Fields are owned by the ring and are only valid between
+     * claim and publish (producer) or between await or peek and consume (consumer).
+     */
+    public static class Frame {
+        public final ByteBuffer data;                       // Capacity of one frame, position 0
+        public final ShortBuffer samples;                   // 16-bit view of data, in native order
+        public int size;                                    // Bytes of PCM in data
+        public long ptsUs;                                  // Capture time of the first sample, per System.nanoTime() / 1000
+
+        private Frame(ByteBuffer data) {
+            this.data = data;
+            this.samples = data.duplicate().order(ByteOrder.nativeOrder()).asShortBuffer();
+        }
+    }
+
+    private final Frame[] mSlots;
+    private final Frame mScratch;                           // Claimed when full, never published
+    private final int mMask;
+    private final AtomicLong mHead = new AtomicLong(0);    // Next slot to consume. Written by consumer
+    private final AtomicLong mTail = new AtomicLong(0);    // Next slot to produce. Written by producer
+    private long mCachedHead;                               // Producer's view of mHead
+    private long mCachedTail;                               // Consumer's view of mTail
+    private boolean mClaimedScratch;                        // Producer only
+    private volatile Thread mWaiter;                        // Consumer parked in await
+    private volatile boolean mClosed;
+
+    private volatile long mOverruns;                        // Written by producer
+    private volatile long mUnderruns;                       // Written by consumer
+
+    /**
+     * @param capacity   the number of frames. Must be a power of two
+     * @param frameBytes the size of each frame in bytes
+     */
+    public PcmRing(int capacity, int frameBytes) {
+        checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1, "capacity must be a power of two");
+        checkArgument(frameBytes > 0, "frameBytes must be positive");
+        ByteBuffer arena = ByteBuffer.allocateDirect((capacity + 1) * frameBytes);
+        mSlots = new Frame[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mSlots[i] = new Frame(slice(arena, i, frameBytes));
+        }
+        mScratch = new Frame(slice(arena, capacity, frameBytes));
+        mMask = capacity - 1;
+    }
+
+    private static ByteBuffer slice(ByteBuffer arena, int index, int frameBytes) {
+        arena.limit((index + 1) * frameBytes);
+        arena.position(index * frameBytes);
+        return arena.slice();
+    }
+
+    /**
+     * Claim the next free Frame, its data cleared. Never blocks.
+     * If the ring is full, the Frame returned will be discarded on publish.
+     * Called on the producer thread.
+     */
+    public Frame claim() {
+        long tail = mTail.get();
+        Frame frame;
+        if (tail - mCachedHead > mMask && tail - (mCachedHead = mHead.get()) > mMask) {
+            mClaimedScratch = true;
+            frame = mScratch;
+        } else {
+            mClaimedScratch = false;
+            frame = mSlots[(int) (tail & mMask)];
+        }
+        frame.data.clear();
+        return frame;
+    }
+
+    /**
+     * Make the most recently claimed Frame visible to the consumer,
+     * or count an overrun if it was claimed while the ring was full.
+     * Called on the producer thread.
+     */
+    public void publish() {
+        if (mClaimedScratch) {
+            mOverruns++;
+            return;
+        }
+        mTail.set(mTail.get() + 1);
+        Thread waiter = mWaiter;
+        if (waiter != null) LockSupport.unpark(waiter);
+    }
+
+    /**
+     * Called on the consumer thread.
+     *
+     * @return the oldest published Frame, or null if the ring is empty
+     */
+    public Frame peek() {
+        long head = mHead.get();
+        if (head >= mCachedTail) {
+            mCachedTail = mTail.get();
+            if (head >= mCachedTail) return null;
+        }
+        return mSlots[(int) (head & mMask)];
+    }
+
+    /**
+     * Wait for a Frame to be published, counting an underrun if none is
+     * before the timeout elapses. Called on the consumer thread.
+     *
+     * @param timeoutNs the longest to wait
+     * @return the oldest published Frame, or null if none was published
+     * before the timeout elapsed or the ring was closed
+     */
+    public Frame await(long timeoutNs) {
+        Frame frame = peek();
+        if (frame != null) return frame;
+        long deadlineNs = System.nanoTime() + timeoutNs;
+        mWaiter = Thread.currentThread();
+        try {
+            long remainingNs;
+            while ((frame = peek()) == null && !mClosed &&
+                    (remainingNs = deadlineNs - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, remainingNs);
+            }
+        } finally {
+            mWaiter = null;
+        }
+        if (frame == null && !mClosed) mUnderruns++;
+        return frame;
+    }
+
+    /**
+     * Return the oldest Frame obtained from {@link #peek()} or {@link #await(long)} to the producer.
+     * Called on the consumer thread.
+     */
+    public void consume() {
+        mHead.set(mHead.get() + 1);
+    }
+
+    /**
+     * @return the number of published Frames not yet consumed
+     */
+    public int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    public int capacity() {
+        return mSlots.length;
+    }
+
+    /**
+     * @return the number of captured Frames discarded because the ring was full
+     */
+    public long getOverrunCount() {
+        return mOverruns;
+    }
+
+    /**
+     * @return the number of times the consumer's wait for a Frame timed out
+     */
+    public long getUnderrunCount() {
+        return mUnderruns;
+    }
+
+    /**
+     * Release a consumer waiting in {@link #await(long)}. Published Frames remain readable.
+     */
+    public void close() {
+        mClosed = true;
+        Thread waiter = mWaiter;
+        if (waiter != null) LockSupport.unpark(waiter);
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+}
@@ -0,0 +1,277 @@
+package io.kickflip.sdk.av;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A ring of the most recent encoded packets of all tracks, in arrival order,
+ * held in a single direct ByteBuffer arena allocated up front.
+ * <p/>
+ * The ring always begins with a video keyframe, and is trimmed a whole GOP at a time:
+ * when the arena or descriptor ring is full, or when a later keyframe is at least the
+ * requested duration older than the newest packet. Audio packets preceding the first retained
+ * keyframe are trimmed with it. Codec config packets are kept apart from the ring,
+ * so they are never trimmed. Without video, every packet may be made a keyframe with
+ * {@link #setEveryPacketSync(boolean)}, so the ring is trimmed a packet at a time.
+ * <p/>
+ * Packet data is contiguous within the arena. A packet that doesn't fit before the end
+ * of the arena is written at its start, wasting the remainder.
+ * <p/>
+ * This class is not thread-safe.
+ *
+ * @hide
+ */
+public class PreRollBuffer {
+
+    private static final int MAX_TRACKS = 4;
+
+    private final ByteBuffer mArena;
+    private final ByteBuffer mArenaView;                // Position and limit describe a single packet
+    private final long mDurationUs;
+
+    // Packet descriptors. Index mHead is the oldest
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final long[] mPtsUs;
+    private final int[] mFlags;
+    private final int[] mTracks;
+    private final boolean[] mVideo;
+    private int mHead;
+    private int mCount;
+    private int mWritePos;                              // Arena offset following the newest packet
+
+    private final ByteBuffer[] mConfigs = new ByteBuffer[MAX_TRACKS];
+    private final boolean[] mConfigPending = new boolean[MAX_TRACKS];
+
+    private long mTrimmedPackets;
+    private boolean mEveryPacketSync;
+
+    /**
+     * @param capacityBytes the size of the packet arena
+     * @param maxPackets    the number of packets the descriptor ring holds
+     * @param durationUs    the duration of media to retain
+     */
+    public PreRollBuffer(int capacityBytes, int maxPackets, long durationUs) {
+        checkArgument(capacityBytes > 0, "capacityBytes must be positive");
+        checkArgument(maxPackets > 0, "maxPackets must be positive");
+        checkArgument(durationUs > 0, "durationUs must be positive");
+        mArena = ByteBuffer.allocateDirect(capacityBytes);
+        mArenaView = mArena.duplicate();
+        mDurationUs = durationUs;
+        mOffsets = new int[maxPackets];
+        mSizes = new int[maxPackets];
+        mPtsUs = new long[maxPackets];
+        mFlags = new int[maxPackets];
+        mTracks = new int[maxPackets];
+        mVideo = new boolean[maxPackets];
+    }
+
+    /**
+     * Treat every packet as a keyframe e.g: for an audio-only session,
+     * where each AAC frame is independently decodable. Call before adding packets.
+     */
+    public void setEveryPacketSync(boolean everyPacketSync) {
+        mEveryPacketSync = everyPacketSync;
+    }
+
+    /**
+     * Copy a packet into the ring, trimming older GOPs as needed.
+     *
+     * @param encodedData positioned per bufferInfo
+     * @return false if the packet was discarded: empty, a non-keyframe with no
+     * preceding keyframe, or larger than the arena
+     */
+    public boolean add(int trackIndex, boolean isVideo, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        checkArgument(trackIndex >= 0 && trackIndex < MAX_TRACKS, "Invalid track index");
+        if (bufferInfo.size == 0) return false;
+        ByteBuffer src = encodedData.duplicate();
+        src.limit(bufferInfo.offset + bufferInfo.size);
+        src.position(bufferInfo.offset);
+
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            ByteBuffer config = mConfigs[trackIndex];
+            if (config == null || config.capacity() < bufferInfo.size) {
+                config = mConfigs[trackIndex] = ByteBuffer.allocateDirect(bufferInfo.size);
+            }
+            config.clear();
+            config.put(src);
+            config.flip();
+            mConfigPending[trackIndex] = true;
+            return true;
+        }
+
+        boolean isKeyframe = mEveryPacketSync || (isVideo && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+        if (mCount == 0 && !isKeyframe) return false;
+        if (bufferInfo.size > mArena.capacity()) {
+            // Nothing retained could be played without this frame
+            clear();
+            return false;
+        }
+
+        int offset;
+        while ((offset = allocate(bufferInfo.size)) < 0 || mCount == mOffsets.length) {
+            trimOldestGop();
+        }
+        if (mCount == 0 && !isKeyframe) return false;
+
+        mArenaView.limit(offset + bufferInfo.size);
+        mArenaView.position(offset);
+        mArenaView.put(src);
+        mWritePos = offset + bufferInfo.size;
+
+        int i = index(mCount);
+        mOffsets[i] = offset;
+        mSizes[i] = bufferInfo.size;
+        mPtsUs[i] = bufferInfo.presentationTimeUs;
+        mFlags[i] = bufferInfo.flags;
+        mTracks[i] = trackIndex;
+        mVideo[i] = isVideo;
+        mCount++;
+
+        trimToDuration(bufferInfo.presentationTimeUs);
+        return true;
+    }
+
+    /**
+     * @return the arena offset at which size bytes may be written, or -1 if
+     * they would overwrite a retained packet
+     */
+    private int allocate(int size) {
+        if (mCount == 0) {
+            mWritePos = 0;
+            return 0;
+        }
+        int headOffset = mOffsets[mHead];
+        if (mWritePos > headOffset) {
+            if (mArena.capacity() - mWritePos >= size) return mWritePos;
+            return (headOffset >= size) ? 0 : -1;
+        }
+        // The newest packet has wrapped behind the oldest
+        return (headOffset - mWritePos >= size) ? mWritePos : -1;
+    }
+
+    /**
+     * Drop the oldest packet, and all that follow it up to the next video keyframe.
+     */
+    private void trimOldestGop() {
+        checkState(mCount > 0, "Trimming empty PreRollBuffer");
+        do {
+            removeHead();
+            mTrimmedPackets++;
+        } while (mCount > 0 && !isKeyframe(mHead));
+    }
+
+    /**
+     * Trim GOPs while the next retained keyframe would still
+     * leave at least the requested duration buffered.
+     */
+    private void trimToDuration(long newestPtsUs) {
+        while (true) {
+            int next = -1;
+            for (int n = 1; n < mCount; n++) {
+                if (isKeyframe(index(n))) {
+                    next = index(n);
+                    break;
+                }
+            }
+            if (next < 0 || newestPtsUs - mPtsUs[next] < mDurationUs) return;
+            trimOldestGop();
+        }
+    }
+
+    private boolean isKeyframe(int i) {
+        return mEveryPacketSync || (mVideo[i] && (mFlags[i] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+    }
+
+    private int index(int n) {
+        return (mHead + n) % mOffsets.length;
+    }
+
+    private void removeHead() {
+        mHead = index(1);
+        mCount--;
+    }
+
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     * @return the number of buffered packets, excluding codec config
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * @return the presentation time span of buffered packets in microseconds
+     */
+    public long getBufferedDurationUs() {
+        if (mCount == 0) return 0;
+        long first = mPtsUs[mHead];
+        long last = first;
+        for (int n = 0; n < mCount; n++) {
+            last = Math.max(last, mPtsUs[index(n)]);
+        }
+        return last - first;
+    }
+
+    /**
+     * @return the number of packets trimmed to make room or honor the duration
+     */
+    public long getTrimmedPacketCount() {
+        return mTrimmedPackets;
+    }
+
+    /**
+     * Return the codec config packet of a track not yet returned by this method,
+     * the oldest buffered packet of any track if there is none, or null if the buffer is empty.
+     * The returned buffer is valid until the next call to this method or {@link #add}.
+     * Call {@link #remove()} after consuming a media packet.
+     *
+     * @param bufferInfo populated with the packet's track-relative offset, size, pts and flags
+     * @param trackOut   trackOut[0] is set to the packet's track index
+     */
+    public ByteBuffer peek(MediaCodec.BufferInfo bufferInfo, int[] trackOut) {
+        for (int track = 0; track < MAX_TRACKS; track++) {
+            if (!mConfigPending[track]) continue;
+            mConfigPending[track] = false;
+            ByteBuffer config = mConfigs[track];
+            bufferInfo.set(0, config.limit(), 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+            trackOut[0] = track;
+            config.position(0);
+            return config;
+        }
+        if (mCount == 0) return null;
+        bufferInfo.set(mOffsets[mHead], mSizes[mHead], mPtsUs[mHead], mFlags[mHead]);
+        trackOut[0] = mTracks[mHead];
+        mArenaView.limit(mOffsets[mHead] + mSizes[mHead]);
+        mArenaView.position(mOffsets[mHead]);
+        return mArenaView;
+    }
+
+    /**
+     * Remove the oldest buffered packet, as returned by {@link #peek}.
+     */
+    public void remove() {
+        checkState(mCount > 0, "PreRollBuffer is empty");
+        removeHead();
+    }
+
+    /**
+     * Discard all buffered packets. Codec config is retained,
+     * and will be returned again by {@link #peek}.
+     */
+    public void clear() {
+        mCount = 0;
+        mHead = 0;
+        mWritePos = 0;
+        for (int track = 0; track < MAX_TRACKS; track++) {
+            mConfigPending[track] = mConfigs[track] != null;
+        }
+    }
+}
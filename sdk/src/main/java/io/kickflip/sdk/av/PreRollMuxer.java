@@ -0,0 +1,190 @@
+package io.kickflip.sdk.av;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.google.common.eventbus.EventBus;
+
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A Muxer that keeps the last few seconds of encoded output in a
+ * {@link io.kickflip.sdk.av.PreRollBuffer} until {@link #startOutput()} is called,
+ * then writes the buffered packets to another Muxer before passing through live output.
+ * A recording or broadcast thus begins several seconds before it was requested,
+ * without encoding anything twice.
+ * <p/>
+ * The encoders must run before recording begins for the buffer to fill.
+ * {@link io.kickflip.sdk.av.CameraEncoder} and {@link io.kickflip.sdk.av.MicrophoneEncoder}
+ * do so when their {@link io.kickflip.sdk.av.SessionConfig} has a pre-roll duration.
+ * <p/>
+ * Buffered packets retain their encoder timestamps. The delegate's timeline is anchored
+ * to the first of them, a video keyframe or, if audio-only, any audio packet, so output begins
+ * at zero from the start of the pre-roll.
+ * Track formats are withheld from the delegate until output starts, so it is not started early.
+ *
+ * @hide
+ */
+public class PreRollMuxer extends Muxer {
+    private static final String TAG = "PreRollMuxer";
+    private static final boolean VERBOSE = false;
+
+    private static final int MAX_TRACKS = 4;
+    private static final int MAX_PACKETS_PER_SEC = 200;     // Generous for 30 fps video and 44.1 kHz AAC
+
+    private final Muxer mDelegate;
+    private final PreRollBuffer mBuffer;
+    private final MediaFormat[] mFormats = new MediaFormat[MAX_TRACKS];
+    private final boolean[] mVideoTracks = new boolean[MAX_TRACKS];
+    private final MediaCodec[] mEncoders = new MediaCodec[MAX_TRACKS];
+    private final int[] mTracks = new int[MAX_TRACKS];      // PreRollMuxer track index -> delegate track index
+    private final MediaCodec.BufferInfo mFlushInfo = new MediaCodec.BufferInfo();
+    private final int[] mFlushTrack = new int[1];
+
+    private volatile boolean mOutputRequested;
+    private boolean mOutputStarted;                         // Guarded by encoders' synchronization on this Muxer
+
+    private PreRollMuxer(Muxer delegate, int durationSec, int arenaBytes) {
+        super(delegate.getOutputPath(), delegate.mFormat);
+        mDelegate = delegate;
+        mBuffer = new PreRollBuffer(arenaBytes, durationSec * MAX_PACKETS_PER_SEC, durationSec * 1000L * 1000L);
+        // Buffered packets have no encoder buffer to release
+        mDelegate.setReleasesOutputBuffers(false);
+    }
+
+    /**
+     * @param delegate    the Muxer output is written to once started
+     * @param durationSec the seconds of output to buffer before starting
+     * @param arenaBytes  the size of the buffer's arena. Should exceed durationSec of
+     *                    output at the session's total bitrate, plus a GOP
+     */
+    public static PreRollMuxer create(Muxer delegate, int durationSec, int arenaBytes) {
+        checkNotNull(delegate);
+        checkArgument(durationSec > 0, "durationSec must be positive");
+        return new PreRollMuxer(delegate, durationSec, arenaBytes);
+    }
+
+    public Muxer getDelegate() {
+        return mDelegate;
+    }
+
+    /**
+     * Write buffered packets to the delegate, and pass through all that follow.
+     * Takes effect on the next packet from either encoder.
+     * <p/>
+     * Called from UI thread
+     */
+    public void startOutput() {
+        mOutputRequested = true;
+    }
+
+    /**
+     * @return the presentation time span currently buffered in microseconds.
+     * Call before {@link #startOutput()}; the value is approximate across threads
+     */
+    public long getBufferedDurationUs() {
+        return mBuffer.getBufferedDurationUs();
+    }
+
+    @Override
+    public void setEventBus(EventBus eventBus) {
+        super.setEventBus(eventBus);
+        mDelegate.setEventBus(eventBus);
+    }
+
+    @Override
+    public void setHlsSegmentDuration(int seconds) {
+        super.setHlsSegmentDuration(seconds);
+        mDelegate.setHlsSegmentDuration(seconds);
+    }
+
+    @Override
+    public void setAudioOnly(boolean audioOnly) {
+        super.setAudioOnly(audioOnly);
+        mDelegate.setAudioOnly(audioOnly);
+        mBuffer.setEveryPacketSync(audioOnly);
+    }
+
+    @Override
+    public boolean isHlsOutputInMemory() {
+        return mDelegate.isHlsOutputInMemory();
+    }
+
+    @Override
+    public String getHlsInitSegmentName() {
+        return mDelegate.getHlsInitSegmentName();
+    }
+
+    @Override
+    public boolean isStarted() {
+        return mOutputStarted && mDelegate.isStarted();
+    }
+
+    @Override
+    public int addTrack(MediaFormat trackFormat) {
+        int trackIndex = super.addTrack(trackFormat);
+        checkArgument(trackIndex < MAX_TRACKS, "Too many tracks");
+        mFormats[trackIndex] = trackFormat;
+        mVideoTracks[trackIndex] = trackFormat.getString(MediaFormat.KEY_MIME).startsWith("video/");
+        if (mOutputStarted) {
+            mTracks[trackIndex] = mDelegate.addTrack(trackFormat);
+        }
+        return trackIndex;
+    }
+
+    @Override
+    public void writeSampleData(MediaCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        super.writeSampleData(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+        mEncoders[trackIndex] = encoder;
+        if (!mOutputStarted && mOutputRequested) {
+            flush();
+        }
+        if (mOutputStarted) {
+            mDelegate.writeSampleData(encoder, mTracks[trackIndex], bufferIndex, encodedData, bufferInfo);
+        } else if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0) {
+            mBuffer.add(trackIndex, mVideoTracks[trackIndex], encodedData, bufferInfo);
+        }
+        releaseOutputBuffer(encoder, bufferIndex);
+    }
+
+    /**
+     * Add withheld tracks to the delegate and write it all buffered packets.
+     * Called on an encoder thread, which holds this Muxer's lock.
+     */
+    private void flush() {
+        if (VERBOSE) Log.i(TAG, "Flushing " + mBuffer.size() + " packets spanning " + mBuffer.getBufferedDurationUs() + " us");
+        for (int i = 0; i < mNumTracks; i++) {
+            mTracks[i] = mDelegate.addTrack(mFormats[i]);
+        }
+        ByteBuffer data;
+        while ((data = mBuffer.peek(mFlushInfo, mFlushTrack)) != null) {
+            int track = mFlushTrack[0];
+            mDelegate.writeSampleData(mEncoders[track], mTracks[track], -1, data, mFlushInfo);
+            if ((mFlushInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                mBuffer.remove();
+            }
+        }
+        if (mBuffer.getTrimmedPacketCount() > 0) {
+            Log.i(TAG, "Pre-roll trimmed " + mBuffer.getTrimmedPacketCount() + " packets");
+        }
+        mOutputStarted = true;
+    }
+
+    @Override
+    public void onEncoderReleased(int trackIndex) {
+        if (mOutputStarted) {
+            mDelegate.onEncoderReleased(mTracks[trackIndex]);
+        }
+    }
+
+    @Override
+    public void forceStop() {
+        if (mOutputStarted) {
+            mDelegate.forceStop();
+        }
+    }
+}
@@ -3,6 +3,8 @@ package io.kickflip.sdk.av;
 import android.os.Environment;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
@@ -10,6 +12,7 @@ import io.kickflip.sdk.api.json.Stream;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 import static io.kickflip.sdk.Kickflip.isKitKat;
 
 /**
@@ -29,6 +32,12 @@ public class SessionConfig {
     private boolean mIsAdaptiveBitrate;
     private boolean mAttachLocation;
     private int mHlsSegmentDuration;
+    private int mPreRollDuration;
+    private boolean mAudioOnly;
+    private final List<AudioProcessor> mAudioProcessors = new ArrayList<>();
+    private final List<VideoRendition> mRenditions = new ArrayList<>();
+    private EncoderProfile mEncoderProfile;
+    private boolean mIntraRefresh;
 
     public SessionConfig() {
         mVideoConfig = new VideoEncoderConfig(1280, 720, 2 * 1000 * 1000);
@@ -78,7 +87,7 @@ public class SessionConfig {
     }
 
     public int getTotalBitrate() {
-        return mVideoConfig.getBitRate() + mAudioConfig.getBitrate();
+        return (mAudioOnly ? 0 : mVideoConfig.getBitRate()) + mAudioConfig.getBitrate();
     }
 
     public int getVideoWidth() {
@@ -93,6 +102,14 @@ public class SessionConfig {
         return mVideoConfig.getBitRate();
     }
 
+    /**
+     * @return the rate camera frames are encoded at. Frames the camera delivers
+     * beyond it are dropped by CameraEncoder's {@link io.kickflip.sdk.av.FrameRateGovernor}
+     */
+    public int getVideoFrameRate() {
+        return mVideoConfig.getFrameRate();
+    }
+
     public int getNumAudioChannels() {
         return mAudioConfig.getNumChannels();
     }
@@ -167,18 +184,179 @@ public class SessionConfig {
 
     public void setHlsSegmentDuration(int hlsSegmentDuration) {
         mHlsSegmentDuration = hlsSegmentDuration;
+        mMuxer.setHlsSegmentDuration(hlsSegmentDuration);
+        for (VideoRendition rendition : mRenditions) {
+            rendition.getMuxer().setHlsSegmentDuration(hlsSegmentDuration);
+        }
+    }
+
+    /**
+     * @return whether this session records audio alone, without
+     * the camera or a video encoder
+     */
+    public boolean isAudioOnly() {
+        return mAudioOnly;
+    }
+
+    /**
+     * Record audio alone. No camera, EGL context or video encoder is created,
+     * and the Muxer produces output with a single audio track.
+     * Must be called before the Muxer is handed to any encoder.
+     *
+     * @throws java.lang.UnsupportedOperationException if the Muxer can't produce audio-only output
+     */
+    public void setAudioOnly(boolean audioOnly) {
+        checkState(!audioOnly || mRenditions.isEmpty(), "An audio-only session can't have video renditions");
+        if (audioOnly != mMuxer.isAudioOnly()) {
+            mMuxer.setAudioOnly(audioOnly);
+        }
+        mAudioOnly = audioOnly;
+    }
+
+    /**
+     * @return the seconds of output buffered before recording begins,
+     * or 0 if encoding begins with recording
+     */
+    public int getPreRollDuration() {
+        return mPreRollDuration;
+    }
+
+    /**
+     * Buffer the given seconds of encoded output before recording begins,
+     * and include it in the recording. The encoders run from the time the
+     * session is prepared, rather than when recording begins.
+     * <p/>
+     * This wraps the current Muxer in a {@link io.kickflip.sdk.av.PreRollMuxer},
+     * and so must be called before the Muxer is handed to any encoder.
+     *
+     * @param preRollDuration the duration in seconds. 0 disables pre-roll
+     */
+    public void setPreRollDuration(int preRollDuration) {
+        checkArgument(preRollDuration >= 0, "preRollDuration must be non-negative");
+        checkState(preRollDuration == 0 || mRenditions.isEmpty(), "Pre-roll isn't supported with video renditions");
+        checkState(preRollDuration == 0 || !mIntraRefresh, "Pre-roll isn't supported with intra refresh");
+        if (mMuxer instanceof PreRollMuxer) {
+            mMuxer = ((PreRollMuxer) mMuxer).getDelegate();
+            mMuxer.setReleasesOutputBuffers(true);
+        }
+        mPreRollDuration = preRollDuration;
+        if (preRollDuration > 0) {
+            // Allow a GOP beyond the duration, and bitrate overshoot
+            long arenaBytes = (preRollDuration + 2L) * getTotalBitrate() / 8 * 3 / 2;
+            mMuxer = PreRollMuxer.create(mMuxer, preRollDuration, (int) Math.min(Integer.MAX_VALUE, arenaBytes));
+            if (mAudioOnly) mMuxer.setAudioOnly(true);
+        }
+    }
+
+    /**
+     * Process captured audio with the given stage before it is encoded.
+     * Stages run in the order added.
+     * See {@link io.kickflip.sdk.av.AudioProcessorChain}
+     */
+    public void addAudioProcessor(AudioProcessor processor) {
+        mAudioProcessors.add(checkNotNull(processor));
+    }
+
+    public List<AudioProcessor> getAudioProcessors() {
+        return mAudioProcessors;
+    }
+
+    /**
+     * Also encode the camera's video at the rendition's resolution and bitrate, from the same
+     * frames as the session's own video, and write it with the session's audio to the rendition's
+     * Muxer. The session's playlist and each rendition's are listed as variants of an
+     * {@link io.kickflip.sdk.av.HlsMasterPlaylist}, so must be written to the same directory.
+     * <p/>
+     * Must be called before the session's Muxer is handed to any encoder.
+     */
+    public void addRendition(VideoRendition rendition) {
+        checkNotNull(rendition);
+        checkState(!mAudioOnly, "An audio-only session can't have video renditions");
+        checkState(mPreRollDuration == 0, "Pre-roll isn't supported with video renditions");
+        checkArgument(rendition.getMuxer() != mMuxer, "A rendition needs its own Muxer");
+        checkArgument(new File(rendition.getMuxer().getOutputPath()).getParentFile()
+                        .equals(new File(mMuxer.getOutputPath()).getParentFile()),
+                "A rendition's playlist must be written alongside the session's");
+        rendition.getMuxer().setHlsSegmentDuration(mHlsSegmentDuration);
+        mRenditions.add(rendition);
+    }
+
+    public List<VideoRendition> getRenditions() {
+        return mRenditions;
+    }
+
+    public boolean hasRenditions() {
+        return !mRenditions.isEmpty();
+    }
+
+    /**
+     * Configure video encoders with the encoder, profile and bitrate mode
+     * chosen for this device by {@link io.kickflip.sdk.av.EncoderProbe}.
+     *
+     * @param profile the probed profile, or null to use the platform's default encoder
+     */
+    public void setEncoderProfile(EncoderProfile profile) {
+        mEncoderProfile = profile;
+    }
+
+    public EncoderProfile getEncoderProfile() {
+        return mEncoderProfile;
+    }
+
+    /**
+     * @return whether video encoders refresh the picture gradually, rather than with periodic IDR frames
+     */
+    public boolean isIntraRefresh() {
+        return mIntraRefresh;
+    }
+
+    /**
+     * Refresh the picture a slice at a time over each second, rather than with periodic IDR frames,
+     * so frame sizes and upload rate stay near constant. With HLS output, each segment still begins
+     * with an IDR frame requested by the Muxer. Encoders without the feature, and Android
+     * versions before Nougat, keep periodic IDR frames.
+     * <p/>
+     * Pre-roll trims its buffer at IDR frames, so isn't supported with intra refresh.
+     */
+    public void setIntraRefresh(boolean intraRefresh) {
+        checkState(!intraRefresh || mPreRollDuration == 0, "Pre-roll isn't supported with intra refresh");
+        mIntraRefresh = intraRefresh;
+    }
+
+    /**
+     * @return the Muxer the audio encoder should write to: the session's Muxer, or if
+     * there are renditions a {@link io.kickflip.sdk.av.SharedAudioMuxer} writing to it and
+     * each rendition's Muxer. A new SharedAudioMuxer is created with each call
+     */
+    public Muxer getAudioMuxer() {
+        return mRenditions.isEmpty() ? mMuxer : SharedAudioMuxer.create(mMuxer, mRenditions);
+    }
+
+    /**
+     * @param fileName the name of a playlist or segment file e.g: index_480p3.ts
+     * @return whether the file was written by a rendition's Muxer, rather than the session's
+     */
+    public boolean isRenditionFile(String fileName) {
+        for (VideoRendition rendition : mRenditions) {
+            String playlistName = new File(rendition.getMuxer().getOutputPath()).getName();
+            String baseName = playlistName.endsWith(".m3u8") ? playlistName.substring(0, playlistName.length() - 5) : playlistName;
+            if (fileName.startsWith(baseName)) return true;
+        }
+        return false;
     }
 
     public static class Builder {
         private int mWidth;
         private int mHeight;
         private int mVideoBitrate;
+        private int mVideoFrameRate;
 
         private int mAudioSamplerate;
         private int mAudioBitrate;
         private int mNumAudioChannels;
 
         private Muxer mMuxer;
+        private String mRecordingPath;                  // Muxer is created on build, if not given
 
         private File mOutputDirectory;
         private UUID mUUID;
@@ -191,6 +369,12 @@ public class SessionConfig {
         private Map mExtraInfo;
 
         private int mHlsSegmentDuration;
+        private int mPreRollDuration;
+        private boolean mAudioOnly;
+        private final List<AudioProcessor> mAudioProcessors = new ArrayList<>();
+        private final List<VideoEncoderConfig> mRenditions = new ArrayList<>();
+        private EncoderProfile mEncoderProfile;
+        private boolean mIntraRefresh;
 
         /**
          * Configure a SessionConfig quickly with intelligent path interpretation.
@@ -221,16 +405,25 @@ public class SessionConfig {
             setMetaDefaults();
             mUUID = UUID.randomUUID();
 
-            if (outputLocation.contains(".m3u8")) {
-                mMuxer = FFmpegMuxer.create(createRecordingPath(outputLocation), Muxer.FORMAT.HLS);
-            } else if (outputLocation.contains(".mp4")) {
-                mMuxer = AndroidMuxer.create(createRecordingPath(outputLocation), Muxer.FORMAT.MPEG4);
-                //mMuxer = FFmpegMuxer.create(createRecordingPath(outputLocation), Muxer.FORMAT.MPEG4);
+            if (outputLocation.contains(".m3u8") || outputLocation.contains(".mp4")) {
+                // The Muxer depends on options such as withAudioOnly, so is created on build
+                mRecordingPath = createRecordingPath(outputLocation);
             } else
                 throw new RuntimeException("Unexpected muxer output. Expected a .mp4 or .m3u8. Got: " + outputLocation);
 
         }
 
+        private Muxer createMuxer(String recordingPath) {
+            if (recordingPath.contains(".m3u8")) {
+                // FFmpegMuxer requires a video track
+                return mAudioOnly ? MpegTsHlsMuxer.create(recordingPath) :
+                        FFmpegMuxer.create(recordingPath, Muxer.FORMAT.HLS);
+            } else {
+                return AndroidMuxer.create(recordingPath, Muxer.FORMAT.MPEG4);
+                //return FFmpegMuxer.create(recordingPath, Muxer.FORMAT.MPEG4);
+            }
+        }
+
         /**
          * Use this builder to manage file hierarchy manually
          * or to provide your own Muxer
@@ -265,6 +458,7 @@ public class SessionConfig {
             mWidth = 1280;
             mHeight = 720;
             mVideoBitrate = 2 * 1000 * 1000;
+            mVideoFrameRate = VideoEncoderConfig.DEFAULT_FRAME_RATE;
 
             mAudioSamplerate = 44100;
             mAudioBitrate = 96 * 1000;
@@ -277,6 +471,8 @@ public class SessionConfig {
             mAdaptiveStreaming = isKitKat();
             mConvertVerticalVideo = false;
             mHlsSegmentDuration = 10;
+            mPreRollDuration = 0;
+            mAudioOnly = false;
         }
 
         public Builder withMuxer(Muxer muxer) {
@@ -331,6 +527,17 @@ public class SessionConfig {
             return this;
         }
 
+        /**
+         * Encode at most the given frames per second, e.g: 15 to reduce load on
+         * thermally constrained devices. Defaults to 30.
+         * See {@link io.kickflip.sdk.av.SessionConfig#getVideoFrameRate()}
+         */
+        public Builder withVideoFrameRate(int fps) {
+            checkArgument(fps > 0, "Invalid frame rate " + fps);
+            mVideoFrameRate = fps;
+            return this;
+        }
+
         public Builder withAudioSamplerate(int samplerate) {
             mAudioSamplerate = samplerate;
             return this;
@@ -352,9 +559,82 @@ public class SessionConfig {
             return this;
         }
 
+        /**
+         * Include the given seconds of output from before recording began.
+         * See {@link io.kickflip.sdk.av.SessionConfig#setPreRollDuration(int)}
+         */
+        public Builder withPreRoll(int seconds) {
+            checkArgument(seconds >= 0);
+            mPreRollDuration = seconds;
+            return this;
+        }
+
+        /**
+         * Record audio alone, without the camera or a video encoder.
+         * See {@link io.kickflip.sdk.av.SessionConfig#setAudioOnly(boolean)}
+         */
+        public Builder withAudioOnly(boolean audioOnly) {
+            mAudioOnly = audioOnly;
+            return this;
+        }
+
+        /**
+         * Encode video with the encoder and settings probed for this device.
+         * See {@link io.kickflip.sdk.av.SessionConfig#setEncoderProfile(EncoderProfile)}
+         */
+        public Builder withEncoderProfile(EncoderProfile profile) {
+            mEncoderProfile = profile;
+            return this;
+        }
+
+        /**
+         * Refresh video gradually rather than with periodic IDR frames, to avoid bitrate spikes.
+         * See {@link io.kickflip.sdk.av.SessionConfig#setIntraRefresh(boolean)}
+         */
+        public Builder withIntraRefresh(boolean intraRefresh) {
+            mIntraRefresh = intraRefresh;
+            return this;
+        }
+
+        /**
+         * Process captured audio with the given stage before it is encoded
+         * e.g: a {@link io.kickflip.sdk.av.SoftLimiter}. Stages run in the order added.
+         */
+        public Builder withAudioProcessor(AudioProcessor processor) {
+            mAudioProcessors.add(checkNotNull(processor));
+            return this;
+        }
+
+        /**
+         * Also stream the camera's video at the given resolution and bitrate, as an additional HLS
+         * variant e.g: 854x480 at 1 Mbps. Requires a .m3u8 output. The variant's playlist is named
+         * for the output's, with its height appended e.g: index_480p.m3u8.
+         * See {@link io.kickflip.sdk.av.SessionConfig#addRendition(VideoRendition)}
+         */
+        public Builder withRendition(int width, int height, int bitrate) {
+            mRenditions.add(new VideoEncoderConfig(width, height, bitrate));
+            return this;
+        }
+
+        /**
+         * @return an MPEG-TS HLS Muxer for the rendition, alongside the session's playlist,
+         * delivering its output in memory if the session's Muxer does
+         */
+        private Muxer createRenditionMuxer(Muxer sessionMuxer, VideoEncoderConfig rendition) {
+            String sessionPath = sessionMuxer.getOutputPath();
+            checkState(sessionPath.endsWith(".m3u8"), "Video renditions require HLS output");
+            String playlistPath = sessionPath.substring(0, sessionPath.length() - 5) + "_" + rendition.getHeight() + "p.m3u8";
+            MpegTsHlsMuxer muxer = MpegTsHlsMuxer.create(playlistPath);
+            if (sessionMuxer.isHlsOutputInMemory()) muxer.setInMemoryOutput(true, false);
+            return muxer;
+        }
+
         public SessionConfig build() {
+            if (mMuxer == null) {
+                mMuxer = createMuxer(mRecordingPath);
+            }
             SessionConfig session = new SessionConfig(mUUID, mMuxer,
-                    new VideoEncoderConfig(mWidth, mHeight, mVideoBitrate),
+                    new VideoEncoderConfig(mWidth, mHeight, mVideoBitrate, mVideoFrameRate),
                     new AudioEncoderConfig(mNumAudioChannels, mAudioSamplerate, mAudioBitrate));
 
             session.setTitle(mTitle);
@@ -366,6 +646,17 @@ public class SessionConfig {
             session.setExtraInfo(mExtraInfo);
             session.setHlsSegmentDuration(mHlsSegmentDuration);
             session.setOutputDirectory(mOutputDirectory);
+            session.setAudioOnly(mAudioOnly);
+            session.setPreRollDuration(mPreRollDuration);
+            session.setEncoderProfile(mEncoderProfile);
+            session.setIntraRefresh(mIntraRefresh);
+            for (AudioProcessor processor : mAudioProcessors) {
+                session.addAudioProcessor(processor);
+            }
+            for (VideoEncoderConfig rendition : mRenditions) {
+                session.addRendition(new VideoRendition(rendition.getWidth(), rendition.getHeight(),
+                        rendition.getBitRate(), createRenditionMuxer(mMuxer, rendition)));
+            }
 
             return session;
         }
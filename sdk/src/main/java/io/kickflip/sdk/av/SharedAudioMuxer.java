@@ -0,0 +1,130 @@
+package io.kickflip.sdk.av;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A Muxer that writes a single audio encode into the session's Muxer
+ * and the Muxer of each {@link io.kickflip.sdk.av.VideoRendition}, so every HLS variant
+ * carries the same audio without encoding it once per variant.
+ * <p/>
+ * Unlike a {@link io.kickflip.sdk.av.TeeMuxer}, each child also receives video directly
+ * from its own encoder, and so keeps returning its own encoder output buffers. Children are
+ * written synchronously on the audio encoder thread, each under its own lock as its video
+ * encoder writes under it too. Rendition Muxers are written first and are passed no buffer
+ * index, so the session's Muxer, written last, returns the audio encoder's buffer as it
+ * would without renditions.
+ * <p/>
+ * Rendition Muxers must finish with each packet before their writeSampleData returns.
+ *
+ * @hide
+ */
+public class SharedAudioMuxer extends Muxer {
+
+    private final Muxer mPrimary;
+    private final Muxer[] mRenditions;
+    private final int[] mRenditionTracks;
+    private int mPrimaryTrack = -1;
+
+    private SharedAudioMuxer(Muxer primary, Muxer[] renditions) {
+        super(primary.getOutputPath(), primary.mFormat);
+        mPrimary = primary;
+        mRenditions = renditions;
+        mRenditionTracks = new int[renditions.length];
+        setAudioOnly(true);
+    }
+
+    /**
+     * @param primary    the session's Muxer
+     * @param renditions the renditions whose Muxers should also receive audio
+     */
+    public static SharedAudioMuxer create(Muxer primary, List<VideoRendition> renditions) {
+        checkNotNull(primary);
+        Muxer[] muxers = new Muxer[renditions.size()];
+        for (int i = 0; i < muxers.length; i++) {
+            muxers[i] = renditions.get(i).getMuxer();
+            checkArgument(muxers[i] != primary, "A rendition may not share the session's Muxer");
+        }
+        return new SharedAudioMuxer(primary, muxers);
+    }
+
+    @Override
+    public boolean isHlsOutputInMemory() {
+        return mPrimary.isHlsOutputInMemory();
+    }
+
+    @Override
+    public String getHlsInitSegmentName() {
+        return mPrimary.getHlsInitSegmentName();
+    }
+
+    @Override
+    public int addTrack(MediaFormat trackFormat) {
+        int trackIndex = super.addTrack(trackFormat);
+        checkArgument(trackIndex == 0, "SharedAudioMuxer accepts a single audio track");
+        for (int i = 0; i < mRenditions.length; i++) {
+            synchronized (mRenditions[i]) {
+                mRenditionTracks[i] = mRenditions[i].addTrack(trackFormat);
+            }
+        }
+        synchronized (mPrimary) {
+            mPrimaryTrack = mPrimary.addTrack(trackFormat);
+        }
+        return trackIndex;
+    }
+
+    @Override
+    public boolean isStarted() {
+        synchronized (mPrimary) {
+            return mPrimary.isStarted();
+        }
+    }
+
+    @Override
+    public void writeSampleData(MediaCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        super.writeSampleData(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+        int position = encodedData.position();
+        int limit = encodedData.limit();
+        for (int i = 0; i < mRenditions.length; i++) {
+            synchronized (mRenditions[i]) {
+                mRenditions[i].writeSampleData(encoder, mRenditionTracks[i], -1, encodedData, bufferInfo);
+            }
+            // Each child positions the buffer for itself
+            encodedData.limit(limit);
+            encodedData.position(position);
+        }
+        synchronized (mPrimary) {
+            mPrimary.writeSampleData(encoder, mPrimaryTrack, bufferIndex, encodedData, bufferInfo);
+        }
+    }
+
+    @Override
+    public void onEncoderReleased(int trackIndex) {
+        for (int i = 0; i < mRenditions.length; i++) {
+            synchronized (mRenditions[i]) {
+                mRenditions[i].onEncoderReleased(mRenditionTracks[i]);
+            }
+        }
+        synchronized (mPrimary) {
+            mPrimary.onEncoderReleased(mPrimaryTrack);
+        }
+    }
+
+    @Override
+    public void forceStop() {
+        for (Muxer rendition : mRenditions) {
+            synchronized (rendition) {
+                rendition.forceStop();
+            }
+        }
+        synchronized (mPrimary) {
+            mPrimary.forceStop();
+        }
+    }
+}
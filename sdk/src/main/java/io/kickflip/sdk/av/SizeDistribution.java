@@ -0,0 +1,143 @@
+package io.kickflip.sdk.av;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Summarizes a stream of sizes or rates, e.g: encoded frame bytes, segment bytes
+ * or upload bytes per second, to compare how bursty output is between encoder configurations.
+ * <p/>
+ * Count, mean, deviation, extremes and total cover every value. Percentiles are of the most
+ * recent values, up to the capacity given at construction.
+ * <p/>
+ * Thread-safe.
+ *
+ * @hide
+ */
+public class SizeDistribution {
+
+    private final String mName;
+    private final long[] mRecent;               // Ring of the most recent values, for percentiles
+    private int mRecentNext;
+
+    private long mCount;
+    private double mMean;
+    private double mSumSquaredDeviation;        // Welford's running sum of squared deviations from the mean
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = Long.MIN_VALUE;
+    private long mTotal;
+
+    /**
+     * @param name           labels this distribution in {@link #toString()}
+     * @param recentCapacity the number of recent values percentiles are taken from
+     */
+    public SizeDistribution(String name, int recentCapacity) {
+        checkArgument(recentCapacity > 0, "Invalid capacity " + recentCapacity);
+        mName = name;
+        mRecent = new long[recentCapacity];
+    }
+
+    /**
+     * @return an independent copy of this distribution's current state
+     */
+    public synchronized SizeDistribution copy() {
+        SizeDistribution copy = new SizeDistribution(mName, mRecent.length);
+        System.arraycopy(mRecent, 0, copy.mRecent, 0, mRecent.length);
+        copy.mRecentNext = mRecentNext;
+        copy.mCount = mCount;
+        copy.mMean = mMean;
+        copy.mSumSquaredDeviation = mSumSquaredDeviation;
+        copy.mMin = mMin;
+        copy.mMax = mMax;
+        copy.mTotal = mTotal;
+        return copy;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public synchronized void add(long value) {
+        mCount++;
+        double delta = value - mMean;
+        mMean += delta / mCount;
+        mSumSquaredDeviation += delta * (value - mMean);
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+        mTotal += value;
+        mRecent[mRecentNext] = value;
+        mRecentNext = (mRecentNext + 1) % mRecent.length;
+    }
+
+    public synchronized void clear() {
+        mRecentNext = 0;
+        mCount = 0;
+        mMean = 0;
+        mSumSquaredDeviation = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = Long.MIN_VALUE;
+        mTotal = 0;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getTotal() {
+        return mTotal;
+    }
+
+    public synchronized long getMin() {
+        return mCount == 0 ? 0 : mMin;
+    }
+
+    public synchronized long getMax() {
+        return mCount == 0 ? 0 : mMax;
+    }
+
+    public synchronized double getMean() {
+        return mMean;
+    }
+
+    public synchronized double getStandardDeviation() {
+        return mCount < 2 ? 0 : Math.sqrt(mSumSquaredDeviation / (mCount - 1));
+    }
+
+    /**
+     * @return the standard deviation relative to the mean. Lower is steadier
+     */
+    public synchronized double getCoefficientOfVariation() {
+        return mMean == 0 ? 0 : getStandardDeviation() / mMean;
+    }
+
+    /**
+     * @return the largest value relative to the mean, e.g: how much larger
+     * than an average frame the largest keyframe was
+     */
+    public synchronized double getPeakToMean() {
+        return mMean == 0 ? 0 : getMax() / mMean;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the nearest-rank percentile of the most recent values, or 0 if there are none
+     */
+    public synchronized long getPercentile(double percentile) {
+        checkArgument(percentile >= 0 && percentile <= 100, "Invalid percentile " + percentile);
+        int size = (int) Math.min(mCount, mRecent.length);
+        if (size == 0) return 0;
+        long[] sorted = Arrays.copyOf(mRecent, size);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100 * size);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%s: n %d, mean %.0f, sd %.0f (cv %.2f), min %d, p50 %d, p95 %d, p99 %d, max %d (%.1fx mean)",
+                mName, mCount, mMean, getStandardDeviation(), getCoefficientOfVariation(), getMin(),
+                getPercentile(50), getPercentile(95), getPercentile(99), getMax(), getPeakToMean());
+    }
+}
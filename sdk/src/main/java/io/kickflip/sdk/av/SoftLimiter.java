@@ -0,0 +1,47 @@
+package io.kickflip.sdk.av;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Keeps peaks below full scale without hard clipping. Samples below the threshold
+ * pass unchanged, while those above are compressed smoothly towards, but never reaching,
+ * full scale. Stateless, so adds no latency.
+ * <p/>
+ * Place last in a chain, after any stage applying gain.
+ *
+ * @hide
+ */
+public class SoftLimiter implements AudioProcessor {
+
+    private final float mThreshold;
+    private final float mHeadroom;
+
+    /**
+     * @param thresholdDb the level above which samples are compressed, in dBFS e.g: -3
+     */
+    public SoftLimiter(float thresholdDb) {
+        checkArgument(thresholdDb < 0, "thresholdDb must be negative");
+        mThreshold = AudioProcessorChain.dbToGain(thresholdDb);
+        mHeadroom = 1f - mThreshold;
+    }
+
+    @Override
+    public void configure(int sampleRate, int channelCount) {
+    }
+
+    @Override
+    public void process(float[] samples, int count) {
+        float threshold = mThreshold;
+        float headroom = mHeadroom;
+        for (int i = 0; i < count; i++) {
+            float sample = samples[i];
+            float magnitude = Math.abs(sample);
+            if (magnitude > threshold) {
+                // Maps (threshold, infinity) onto (threshold, 1) with unit slope at the threshold
+                float over = (magnitude - threshold) / headroom;
+                float limited = threshold + headroom * over / (1f + over);
+                samples[i] = sample < 0 ? -limited : limited;
+            }
+        }
+    }
+}
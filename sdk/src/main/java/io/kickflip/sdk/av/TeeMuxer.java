@@ -0,0 +1,381 @@
+package io.kickflip.sdk.av;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.google.common.eventbus.EventBus;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A Muxer that fans each encoder output buffer out to several child Muxers,
+ * e.g: a live HLS Muxer and an {@link io.kickflip.sdk.av.AndroidMuxer} archiving
+ * a local MP4, from a single encode.
+ * <p/>
+ * The primary child is written synchronously on the encoder thread, and answers
+ * HLS-specific queries on behalf of the TeeMuxer. Each secondary child is written on its own
+ * thread, sharing the encoder's output buffer rather than a copy of it. Shared buffers are
+ * reference counted, and returned to the encoder after the last child has written them.
+ * <p/>
+ * A secondary child that falls behind must not hold the encoder's output buffers, or
+ * the encoder, and so the primary child, would stall. Once a secondary holds
+ * {@link #MAX_SHARED_BUFFERS_PER_CHILD} shared buffers, further packets are copied for it
+ * from a {@link io.kickflip.sdk.av.DirectBufferPool}. If its backlog reaches
+ * {@link #MAX_BACKLOG_PACKETS}, packets are dropped for that child alone: audio until the backlog
+ * clears, video until the next keyframe after it clears.
+ * <p/>
+ * Children must release each output buffer before their writeSampleData returns,
+ * as all Muxers in this package do.
+ * <p/>
+ * Buffers are only shared when the TeeMuxer owns them. If it doesn't, because it is wrapped
+ * by a Muxer that disabled {@link #setReleasesOutputBuffers(boolean)} e.g: a
+ * {@link io.kickflip.sdk.av.PreRollMuxer}, or the packet isn't an encoder output buffer, as
+ * indicated by a negative bufferIndex, its caller reclaims the buffer once writeSampleData
+ * returns. Each secondary child is then given a copy.
+ *
+ * @hide
+ */
+public class TeeMuxer extends Muxer {
+    private static final String TAG = "TeeMuxer";
+    private static final boolean VERBOSE = false;
+
+    public static final int MAX_SHARED_BUFFERS_PER_CHILD = 2;
+    public static final int MAX_BACKLOG_PACKETS = 256;
+    private static final int MAX_TRACKS = 4;
+    private static final int MAX_POOLED_BYTES = 2 * 1024 * 1024;
+    private static final long ENCODER_RELEASE_TIMEOUT_MS = 1000;
+
+    /**
+     * An encoder output buffer shared by one or more children.
+     */
+    private static class SharedBuffer {
+        final AtomicInteger refs = new AtomicInteger();
+        MediaCodec encoder;
+        int bufferIndex;
+        int trackIndex;
+    }
+
+    /**
+     * A packet queued for a secondary child.
+     */
+    private static class Delivery {
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        MediaCodec encoder;
+        int trackIndex;                                     // TeeMuxer track index
+        int bufferIndex;                                    // -1 if data is a pooled copy
+        ByteBuffer data;
+        SharedBuffer shared;                                // Null if data is a pooled copy
+        boolean stop;
+    }
+
+    private class Child implements Runnable {
+        final Muxer muxer;
+        final boolean primary;
+        final int[] tracks = new int[MAX_TRACKS];           // TeeMuxer track index -> child track index
+        final LinkedBlockingQueue<Delivery> queue = new LinkedBlockingQueue<>();
+        final ConcurrentLinkedQueue<Delivery> freeDeliveries = new ConcurrentLinkedQueue<>();
+        final AtomicInteger sharedInFlight = new AtomicInteger();
+        final boolean[] dropping = new boolean[MAX_TRACKS];
+        volatile long droppedPackets;
+        volatile long copiedPackets;
+
+        Child(Muxer muxer, boolean primary) {
+            this.muxer = muxer;
+            this.primary = primary;
+        }
+
+        Delivery obtainDelivery() {
+            Delivery delivery = freeDeliveries.poll();
+            return (delivery != null) ? delivery : new Delivery();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Delivery delivery;
+                try {
+                    delivery = queue.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (delivery.stop) {
+                    if (!muxer.allTracksFinished()) muxer.forceStop();
+                    break;
+                }
+                muxer.writeSampleData(delivery.encoder, tracks[delivery.trackIndex], delivery.bufferIndex,
+                        delivery.data, delivery.info);
+                if (delivery.shared != null) {
+                    sharedInFlight.decrementAndGet();
+                    releaseShared(delivery.shared);
+                } else {
+                    mBufferPool.release(delivery.data);
+                }
+                delivery.data = null;
+                delivery.shared = null;
+                delivery.encoder = null;
+                freeDeliveries.add(delivery);
+                if (muxer.allTracksFinished()) break;
+            }
+            if (VERBOSE) Log.i(TAG, "Child " + muxer.getOutputPath() + " finished");
+        }
+    }
+
+    private final Child[] mChildren;
+    private final boolean[] mVideoTracks = new boolean[MAX_TRACKS];
+    private final DirectBufferPool mBufferPool = new DirectBufferPool(MAX_POOLED_BYTES);
+    private final ConcurrentLinkedQueue<SharedBuffer> mFreeSharedBuffers = new ConcurrentLinkedQueue<>();
+
+    private final Object mReleaseLock = new Object();
+    private final int[] mOutstandingShared = new int[MAX_TRACKS];   // Guarded by mReleaseLock
+    private final boolean[] mEncoderReleased = new boolean[MAX_TRACKS];
+
+    private TeeMuxer(Muxer primary, Muxer[] secondaries) {
+        super(primary.getOutputPath(), primary.mFormat);
+        mChildren = new Child[secondaries.length + 1];
+        mChildren[0] = new Child(primary, true);
+        for (int i = 0; i < secondaries.length; i++) {
+            mChildren[i + 1] = new Child(checkNotNull(secondaries[i]), false);
+        }
+        for (Child child : mChildren) {
+            child.muxer.setReleasesOutputBuffers(false);
+            if (!child.primary) {
+                new Thread(child, "TeeMuxer-" + child.muxer.getClass().getSimpleName()).start();
+            }
+        }
+    }
+
+    /**
+     * @param primary     written on the encoder thread. Its output path, format and HLS
+     *                    configuration are reported as the TeeMuxer's own
+     * @param secondaries each written on its own thread
+     */
+    public static TeeMuxer create(Muxer primary, Muxer... secondaries) {
+        checkNotNull(primary);
+        checkArgument(secondaries.length > 0, "TeeMuxer requires at least one secondary Muxer");
+        return new TeeMuxer(primary, secondaries);
+    }
+
+    public Muxer getPrimary() {
+        return mChildren[0].muxer;
+    }
+
+    /**
+     * @return the number of packets a secondary child dropped because it fell too far behind
+     */
+    public long getDroppedPacketCount(Muxer secondary) {
+        return findChild(secondary).droppedPackets;
+    }
+
+    /**
+     * @return the number of packets copied for a secondary child because it
+     * was holding too many shared encoder buffers. Excludes packets copied
+     * because the TeeMuxer didn't own them
+     */
+    public long getCopiedPacketCount(Muxer secondary) {
+        return findChild(secondary).copiedPackets;
+    }
+
+    private Child findChild(Muxer muxer) {
+        for (Child child : mChildren) {
+            if (child.muxer == muxer) return child;
+        }
+        throw new IllegalArgumentException("Not a child of this TeeMuxer: " + muxer);
+    }
+
+    @Override
+    public void setEventBus(EventBus eventBus) {
+        super.setEventBus(eventBus);
+        for (Child child : mChildren) {
+            child.muxer.setEventBus(eventBus);
+        }
+    }
+
+    @Override
+    public void setHlsSegmentDuration(int seconds) {
+        super.setHlsSegmentDuration(seconds);
+        for (Child child : mChildren) {
+            child.muxer.setHlsSegmentDuration(seconds);
+        }
+    }
+
+    @Override
+    public void setAudioOnly(boolean audioOnly) {
+        super.setAudioOnly(audioOnly);
+        for (Child child : mChildren) {
+            child.muxer.setAudioOnly(audioOnly);
+        }
+    }
+
+    @Override
+    public boolean isHlsOutputInMemory() {
+        return getPrimary().isHlsOutputInMemory();
+    }
+
+    @Override
+    public String getHlsInitSegmentName() {
+        return getPrimary().getHlsInitSegmentName();
+    }
+
+    @Override
+    public boolean isStarted() {
+        return getPrimary().isStarted();
+    }
+
+    @Override
+    public int addTrack(MediaFormat trackFormat) {
+        int trackIndex = super.addTrack(trackFormat);
+        checkArgument(trackIndex < MAX_TRACKS, "Too many tracks");
+        mVideoTracks[trackIndex] = trackFormat.getString(MediaFormat.KEY_MIME).startsWith("video/");
+        for (Child child : mChildren) {
+            // Precedes any packet of this track, so the child's thread will observe it
+            child.tracks[trackIndex] = child.muxer.addTrack(trackFormat);
+        }
+        return trackIndex;
+    }
+
+    @Override
+    public void writeSampleData(MediaCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        super.writeSampleData(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+        SharedBuffer shared = null;
+        if (releasesOutputBuffers() && bufferIndex >= 0) {
+            shared = mFreeSharedBuffers.poll();
+            if (shared == null) shared = new SharedBuffer();
+            shared.encoder = encoder;
+            shared.bufferIndex = bufferIndex;
+            shared.trackIndex = trackIndex;
+            shared.refs.set(1);                             // Held until the primary child returns
+            synchronized (mReleaseLock) {
+                mOutstandingShared[trackIndex]++;
+            }
+        }
+
+        for (int i = 1; i < mChildren.length; i++) {
+            deliver(mChildren[i], encoder, shared, trackIndex, encodedData, bufferInfo);
+        }
+
+        Child primary = mChildren[0];
+        primary.muxer.writeSampleData(encoder, primary.tracks[trackIndex], bufferIndex, encodedData, bufferInfo);
+        if (shared != null) releaseShared(shared);
+    }
+
+    /**
+     * Queue a packet for a secondary child. Called on the encoder thread.
+     *
+     * @param shared the encoder's buffer to share, or null if the
+     *               caller reclaims it on return, so it must be copied
+     */
+    private void deliver(Child child, MediaCodec encoder, SharedBuffer shared, int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        boolean isEos = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+        if (!isEos && shouldDrop(child, trackIndex, bufferInfo)) {
+            child.droppedPackets++;
+            return;
+        }
+        Delivery delivery = child.obtainDelivery();
+        delivery.encoder = encoder;
+        delivery.trackIndex = trackIndex;
+        delivery.info.set(bufferInfo.offset, bufferInfo.size, bufferInfo.presentationTimeUs, bufferInfo.flags);
+        if (shared != null && child.sharedInFlight.get() < MAX_SHARED_BUFFERS_PER_CHILD) {
+            // Share the encoder's buffer. Each child gets its own position and limit
+            delivery.data = encodedData.duplicate();
+            delivery.bufferIndex = shared.bufferIndex;
+            delivery.shared = shared;
+            shared.refs.incrementAndGet();
+            child.sharedInFlight.incrementAndGet();
+        } else {
+            // Don't let a lagging child hold the encoder's buffers, or read one that's been reclaimed
+            ByteBuffer copy = mBufferPool.acquire(Math.max(1, bufferInfo.size));
+            ByteBuffer src = encodedData.duplicate();
+            src.limit(bufferInfo.offset + bufferInfo.size);
+            src.position(bufferInfo.offset);
+            copy.clear();
+            copy.put(src);
+            copy.flip();
+            delivery.data = copy;
+            delivery.bufferIndex = -1;
+            delivery.info.offset = 0;
+            if (shared != null) child.copiedPackets++;
+        }
+        child.queue.add(delivery);
+    }
+
+    /**
+     * Called on the encoder thread.
+     *
+     * @return true if a secondary child's backlog requires this packet be dropped for it
+     */
+    private boolean shouldDrop(Child child, int trackIndex, MediaCodec.BufferInfo bufferInfo) {
+        boolean backlogged = child.queue.size() >= MAX_BACKLOG_PACKETS;
+        if (!child.dropping[trackIndex]) {
+            if (!backlogged) return false;
+            Log.w(TAG, "Dropping packets for lagging " + child.muxer.getClass().getSimpleName());
+            child.dropping[trackIndex] = true;
+            return true;
+        }
+        boolean isKeyframe = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+        if (backlogged || (mVideoTracks[trackIndex] && !isKeyframe)) return true;
+        child.dropping[trackIndex] = false;
+        return false;
+    }
+
+    /**
+     * Drop a reference to a shared buffer, returning it to the encoder
+     * if it was the last. Called on the encoder thread or a child's thread.
+     */
+    private void releaseShared(SharedBuffer shared) {
+        if (shared.refs.decrementAndGet() > 0) return;
+        synchronized (mReleaseLock) {
+            if (!mEncoderReleased[shared.trackIndex]) {
+                shared.encoder.releaseOutputBuffer(shared.bufferIndex, false);
+            }
+            mOutstandingShared[shared.trackIndex]--;
+            mReleaseLock.notifyAll();
+        }
+        shared.encoder = null;
+        mFreeSharedBuffers.add(shared);
+    }
+
+    /**
+     * Wait briefly for secondary children to finish with the encoder's shared buffers,
+     * since they become invalid once the encoder is released.
+     */
+    @Override
+    public void onEncoderReleased(int trackIndex) {
+        synchronized (mReleaseLock) {
+            long deadline = System.currentTimeMillis() + ENCODER_RELEASE_TIMEOUT_MS;
+            long remaining;
+            while (mOutstandingShared[trackIndex] > 0
+                    && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    mReleaseLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            if (mOutstandingShared[trackIndex] > 0) {
+                Log.w(TAG, "Encoder released while " + mOutstandingShared[trackIndex] + " buffers were shared");
+            }
+            mEncoderReleased[trackIndex] = true;
+        }
+        for (Child child : mChildren) {
+            child.muxer.onEncoderReleased(child.tracks[trackIndex]);
+        }
+    }
+
+    @Override
+    public void forceStop() {
+        getPrimary().forceStop();
+        for (int i = 1; i < mChildren.length; i++) {
+            // Written after any packets already queued
+            Delivery stop = new Delivery();
+            stop.stop = true;
+            mChildren[i].queue.add(stop);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package io.kickflip.sdk.av;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Maps the absolute encoder timestamps of any number of tracks onto a shared
+ * session timeline beginning at zero.
+ * <p/>
+ * Guarantees for each track:
+ * <ul>
+ * <li>Decode timestamps strictly increase, and presentation timestamps never precede them.
+ * Presentation order may differ from decode order, so B-frames survive normalization.</li>
+ * <li>Corrections are never applied as a jump. When a timestamp runs backwards the track
+ * is pushed forward by one frame interval, then slewed back toward its true timeline by
+ * at most {@link #MAX_SLEW_RATIO} of each subsequent packet interval. A track whose first
+ * packet precedes the session's start is shifted to begin at zero, then slewed back in the same manner.</li>
+ * <li>Drift against the reference track is measured as the change in each track's
+ * timestamp-vs-arrival skew since its first packets. That skew also changes with encoder
+ * and queueing latency, which correcting would slew the track away from its true timeline
+ * against the reference, so drift is only corrected if enabled with {@link #setDriftCorrection}.
+ * Constant offsets such as differing encoder latency are preserved.</li>
+ * </ul>
+ * Jitter, drift, correction and discontinuity statistics are kept per track.
+ * This class has no Android dependencies, and is not thread-safe.
+ *
+ * @hide
+ */
+public class TimestampNormalizer {
+
+    public static final double MAX_SLEW_RATIO = 0.005;          // Correction applied per us of packet interval
+    public static final long DISCONTINUITY_US = 1000 * 1000;    // Jumps larger than this are re-based immediately
+
+    private static final long UNSET = Long.MIN_VALUE;
+    private static final long DEFAULT_INTERVAL_US = 10 * 1000;
+    private static final int SKEW_WARMUP_PACKETS = 8;           // Packets averaged to establish a track's initial skew
+    private static final double SKEW_SMOOTHING = 1 / 32.0;
+    private static final double JITTER_SMOOTHING = 1 / 16.0;    // As RFC 3550 interarrival jitter
+
+    private static class Track {
+        long lastInDts = UNSET;
+        long lastOutDts = UNSET;
+        long intervalUs = DEFAULT_INTERVAL_US;
+        long baseCorrectionUs;                                  // Fixed offset re-basing a discontinuity
+        long targetCorrectionUs;                                // baseCorrectionUs + drift and discontinuity corrections
+        long correctionUs;                                      // Currently applied, slewing toward targetCorrectionUs
+
+        int skewSamples;
+        double initialSkewUs;
+        double skewUs;
+        long lastArrivalUs = UNSET;
+
+        long packets;
+        long nonMonotonic;
+        long discontinuities;
+        double jitterUs;
+        long maxAbsCorrectionUs;
+        long totalSlewUs;
+    }
+
+    private Track[] mTracks = new Track[0];
+    private long mAnchorUs = UNSET;
+    private long mAnchorArrivalUs = UNSET;
+    private int mReferenceTrack = -1;
+    private boolean mCorrectDrift;
+
+    /**
+     * Set the track others' drift is measured against, and aligned to if drift correction
+     * is enabled. Typically audio, as small timing changes are least perceptible on video.
+     */
+    public void setReferenceTrack(int trackIndex) {
+        checkArgument(trackIndex >= 0, "Invalid track index");
+        mReferenceTrack = trackIndex;
+    }
+
+    /**
+     * Slew away drift against the reference track. Off by default. Only enable when the tracks'
+     * latencies are steady, so that a change in skew against arrival is clock drift,
+     * e.g: when each track is timestamped from its own capture clock.
+     */
+    public void setDriftCorrection(boolean correctDrift) {
+        mCorrectDrift = correctDrift;
+    }
+
+    /**
+     * Normalize a packet whose decode and presentation times are equal, without drift correction.
+     *
+     * @return the relative presentation time in microseconds
+     */
+    public long normalize(int trackIndex, long absPtsUs) {
+        return normalize(trackIndex, absPtsUs, absPtsUs, UNSET);
+    }
+
+    /**
+     * Normalize the next packet of a track. Packets must be given in each track's decode order.
+     *
+     * @param absPtsUs  the packet's absolute presentation time
+     * @param absDtsUs  the packet's absolute decode time. Equal to absPtsUs without B-frames
+     * @param arrivalUs the time the packet was received on a monotonic clock e.g: System.nanoTime() / 1000,
+     *                  used to measure drift. Long.MIN_VALUE if unavailable
+     * @return the relative presentation time in microseconds. The decode time
+     * is available from {@link #getLastDtsUs(int)}
+     */
+    public long normalize(int trackIndex, long absPtsUs, long absDtsUs, long arrivalUs) {
+        Track track = getTrack(trackIndex);
+        if (mAnchorUs == UNSET) {
+            mAnchorUs = absDtsUs;
+            mAnchorArrivalUs = arrivalUs;
+        }
+        long ptsDelay = Math.max(0, absPtsUs - absDtsUs);
+        long dts = absDtsUs - mAnchorUs;
+        track.packets++;
+
+        if (track.lastInDts == UNSET) {
+            // A track starting before the anchor is shifted to begin at zero,
+            // then slewed back to its true timeline
+            track.correctionUs = Math.max(0, -dts);
+        } else {
+            long inDelta = dts - track.lastInDts;
+            if (inDelta > 0 && inDelta < DISCONTINUITY_US) {
+                track.jitterUs += (Math.abs(inDelta - track.intervalUs) - track.jitterUs) * JITTER_SMOOTHING;
+                track.intervalUs += (inDelta - track.intervalUs) / 8;
+                slew(track, inDelta);
+            } else if (Math.abs(inDelta) >= DISCONTINUITY_US) {
+                // Source timeline restarted. Re-base so output continues one interval later
+                track.discontinuities++;
+                long rebase = track.lastOutDts + track.intervalUs - (dts + track.correctionUs);
+                track.correctionUs += rebase;
+                track.targetCorrectionUs += rebase;
+                track.baseCorrectionUs += rebase;
+                track.skewSamples = 0;
+            }
+        }
+        if (arrivalUs != UNSET && mAnchorArrivalUs != UNSET) {
+            updateDrift(trackIndex, track, dts, arrivalUs);
+        }
+
+        long outDts = dts + track.correctionUs;
+        if (track.lastOutDts != UNSET && outDts <= track.lastOutDts) {
+            // Timestamps ran backwards or stalled. Step forward, then slew back
+            track.nonMonotonic++;
+            long step = track.lastOutDts + Math.max(1, track.intervalUs) - outDts;
+            track.correctionUs += step;
+            outDts += step;
+        }
+        track.maxAbsCorrectionUs = Math.max(track.maxAbsCorrectionUs,
+                Math.abs(track.correctionUs - track.baseCorrectionUs));
+        track.lastInDts = dts;
+        track.lastOutDts = outDts;
+        return outDts + ptsDelay;
+    }
+
+    /**
+     * Move a track's applied correction toward its target by no more than
+     * {@link #MAX_SLEW_RATIO} of the elapsed interval.
+     */
+    private static void slew(Track track, long intervalUs) {
+        long error = track.targetCorrectionUs - track.correctionUs;
+        if (error == 0) return;
+        long maxStep = Math.max(1, (long) (intervalUs * MAX_SLEW_RATIO));
+        long step = Math.max(-maxStep, Math.min(maxStep, error));
+        track.correctionUs += step;
+        track.totalSlewUs += Math.abs(step);
+    }
+
+    private void updateDrift(int trackIndex, Track track, long dts, long arrivalUs) {
+        if (track.lastArrivalUs != UNSET && arrivalUs <= track.lastArrivalUs) return;
+        track.lastArrivalUs = arrivalUs;
+        double skew = dts - (arrivalUs - mAnchorArrivalUs);
+        if (track.skewSamples < SKEW_WARMUP_PACKETS) {
+            track.initialSkewUs += (skew - track.initialSkewUs) / (track.skewSamples + 1);
+            track.skewUs = track.initialSkewUs;
+            track.skewSamples++;
+            return;
+        }
+        track.skewUs += (skew - track.skewUs) * SKEW_SMOOTHING;
+        if (!mCorrectDrift || mReferenceTrack < 0 || trackIndex == mReferenceTrack || mReferenceTrack >= mTracks.length) return;
+        Track reference = mTracks[mReferenceTrack];
+        if (reference == null || reference.skewSamples < SKEW_WARMUP_PACKETS) return;
+        track.targetCorrectionUs = track.baseCorrectionUs + Math.round(getDrift(reference) - getDrift(track));
+    }
+
+    private static double getDrift(Track track) {
+        return track.skewUs - track.initialSkewUs;
+    }
+
+    private Track getTrack(int trackIndex) {
+        checkArgument(trackIndex >= 0, "Invalid track index");
+        if (trackIndex >= mTracks.length) {
+            mTracks = Arrays.copyOf(mTracks, trackIndex + 1);
+        }
+        if (mTracks[trackIndex] == null) {
+            mTracks[trackIndex] = new Track();
+        }
+        return mTracks[trackIndex];
+    }
+
+    private Track peekTrack(int trackIndex) {
+        return (trackIndex >= 0 && trackIndex < mTracks.length) ? mTracks[trackIndex] : null;
+    }
+
+    /**
+     * @return the relative decode time of the track's last normalized packet,
+     * or -1 if none
+     */
+    public long getLastDtsUs(int trackIndex) {
+        Track track = peekTrack(trackIndex);
+        return (track == null || track.lastOutDts == UNSET) ? -1 : track.lastOutDts;
+    }
+
+    /**
+     * @return the smoothed deviation of the track's packet intervals from their mean
+     */
+    public long getJitterUs(int trackIndex) {
+        Track track = peekTrack(trackIndex);
+        return track == null ? 0 : Math.round(track.jitterUs);
+    }
+
+    /**
+     * @return the change in the track's timestamp-vs-arrival skew since it began,
+     * relative to the reference track if one is set
+     */
+    public long getDriftUs(int trackIndex) {
+        Track track = peekTrack(trackIndex);
+        if (track == null || track.skewSamples < SKEW_WARMUP_PACKETS) return 0;
+        Track reference = peekTrack(mReferenceTrack);
+        double drift = getDrift(track);
+        if (reference != null && reference != track && reference.skewSamples >= SKEW_WARMUP_PACKETS) {
+            drift -= getDrift(reference);
+        }
+        return Math.round(drift);
+    }
+
+    /**
+     * @return the correction currently applied to the track, beyond its fixed start offset
+     */
+    public long getCorrectionUs(int trackIndex) {
+        Track track = peekTrack(trackIndex);
+        return track == null ? 0 : track.correctionUs - track.baseCorrectionUs;
+    }
+
+    public long getMaxCorrectionUs(int trackIndex) {
+        Track track = peekTrack(trackIndex);
+        return track == null ? 0 : track.maxAbsCorrectionUs;
+    }
+
+    /**
+     * @return the total correction slewed into or out of the track's timeline
+     */
+    public long getTotalSlewUs(int trackIndex) {
+        Track track = peekTrack(trackIndex);
+        return track == null ? 0 : track.totalSlewUs;
+    }
+
+    /**
+     * @return the number of packets whose timestamp did not advance
+     */
+    public long getNonMonotonicCount(int trackIndex) {
+        Track track = peekTrack(trackIndex);
+        return track == null ? 0 : track.nonMonotonic;
+    }
+
+    public long getDiscontinuityCount(int trackIndex) {
+        Track track = peekTrack(trackIndex);
+        return track == null ? 0 : track.discontinuities;
+    }
+
+    public long getPacketCount(int trackIndex) {
+        Track track = peekTrack(trackIndex);
+        return track == null ? 0 : track.packets;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("TimestampNormalizer{");
+        for (int i = 0; i < mTracks.length; i++) {
+            if (mTracks[i] == null) continue;
+            sb.append(String.format(Locale.US, "track %d: packets %d jitter %dus drift %dus correction %dus (max %d) non-monotonic %d discontinuities %d; ",
+                    i, getPacketCount(i), getJitterUs(i), getDriftUs(i), getCorrectionUs(i),
+                    getMaxCorrectionUs(i), getNonMonotonicCount(i), getDiscontinuityCount(i)));
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -4,14 +4,22 @@ package io.kickflip.sdk.av;
  * @hide
  */
 public class VideoEncoderConfig {
+    public static final int DEFAULT_FRAME_RATE = 30;
+
     protected final int mWidth;
     protected final int mHeight;
     protected final int mBitRate;
+    protected final int mFrameRate;
 
     public VideoEncoderConfig(int width, int height, int bitRate) {
+        this(width, height, bitRate, DEFAULT_FRAME_RATE);
+    }
+
+    public VideoEncoderConfig(int width, int height, int bitRate, int frameRate) {
         mWidth = width;
         mHeight = height;
         mBitRate = bitRate;
+        mFrameRate = frameRate;
     }
 
     public int getWidth() {
@@ -26,8 +34,12 @@ public class VideoEncoderConfig {
         return mBitRate;
     }
 
+    public int getFrameRate() {
+        return mFrameRate;
+    }
+
     @Override
     public String toString() {
-        return "VideoEncoderConfig: " + mWidth + "x" + mHeight + " @" + mBitRate + " bps";
+        return "VideoEncoderConfig: " + mWidth + "x" + mHeight + " @" + mBitRate + " bps, " + mFrameRate + " fps";
     }
 }
\ No newline at end of file
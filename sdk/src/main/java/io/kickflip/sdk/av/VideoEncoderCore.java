@@ -16,15 +16,21 @@
 
 package io.kickflip.sdk.av;
 
+import android.annotation.TargetApi;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Process;
 import android.util.Log;
 import android.view.Surface;
 
 import java.io.IOException;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static io.kickflip.sdk.Kickflip.isLollipop;
+import static io.kickflip.sdk.Kickflip.isMarshmallow;
+import static io.kickflip.sdk.Kickflip.isNougat;
 
 /**
  * This class wraps up the core components used for surface-input video encoding.
@@ -42,16 +48,34 @@ public class VideoEncoderCore extends AndroidEncoder{
 
     // TODO: these ought to be configurable as well
     private static final String MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
-    private static final int FRAME_RATE = 30;               // 30fps
+    private static final int FRAME_RATE = VideoEncoderConfig.DEFAULT_FRAME_RATE;
     private static final int IFRAME_INTERVAL = 3;           // 5 seconds between I-frames
+    private static final int INTRA_REFRESH_IFRAME_INTERVAL = 60;    // Fallback when HLS muxers don't request them
 
     private Surface mInputSurface;
+    private volatile SizeDistribution mFrameSizes;          // Encoded frame bytes, or null
 
 
     /**
      * Configures encoder and muxer state, and prepares the input Surface.
      */
     public VideoEncoderCore(int width, int height, int bitRate, Muxer muxer) throws IOException {
+        this(width, height, bitRate, FRAME_RATE, muxer, null, false);
+    }
+
+    /**
+     * Configures encoder and muxer state, and prepares the input Surface.
+     *
+     * @param frameRate the rate frames will be submitted at, used by the encoder's rate control
+     * @param profile   the encoder, profile and bitrate mode chosen for this device by
+     *                  {@link io.kickflip.sdk.av.EncoderProbe}, or null to use the platform's
+     *                  default encoder and configuration
+     * @param intraRefresh  whether to refresh the picture a slice at a time over each second,
+     *                      rather than with periodic IDR frames, if the encoder supports it.
+     *                      See {@link io.kickflip.sdk.av.SessionConfig#setIntraRefresh(boolean)}
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, int frameRate, Muxer muxer,
+                            EncoderProfile profile, boolean intraRefresh) throws IOException {
         mMuxer = muxer;
         mBufferInfo = new MediaCodec.BufferInfo();
 
@@ -62,13 +86,16 @@ public class VideoEncoderCore extends AndroidEncoder{
         format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
                 MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
         format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
         format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
+        if (profile != null) applyProfile(format, profile);
         if (VERBOSE) Log.d(TAG, "format: " + format);
 
         // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
         // we can use for input and wrap it with a class that handles the EGL work.
-        mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
+        mEncoder = createEncoder(profile);
+        if (intraRefresh) applyIntraRefresh(format, frameRate);
+        setupCallbackMode("VideoEncoderCallback", Process.THREAD_PRIORITY_DISPLAY);
         mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mInputSurface = mEncoder.createInputSurface();
         mEncoder.start();
@@ -76,6 +103,66 @@ public class VideoEncoderCore extends AndroidEncoder{
         mTrackIndex = -1;
     }
 
+    private static MediaCodec createEncoder(EncoderProfile profile) throws IOException {
+        if (profile != null) {
+            try {
+                return MediaCodec.createByCodecName(profile.getCodecName());
+            } catch (IOException | IllegalArgumentException e) {
+                Log.w(TAG, "Couldn't create probed encoder " + profile.getCodecName() + ". Using default", e);
+            }
+        }
+        return MediaCodec.createEncoderByType(MIME_TYPE);
+    }
+
+    /**
+     * Set the profile, level and bitrate mode the probe found supported.
+     * KEY_PROFILE is ignored without KEY_LEVEL before Marshmallow, and
+     * bitrate modes were introduced in Lollipop.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private static void applyProfile(MediaFormat format, EncoderProfile profile) {
+        if (isMarshmallow() && profile.getProfile() > 0) {
+            format.setInteger(MediaFormat.KEY_PROFILE, profile.getProfile());
+            format.setInteger(MediaFormat.KEY_LEVEL, profile.getLevel());
+        }
+        if (isLollipop() && profile.isCbrSupported()) {
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE,
+                    MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR);
+        }
+    }
+
+    /**
+     * Refresh a column of macroblocks per frame, completing the picture each second, so no frame
+     * is much larger than the rest. IDR frames are then only those HLS muxers request at
+     * segment boundaries, and the I-frame interval is lengthened to leave them to it.
+     * Constant bitrate is also chosen where supported to bound frame sizes further.
+     * <p/>
+     * Encoders without the feature keep periodic IDR frames.
+     */
+    @TargetApi(Build.VERSION_CODES.N)
+    private void applyIntraRefresh(MediaFormat format, int frameRate) {
+        MediaCodecInfo.CodecCapabilities caps = null;
+        if (isNougat()) {
+            try {
+                caps = mEncoder.getCodecInfo().getCapabilitiesForType(MIME_TYPE);
+            } catch (IllegalArgumentException e) {
+                // Some encoders list types they can't describe
+            }
+        }
+        if (caps == null || !caps.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_IntraRefresh)) {
+            Log.w(TAG, "Intra refresh unsupported by " + (caps == null ? "this platform" : mEncoder.getName())
+                    + ". Using periodic IDR frames");
+            return;
+        }
+        format.setInteger(MediaFormat.KEY_INTRA_REFRESH_PERIOD, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, INTRA_REFRESH_IFRAME_INTERVAL);
+        MediaCodecInfo.EncoderCapabilities encoderCaps = caps.getEncoderCapabilities();
+        if (encoderCaps != null && encoderCaps.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR)) {
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE, MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR);
+        }
+        if (VERBOSE) Log.d(TAG, "Intra refresh format: " + format);
+    }
+
     /**
      * Returns the encoder's input surface.
      */
@@ -83,6 +170,21 @@ public class VideoEncoderCore extends AndroidEncoder{
         return mInputSurface;
     }
 
+    /**
+     * Record the size of each encoded frame, e.g: to compare IDR spikes with intra refresh.
+     *
+     * @param frameSizes the distribution to add to, or null to stop recording
+     */
+    public void setFrameSizeDistribution(SizeDistribution frameSizes) {
+        mFrameSizes = frameSizes;
+    }
+
+    @Override
+    protected void onEncodedFrame(MediaCodec.BufferInfo bufferInfo) {
+        SizeDistribution frameSizes = mFrameSizes;
+        if (frameSizes != null) frameSizes.add(bufferInfo.size);
+    }
+
     @Override
     protected boolean isSurfaceInputEncoder() {
         return true;
@@ -0,0 +1,35 @@
+package io.kickflip.sdk.av;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An additional encoding of a session's camera video at its own resolution
+ * and bitrate, written by its own Muxer as an HLS variant.
+ * <p/>
+ * See {@link io.kickflip.sdk.av.SessionConfig#addRendition(VideoRendition)}
+ *
+ * @hide
+ */
+public class VideoRendition extends VideoEncoderConfig {
+    private final Muxer mMuxer;
+
+    /**
+     * @param muxer an HLS Muxer for this rendition's variant playlist and segments,
+     *              which will also receive the session's audio
+     */
+    public VideoRendition(int width, int height, int bitRate, Muxer muxer) {
+        super(width, height, bitRate);
+        checkArgument(width > 0 && height > 0 && bitRate > 0, "Invalid rendition " + width + "x" + height + " @" + bitRate);
+        mMuxer = checkNotNull(muxer);
+    }
+
+    public Muxer getMuxer() {
+        return mMuxer;
+    }
+
+    @Override
+    public String toString() {
+        return "VideoRendition: " + mWidth + "x" + mHeight + " @" + mBitRate + " bps to " + mMuxer.getOutputPath();
+    }
+}
@@ -8,13 +8,54 @@ import java.io.File;
 public class HlsManifestWrittenEvent extends BroadcastEvent {
 
     private File mManifest;
+    private String mManifestContents;
+    private String mSegmentEntry;
+    private boolean mEndList;
 
     public HlsManifestWrittenEvent(String manifestLocation) {
         mManifest = new File(manifestLocation);
     }
 
+    /**
+     * A manifest snapshot delivered in memory.
+     *
+     * @param manifestLocation the path the manifest would have on disk
+     * @param manifestContents the manifest contents
+     * @param segmentEntry     the playlist lines describing a segment completed by this update, or null
+     * @param endList          whether this is the final manifest
+     */
+    public HlsManifestWrittenEvent(String manifestLocation, String manifestContents, String segmentEntry, boolean endList) {
+        mManifest = new File(manifestLocation);
+        mManifestContents = manifestContents;
+        mSegmentEntry = segmentEntry;
+        mEndList = endList;
+    }
+
     public File getManifestFile() {
         return mManifest;
     }
 
+    /**
+     * @return the manifest contents, or null if the manifest was written to disk
+     */
+    public String getManifestContents() {
+        return mManifestContents;
+    }
+
+    /**
+     * @return the #EXTINF and URI lines of the segment completed by this update.
+     * Null if no segment was completed, e.g: a Low-Latency HLS partial segment update,
+     * or if the manifest was written to disk
+     */
+    public String getSegmentEntry() {
+        return mSegmentEntry;
+    }
+
+    /**
+     * @return whether this in-memory manifest is final
+     */
+    public boolean isEndList() {
+        return mEndList;
+    }
+
 }
@@ -0,0 +1,30 @@
+package io.kickflip.sdk.event;
+
+import java.io.File;
+
+import io.kickflip.sdk.av.HlsSegmentBuffer;
+
+/**
+ * A Low-Latency HLS partial segment was completed in memory.
+ * The subscriber handling the part must call
+ * {@link io.kickflip.sdk.av.HlsSegmentBuffer#release()}.
+ */
+public class HlsPartWrittenEvent extends BroadcastEvent {
+
+    private File mPart;
+    private HlsSegmentBuffer mPartBuffer;
+
+    public HlsPartWrittenEvent(String partLocation, HlsSegmentBuffer partBuffer) {
+        mPart = new File(partLocation);
+        mPartBuffer = partBuffer;
+    }
+
+    public File getPart() {
+        return mPart;
+    }
+
+    public HlsSegmentBuffer getPartBuffer() {
+        return mPartBuffer;
+    }
+
+}
@@ -2,19 +2,41 @@ package io.kickflip.sdk.event;
 
 import java.io.File;
 
+import io.kickflip.sdk.av.HlsSegmentBuffer;
+
 /**
  * Created by davidbrodsky on 1/28/14.
  */
 public class HlsSegmentWrittenEvent extends BroadcastEvent {
 
     private File mSegment;
+    private HlsSegmentBuffer mSegmentBuffer;
 
     public HlsSegmentWrittenEvent(String segmentLocation) {
         mSegment = new File(segmentLocation);
     }
 
+    /**
+     * A segment delivered in memory. The subscriber handling the
+     * segment must call {@link io.kickflip.sdk.av.HlsSegmentBuffer#release()}.
+     *
+     * @param segmentLocation the path the segment would have on disk
+     * @param segmentBuffer   the segment contents
+     */
+    public HlsSegmentWrittenEvent(String segmentLocation, HlsSegmentBuffer segmentBuffer) {
+        mSegment = new File(segmentLocation);
+        mSegmentBuffer = segmentBuffer;
+    }
+
     public File getSegment() {
         return mSegment;
     }
 
+    /**
+     * @return the in-memory segment, or null if the segment was written to disk
+     */
+    public HlsSegmentBuffer getSegmentBuffer() {
+        return mSegmentBuffer;
+    }
+
 }
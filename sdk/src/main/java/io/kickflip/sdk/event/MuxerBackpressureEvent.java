@@ -0,0 +1,60 @@
+package io.kickflip.sdk.event;
+
+/**
+ * The Muxer's packet queues filled faster than they could be written,
+ * and video frames were dropped per its backpressure policy. Posted when
+ * dropping begins and again when it ends. Audio is never dropped.
+ */
+public class MuxerBackpressureEvent extends BroadcastEvent {
+
+    private boolean mDropping;
+    private long mDroppedVideoFrames;
+    private int mVideoQueueDepth;
+    private int mAudioQueueDepth;
+    private int mQueueCapacity;
+
+    public MuxerBackpressureEvent(boolean dropping, long droppedVideoFrames,
+                                  int videoQueueDepth, int audioQueueDepth, int queueCapacity) {
+        mDropping = dropping;
+        mDroppedVideoFrames = droppedVideoFrames;
+        mVideoQueueDepth = videoQueueDepth;
+        mAudioQueueDepth = audioQueueDepth;
+        mQueueCapacity = queueCapacity;
+    }
+
+    /**
+     * @return true if video frames are being dropped,
+     * false if dropping has ended
+     */
+    public boolean isDropping() {
+        return mDropping;
+    }
+
+    /**
+     * @return the total number of video frames dropped this session
+     */
+    public long getDroppedVideoFrames() {
+        return mDroppedVideoFrames;
+    }
+
+    /**
+     * @return the number of video packets queued when this event was posted
+     */
+    public int getVideoQueueDepth() {
+        return mVideoQueueDepth;
+    }
+
+    /**
+     * @return the number of audio packets queued when this event was posted
+     */
+    public int getAudioQueueDepth() {
+        return mAudioQueueDepth;
+    }
+
+    /**
+     * @return the capacity of each track's packet queue
+     */
+    public int getQueueCapacity() {
+        return mQueueCapacity;
+    }
+}
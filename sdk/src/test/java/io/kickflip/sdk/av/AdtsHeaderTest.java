@@ -0,0 +1,123 @@
+package io.kickflip.sdk.av;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AdtsHeaderTest {
+
+    private static final int PROFILE_LC = 2;
+
+    @Test
+    public void headersMatchRecordedStream() throws IOException {
+        byte[] stream = readResource(ElementaryStream.AAC_RESOURCE);
+        AdtsHeader header = new AdtsHeader();
+        assertTrue(header.configure(ByteBuffer.wrap(AdtsHeader.createAudioSpecificConfig(PROFILE_LC,
+                ElementaryStream.AAC_SAMPLE_RATE, ElementaryStream.AAC_CHANNELS))));
+        int frames = 0;
+        for (ElementaryStream.Sample sample : ElementaryStream.readAac().getSamples()) {
+            byte[] recorded = Arrays.copyOfRange(stream, 0, AdtsHeader.LENGTH);
+            assertArrayEquals("Frame " + frames, recorded, toArray(header.prepare(sample.data.length)));
+            stream = Arrays.copyOfRange(stream, AdtsHeader.LENGTH + sample.data.length, stream.length);
+            frames++;
+        }
+        assertEquals(0, stream.length);
+    }
+
+    @Test
+    public void audioSpecificConfigSharesSamplingFrequencyTable() {
+        assertArrayEquals(new byte[]{0x12, 0x08}, AdtsHeader.createAudioSpecificConfig(PROFILE_LC, 44100, 1));
+        assertArrayEquals(new byte[]{0x11, (byte) 0x90}, AdtsHeader.createAudioSpecificConfig(PROFILE_LC, 48000, 2));
+        assertEquals(0, AdtsHeader.getSamplingFrequencyIndex(96000));
+        assertEquals(12, AdtsHeader.getSamplingFrequencyIndex(7350));
+        assertEquals(-1, AdtsHeader.getSamplingFrequencyIndex(44000));
+        try {
+            AdtsHeader.createAudioSpecificConfig(PROFILE_LC, 44000, 1);
+            fail("Sample rate without a sampling frequency index");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void eightChannelsUseConfigurationSeven() {
+        for (int channels = 1; channels <= 6; channels++) {
+            assertEquals(channels, AdtsHeader.getChannelConfiguration(channels));
+        }
+        assertEquals(7, AdtsHeader.getChannelConfiguration(8));
+
+        AdtsHeader header = new AdtsHeader();
+        assertTrue(header.configure(ByteBuffer.wrap(AdtsHeader.createAudioSpecificConfig(PROFILE_LC, 48000, 8))));
+        assertEquals(7, getChannelConfiguration(header.prepare(100)));
+    }
+
+    @Test
+    public void channelCountsWithoutConfigurationAreRejected() {
+        for (int channels : new int[]{0, 7, 9, 16}) {
+            try {
+                AdtsHeader.getChannelConfiguration(channels);
+                fail(channels + " channels");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void unsupportedAudioSpecificConfigLeavesHeaderUnchanged() {
+        AdtsHeader header = new AdtsHeader();
+        byte[] before = toArray(header.prepare(100));
+        // AAC-LC, 44.1 kHz, channelConfiguration 8 overflows ADTS's 3 bits
+        assertFalse(header.configure(ByteBuffer.wrap(new byte[]{0x12, 0x40})));
+        // samplingFrequencyIndex 15: an explicit rate ADTS can't carry
+        assertFalse(header.configure(ByteBuffer.wrap(new byte[]{0x17, (byte) 0x88})));
+        assertFalse(header.configure(ByteBuffer.wrap(new byte[]{0x12})));
+        assertArrayEquals(before, toArray(header.prepare(100)));
+    }
+
+    @Test
+    public void trackParametersMatchAudioSpecificConfig() {
+        AdtsHeader fromParameters = new AdtsHeader();
+        fromParameters.configure(PROFILE_LC, 48000, 2);
+        AdtsHeader fromConfig = new AdtsHeader();
+        assertTrue(fromConfig.configure(ByteBuffer.wrap(AdtsHeader.createAudioSpecificConfig(PROFILE_LC, 48000, 2))));
+        assertArrayEquals(toArray(fromConfig.prepare(100)), toArray(fromParameters.prepare(100)));
+
+        // Absent parameters, and a rate without an index, leave fields unchanged
+        fromParameters.configure(0, 44000, 0);
+        assertArrayEquals(toArray(fromConfig.prepare(100)), toArray(fromParameters.prepare(100)));
+    }
+
+    private static int getChannelConfiguration(ByteBuffer adts) {
+        return ((adts.get(2) & 0x01) << 2) | ((adts.get(3) & 0xC0) >> 6);
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static byte[] readResource(String name) throws IOException {
+        InputStream in = ElementaryStream.class.getResourceAsStream(name);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package io.kickflip.sdk.av;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AudioProcessorTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int FRAME_SAMPLES = 1024;
+
+    @Test
+    public void limiterPassesSamplesBelowThreshold() {
+        SoftLimiter limiter = new SoftLimiter(-6);
+        limiter.configure(SAMPLE_RATE, 1);
+        float[] samples = {0, 0.1f, -0.3f, 0.49f};
+        limiter.process(samples, samples.length);
+        assertTrue(Arrays.equals(new float[]{0, 0.1f, -0.3f, 0.49f}, samples));
+    }
+
+    @Test
+    public void limiterKeepsPeaksBelowFullScale() {
+        SoftLimiter limiter = new SoftLimiter(-3);
+        limiter.configure(SAMPLE_RATE, 1);
+        float[] samples = {0.8f, -0.9f, 1f, -4f, 100f};
+        limiter.process(samples, samples.length);
+        float previous = 0;
+        for (int i = 0; i < samples.length; i++) {
+            float magnitude = Math.abs(samples[i]);
+            assertTrue("sample " + i + " is " + samples[i], magnitude < 1);
+            // Monotonic, so louder input stays louder
+            assertTrue(magnitude > previous);
+            previous = magnitude;
+        }
+        assertTrue(samples[1] < 0 && samples[3] < 0);
+    }
+
+    @Test
+    public void highPassFilterRemovesDcAndPassesVoice() {
+        float[] dc = new float[FRAME_SAMPLES * 8];
+        Arrays.fill(dc, 0.5f);
+        float[] tone = sine(1000, 0.5f, dc.length, 1);
+        HighPassFilter filter = new HighPassFilter(80);
+        filter.configure(SAMPLE_RATE, 1);
+        filter.process(dc, dc.length);
+        filter.configure(SAMPLE_RATE, 1);
+        filter.process(tone, tone.length);
+
+        int settled = dc.length / 2;
+        assertEquals(0, peak(dc, settled), 0.001);
+        assertEquals(0.5, peak(tone, settled), 0.01);
+    }
+
+    @Test
+    public void highPassFilterKeepsChannelsApart() {
+        // Left carries DC, right a tone. Each channel is filtered independently
+        int frames = FRAME_SAMPLES * 8;
+        float[] tone = sine(1000, 0.5f, frames, 1);
+        float[] stereo = new float[frames * 2];
+        for (int i = 0; i < frames; i++) {
+            stereo[2 * i] = 0.5f;
+            stereo[2 * i + 1] = tone[i];
+        }
+        HighPassFilter filter = new HighPassFilter(80);
+        filter.configure(SAMPLE_RATE, 2);
+        filter.process(stereo, stereo.length);
+
+        float left = 0, right = 0;
+        for (int i = frames; i < frames * 2; i += 2) {
+            left = Math.max(left, Math.abs(stereo[i]));
+            right = Math.max(right, Math.abs(stereo[i + 1]));
+        }
+        assertEquals(0, left, 0.001);
+        assertEquals(0.5, right, 0.01);
+    }
+
+    @Test
+    public void noiseGateAttenuatesQuietAudio() {
+        NoiseGate gate = new NoiseGate(-40, -40);
+        gate.configure(SAMPLE_RATE, 1);
+        float[] hiss = sine(3000, 0.001f, FRAME_SAMPLES * 4, 1);
+        gate.process(hiss, hiss.length);
+        // 40 dB below -60 dBFS
+        assertEquals(0.00001, peak(hiss, 0), 0.000001);
+    }
+
+    @Test
+    public void noiseGateOpensForLoudAudioAndHolds() {
+        NoiseGate gate = new NoiseGate(-40, -40, 1, 100, 10);
+        gate.configure(SAMPLE_RATE, 1);
+        float[] voice = sine(200, 0.5f, FRAME_SAMPLES * 4, 1);
+        gate.process(voice, voice.length);
+        assertEquals(0.5, peak(voice, FRAME_SAMPLES), 0.01);
+
+        // The following 50 ms of quiet audio is within the hold time
+        float[] pause = sine(3000, 0.001f, SAMPLE_RATE / 20, 1);
+        gate.process(pause, pause.length);
+        assertEquals(0.001, peak(pause, pause.length / 2), 0.0001);
+    }
+
+    @Test
+    public void automaticGainControlConvergesOnTarget() {
+        AutomaticGainControl agc = new AutomaticGainControl(-18, 24);
+        agc.configure(SAMPLE_RATE, 1);
+        // A -32 dBFS RMS tone needs 14 dB of gain
+        float amplitude = (float) (Math.sqrt(2) * Math.pow(10, -32 / 20.0));
+        float[] samples = null;
+        for (int frame = 0; frame < 1000; frame++) {
+            samples = sine(440, amplitude, FRAME_SAMPLES, 1);
+            agc.process(samples, samples.length);
+        }
+        assertEquals(-18, 20 * Math.log10(rms(samples)), 0.5);
+        assertEquals(14, 20 * Math.log10(agc.getGain()), 0.5);
+    }
+
+    @Test
+    public void automaticGainControlHoldsGainThroughSilence() {
+        AutomaticGainControl agc = new AutomaticGainControl(-18, 24);
+        agc.configure(SAMPLE_RATE, 1);
+        for (int frame = 0; frame < 100; frame++) {
+            float[] silence = sine(440, 0.0001f, FRAME_SAMPLES, 1);
+            agc.process(silence, silence.length);
+        }
+        assertEquals(1, agc.getGain(), 0);
+    }
+
+    @Test
+    public void automaticGainControlReducesLoudAudioQuickly() {
+        AutomaticGainControl agc = new AutomaticGainControl(-18, 24);
+        agc.configure(SAMPLE_RATE, 1);
+        // Within half a second of a full scale tone
+        for (int frame = 0; frame < SAMPLE_RATE / 2 / FRAME_SAMPLES; frame++) {
+            float[] loud = sine(440, 1, FRAME_SAMPLES, 1);
+            agc.process(loud, loud.length);
+        }
+        // -3 dBFS RMS down to -18 dBFS
+        assertEquals(-15, 20 * Math.log10(agc.getGain()), 0.5);
+    }
+
+    @Test
+    public void chainConvertsAndClipsPcm() {
+        PcmRing.Frame frame = new PcmRing(1, 8).claim();
+        frame.samples.put(new short[]{1000, -1000, 30000, -30000});
+        frame.size = 8;
+        AudioProcessor doubler = new AudioProcessor() {
+            @Override
+            public void configure(int sampleRate, int channelCount) {
+            }
+
+            @Override
+            public void process(float[] samples, int count) {
+                for (int i = 0; i < count; i++) samples[i] *= 2;
+            }
+        };
+        new AudioProcessorChain(Collections.singletonList(doubler), SAMPLE_RATE, 1, 4).process(frame);
+        assertEquals(2000, frame.samples.get(0));
+        assertEquals(-2000, frame.samples.get(1));
+        assertEquals(Short.MAX_VALUE, frame.samples.get(2));
+        assertEquals(Short.MIN_VALUE, frame.samples.get(3));
+    }
+
+    @Test
+    public void emptyChainLeavesPcmUntouched() {
+        PcmRing.Frame frame = new PcmRing(1, 4).claim();
+        frame.samples.put(new short[]{123, -456});
+        frame.size = 4;
+        AudioProcessorChain chain = new AudioProcessorChain(Collections.<AudioProcessor>emptyList(), SAMPLE_RATE, 1, 2);
+        assertTrue(chain.isEmpty());
+        chain.process(frame);
+        assertEquals(123, frame.samples.get(0));
+        assertEquals(-456, frame.samples.get(1));
+    }
+
+    @Test
+    public void dbToGain() {
+        assertEquals(1, AudioProcessorChain.dbToGain(0), 1e-6);
+        assertEquals(0.1, AudioProcessorChain.dbToGain(-20), 1e-6);
+        assertEquals(0.5012, AudioProcessorChain.dbToGain(-6), 1e-4);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cutoffAboveNyquistIsRejected() {
+        new HighPassFilter(30000).configure(SAMPLE_RATE, 1);
+    }
+
+    private static float[] sine(float frequency, float amplitude, int count, int channelCount) {
+        float[] samples = new float[count * channelCount];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (float) (amplitude * Math.sin(2 * Math.PI * frequency * (i / channelCount) / SAMPLE_RATE));
+        }
+        return samples;
+    }
+
+    private static float peak(float[] samples, int from) {
+        float peak = 0;
+        for (int i = from; i < samples.length; i++) peak = Math.max(peak, Math.abs(samples[i]));
+        return peak;
+    }
+
+    private static double rms(float[] samples) {
+        double sumSquares = 0;
+        for (float sample : samples) sumSquares += sample * sample;
+        return Math.sqrt(sumSquares / samples.length);
+    }
+}
@@ -0,0 +1,244 @@
+package io.kickflip.sdk.av;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes the recorded H.264 and AAC elementary streams as CMAF fragments, one per
+ * keyframe interval as {@link io.kickflip.sdk.av.CmafHlsMuxer} would, and parses the result.
+ */
+public class Fmp4WriterTest {
+
+    private static final byte[] AUDIO_SPECIFIC_CONFIG = {0x12, 0x08};     // AAC-LC, 44.1 kHz, mono
+    private static final int VIDEO_TIMESCALE = 90000;
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private ElementaryStream mVideo;
+    private ElementaryStream mAudio;
+    private byte[] mSps;
+    private byte[] mPps;
+
+    private static class Output {
+        byte[] init;
+        final List<byte[]> fragments = new ArrayList<>();
+
+        long size() {
+            long size = init.length;
+            for (byte[] fragment : fragments) size += fragment.length;
+            return size;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mVideo = ElementaryStream.readH264();
+        mAudio = ElementaryStream.readAac();
+        List<byte[]> config = splitAnnexB(mVideo.getCodecConfig());
+        mSps = config.get(0);
+        mPps = config.get(1);
+    }
+
+    @Test
+    public void initSegmentDescribesBothTracks() throws IOException {
+        List<Mp4Parser.Box> boxes = Mp4Parser.parse(mux().init);
+        Mp4Parser.assertTypes(boxes, "ftyp", "moov");
+        assertEquals("iso6", Mp4Parser.fourCC(boxes.get(0).payload(), 0));
+
+        Mp4Parser.Box moov = boxes.get(1);
+        List<Mp4Parser.Box> traks = moov.children("trak");
+        assertEquals(2, traks.size());
+        assertEquals(2, moov.child("mvex").children("trex").size());
+
+        Mp4Parser.Box video = traks.get(0);
+        ByteBuffer tkhd = video.child("tkhd").fullBoxPayload();
+        assertEquals(1, tkhd.getInt(8));                                    // track_ID
+        assertEquals(ElementaryStream.H264_WIDTH << 16, tkhd.getInt(72));
+        assertEquals(ElementaryStream.H264_HEIGHT << 16, tkhd.getInt(76));
+        assertEquals(VIDEO_TIMESCALE, video.find("mdia/mdhd").fullBoxPayload().getInt(8));
+        assertEquals("vide", Mp4Parser.fourCC(video.find("mdia/hdlr").fullBoxPayload(), 4));
+        byte[] videoEntry = toArray(video.find("mdia/minf/stbl/stsd").fullBoxPayload());
+        assertTrue("avc1 sample entry", indexOf(videoEntry, "avc1".getBytes()) >= 0);
+        assertTrue("avcC carries the SPS", indexOf(videoEntry, concat(shortBytes(mSps.length), mSps)) >= 0);
+        assertTrue("avcC carries the PPS", indexOf(videoEntry, concat(shortBytes(mPps.length), mPps)) >= 0);
+
+        Mp4Parser.Box audio = traks.get(1);
+        assertEquals(2, audio.child("tkhd").fullBoxPayload().getInt(8));
+        assertEquals(ElementaryStream.AAC_SAMPLE_RATE, audio.find("mdia/mdhd").fullBoxPayload().getInt(8));
+        assertEquals("soun", Mp4Parser.fourCC(audio.find("mdia/hdlr").fullBoxPayload(), 4));
+        byte[] audioEntry = toArray(audio.find("mdia/minf/stbl/stsd").fullBoxPayload());
+        assertTrue("mp4a sample entry", indexOf(audioEntry, "mp4a".getBytes()) >= 0);
+        assertTrue("esds carries the AudioSpecificConfig",
+                indexOf(audioEntry, concat(new byte[]{0x05, (byte) AUDIO_SPECIFIC_CONFIG.length}, AUDIO_SPECIFIC_CONFIG)) >= 0);
+    }
+
+    @Test
+    public void fragmentsRoundTripSamples() throws IOException {
+        Output output = mux();
+        assertEquals("One fragment per keyframe", 2, output.fragments.size());
+        int videoSample = 0;
+        int audioSample = 0;
+        for (int f = 0; f < output.fragments.size(); f++) {
+            byte[] fragment = output.fragments.get(f);
+            List<Mp4Parser.Box> boxes = Mp4Parser.parse(fragment);
+            Mp4Parser.assertTypes(boxes, "moof", "mdat");
+            Mp4Parser.Box moof = boxes.get(0);
+            assertEquals("sequence_number", f + 1, moof.child("mfhd").fullBoxPayload().getInt(0));
+
+            for (Mp4Parser.Box traf : moof.children("traf")) {
+                boolean isVideo = traf.child("tfhd").fullBoxPayload().getInt(0) == 1;
+                List<ElementaryStream.Sample> samples = isVideo ? mVideo.getSamples() : mAudio.getSamples();
+                int first = isVideo ? videoSample : audioSample;
+                int timescale = isVideo ? VIDEO_TIMESCALE : ElementaryStream.AAC_SAMPLE_RATE;
+                assertEquals("baseMediaDecodeTime", samples.get(first).ptsUs * timescale / 1000000L,
+                        traf.child("tfdt").fullBoxPayload().getLong(0));
+
+                ByteBuffer trun = traf.child("trun").fullBoxPayload();
+                int count = trun.getInt();
+                int dataOffset = moof.offset + trun.getInt();           // default-base-is-moof
+                for (int s = first; s < first + count; s++) {
+                    ElementaryStream.Sample sample = samples.get(s);
+                    int duration = trun.getInt();
+                    int size = trun.getInt();
+                    int flags = trun.getInt();
+                    assertEquals(isVideo ? VIDEO_TIMESCALE / ElementaryStream.H264_FRAME_RATE
+                            : ElementaryStream.AAC_SAMPLES_PER_FRAME, duration, 1);
+                    assertEquals(sample.keyframe ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC, flags);
+                    byte[] expected = isVideo ? toLengthPrefixed(sample.data) : sample.data;
+                    assertArrayEquals((isVideo ? "Video" : "Audio") + " sample " + s, expected,
+                            Arrays.copyOfRange(fragment, dataOffset, dataOffset + size));
+                    dataOffset += size;
+                }
+                if (isVideo) {
+                    videoSample += count;
+                } else {
+                    audioSample += count;
+                }
+            }
+        }
+        assertEquals(mVideo.getSamples().size(), videoSample);
+        assertEquals(mAudio.getSamples().size(), audioSample);
+    }
+
+    /**
+     * The byte overhead of each container over the elementary streams it carries.
+     * See HlsMuxerBenchmarkTest for the comparison against FFmpeg's TS output on device.
+     */
+    @Test
+    public void overheadIsBelowMpegTs() throws IOException {
+        long payload = mVideo.getCodecConfig().length;
+        for (ElementaryStream.Sample sample : mVideo.getSamples()) payload += sample.data.length;
+        for (ElementaryStream.Sample sample : mAudio.getSamples()) payload += sample.data.length;
+        long fmp4 = mux().size();
+        long ts = MpegTsWriterTest.mux(mVideo, mAudio, 348).length;
+        System.out.println(String.format(Locale.US, "%d bytes of elementary streams: fMP4 %d bytes (%.1f%% overhead), "
+                        + "MPEG-TS %d bytes (%.1f%% overhead)", payload, fmp4, 100.0 * (fmp4 - payload) / payload,
+                ts, 100.0 * (ts - payload) / payload));
+        assertTrue(fmp4 < ts);
+    }
+
+    private Output mux() throws IOException {
+        Fmp4Writer writer = new Fmp4Writer();
+        int videoTrack = writer.addVideoTrack(ElementaryStream.H264_WIDTH, ElementaryStream.H264_HEIGHT, mSps, mPps);
+        int audioTrack = writer.addAudioTrack(ElementaryStream.AAC_SAMPLE_RATE, ElementaryStream.AAC_CHANNELS,
+                AUDIO_SPECIFIC_CONFIG);
+        Output output = new Output();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeInitSegment(Channels.newChannel(out));
+        output.init = out.toByteArray();
+
+        List<ElementaryStream.Sample> videoSamples = mVideo.getSamples();
+        List<ElementaryStream.Sample> audioSamples = mAudio.getSamples();
+        int v = 0;
+        int a = 0;
+        while (v < videoSamples.size() || a < audioSamples.size()) {
+            boolean writeVideo = a == audioSamples.size()
+                    || (v < videoSamples.size() && videoSamples.get(v).ptsUs <= audioSamples.get(a).ptsUs);
+            ElementaryStream.Sample sample = writeVideo ? videoSamples.get(v++) : audioSamples.get(a++);
+            if (writeVideo && sample.keyframe && writer.hasPendingSamples()) {
+                output.fragments.add(writeFragment(writer));
+            }
+            writer.addSample(writeVideo ? videoTrack : audioTrack, sample.ptsUs, sample.keyframe, ByteBuffer.wrap(sample.data));
+        }
+        output.fragments.add(writeFragment(writer));
+        return output;
+    }
+
+    private static byte[] writeFragment(Fmp4Writer writer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeFragment(Channels.newChannel(out));
+        return out.toByteArray();
+    }
+
+    private static byte[] toLengthPrefixed(byte[] annexB) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] nal : splitAnnexB(annexB)) {
+            out.write(nal.length >> 24);
+            out.write(nal.length >> 16);
+            out.write(nal.length >> 8);
+            out.write(nal.length);
+            out.write(nal, 0, nal.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the NAL units of an Annex-B stream, without start codes
+     */
+    private static List<byte[]> splitAnnexB(byte[] data) {
+        List<Integer> starts = new ArrayList<>();
+        for (int i = 0; i + 2 < data.length; i++) {
+            if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                starts.add(i + 3);
+                i += 2;
+            }
+        }
+        List<byte[]> nals = new ArrayList<>();
+        for (int n = 0; n < starts.size(); n++) {
+            int end = n + 1 < starts.size() ? starts.get(n + 1) - 3 : data.length;
+            while (n + 1 < starts.size() && data[end - 1] == 0) end--;
+            nals.add(Arrays.copyOfRange(data, starts.get(n), end));
+        }
+        return nals;
+    }
+
+    private static int indexOf(byte[] haystack, byte[] needle) {
+        outer:
+        for (int i = 0; i + needle.length <= haystack.length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (haystack[i + j] != needle[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static byte[] shortBytes(int value) {
+        return new byte[]{(byte) (value >> 8), (byte) value};
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+}
@@ -0,0 +1,131 @@
+package io.kickflip.sdk.av;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Splits ISO base media file format output into its box tree for assertions,
+ * failing on boxes that overrun their parent.
+ * <p/>
+ * See ISO/IEC 14496-12
+ */
+class Mp4Parser {
+
+    private static final List<String> CONTAINERS = Arrays.asList(
+            "moov", "trak", "mdia", "minf", "dinf", "stbl", "mvex", "moof", "traf");
+
+    static class Box {
+        final String type;
+        final int offset;                   // Of the box header within the parsed bytes
+        final int size;
+        final List<Box> children = new ArrayList<>();
+        private final ByteBuffer mPayload;
+
+        Box(String type, int offset, int size, ByteBuffer payload) {
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+            mPayload = payload;
+        }
+
+        /**
+         * @return the bytes following the box header, positioned at the start
+         */
+        ByteBuffer payload() {
+            return mPayload.duplicate();
+        }
+
+        /**
+         * @return the bytes following a full box's version and flags
+         */
+        ByteBuffer fullBoxPayload() {
+            ByteBuffer payload = payload();
+            payload.position(payload.position() + 4);
+            return payload.slice();
+        }
+
+        Box child(String type) {
+            List<Box> found = children(type);
+            assertEquals("Number of " + type + " boxes in " + this.type, 1, found.size());
+            return found.get(0);
+        }
+
+        List<Box> children(String type) {
+            List<Box> found = new ArrayList<>();
+            for (Box child : children) {
+                if (child.type.equals(type)) found.add(child);
+            }
+            return found;
+        }
+
+        /**
+         * @param path box types separated by '/', e.g: mdia/minf/stbl
+         */
+        Box find(String path) {
+            Box box = this;
+            for (String type : path.split("/")) {
+                box = box.child(type);
+            }
+            return box;
+        }
+    }
+
+    /**
+     * @return the top level boxes of data
+     */
+    static List<Box> parse(byte[] data) {
+        return parse(ByteBuffer.wrap(data), 0, data.length);
+    }
+
+    private static List<Box> parse(ByteBuffer data, int start, int end) {
+        List<Box> boxes = new ArrayList<>();
+        int offset = start;
+        while (offset < end) {
+            assertTrue("Truncated box header at " + offset, offset + 8 <= end);
+            int size = data.getInt(offset);
+            String type = fourCC(data, offset + 4);
+            assertTrue(type + " box of size " + size + " at " + offset + " overruns its parent",
+                    size >= 8 && offset + size <= end);
+            ByteBuffer payload = ((ByteBuffer) data.duplicate().limit(offset + size).position(offset + 8)).slice();
+            Box box = new Box(type, offset, size, payload);
+            if (CONTAINERS.contains(type)) {
+                box.children.addAll(parse(data, offset + 8, offset + size));
+            }
+            boxes.add(box);
+            offset += size;
+        }
+        return boxes;
+    }
+
+    static String fourCC(ByteBuffer data, int offset) {
+        char[] chars = new char[4];
+        for (int i = 0; i < 4; i++) {
+            chars[i] = (char) (data.get(offset + i) & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    static List<Box> ofType(List<Box> boxes, String type) {
+        List<Box> found = new ArrayList<>();
+        for (Box box : boxes) {
+            if (box.type.equals(type)) found.add(box);
+        }
+        return found;
+    }
+
+    static void assertTypes(List<Box> boxes, String... types) {
+        String[] actual = new String[boxes.size()];
+        for (int i = 0; i < actual.length; i++) {
+            actual[i] = boxes.get(i).type;
+        }
+        if (!Arrays.equals(types, actual)) {
+            fail("Expected boxes " + Arrays.toString(types) + " but found " + Arrays.toString(actual));
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package io.kickflip.sdk.av;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Packetizes the recorded H.264 and AAC elementary streams and demultiplexes the result.
+ */
+public class MpegTsWriterTest {
+
+    private static final byte[] H264_AUD = {0x00, 0x00, 0x00, 0x01, 0x09, (byte) 0xF0};
+    private static final long TIMESTAMP_OFFSET_90KHZ = 126000;
+
+    private ElementaryStream mVideo;
+    private ElementaryStream mAudio;
+
+    @Before
+    public void setUp() throws IOException {
+        mVideo = ElementaryStream.readH264();
+        mAudio = ElementaryStream.readAac();
+    }
+
+    @Test
+    public void recordingsAreSplitIntoSamples() {
+        assertEquals(60, mVideo.getSamples().size());
+        assertEquals(88, mAudio.getSamples().size());
+        assertTrue(mVideo.getSamples().get(0).keyframe);
+        assertTrue(mVideo.getSamples().get(30).keyframe);
+        assertFalse(mVideo.getSamples().get(1).keyframe);
+        assertEquals(0x67, mVideo.getCodecConfig()[4] & 0xFF);         // SPS
+    }
+
+    @Test
+    public void payloadsSurviveRoundTrip() throws IOException {
+        TsParser parser = parse(mux(mVideo, mAudio, 348));
+        int videoPid = parser.pidForStreamType(MpegTsWriter.STREAM_TYPE_H264);
+        int audioPid = parser.pidForStreamType(MpegTsWriter.STREAM_TYPE_AAC_ADTS);
+        assertEquals("PCR carried on video", videoPid, parser.pcrPid);
+
+        List<TsParser.Pes> video = parser.pesForPid(videoPid);
+        assertEquals(mVideo.getSamples().size(), video.size());
+        for (int i = 0; i < video.size(); i++) {
+            ElementaryStream.Sample sample = mVideo.getSamples().get(i);
+            TsParser.Pes pes = video.get(i);
+            assertArrayEquals("Video sample " + i, concat(videoPrefix(mVideo, sample), sample.data), pes.payload.toByteArray());
+            assertEquals(0xE0, pes.streamId);
+            assertEquals(toTimestamp(sample.ptsUs), pes.pts);
+            assertEquals(sample.keyframe, pes.randomAccess);
+            assertTrue("PCR precedes DTS", pes.pcr >= 0 && pes.pcr < pes.dts);
+        }
+
+        List<TsParser.Pes> audio = parser.pesForPid(audioPid);
+        assertEquals(mAudio.getSamples().size(), audio.size());
+        AdtsHeader adts = new AdtsHeader();
+        for (int i = 0; i < audio.size(); i++) {
+            ElementaryStream.Sample sample = mAudio.getSamples().get(i);
+            TsParser.Pes pes = audio.get(i);
+            byte[] header = toArray(adts.prepare(sample.data.length));
+            assertArrayEquals("Audio sample " + i, concat(header, sample.data), pes.payload.toByteArray());
+            assertEquals(0xC0, pes.streamId);
+            assertEquals(toTimestamp(sample.ptsUs), pes.pts);
+            assertEquals("PCR only on video", -1, pes.pcr);
+        }
+    }
+
+    @Test
+    public void outputIsIndependentOfBufferSize() throws IOException {
+        assertArrayEquals(mux(mVideo, mAudio, 348), mux(mVideo, mAudio, 1));
+    }
+
+    @Test
+    public void tablesBeginEachSegment() throws IOException {
+        MpegTsWriter writer = new MpegTsWriter(16);
+        int videoStream = writer.addStream(MpegTsWriter.STREAM_TYPE_H264);
+        TsParser parser = new TsParser();
+        int keyframes = 0;
+        ByteArrayOutputStream segment = null;
+        for (ElementaryStream.Sample sample : mVideo.getSamples()) {
+            if (sample.keyframe) {
+                if (segment != null) {
+                    writer.flush();
+                    parser.parse(segment.toByteArray());
+                }
+                segment = new ByteArrayOutputStream();
+                writer.setChannel(Channels.newChannel(segment));
+                writer.writeTables();
+                keyframes++;
+            }
+            writer.writeSample(videoStream, sample.ptsUs, sample.ptsUs, sample.keyframe,
+                    ByteBuffer.wrap(videoPrefix(mVideo, sample)), ByteBuffer.wrap(sample.data));
+        }
+        writer.flush();
+        parser.parse(segment.toByteArray());
+        assertEquals(keyframes, parser.patCount);
+        assertEquals(keyframes, parser.pmtCount);
+    }
+
+    @Test
+    public void decodeTimestampWrittenWhenDistinct() throws IOException {
+        MpegTsWriter writer = new MpegTsWriter(4);
+        int stream = writer.addStream(MpegTsWriter.STREAM_TYPE_H264);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.setChannel(Channels.newChannel(out));
+        writer.writeTables();
+        writer.writeSample(stream, 66666, 33333, false, null, ByteBuffer.wrap(new byte[500]));
+        writer.writeSample(stream, 100000, 100000, false, null, ByteBuffer.wrap(new byte[10]));
+        writer.flush();
+
+        List<TsParser.Pes> pes = parse(out.toByteArray()).pes;
+        assertEquals(toTimestamp(66666), pes.get(0).pts);
+        assertEquals(toTimestamp(33333), pes.get(0).dts);
+        assertEquals(pes.get(1).pts, pes.get(1).dts);
+        assertEquals(500, pes.get(0).payload.size());
+        assertEquals(10, pes.get(1).payload.size());
+    }
+
+    @Test
+    public void prefixPositionIsRestored() throws IOException {
+        MpegTsWriter writer = new MpegTsWriter(4);
+        int stream = writer.addStream(MpegTsWriter.STREAM_TYPE_H264);
+        writer.setChannel(Channels.newChannel(new ByteArrayOutputStream()));
+        ByteBuffer prefix = ByteBuffer.wrap(H264_AUD);
+        ByteBuffer payload = ByteBuffer.wrap(new byte[1000]);
+        writer.writeSample(stream, 0, 0, false, prefix, payload);
+        assertEquals(0, prefix.position());
+        assertFalse(payload.hasRemaining());
+    }
+
+    @Test
+    public void bytesWrittenCountsWholePackets() throws IOException {
+        MpegTsWriter writer = new MpegTsWriter(348);
+        writer.addStream(MpegTsWriter.STREAM_TYPE_H264);
+        writer.setChannel(Channels.newChannel(new ByteArrayOutputStream()));
+        writer.writeTables();
+        writer.flush();
+        assertEquals("PAT and PMT", 2 * MpegTsWriter.TS_PACKET_SIZE, writer.getBytesWritten());
+    }
+
+    /**
+     * Interleave video and audio by presentation time into a single stream,
+     * as {@link io.kickflip.sdk.av.MpegTsHlsMuxer} would.
+     */
+    static byte[] mux(ElementaryStream video, ElementaryStream audio, int bufferPackets) throws IOException {
+        MpegTsWriter writer = new MpegTsWriter(bufferPackets);
+        int videoStream = writer.addStream(MpegTsWriter.STREAM_TYPE_H264);
+        int audioStream = writer.addStream(MpegTsWriter.STREAM_TYPE_AAC_ADTS);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.setChannel(Channels.newChannel(out));
+        writer.writeTables();
+        AdtsHeader adts = new AdtsHeader();
+        List<ElementaryStream.Sample> videoSamples = video.getSamples();
+        List<ElementaryStream.Sample> audioSamples = audio.getSamples();
+        int v = 0;
+        int a = 0;
+        while (v < videoSamples.size() || a < audioSamples.size()) {
+            boolean writeVideo = a == audioSamples.size()
+                    || (v < videoSamples.size() && videoSamples.get(v).ptsUs <= audioSamples.get(a).ptsUs);
+            if (writeVideo) {
+                ElementaryStream.Sample sample = videoSamples.get(v++);
+                writer.writeSample(videoStream, sample.ptsUs, sample.ptsUs, sample.keyframe,
+                        ByteBuffer.wrap(videoPrefix(video, sample)), ByteBuffer.wrap(sample.data));
+            } else {
+                ElementaryStream.Sample sample = audioSamples.get(a++);
+                writer.writeSample(audioStream, sample.ptsUs, sample.ptsUs, true,
+                        adts.prepare(sample.data.length), ByteBuffer.wrap(sample.data));
+            }
+        }
+        writer.flush();
+        return out.toByteArray();
+    }
+
+    private static byte[] videoPrefix(ElementaryStream video, ElementaryStream.Sample sample) {
+        return sample.keyframe ? concat(H264_AUD, video.getCodecConfig()) : H264_AUD;
+    }
+
+    private static TsParser parse(byte[] ts) {
+        TsParser parser = new TsParser();
+        parser.parse(ts);
+        return parser;
+    }
+
+    private static long toTimestamp(long us) {
+        return us * 90 / 1000 + TIMESTAMP_OFFSET_90KHZ;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+}
@@ -0,0 +1,107 @@
+package io.kickflip.sdk.av;
+
+import org.junit.Test;
+
+import static io.kickflip.sdk.av.OutputStatistics.Output.FRAME_SIZES;
+import static io.kickflip.sdk.av.OutputStatistics.Output.SEGMENT_SIZES;
+import static io.kickflip.sdk.av.OutputStatistics.Output.UPLOAD_RATES;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares synthetic broadcasts at the same bitrate: one with an IDR frame 8x the size of
+ * the others every second, one with intra refresh spreading that cost across every frame.
+ */
+public class OutputStatisticsTest {
+
+    private static final int BITRATE = 1000000;
+    private static final int FRAME_RATE = 30;
+    private static final int SECONDS = 60;
+    private static final int SEGMENT_FRAMES = 2 * FRAME_RATE;
+    private static final int HISTORY = SECONDS * FRAME_RATE;
+
+    @Test
+    public void intraRefreshIsSteadierThanPeriodicIdr() {
+        OutputStatistics.Comparison comparison = OutputStatistics.compare(broadcast(false), broadcast(true));
+
+        // The same bytes, spread evenly
+        assertEquals(1, comparison.getMeanRatio(FRAME_SIZES), 0.01);
+        assertEquals(1, comparison.getMeanRatio(SEGMENT_SIZES), 0.01);
+        assertTrue(comparison.getMaxRatio(FRAME_SIZES) < 0.3);
+        assertTrue(comparison.getPeakToMeanRatio(FRAME_SIZES) < 0.3);
+        assertTrue(comparison.getCoefficientOfVariationRatio(FRAME_SIZES) < 0.1);
+        // Segments each hold whole refresh periods either way
+        assertEquals(1, comparison.getP95Ratio(SEGMENT_SIZES), 0.01);
+        assertEquals(1, comparison.getMaxRatio(UPLOAD_RATES), 0.01);
+
+        String report = comparison.toString();
+        assertTrue(report, report.startsWith("Intra refresh (1000 kbps target) relative to periodic IDR frames (1000 kbps target)"));
+        assertTrue(report, report.contains("\nFrame bytes: mean 1.00x"));
+        assertTrue(report, report.contains("\nSegment bytes: "));
+        assertTrue(report, report.contains("\nUpload bytes/s: "));
+    }
+
+    @Test
+    public void missingDistributionsCompareAsNaN() {
+        OutputStatistics audioOnly = new OutputStatistics(false, BITRATE, null,
+                new SizeDistribution("Segment bytes", 10), new SizeDistribution("Upload bytes/s", 10));
+        OutputStatistics.Comparison comparison = OutputStatistics.compare(audioOnly, broadcast(true));
+        assertNull(audioOnly.getDistribution(FRAME_SIZES));
+        assertTrue(Double.isNaN(comparison.getMaxRatio(FRAME_SIZES)));
+        // Periodic IDR recorded no segments, so there's nothing to divide by
+        assertTrue(Double.isNaN(comparison.getMeanRatio(SEGMENT_SIZES)));
+        assertFalse(comparison.toString(), comparison.toString().contains("Frame bytes"));
+    }
+
+    @Test
+    public void statisticsAreASnapshot() {
+        SizeDistribution frames = new SizeDistribution("Frame bytes", 10);
+        frames.add(100);
+        OutputStatistics stats = new OutputStatistics(true, BITRATE, frames,
+                new SizeDistribution("Segment bytes", 10), new SizeDistribution("Upload bytes/s", 10));
+        frames.add(100000);
+        assertEquals(1, stats.getDistribution(FRAME_SIZES).getCount());
+        assertTrue(stats.toString(), stats.toString().startsWith("Output statistics. Intra refresh, 1000 kbps target\nFrame bytes: n 1"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void modesMustDiffer() {
+        OutputStatistics.compare(broadcast(true), broadcast(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void argumentsAreInOrder() {
+        OutputStatistics.compare(broadcast(true), broadcast(false));
+    }
+
+    /**
+     * @return the statistics of a broadcast at BITRATE, uploading each segment in a tenth of its duration
+     */
+    private static OutputStatistics broadcast(boolean intraRefresh) {
+        SizeDistribution frames = new SizeDistribution("Frame bytes", HISTORY);
+        SizeDistribution segments = new SizeDistribution("Segment bytes", HISTORY);
+        SizeDistribution uploadRates = new SizeDistribution("Upload bytes/s", HISTORY);
+        long bytesPerSecond = BITRATE / 8;
+        // An IDR frame of 8 units and 29 others of 1 unit per second
+        long unit = bytesPerSecond / (FRAME_RATE + 7);
+        long segmentBytes = 0;
+        for (int frame = 0; frame < SECONDS * FRAME_RATE; frame++) {
+            long size;
+            if (intraRefresh) {
+                size = unit * (FRAME_RATE + 7) / FRAME_RATE;
+            } else {
+                size = frame % FRAME_RATE == 0 ? 8 * unit : unit;
+            }
+            frames.add(size);
+            segmentBytes += size;
+            if ((frame + 1) % SEGMENT_FRAMES == 0) {
+                segments.add(segmentBytes);
+                uploadRates.add(segmentBytes * 10 * FRAME_RATE / SEGMENT_FRAMES);
+                segmentBytes = 0;
+            }
+        }
+        return new OutputStatistics(intraRefresh, BITRATE, frames, segments, uploadRates);
+    }
+}
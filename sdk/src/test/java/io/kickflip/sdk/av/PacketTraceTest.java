@@ -0,0 +1,240 @@
+package io.kickflip.sdk.av;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round-trips the recorded H.264 and AAC elementary streams through
+ * {@link io.kickflip.sdk.av.PacketTraceWriter} and {@link io.kickflip.sdk.av.PacketTraceReplayer}.
+ */
+public class PacketTraceTest {
+
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+    private static final int BUFFER_FLAG_KEY_FRAME = 1;
+    private static final int BUFFER_FLAG_CODEC_CONFIG = 2;
+
+    private ElementaryStream mVideo;
+    private ElementaryStream mAudio;
+    private File mTrace;
+
+    /** A packet as written or replayed */
+    private static class Packet {
+        final int track;
+        final byte[] data;
+        final long ptsUs;
+        final int flags;
+
+        Packet(int track, byte[] data, long ptsUs, int flags) {
+            this.track = track;
+            this.data = data;
+            this.ptsUs = ptsUs;
+            this.flags = flags;
+        }
+    }
+
+    private static class RecordingListener implements PacketTraceReplayer.Listener {
+        final Map<Integer, PacketTraceFormat> formats = new HashMap<>();
+        final List<Packet> packets = new ArrayList<>();
+
+        @Override
+        public void onFormat(int trackIndex, PacketTraceFormat format) {
+            formats.put(trackIndex, format);
+        }
+
+        @Override
+        public void onPacket(int trackIndex, ByteBuffer payload, long ptsUs, int flags) {
+            byte[] data = new byte[payload.remaining()];
+            payload.get(data);
+            packets.add(new Packet(trackIndex, data, ptsUs, flags));
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mVideo = ElementaryStream.readH264();
+        mAudio = ElementaryStream.readAac();
+        mTrace = File.createTempFile("packets", ".trace");
+    }
+
+    @After
+    public void tearDown() {
+        mTrace.delete();
+    }
+
+    @Test
+    public void packetsRoundTrip() throws IOException {
+        List<Packet> written = interleave();
+        PacketTraceWriter writer = new PacketTraceWriter(mTrace);
+        writer.writeFormat(VIDEO, getVideoFormat());
+        writer.writeFormat(AUDIO, getAudioFormat());
+        for (Packet packet : written) {
+            writePacket(writer, packet);
+        }
+        writer.close();
+        assertEquals(written.size(), writer.getPacketCount());
+        assertEquals(writer.getLength(), mTrace.length());
+
+        PacketTraceReplayer replayer = new PacketTraceReplayer(mTrace);
+        RecordingListener listener = new RecordingListener();
+        assertEquals(written.size(), replayer.replay(listener, false));
+
+        assertEquals(2, listener.formats.size());
+        PacketTraceFormat video = listener.formats.get(VIDEO);
+        assertEquals("video/avc", video.get("mime"));
+        assertEquals(ElementaryStream.H264_WIDTH, video.get("width"));
+        assertEquals(ElementaryStream.H264_HEIGHT, video.get("height"));
+        assertEquals(10000000L, video.get("durationUs"));
+        assertArrayEquals(mVideo.getCodecConfig(), (byte[]) video.get("csd-0"));
+        PacketTraceFormat audio = listener.formats.get(AUDIO);
+        assertEquals("audio/mp4a-latm", audio.get("mime"));
+        assertEquals(ElementaryStream.AAC_SAMPLE_RATE, audio.get("sample-rate"));
+        assertEquals(ElementaryStream.AAC_CHANNELS, audio.get("channel-count"));
+
+        assertEquals(written.size(), listener.packets.size());
+        long bytes = 0;
+        for (int i = 0; i < written.size(); i++) {
+            Packet expected = written.get(i);
+            Packet actual = listener.packets.get(i);
+            assertEquals("Packet " + i, expected.track, actual.track);
+            assertEquals("Packet " + i, expected.ptsUs, actual.ptsUs);
+            assertEquals("Packet " + i, expected.flags, actual.flags);
+            assertArrayEquals("Packet " + i, expected.data, actual.data);
+            bytes += expected.data.length;
+        }
+        assertEquals(written.size(), replayer.getPacketCount());
+        assertEquals(bytes, replayer.getByteCount());
+    }
+
+    @Test
+    public void writePacketHonoursOffsetAndLeavesBufferUnchanged() throws IOException {
+        byte[] data = {9, 9, 1, 2, 3, 9};
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.position(1);
+        PacketTraceWriter writer = new PacketTraceWriter(mTrace);
+        writer.writeFormat(VIDEO, getVideoFormat());
+        writer.writePacket(VIDEO, buffer, 2, 3, 1234, BUFFER_FLAG_KEY_FRAME);
+        writer.close();
+        assertEquals(1, buffer.position());
+        assertEquals(data.length, buffer.limit());
+
+        RecordingListener listener = new RecordingListener();
+        new PacketTraceReplayer(mTrace).replay(listener, false);
+        assertArrayEquals(new byte[]{1, 2, 3}, listener.packets.get(0).data);
+        assertEquals(1234, listener.packets.get(0).ptsUs);
+    }
+
+    /**
+     * Packets written 5 ms apart are replayed no faster in realtime mode.
+     */
+    @Test
+    public void realtimeReplayIsPacedToArrival() throws IOException, InterruptedException {
+        int count = 20;
+        PacketTraceWriter writer = new PacketTraceWriter(mTrace);
+        writer.writeFormat(AUDIO, getAudioFormat());
+        long startNs = System.nanoTime();
+        List<ElementaryStream.Sample> samples = mAudio.getSamples();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) Thread.sleep(5);
+            ElementaryStream.Sample sample = samples.get(i);
+            writer.writePacket(AUDIO, ByteBuffer.wrap(sample.data), 0, sample.data.length, sample.ptsUs, 0);
+        }
+        long recordedNs = System.nanoTime() - startNs;
+        writer.close();
+
+        PacketTraceReplayer replayer = new PacketTraceReplayer(mTrace);
+        RecordingListener listener = new RecordingListener();
+        assertEquals(count, replayer.replay(listener, true));
+        assertEquals(count, listener.packets.size());
+        // Arrival times have microsecond resolution, and the first record is the format
+        assertTrue("Replayed in " + replayer.getElapsedNs() + " ns, recorded over " + recordedNs + " ns",
+                replayer.getElapsedNs() >= recordedNs - 1000000);
+    }
+
+    @Test
+    public void packetBeforeFormatIsRejected() throws IOException {
+        PacketTraceWriter writer = new PacketTraceWriter(mTrace);
+        writer.writeFormat(VIDEO, getVideoFormat());
+        writer.writePacket(AUDIO, ByteBuffer.wrap(new byte[]{1}), 0, 1, 0, 0);
+        writer.close();
+        try {
+            new PacketTraceReplayer(mTrace).replay(new RecordingListener(), false);
+            fail("Audio packet without an audio format");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFilesAreRejected() throws IOException {
+        PacketTraceWriter writer = new PacketTraceWriter(mTrace);
+        writer.close();
+        RandomAccessFile file = new RandomAccessFile(mTrace, "rw");
+        file.writeInt(0);
+        file.close();
+        new PacketTraceReplayer(mTrace);
+    }
+
+    private PacketTraceFormat getVideoFormat() {
+        PacketTraceFormat format = new PacketTraceFormat();
+        format.set("mime", "video/avc");
+        format.set("width", ElementaryStream.H264_WIDTH);
+        format.set("height", ElementaryStream.H264_HEIGHT);
+        format.set("durationUs", 10000000L);
+        format.set("csd-0", mVideo.getCodecConfig());
+        return format;
+    }
+
+    private static PacketTraceFormat getAudioFormat() {
+        PacketTraceFormat format = new PacketTraceFormat();
+        format.set("mime", "audio/mp4a-latm");
+        format.set("sample-rate", ElementaryStream.AAC_SAMPLE_RATE);
+        format.set("channel-count", ElementaryStream.AAC_CHANNELS);
+        return format;
+    }
+
+    /**
+     * @return the video codec config, then video and audio samples in presentation order,
+     * as the encoders would deliver them
+     */
+    private List<Packet> interleave() {
+        List<Packet> packets = new ArrayList<>();
+        packets.add(new Packet(VIDEO, mVideo.getCodecConfig(), 0, BUFFER_FLAG_CODEC_CONFIG));
+        List<ElementaryStream.Sample> video = mVideo.getSamples();
+        List<ElementaryStream.Sample> audio = mAudio.getSamples();
+        int v = 0;
+        int a = 0;
+        while (v < video.size() || a < audio.size()) {
+            boolean isVideo = a == audio.size() || (v < video.size() && video.get(v).ptsUs <= audio.get(a).ptsUs);
+            ElementaryStream.Sample sample = isVideo ? video.get(v++) : audio.get(a++);
+            int flags = sample.keyframe ? BUFFER_FLAG_KEY_FRAME : 0;
+            packets.add(new Packet(isVideo ? VIDEO : AUDIO, sample.data, sample.ptsUs, flags));
+        }
+        return packets;
+    }
+
+    /**
+     * Write packet from the middle of a larger buffer, as encoders deliver it
+     */
+    private static void writePacket(PacketTraceWriter writer, Packet packet) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(packet.data.length + 16);
+        buffer.position(8);
+        buffer.put(packet.data);
+        buffer.clear();
+        writer.writePacket(packet.track, buffer, 8, packet.data.length, packet.ptsUs, packet.flags);
+    }
+}
@@ -0,0 +1,95 @@
+package io.kickflip.sdk.av;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SizeDistributionTest {
+
+    private static final double EPSILON = 1e-9;
+
+    @Test
+    public void emptyDistributionIsZero() {
+        SizeDistribution sizes = new SizeDistribution("Empty", 10);
+        assertEquals(0, sizes.getCount());
+        assertEquals(0, sizes.getMin());
+        assertEquals(0, sizes.getMax());
+        assertEquals(0, sizes.getMean(), EPSILON);
+        assertEquals(0, sizes.getStandardDeviation(), EPSILON);
+        assertEquals(0, sizes.getPeakToMean(), EPSILON);
+        assertEquals(0, sizes.getPercentile(50));
+    }
+
+    @Test
+    public void summaryMatchesDirectComputation() {
+        long[] values = {2, 4, 4, 4, 5, 5, 7, 9};
+        SizeDistribution sizes = new SizeDistribution("Values", values.length);
+        for (long value : values) sizes.add(value);
+        assertEquals(values.length, sizes.getCount());
+        assertEquals(40, sizes.getTotal());
+        assertEquals(2, sizes.getMin());
+        assertEquals(9, sizes.getMax());
+        assertEquals(5, sizes.getMean(), EPSILON);
+        // Sample standard deviation: sqrt(32 / 7)
+        assertEquals(Math.sqrt(32.0 / 7), sizes.getStandardDeviation(), EPSILON);
+        assertEquals(Math.sqrt(32.0 / 7) / 5, sizes.getCoefficientOfVariation(), EPSILON);
+        assertEquals(9 / 5.0, sizes.getPeakToMean(), EPSILON);
+    }
+
+    @Test
+    public void percentilesUseNearestRank() {
+        SizeDistribution sizes = new SizeDistribution("1 to 100", 100);
+        for (int value = 100; value >= 1; value--) sizes.add(value);
+        assertEquals(1, sizes.getPercentile(0));
+        assertEquals(50, sizes.getPercentile(50));
+        assertEquals(95, sizes.getPercentile(95));
+        assertEquals(99, sizes.getPercentile(99));
+        assertEquals(100, sizes.getPercentile(100));
+    }
+
+    @Test
+    public void percentilesCoverOnlyRecentValues() {
+        SizeDistribution sizes = new SizeDistribution("Recent", 4);
+        for (long value : new long[]{1000, 1000, 1, 2, 3, 4}) sizes.add(value);
+        assertEquals(4, sizes.getPercentile(100));
+        assertEquals(1, sizes.getPercentile(0));
+        // Running statistics still cover every value
+        assertEquals(1000, sizes.getMax());
+        assertEquals(6, sizes.getCount());
+    }
+
+    @Test
+    public void copyIsIndependent() {
+        SizeDistribution sizes = new SizeDistribution("Original", 3);
+        sizes.add(10);
+        sizes.add(20);
+        SizeDistribution copy = sizes.copy();
+        sizes.add(1000);
+        assertEquals("Original", copy.getName());
+        assertEquals(2, copy.getCount());
+        assertEquals(15, copy.getMean(), EPSILON);
+        assertEquals(20, copy.getPercentile(100));
+        copy.add(30);
+        assertEquals(3, sizes.getCount());
+        assertEquals(1000, sizes.getMax());
+        assertEquals(30, copy.getMax());
+    }
+
+    @Test
+    public void clearResets() {
+        SizeDistribution sizes = new SizeDistribution("Cleared", 3);
+        sizes.add(5);
+        sizes.clear();
+        assertEquals(0, sizes.getCount());
+        assertEquals(0, sizes.getPercentile(100));
+        sizes.add(7);
+        assertEquals(7, sizes.getMin());
+        assertTrue(sizes.toString().startsWith("Cleared: n 1"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void percentileAbove100IsRejected() {
+        new SizeDistribution("Values", 1).getPercentile(101);
+    }
+}
@@ -0,0 +1,181 @@
+package io.kickflip.sdk.av;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Normalizes synthetic timestamp traces of a 30 fps video track and a 44.1 kHz
+ * AAC audio track, as delivered by MediaCodec with arrival times on a monotonic clock.
+ */
+public class TimestampNormalizerTest {
+
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+    private static final long VIDEO_INTERVAL_US = 33333;
+    private static final long AUDIO_INTERVAL_US = 23220;       // 1024 samples at 44.1 kHz
+    private static final long START_US = 5000000000L;          // Encoder timestamps are absolute
+    private static final long NO_ARRIVAL = Long.MIN_VALUE;
+
+    private TimestampNormalizer mNormalizer;
+
+    @Before
+    public void setUp() {
+        mNormalizer = new TimestampNormalizer();
+        mNormalizer.setReferenceTrack(AUDIO);
+    }
+
+    @Test
+    public void timelineBeginsAtZero() {
+        assertEquals(0, mNormalizer.normalize(VIDEO, START_US));
+        assertEquals(1000, mNormalizer.normalize(AUDIO, START_US + 1000));
+        assertEquals(VIDEO_INTERVAL_US, mNormalizer.normalize(VIDEO, START_US + VIDEO_INTERVAL_US));
+        assertEquals(0, mNormalizer.getCorrectionUs(VIDEO));
+    }
+
+    @Test
+    public void presentationOrderSurvivesForBFrames() {
+        // I P B B, in decode order
+        long[] pts = {0, 3 * VIDEO_INTERVAL_US, VIDEO_INTERVAL_US, 2 * VIDEO_INTERVAL_US};
+        long[] dts = {-VIDEO_INTERVAL_US, 0, VIDEO_INTERVAL_US, 2 * VIDEO_INTERVAL_US};
+        for (int i = 0; i < pts.length; i++) {
+            long out = mNormalizer.normalize(VIDEO, START_US + pts[i], START_US + dts[i], NO_ARRIVAL);
+            assertEquals(pts[i] - dts[0], out);
+            assertEquals(dts[i] - dts[0], mNormalizer.getLastDtsUs(VIDEO));
+        }
+    }
+
+    @Test
+    public void backwardsTimestampStepsForwardThenSlewsBack() {
+        long last = -1;
+        for (int i = 0; i < 10; i++) {
+            last = mNormalizer.normalize(VIDEO, START_US + i * VIDEO_INTERVAL_US);
+        }
+        // A packet stamped 5 frames in the past
+        long out = mNormalizer.normalize(VIDEO, START_US + 5 * VIDEO_INTERVAL_US);
+        assertTrue(out > last);
+        assertEquals(1, mNormalizer.getNonMonotonicCount(VIDEO));
+
+        long correction = mNormalizer.getCorrectionUs(VIDEO);
+        assertTrue(correction > 0);
+        last = out;
+        for (int i = 6; i < 3000; i++) {
+            out = mNormalizer.normalize(VIDEO, START_US + i * VIDEO_INTERVAL_US);
+            assertTrue("Decode times strictly increase", out > last);
+            long step = correction - mNormalizer.getCorrectionUs(VIDEO);
+            assertTrue("Slewed by " + step, step >= 0 && step <= maxSlewUs(VIDEO_INTERVAL_US));
+            correction = mNormalizer.getCorrectionUs(VIDEO);
+            last = out;
+        }
+        assertEquals("Back on its true timeline", 0, correction);
+        assertEquals(2999 * VIDEO_INTERVAL_US, out);
+    }
+
+    @Test
+    public void trackStartingBeforeAnchorSlewsBackToItsTimeline() {
+        // Video's first packet anchors the session. Audio began 100 ms earlier
+        long audioLeadUs = 100000;
+        mNormalizer.normalize(VIDEO, START_US);
+        assertEquals(0, mNormalizer.normalize(AUDIO, START_US - audioLeadUs));
+
+        long last = 0;
+        long out = 0;
+        int packets = (int) (audioLeadUs / maxSlewUs(AUDIO_INTERVAL_US)) + 100;
+        for (int i = 1; i < packets; i++) {
+            out = mNormalizer.normalize(AUDIO, START_US - audioLeadUs + i * AUDIO_INTERVAL_US);
+            assertTrue(out > last);
+            assertTrue(out - last <= AUDIO_INTERVAL_US);
+            last = out;
+        }
+        assertEquals("No permanent shift", 0, mNormalizer.getCorrectionUs(AUDIO));
+        assertEquals((packets - 1) * AUDIO_INTERVAL_US - audioLeadUs, out);
+    }
+
+    @Test
+    public void discontinuityIsRebasedOneIntervalLater() {
+        long out = 0;
+        for (int i = 0; i < 30; i++) {
+            out = mNormalizer.normalize(VIDEO, START_US + i * VIDEO_INTERVAL_US);
+        }
+        // The encoder's timeline restarts 10 s later
+        long next = mNormalizer.normalize(VIDEO, START_US + 10000000 + 30 * VIDEO_INTERVAL_US);
+        assertEquals(1, mNormalizer.getDiscontinuityCount(VIDEO));
+        assertEquals(out + VIDEO_INTERVAL_US, next, 1000);
+    }
+
+    /**
+     * Video's encoder latency grows by 50 ms mid-stream, e.g: as its bitrate changes.
+     * Its timestamps remain true to capture, so skew against arrival changes without
+     * any clock drift, and video must not be slewed against audio.
+     */
+    @Test
+    public void latencyChangeIsMeasuredButNotCorrected() {
+        runTrace(0, 50000);
+        assertTrue("Drift " + mNormalizer.getDriftUs(VIDEO), mNormalizer.getDriftUs(VIDEO) < -40000);
+        assertEquals(0, mNormalizer.getCorrectionUs(VIDEO));
+        assertEquals(0, mNormalizer.getTotalSlewUs(VIDEO));
+    }
+
+    /**
+     * Video's clock runs 1000 ppm fast against audio's and arrival. With correction
+     * enabled, video is slewed onto audio's clock no faster than MAX_SLEW_RATIO.
+     */
+    @Test
+    public void clockDriftIsCorrectedWhenEnabled() {
+        mNormalizer.setDriftCorrection(true);
+        runTrace(1000, 0);
+        long drift = mNormalizer.getDriftUs(VIDEO);
+        assertTrue("Drift " + drift, drift > 15000);
+        assertEquals(-drift, mNormalizer.getCorrectionUs(VIDEO), drift / 5);
+        assertTrue(mNormalizer.getTotalSlewUs(VIDEO) > 0);
+    }
+
+    @Test
+    public void clockDriftIsOnlyMeasuredByDefault() {
+        runTrace(1000, 0);
+        assertTrue(mNormalizer.getDriftUs(VIDEO) > 15000);
+        assertEquals(0, mNormalizer.getCorrectionUs(VIDEO));
+    }
+
+    /**
+     * Feed 30 s of interleaved audio and video by arrival time, checking each track's
+     * output strictly increases and never slews faster than MAX_SLEW_RATIO.
+     *
+     * @param videoDriftPpm  how fast video's timestamps run against audio's and the arrival clock
+     * @param videoLatencyUs added to video's arrival latency from half way through
+     */
+    private void runTrace(long videoDriftPpm, long videoLatencyUs) {
+        long durationUs = 30000000;
+        long baseVideoLatencyUs = 60000;
+        long lastVideo = -1;
+        long lastAudio = -1;
+        long lastVideoCorrection = 0;
+        long videoUs = 0;
+        long audioUs = 0;
+        while (videoUs < durationUs || audioUs < durationUs) {
+            long videoArrival = videoUs + baseVideoLatencyUs + (videoUs >= durationUs / 2 ? videoLatencyUs : 0);
+            long audioArrival = audioUs;
+            if (videoArrival <= audioArrival) {
+                long pts = START_US + videoUs + videoUs * videoDriftPpm / 1000000;
+                long out = mNormalizer.normalize(VIDEO, pts, pts, START_US + videoArrival);
+                assertTrue(out > lastVideo);
+                long correction = mNormalizer.getCorrectionUs(VIDEO);
+                assertTrue(Math.abs(correction - lastVideoCorrection) <= maxSlewUs(VIDEO_INTERVAL_US));
+                lastVideoCorrection = correction;
+                lastVideo = out;
+                videoUs += VIDEO_INTERVAL_US;
+            } else {
+                long out = mNormalizer.normalize(AUDIO, START_US + audioUs, START_US + audioUs, START_US + audioArrival);
+                assertTrue(out > lastAudio);
+                lastAudio = out;
+                audioUs += AUDIO_INTERVAL_US;
+            }
+        }
+    }
+
+    private static long maxSlewUs(long intervalUs) {
+        return Math.max(1, (long) (intervalUs * TimestampNormalizer.MAX_SLEW_RATIO));
+    }
+}
@@ -0,0 +1,187 @@
+package io.kickflip.sdk.av;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Demultiplexes an MPEG-2 Transport Stream for assertions, failing on malformed
+ * packets, continuity errors and PSI CRC mismatches.
+ * <p/>
+ * See ISO/IEC 13818-1
+ */
+class TsParser {
+
+    static class Pes {
+        final int pid;
+        final int streamId;
+        final long pts;                     // 90 kHz
+        final long dts;                     // 90 kHz, pts if absent
+        final boolean randomAccess;
+        final long pcr;                     // 90 kHz PCR base in the first TS packet, or -1
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+
+        Pes(int pid, int streamId, long pts, long dts, boolean randomAccess, long pcr) {
+            this.pid = pid;
+            this.streamId = streamId;
+            this.pts = pts;
+            this.dts = dts;
+            this.randomAccess = randomAccess;
+            this.pcr = pcr;
+        }
+    }
+
+    int pmtPid = -1;
+    int pcrPid = -1;
+    int patCount;
+    int pmtCount;
+    final Map<Integer, Integer> streamTypes = new HashMap<>();     // Elementary PID -> stream_type
+    final List<Pes> pes = new ArrayList<>();
+    private final Map<Integer, Integer> mContinuity = new HashMap<>();
+    private final Map<Integer, Pes> mOpenPes = new HashMap<>();
+
+    /**
+     * Parse a complete stream, or the next of its consecutive parts, e.g: HLS segments.
+     */
+    void parse(byte[] ts) {
+        assertEquals("Stream is not a whole number of TS packets", 0, ts.length % MpegTsWriter.TS_PACKET_SIZE);
+        for (int offset = 0; offset < ts.length; offset += MpegTsWriter.TS_PACKET_SIZE) {
+            parsePacket(ts, offset);
+        }
+    }
+
+    List<Pes> pesForPid(int pid) {
+        List<Pes> result = new ArrayList<>();
+        for (Pes p : pes) {
+            if (p.pid == pid) result.add(p);
+        }
+        return result;
+    }
+
+    int pidForStreamType(int streamType) {
+        for (Map.Entry<Integer, Integer> entry : streamTypes.entrySet()) {
+            if (entry.getValue() == streamType) return entry.getKey();
+        }
+        fail("No stream of type " + streamType);
+        return -1;
+    }
+
+    private void parsePacket(byte[] ts, int offset) {
+        assertEquals("Sync byte", 0x47, ts[offset] & 0xFF);
+        boolean payloadUnitStart = (ts[offset + 1] & 0x40) != 0;
+        int pid = ((ts[offset + 1] & 0x1F) << 8) | (ts[offset + 2] & 0xFF);
+        int adaptationControl = (ts[offset + 3] >> 4) & 0x03;
+        int continuity = ts[offset + 3] & 0x0F;
+        assertTrue("Packet without payload on PID " + pid, (adaptationControl & 0x01) != 0);
+
+        Integer previous = mContinuity.get(pid);
+        if (previous != null) {
+            assertEquals("Continuity counter on PID " + pid, (previous + 1) & 0x0F, continuity);
+        }
+        mContinuity.put(pid, continuity);
+
+        int position = offset + 4;
+        boolean randomAccess = false;
+        long pcr = -1;
+        if ((adaptationControl & 0x02) != 0) {
+            int length = ts[position] & 0xFF;
+            if (length > 0) {
+                int flags = ts[position + 1] & 0xFF;
+                randomAccess = (flags & 0x40) != 0;
+                if ((flags & 0x10) != 0) {
+                    pcr = ((ts[position + 2] & 0xFFL) << 25) | ((ts[position + 3] & 0xFFL) << 17)
+                            | ((ts[position + 4] & 0xFFL) << 9) | ((ts[position + 5] & 0xFFL) << 1)
+                            | ((ts[position + 6] & 0x80L) >> 7);
+                }
+            }
+            position += 1 + length;
+        }
+        int end = offset + MpegTsWriter.TS_PACKET_SIZE;
+        assertTrue("Adaptation field overruns packet", position <= end);
+
+        if (pid == 0) {
+            parsePat(ts, position + 1 + (ts[position] & 0xFF));
+        } else if (pid == pmtPid) {
+            parsePmt(ts, position + 1 + (ts[position] & 0xFF));
+        } else if (streamTypes.containsKey(pid)) {
+            if (payloadUnitStart) {
+                position = startPes(ts, position, pid, randomAccess, pcr);
+            }
+            Pes open = mOpenPes.get(pid);
+            if (open == null) fail("Payload before PES start on PID " + pid);
+            open.payload.write(ts, position, end - position);
+        } else {
+            fail("Unexpected PID " + pid);
+        }
+    }
+
+    private int startPes(byte[] ts, int position, int pid, boolean randomAccess, long pcr) {
+        assertEquals(0, ts[position]);
+        assertEquals(0, ts[position + 1]);
+        assertEquals(1, ts[position + 2]);
+        int streamId = ts[position + 3] & 0xFF;
+        int ptsDtsFlags = (ts[position + 7] >> 6) & 0x03;
+        int headerDataLength = ts[position + 8] & 0xFF;
+        assertTrue("PES without PTS", (ptsDtsFlags & 0x02) != 0);
+        long pts = readTimestamp(ts, position + 9);
+        long dts = ptsDtsFlags == 0x03 ? readTimestamp(ts, position + 14) : pts;
+        Pes pes = new Pes(pid, streamId, pts, dts, randomAccess, pcr);
+        this.pes.add(pes);
+        mOpenPes.put(pid, pes);
+        return position + 9 + headerDataLength;
+    }
+
+    private static long readTimestamp(byte[] b, int i) {
+        assertEquals("Timestamp marker bits", 1, b[i] & 0x01);
+        return ((b[i] & 0x0EL) << 29) | ((b[i + 1] & 0xFFL) << 22) | ((b[i + 2] & 0xFEL) << 14)
+                | ((b[i + 3] & 0xFFL) << 7) | ((b[i + 4] & 0xFEL) >> 1);
+    }
+
+    private void parsePat(byte[] ts, int section) {
+        assertEquals("table_id", 0x00, ts[section] & 0xFF);
+        int length = checkSection(ts, section);
+        int programs = section + 8;
+        assertEquals("Single program", 4, length - 9);
+        pmtPid = ((ts[programs + 2] & 0x1F) << 8) | (ts[programs + 3] & 0xFF);
+        patCount++;
+    }
+
+    private void parsePmt(byte[] ts, int section) {
+        assertEquals("table_id", 0x02, ts[section] & 0xFF);
+        int length = checkSection(ts, section);
+        pcrPid = ((ts[section + 8] & 0x1F) << 8) | (ts[section + 9] & 0xFF);
+        int programInfoLength = ((ts[section + 10] & 0x0F) << 8) | (ts[section + 11] & 0xFF);
+        int i = section + 12 + programInfoLength;
+        int end = section + 3 + length - 4;
+        while (i < end) {
+            int streamType = ts[i] & 0xFF;
+            int pid = ((ts[i + 1] & 0x1F) << 8) | (ts[i + 2] & 0xFF);
+            int esInfoLength = ((ts[i + 3] & 0x0F) << 8) | (ts[i + 4] & 0xFF);
+            streamTypes.put(pid, streamType);
+            i += 5 + esInfoLength;
+        }
+        pmtCount++;
+    }
+
+    /**
+     * @return section_length, having verified the section's CRC
+     */
+    private static int checkSection(byte[] ts, int section) {
+        int length = ((ts[section + 1] & 0x0F) << 8) | (ts[section + 2] & 0xFF);
+        int crc = 0xFFFFFFFF;
+        for (int i = section; i < section + 3 + length; i++) {
+            crc ^= (ts[i] & 0xFF) << 24;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04C11DB7 : crc << 1;
+            }
+        }
+        assertEquals("PSI CRC", 0, crc);
+        return length;
+    }
+}
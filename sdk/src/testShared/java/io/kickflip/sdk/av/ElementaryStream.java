@@ -0,0 +1,158 @@
+package io.kickflip.sdk.av;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A recorded elementary stream, split into samples as MediaCodec would output them.
+ * <p/>
+ * The recordings are test resources beside this class, generated with:
+ * <pre>
+ * ffmpeg -f lavfi -i testsrc=size=160x96:rate=30 -t 2 -c:v libopenh264 -b:v 200k -g 30 \
+ *     -bsf:v h264_metadata=aud=remove -f h264 testsrc_160x96_30fps.h264
+ * ffmpeg -f lavfi -i sine=frequency=440:sample_rate=44100 -t 2 -ac 1 -c:a aac -b:a 64k \
+ *     -f adts sine_440hz_44100_mono.aac
+ * </pre>
+ * H.264 is split into access units, the first SPS and PPS becoming codec config, and those
+ * repeated before later keyframes dropped. AAC is stripped of its ADTS headers.
+ * Presentation times are derived from the frame rate or sample rate.
+ * <p/>
+ * Has no Android dependencies, so is shared by JVM and on-device tests.
+ */
+public class ElementaryStream {
+
+    public static final String H264_RESOURCE = "testsrc_160x96_30fps.h264";
+    public static final int H264_WIDTH = 160;
+    public static final int H264_HEIGHT = 96;
+    public static final int H264_FRAME_RATE = 30;
+
+    public static final String AAC_RESOURCE = "sine_440hz_44100_mono.aac";
+    public static final int AAC_SAMPLE_RATE = 44100;
+    public static final int AAC_CHANNELS = 1;
+    public static final int AAC_SAMPLES_PER_FRAME = 1024;
+
+    private static final int NAL_SLICE = 1;
+    private static final int NAL_IDR_SLICE = 5;
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+
+    public static class Sample {
+        public final byte[] data;
+        public final long ptsUs;
+        public final boolean keyframe;
+
+        Sample(byte[] data, long ptsUs, boolean keyframe) {
+            this.data = data;
+            this.ptsUs = ptsUs;
+            this.keyframe = keyframe;
+        }
+    }
+
+    private final byte[] mCodecConfig;
+    private final List<Sample> mSamples;
+
+    private ElementaryStream(byte[] codecConfig, List<Sample> samples) {
+        mCodecConfig = codecConfig;
+        mSamples = Collections.unmodifiableList(samples);
+    }
+
+    /**
+     * @return the SPS and PPS in Annex-B format, or for AAC, null
+     */
+    public byte[] getCodecConfig() {
+        return mCodecConfig;
+    }
+
+    public List<Sample> getSamples() {
+        return mSamples;
+    }
+
+    /**
+     * @return the recorded 160x96, 30 fps constrained baseline H.264 test pattern
+     */
+    public static ElementaryStream readH264() throws IOException {
+        byte[] stream = readResource(H264_RESOURCE);
+        ByteArrayOutputStream config = new ByteArrayOutputStream();
+        ByteArrayOutputStream accessUnit = new ByteArrayOutputStream();
+        List<Sample> samples = new ArrayList<>();
+        boolean configComplete = false;
+        boolean keyframe = false;
+        int start = nextStartCode(stream, 0);
+        while (start < stream.length) {
+            int end = nextStartCode(stream, start + 3);
+            int nalType = stream[start + startCodeLength(stream, start)] & 0x1F;
+            if (nalType == NAL_SPS || nalType == NAL_PPS) {
+                // MediaCodec delivers these once, as codec config
+                if (!configComplete) config.write(stream, start, end - start);
+            } else {
+                accessUnit.write(stream, start, end - start);
+                if (nalType == NAL_IDR_SLICE) keyframe = true;
+                if (nalType == NAL_SLICE || nalType == NAL_IDR_SLICE) {
+                    // One slice per frame at this size
+                    configComplete = true;
+                    long ptsUs = samples.size() * 1000000L / H264_FRAME_RATE;
+                    samples.add(new Sample(accessUnit.toByteArray(), ptsUs, keyframe));
+                    accessUnit.reset();
+                    keyframe = false;
+                }
+            }
+            start = end;
+        }
+        return new ElementaryStream(config.toByteArray(), samples);
+    }
+
+    /**
+     * @return the recorded 44.1 kHz mono AAC-LC sine tone
+     */
+    public static ElementaryStream readAac() throws IOException {
+        byte[] stream = readResource(AAC_RESOURCE);
+        List<Sample> samples = new ArrayList<>();
+        int offset = 0;
+        while (offset + AdtsHeader.LENGTH <= stream.length) {
+            boolean protectionAbsent = (stream[offset + 1] & 0x01) != 0;
+            int headerLength = protectionAbsent ? AdtsHeader.LENGTH : AdtsHeader.LENGTH + 2;
+            int frameLength = ((stream[offset + 3] & 0x03) << 11) | ((stream[offset + 4] & 0xFF) << 3)
+                    | ((stream[offset + 5] & 0xE0) >> 5);
+            byte[] frame = new byte[frameLength - headerLength];
+            System.arraycopy(stream, offset + headerLength, frame, 0, frame.length);
+            long ptsUs = samples.size() * AAC_SAMPLES_PER_FRAME * 1000000L / AAC_SAMPLE_RATE;
+            samples.add(new Sample(frame, ptsUs, true));
+            offset += frameLength;
+        }
+        return new ElementaryStream(null, samples);
+    }
+
+    private static int nextStartCode(byte[] stream, int from) {
+        for (int i = from; i + 2 < stream.length; i++) {
+            if (stream[i] == 0 && stream[i + 1] == 0 && stream[i + 2] == 1) {
+                // Include the leading zero of a 4 byte start code
+                return (i > from && stream[i - 1] == 0) ? i - 1 : i;
+            }
+        }
+        return stream.length;
+    }
+
+    private static int startCodeLength(byte[] stream, int start) {
+        return stream[start + 2] == 1 ? 3 : 4;
+    }
+
+    private static byte[] readResource(String name) throws IOException {
+        InputStream in = ElementaryStream.class.getResourceAsStream(name);
+        if (in == null) throw new IOException("Missing test resource " + name);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}